@@ -19,5 +19,6 @@
 package dk.aau.cs.rite;
 
 public enum ConnectionType {
-	CONSUMER, PRODUCER
+	CONSUMER, PRODUCER,
+	EMBEDDED_PRODUCER // A producer with the catalyst in its own process, see RiteDriverManager.getEmbeddedConnection.
 }
@@ -19,21 +19,26 @@
 package dk.aau.cs.rite;
 
 import java.io.IOException;
-import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
 
+import dk.aau.cs.rite.common.Transport;
 import dk.aau.cs.rite.consumer.ConsumerConnection;
 import dk.aau.cs.rite.producer.ProducerConnection;
+import dk.aau.cs.rite.server.EmbeddedCatalyst;
 
 public class RiteDriverManager {
 
 	public static Connection getConnection(ConnectionType type,
 			String jdbcDriver, String jdbcUrl, String dbUsername,
 			String dbPassword, String server, int port) throws SQLException {
+		if (type == ConnectionType.EMBEDDED_PRODUCER) {
+			return getEmbeddedConnection(jdbcDriver, jdbcUrl, dbUsername, dbPassword, null, 3, port);
+		}
 		try {
-			InetSocketAddress serverAddr = new InetSocketAddress(server, port);
+			SocketAddress serverAddr = Transport.address(server, port);
 			Class.forName(jdbcDriver);
 			Connection jdbcConn = DriverManager.getConnection(jdbcUrl,
 					dbUsername, dbPassword);
@@ -52,4 +57,33 @@ public class RiteDriverManager {
 			throw new SQLException("Failed to connect to the catalyst server!",	e);
 		}
 	}
+
+	/**
+	 * Returns a producer connection which starts a catalyst in this process
+	 * (or uses the one started already for the port). The rows are committed
+	 * to it without a socket; consumers connect to it on the port.
+	 * 
+	 * @param dataDir
+	 *            The data directory of the catalyst, or null for a
+	 *            memory-based catalyst
+	 * @param segmentSize
+	 *            The segment size in MB
+	 * @param port
+	 *            The port for the consumers, or 0 if there are none
+	 */
+	public static ProducerConnection getEmbeddedConnection(String jdbcDriver, String jdbcUrl,
+			String dbUsername, String dbPassword, String dataDir, int segmentSize, int port) throws SQLException {
+		try {
+			Class.forName(jdbcDriver);
+			Connection jdbcConn = DriverManager.getConnection(jdbcUrl,
+					dbUsername, dbPassword);
+			EmbeddedCatalyst catalyst = EmbeddedCatalyst.start(dataDir, segmentSize, port);
+			return new ProducerConnection(jdbcConn, catalyst, jdbcDriver,
+					jdbcUrl, dbUsername, dbPassword);
+		} catch (ClassNotFoundException e) {
+			throw new SQLException(jdbcDriver + " is not found!", e);
+		} catch (IOException e) {
+			throw new SQLException("Failed to start the catalyst server!", e);
+		}
+	}
 }
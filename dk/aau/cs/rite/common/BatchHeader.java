@@ -0,0 +1,254 @@
+/*
+ *
+ * Copyright (c) 2011, Xiufeng Liu (xiliu@cs.aau.dk) and the eGovMon Consortium
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ *
+ *
+ */
+
+package dk.aau.cs.rite.common;
+
+import static dk.aau.cs.rite.tuplestore.FlagValues.IS_NOT_NULL;
+import static dk.aau.cs.rite.tuplestore.FlagValues.IS_NULL;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.sql.Types;
+import java.util.Arrays;
+
+/**
+ * The header of a batch of rows in the bulk flush format. It frames the rows,
+ * so that the catalyst can validate a batch and copy it into segments in
+ * blocks instead of decoding it field by field.
+ * <p>
+ * Format: number of rows (int)|length of the rows in bytes (int)|first row ID
+ * (int)|last row ID (int)|offset of each row in the rows (int)...; the rows
+ * follow in the format of the old flush. The last 4 bytes of a row are its ID,
+ * which the catalyst checks with checkRowID() when it adds the row.
+ */
+public class BatchHeader {
+
+	public static final int FIXED_SIZE = 4 + 4 + 4 + 4;
+
+	private int rowCount = 0;
+	private int length = 0;
+	private int firstRowID = 0;
+	private int lastRowID = 0;
+	private int[] offsets;
+
+	public BatchHeader() {
+		this(256);
+	}
+
+	public BatchHeader(int capacity) {
+		this.offsets = new int[Math.max(1, capacity)];
+	}
+
+	/** Adds a row of the given length to the end of the batch. */
+	public void addRow(int rowLength, int rowID) {
+		if (rowCount == offsets.length)
+			offsets = Arrays.copyOf(offsets, 2 * offsets.length);
+		if (rowCount == 0)
+			firstRowID = rowID;
+		lastRowID = rowID;
+		offsets[rowCount++] = length;
+		length += rowLength;
+	}
+
+	/** Adds the rows of another batch, whose rows follow the rows of this batch. */
+	public void append(BatchHeader other) {
+		if (other.rowCount == 0)
+			return;
+		if (rowCount + other.rowCount > offsets.length)
+			offsets = Arrays.copyOf(offsets, Math.max(2 * offsets.length, rowCount + other.rowCount));
+		for (int i = 0; i < other.rowCount; ++i) {
+			offsets[rowCount + i] = length + other.offsets[i];
+		}
+		if (rowCount == 0)
+			firstRowID = other.firstRowID;
+		lastRowID = other.lastRowID;
+		rowCount += other.rowCount;
+		length += other.length;
+	}
+
+	public BatchHeader copy() {
+		BatchHeader copy = new BatchHeader(rowCount);
+		copy.append(this);
+		return copy;
+	}
+
+	public void clear() {
+		rowCount = 0;
+		length = 0;
+	}
+
+	public int size() {
+		return rowCount;
+	}
+
+	public int getLength() {
+		return length;
+	}
+
+	public int getFirstRowID() {
+		return firstRowID;
+	}
+
+	public int getLastRowID() {
+		return lastRowID;
+	}
+
+	/** Returns the offset of the i-th row in the rows. */
+	public int getOffset(int i) {
+		return offsets[i];
+	}
+
+	/** Returns the offset of the byte after the i-th row. */
+	public int getEnd(int i) {
+		return i + 1 < rowCount ? offsets[i + 1] : length;
+	}
+
+	/** Returns the number of bytes of the header in the bulk flush format. */
+	public int getEncodedSize() {
+		return FIXED_SIZE + 4 * rowCount;
+	}
+
+	/** Puts the header into buf, which must have getEncodedSize() bytes remaining. */
+	public ByteBuffer putTo(ByteBuffer buf) {
+		buf.putInt(rowCount).putInt(length).putInt(firstRowID).putInt(lastRowID);
+		buf.asIntBuffer().put(offsets, 0, rowCount);
+		buf.position(buf.position() + 4 * rowCount);
+		return buf;
+	}
+
+	public long writeTo(WritableByteChannel dest) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(getEncodedSize());
+		putTo(buf).flip();
+		long written = 0;
+		while (buf.hasRemaining()) {
+			written += dest.write(buf);
+		}
+		return written;
+	}
+
+	/**
+	 * Reads a header through buf (see <code>Utils.ensureForRead</code>), and
+	 * checks that the offsets are consistent with the length.
+	 */
+	public static BatchHeader readFrom(ReadableByteChannel channel, ByteBuffer buf) throws IOException {
+		Utils.ensureForRead(channel, buf, FIXED_SIZE);
+		int rowCount = buf.getInt();
+		int length = buf.getInt();
+		if (rowCount < 0 || length < 0 || (rowCount == 0) != (length == 0))
+			throw new IOException("Illegal batch header: rows=" + rowCount + ", length=" + length);
+		BatchHeader batch = new BatchHeader(rowCount);
+		batch.rowCount = rowCount;
+		batch.length = length;
+		batch.firstRowID = buf.getInt();
+		batch.lastRowID = buf.getInt();
+		int read = 0, chunk = buf.capacity() / 4;
+		while (read < rowCount) {
+			int n = Math.min(chunk, rowCount - read);
+			Utils.ensureForRead(channel, buf, 4 * n);
+			buf.asIntBuffer().get(batch.offsets, read, n);
+			buf.position(buf.position() + 4 * n);
+			read += n;
+		}
+		for (int i = 0; i < rowCount; ++i) { // A row has at least a null flag and its ID.
+			int offset = batch.offsets[i];
+			if ((i == 0 ? offset != 0 : offset - batch.offsets[i - 1] < 5) || length - offset < 5)
+				throw new IOException("Illegal offset of row " + i + " in the batch: " + offset);
+		}
+		return batch;
+	}
+
+	/**
+	 * Reads n rows in the format of the old flush, of the given column types,
+	 * through buf, and adds them to this batch. Returns the rows, ready to be
+	 * read, e.g., to apply an old flush as a batch.
+	 */
+	public ByteBuffer readRows(ReadableByteChannel channel, ByteBuffer buf, int[] types, int n) throws IOException {
+		ByteBuffer rows = ByteBuffer.allocate(Math.max(buf.capacity(), (int) Math.min(64L * n, 1 << 20)));
+		for (int r = 0; r < n; ++r) {
+			int start = rows.position();
+			for (int i = 0; i < types.length; ++i) {
+				Utils.ensureForRead(channel, buf, 1);
+				byte flag = buf.get(buf.position());
+				int size = 1;
+				if (flag == IS_NOT_NULL) {
+					switch (types[i]) {
+					case Types.BIGINT:
+					case Types.DOUBLE:
+					case Types.FLOAT:
+					case Types.NUMERIC:
+						size += 8;
+						break;
+					case Types.DATE: // YYYY-MM-DD, without a length
+						size += 10;
+						break;
+					case Types.REAL:
+					case Types.INTEGER:
+						size += 4;
+						break;
+					case Types.LONGVARCHAR:
+					case Types.VARCHAR:
+						Utils.ensureForRead(channel, buf, 5);
+						int length = buf.getInt(buf.position() + 1);
+						if (length < 0)
+							throw new IOException("Illegal length of a string: " + length);
+						size += 4 + length;
+						break;
+					default:
+						throw new IOException("Unsupported type: " + types[i]);
+					}
+				} else if (flag != IS_NULL) {
+					throw new IOException("Illegal flag value");
+				}
+				if (rows.remaining() < size) {
+					ByteBuffer larger = ByteBuffer.allocate(Math.max(2 * rows.capacity(), rows.position() + size));
+					rows.flip();
+					rows = larger.put(rows);
+				}
+				ByteBuffer dst = rows.duplicate();
+				dst.limit(dst.position() + size);
+				Utils.readFully(channel, buf, dst);
+				rows.position(dst.limit());
+			}
+			if (rows.position() - start < 5)
+				throw new IOException("Row " + r + " has no ID");
+			this.addRow(rows.position() - start, rows.getInt(rows.position() - 4)); // The last column is the row ID.
+		}
+		rows.flip();
+		return rows;
+	}
+
+	/**
+	 * Checks the ID of the i-th row against the header: the IDs are increasing
+	 * from the first to the last row ID.
+	 */
+	public void checkRowID(int i, int rowID, int prevRowID) throws IOException {
+		if ((i == 0 ? rowID != firstRowID : rowID <= prevRowID) || (i == rowCount - 1 && rowID != lastRowID))
+			throw new IOException("Illegal ID of row " + i + " in the batch: " + rowID);
+	}
+
+	public String toString() {
+		StringBuilder strBld = new StringBuilder();
+		strBld.append("rowCount=").append(rowCount)
+				.append(";length=").append(length)
+				.append(";firstRowID=").append(firstRowID)
+				.append(";lastRowID=").append(lastRowID);
+		return strBld.toString();
+	}
+}
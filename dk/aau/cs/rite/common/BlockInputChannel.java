@@ -0,0 +1,133 @@
+/*
+ *
+ * Copyright (c) 2011, Xiufeng Liu (xiliu@cs.aau.dk) and the eGovMon Consortium
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ *
+ *
+ */
+
+package dk.aau.cs.rite.common;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Reads a stream written by <code>BlockOutputChannel</code>. It reads exactly
+ * one block at a time from the underlying channel, so it never reads beyond
+ * the end of the stream. The end of the underlying channel at a block
+ * boundary also ends the stream.
+ */
+public class BlockInputChannel implements ReadableByteChannel {
+
+	private final ReadableByteChannel in;
+	private final ByteBuffer header = ByteBuffer.allocate(8);
+	private final byte[] stored = new byte[Compression.BLOCK_SIZE];
+	private final ByteBuffer block = ByteBuffer.allocate(Compression.BLOCK_SIZE);
+	private final Inflater inflater = new Inflater();
+	private boolean ended = false;
+
+	public BlockInputChannel(ReadableByteChannel in) {
+		this.in = in;
+		this.block.limit(0);
+	}
+
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		if (!block.hasRemaining() && !nextBlock())
+			return -1;
+		int n = Math.min(dst.remaining(), block.remaining());
+		int limit = block.limit();
+		block.limit(block.position() + n);
+		dst.put(block);
+		block.limit(limit);
+		return n;
+	}
+
+	/** Skips the rest of the stream, up to and including the end block. */
+	public void finish() throws IOException {
+		do {
+			block.position(block.limit());
+		} while (nextBlock());
+	}
+
+	private boolean nextBlock() throws IOException {
+		if (ended)
+			return false;
+		header.clear();
+		if (!readFully(header, true)) {
+			ended = true;
+			return false;
+		}
+		int rawLength = header.getInt(0);
+		int storedLength = header.getInt(4);
+		if (rawLength == 0) {
+			ended = true;
+			return false;
+		}
+		if (rawLength < 0 || rawLength > Compression.BLOCK_SIZE || storedLength <= 0 || storedLength > rawLength)
+			throw new IOException("Illegal block: raw=" + rawLength + ", stored=" + storedLength);
+		block.clear();
+		if (storedLength == rawLength) {
+			block.limit(rawLength);
+			readFully(block, false);
+		} else {
+			readFully(ByteBuffer.wrap(stored, 0, storedLength), false);
+			inflater.reset();
+			inflater.setInput(stored, 0, storedLength);
+			try {
+				int n = 0;
+				while (n < rawLength && !inflater.finished()) {
+					int k = inflater.inflate(block.array(), n, rawLength - n);
+					if (k == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+						break;
+					n += k;
+				}
+				if (n != rawLength)
+					throw new IOException("The block gave " + n + " bytes, expected " + rawLength);
+			} catch (DataFormatException e) {
+				throw new IOException(e);
+			}
+		}
+		block.position(0);
+		block.limit(rawLength);
+		return true;
+	}
+
+	/** Returns false if the channel ended before the first byte and eofAllowed. */
+	private boolean readFully(ByteBuffer dst, boolean eofAllowed) throws IOException {
+		int start = dst.position();
+		while (dst.hasRemaining()) {
+			if (in.read(dst) == -1) {
+				if (eofAllowed && dst.position() == start)
+					return false;
+				throw new EOFException("The stream ended in a block");
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return in.isOpen();
+	}
+
+	/** Releases the decompressor. The underlying channel is left open. */
+	@Override
+	public void close() {
+		inflater.end();
+	}
+}
@@ -0,0 +1,136 @@
+/*
+ *
+ * Copyright (c) 2011, Xiufeng Liu (xiliu@cs.aau.dk) and the eGovMon Consortium
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ *
+ *
+ */
+
+package dk.aau.cs.rite.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.Deflater;
+
+/**
+ * Writes a stream as compressed blocks. Block format: raw length
+ * (int)|stored length (int)|stored bytes. If the two lengths are equal the
+ * bytes are stored as they are, which is done for blocks smaller than the
+ * threshold and for blocks that do not compress. A block with the raw length
+ * 0 ends the stream.
+ */
+public class BlockOutputChannel implements WritableByteChannel {
+
+	private final WritableByteChannel out;
+	private final int codec;
+	private final int threshold;
+	private final byte[] raw = new byte[Compression.BLOCK_SIZE];
+	private final byte[] stored = new byte[Compression.BLOCK_SIZE];
+	private final ByteBuffer header = ByteBuffer.allocate(8);
+	private final Deflater deflater;
+	private int count = 0;
+	private long rawBytes = 0;
+	private long storedBytes = 0;
+
+	public BlockOutputChannel(WritableByteChannel out, int codec, int threshold) {
+		this.out = out;
+		this.codec = codec;
+		this.threshold = threshold;
+		this.deflater = codec == Compression.DEFLATE ? new Deflater(Deflater.BEST_SPEED) : null;
+	}
+
+	public WritableByteChannel getChannel() {
+		return out;
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		int n = src.remaining();
+		while (src.hasRemaining()) {
+			int k = Math.min(src.remaining(), raw.length - count);
+			src.get(raw, count, k);
+			count += k;
+			if (count == raw.length)
+				writeBlock();
+		}
+		return n;
+	}
+
+	/** Writes the bytes written so far as a block. */
+	public void flush() throws IOException {
+		if (count > 0)
+			writeBlock();
+	}
+
+	/** Flushes and ends the stream. The channel can be used for the next stream afterwards. */
+	public void finish() throws IOException {
+		flush();
+		writeHeader(0, 0);
+	}
+
+	private void writeBlock() throws IOException {
+		byte[] body = raw;
+		int length = count;
+		if (deflater != null && count >= threshold) {
+			deflater.reset();
+			deflater.setInput(raw, 0, count);
+			deflater.finish();
+			int n = 0;
+			while (!deflater.finished() && n < count) {
+				n += deflater.deflate(stored, n, count - n);
+			}
+			if (deflater.finished() && n < count) {
+				body = stored;
+				length = n;
+			}
+		}
+		writeHeader(count, length);
+		ByteBuffer buf = ByteBuffer.wrap(body, 0, length);
+		while (buf.hasRemaining()) {
+			out.write(buf);
+		}
+		rawBytes += count;
+		storedBytes += length;
+		count = 0;
+	}
+
+	private void writeHeader(int rawLength, int storedLength) throws IOException {
+		header.clear();
+		header.putInt(rawLength).putInt(storedLength).flip();
+		while (header.hasRemaining()) {
+			out.write(header);
+		}
+		storedBytes += 8;
+	}
+
+	public long getRawBytes() {
+		return rawBytes;
+	}
+
+	public long getStoredBytes() {
+		return storedBytes;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return out.isOpen();
+	}
+
+	/** Releases the compressor. The underlying channel is left open. */
+	@Override
+	public void close() {
+		if (deflater != null)
+			deflater.end();
+	}
+}
@@ -0,0 +1,92 @@
+/*
+ *
+ * Copyright (c) 2011, Xiufeng Liu (xiliu@cs.aau.dk) and the eGovMon Consortium
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ *
+ *
+ */
+
+package dk.aau.cs.rite.common;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of direct buffers of one size, in which the producers stage their
+ * rows (see <code>MemRowsHolder</code>). A chunk that is given back is kept
+ * for the next holder, up to maxPooledBytes, so that the direct memory is
+ * reused rather than left to the GC, as the <code>SegmentArena</code> does
+ * for the catalyst.
+ */
+public class ChunkPool {
+
+	public static final int DEFAULT_CHUNK_SIZE = 32 * 1024;
+	public static final long DEFAULT_MAX_POOLED_BYTES = 64L * 1024 * 1024;
+
+	private static final ConcurrentHashMap<Integer, ChunkPool> pools = new ConcurrentHashMap<Integer, ChunkPool>();
+
+	private final int chunkSize;
+	private final long maxPooledBytes;
+	private final Queue<ByteBuffer> chunks = new ConcurrentLinkedQueue<ByteBuffer>();
+	private final AtomicLong pooledBytes = new AtomicLong(0);
+
+	public ChunkPool(int chunkSize, long maxPooledBytes) {
+		if (chunkSize <= 0)
+			throw new IllegalArgumentException("Illegal chunk size: " + chunkSize);
+		this.chunkSize = chunkSize;
+		this.maxPooledBytes = maxPooledBytes;
+	}
+
+	/** Returns the pool of the process for chunks of the given size. */
+	public static ChunkPool get(int chunkSize) {
+		ChunkPool pool = pools.get(chunkSize);
+		if (pool == null) {
+			pools.putIfAbsent(chunkSize, new ChunkPool(chunkSize, DEFAULT_MAX_POOLED_BYTES));
+			pool = pools.get(chunkSize);
+		}
+		return pool;
+	}
+
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	/** Returns a cleared chunk. */
+	public ByteBuffer take() {
+		ByteBuffer chunk = chunks.poll();
+		if (chunk == null)
+			return ByteBuffer.allocateDirect(chunkSize);
+		pooledBytes.addAndGet(-chunkSize);
+		chunk.clear();
+		return chunk;
+	}
+
+	/** Gives a chunk of take() back; it must not be used afterwards. */
+	public void give(ByteBuffer chunk) {
+		if (chunk.capacity() != chunkSize)
+			throw new IllegalArgumentException("The chunk is not of this pool: " + chunk.capacity());
+		if (pooledBytes.addAndGet(chunkSize) <= maxPooledBytes) {
+			chunks.offer(chunk);
+		} else { // Left to the GC, which releases the direct memory.
+			pooledBytes.addAndGet(-chunkSize);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return String.format("ChunkPool: chunkSize=%d, pooled=%d", chunkSize, pooledBytes.get());
+	}
+}
@@ -0,0 +1,70 @@
+/*
+ *
+ * Copyright (c) 2011, Xiufeng Liu (xiliu@cs.aau.dk) and the eGovMon Consortium
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ *
+ *
+ */
+
+package dk.aau.cs.rite.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+
+import dk.aau.cs.rite.server.ServerCommand;
+
+/**
+ * The compression of row streams, which is negotiated per connection. A
+ * compressed stream is a sequence of blocks (see
+ * <code>BlockOutputChannel</code>) of at most BLOCK_SIZE raw bytes; a block
+ * smaller than the threshold of the connection is sent as it is.
+ */
+public final class Compression {
+
+	public static final int NONE = 0;
+	public static final int DEFLATE = 1; // java.util.zip.Deflater, BEST_SPEED.
+
+	public static final int BLOCK_SIZE = 64 * 1024;
+	public static final int DEFAULT_THRESHOLD = 1024;
+
+	private Compression() {
+	}
+
+	public static boolean isSupported(int codec) {
+		return codec == NONE || codec == DEFLATE;
+	}
+
+	/**
+	 * Asks the catalyst to use the codec on the connection. Format: command
+	 * (int)|codec (int)|threshold (int); the reply is the codec that the
+	 * catalyst accepted (int)|OK (int).
+	 * 
+	 * @return the accepted codec, which may be NONE.
+	 */
+	public static int negotiate(ByteChannel channel, ByteBuffer buf, int codec, int threshold) throws IOException {
+		if (codec == NONE)
+			return NONE; // Also works with a catalyst which does not know the command.
+		buf.clear();
+		buf.putInt(ServerCommand.NEGOTIATE_COMPRESSION.ordinal()).putInt(codec).putInt(threshold).flip();
+		while (buf.hasRemaining()) {
+			channel.write(buf);
+		}
+		buf.clear();
+		Utils.read(channel, 8, buf);
+		if (buf.getInt(4) != ServerCommand.OK.ordinal()) {
+			throw new IOException("Failed to negotiate the compression!");
+		}
+		return buf.getInt(0);
+	}
+}
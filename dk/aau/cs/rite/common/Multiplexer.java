@@ -0,0 +1,326 @@
+/*
+ *
+ * Copyright (c) 2011, Xiufeng Liu (xiliu@cs.aau.dk) and the eGovMon Consortium
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ *
+ *
+ */
+
+package dk.aau.cs.rite.common;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import dk.aau.cs.rite.server.ServerCommand;
+
+/**
+ * Carries many streams over one connection, so that a producer needs one
+ * socket for all its tables instead of one per table. Each stream is a
+ * <code>ByteChannel</code> that runs the usual command protocol, e.g., the
+ * commands of one table. What is written to a stream is sent in frames of at
+ * most MAX_FRAME bytes, tagged with the stream, so that the flushes of
+ * different tables interleave on the connection.
+ * <p>
+ * Frame format: stream (int)|length (int)|bytes. A frame of length -1 closes
+ * the stream. A stream is opened by the first frame that is sent on it; the
+ * client numbers its streams from 1.
+ * <p>
+ * The frames are read by one thread which runs <code>readLoop()</code>, and
+ * queued at their streams. The queue of a stream holds at most
+ * QUEUED_FRAMES frames; when it is full, the loop waits for the stream to be
+ * read, which bounds the memory used for a slow stream.
+ */
+public class Multiplexer {
+
+	public static final int MAX_FRAME = 64 * 1024;
+	public static final int QUEUED_FRAMES = 64;
+	private static final int HEADER_SIZE = 8;
+	private static final int CLOSE = -1;
+	private static final ByteBuffer EOF = ByteBuffer.allocate(0);
+
+	/**
+	 * Is told of the streams opened by the other side, and of the frames that
+	 * arrive (also of the end of a stream), by the thread of the read loop.
+	 */
+	public interface Listener {
+		void opened(Stream stream);
+
+		void received(Stream stream);
+	}
+
+	private final ByteChannel channel;
+	private final Listener listener; // Null if the other side cannot open streams.
+	private final ConcurrentHashMap<Integer, Stream> streams = new ConcurrentHashMap<Integer, Stream>();
+	private final AtomicInteger nextID = new AtomicInteger(1);
+	private final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + 4096); // Small frames are sent in one write.
+	private volatile boolean closed = false;
+
+	/**
+	 * Connects to the catalyst and turns the connection into a multiplexed
+	 * one with PROD_MULTIPLEX. The frames are read by a daemon thread.
+	 */
+	public static Multiplexer connect(SocketAddress serverAddr) throws IOException {
+		SocketChannel channel = Transport.connect(serverAddr);
+		try {
+			ByteBuffer buf = ByteBuffer.allocate(4);
+			Utils.send(channel, buf, ServerCommand.PROD_MULTIPLEX);
+			Utils.checkFailure(channel, "Failed to multiplex the connection!");
+		} catch (IOException e) {
+			Utils.closeQuietly(channel);
+			throw e;
+		}
+		final Multiplexer mux = new Multiplexer(channel, null);
+		Thread t = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					mux.readLoop();
+				} catch (IOException e) {
+					if (!mux.closed)
+						e.printStackTrace();
+				}
+			}
+		}, "rite-mux-reader");
+		t.setDaemon(true);
+		t.start();
+		return mux;
+	}
+
+	public Multiplexer(ByteChannel channel, Listener listener) {
+		this.channel = channel;
+		this.listener = listener;
+	}
+
+	public ByteChannel getChannel() {
+		return channel;
+	}
+
+	/** Opens a new stream; nothing is sent before the first write. */
+	public Stream open() throws IOException {
+		if (closed)
+			throw new ClosedChannelException();
+		Stream stream = new Stream(nextID.getAndIncrement());
+		streams.put(stream.id, stream);
+		return stream;
+	}
+
+	public boolean isOpen() {
+		return !closed && channel.isOpen();
+	}
+
+	/**
+	 * Reads the frames and queues them at their streams, until the connection
+	 * is closed. When it returns, all streams are at their end.
+	 */
+	public void readLoop() throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(HEADER_SIZE);
+		try {
+			while (true) {
+				buf.clear();
+				if (Utils.read(channel, HEADER_SIZE, buf) < HEADER_SIZE)
+					break;
+				int id = buf.getInt(0);
+				int length = buf.getInt(4);
+				if (length < CLOSE || length > MAX_FRAME)
+					throw new IOException("Illegal frame: stream=" + id + ", length=" + length);
+				Stream stream = streams.get(id);
+				if (length == CLOSE) {
+					if (stream != null) {
+						stream.end();
+						if (listener != null)
+							listener.received(stream);
+					}
+					continue;
+				}
+				ByteBuffer frame = ByteBuffer.allocate(length);
+				if (length > 0 && Utils.read(channel, length, frame) < length)
+					break;
+				frame.flip();
+				if (stream == null) {
+					if (listener == null)
+						continue; // E.g., the rest of a stream that was closed here.
+					stream = new Stream(id);
+					streams.put(id, stream);
+					listener.opened(stream);
+				}
+				stream.queue(frame);
+				if (listener != null)
+					listener.received(stream);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			close();
+		}
+	}
+
+	/** Closes the connection; the streams get to their end. */
+	public void close() {
+		closed = true;
+		Utils.closeQuietly(channel);
+		for (Stream stream : streams.values()) {
+			stream.end();
+		}
+	}
+
+	private void send(int id, ByteBuffer src) throws IOException {
+		synchronized (header) {
+			if (closed)
+				throw new ClosedChannelException();
+			header.clear();
+			header.putInt(id).putInt(src == null ? CLOSE : src.remaining());
+			if (src != null && src.remaining() <= header.remaining()) {
+				header.put(src);
+				src = null;
+			}
+			header.flip();
+			while (header.hasRemaining())
+				channel.write(header);
+			while (src != null && src.hasRemaining())
+				channel.write(src);
+		}
+	}
+
+	/** A stream of the connection. Only one thread at a time may read a stream. */
+	public class Stream implements ByteChannel {
+		final int id;
+		private final LinkedBlockingQueue<ByteBuffer> frames = new LinkedBlockingQueue<ByteBuffer>(QUEUED_FRAMES);
+		private final AtomicInteger available = new AtomicInteger(0);
+		private ByteBuffer current;
+		private volatile boolean ended = false; // Closed by the other side, or the connection is closed.
+		private volatile boolean open = true;
+		private volatile long readTimeout = 0; // ms, 0 waits forever.
+
+		Stream(int id) {
+			this.id = id;
+		}
+
+		/** Sets how long a read may wait for a frame, in ms; 0 waits forever. */
+		public void setReadTimeout(long timeout) {
+			this.readTimeout = timeout;
+		}
+
+		public int getID() {
+			return id;
+		}
+
+		/** Returns the number of bytes that can be read without waiting. */
+		public int available() {
+			return available.get();
+		}
+
+		void queue(ByteBuffer frame) throws InterruptedException {
+			available.addAndGet(frame.remaining());
+			if (open)
+				frames.put(frame);
+		}
+
+		void end() {
+			ended = true;
+			frames.offer(EOF); // There is room, unless nobody is reading it.
+			if (!open)
+				streams.remove(id, this);
+		}
+
+		/** Waits for a frame, unless some bytes are read already. Returns -1 at the end of the stream. */
+		@Override
+		public int read(ByteBuffer dst) throws IOException {
+			int read = 0;
+			while (dst.hasRemaining()) {
+				if (current == null || !current.hasRemaining()) {
+					current = read == 0 ? take() : frames.poll();
+					if (current == null)
+						break;
+					if (current == EOF) {
+						frames.offer(EOF); // Stays at the end.
+						current = null;
+						return read == 0 ? -1 : read;
+					}
+				}
+				int n = Math.min(current.remaining(), dst.remaining());
+				ByteBuffer chunk = current.duplicate();
+				chunk.limit(chunk.position() + n);
+				dst.put(chunk);
+				current.position(current.position() + n);
+				read += n;
+			}
+			available.addAndGet(-read);
+			return read;
+		}
+
+		private ByteBuffer take() throws IOException {
+			try {
+				ByteBuffer frame;
+				long waited = 0;
+				while ((frame = frames.poll(100, TimeUnit.MILLISECONDS)) == null) {
+					if (!open)
+						throw new ClosedChannelException();
+					if (ended)
+						return EOF; // The queue was full when the stream ended.
+					waited += 100;
+					if (readTimeout > 0 && waited >= readTimeout)
+						throw new SocketTimeoutException("Nothing was received on stream " + id + " for " + readTimeout + " ms");
+				}
+				return frame;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException(e);
+			}
+		}
+
+		@Override
+		public int write(ByteBuffer src) throws IOException {
+			if (!open || ended)
+				throw new ClosedChannelException();
+			int written = src.remaining();
+			while (src.hasRemaining()) {
+				ByteBuffer frame = src.duplicate();
+				frame.limit(frame.position() + Math.min(MAX_FRAME, frame.remaining()));
+				send(id, frame);
+				src.position(frame.position());
+			}
+			return written;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return open && !ended;
+		}
+
+		/** Closes the stream at both sides. */
+		@Override
+		public void close() throws IOException {
+			if (!open)
+				return;
+			open = false;
+			frames.clear(); // Unblocks the read loop, if it waits for room.
+			if (ended) {
+				streams.remove(id, this);
+			} else {
+				try {
+					send(id, null);
+				} catch (ClosedChannelException e) {
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,63 @@
+/*
+ *
+ * Copyright (c) 2011, Xiufeng Liu (xiliu@cs.aau.dk) and the eGovMon Consortium
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ *
+ *
+ */
+
+package dk.aau.cs.rite.common;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Reads the bytes of a buffer, and then those of a channel. Used to hand a
+ * stream over in the same process, where the head of the stream (e.g., the
+ * commit time and the batch header) is built in memory and the rest is read
+ * from where it is staged.
+ */
+public class PrefixedChannel implements ReadableByteChannel {
+
+	private final ByteBuffer prefix;
+	private final ReadableByteChannel rest;
+
+	public PrefixedChannel(ByteBuffer prefix, ReadableByteChannel rest) {
+		this.prefix = prefix;
+		this.rest = rest;
+	}
+
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		if (!prefix.hasRemaining())
+			return rest == null ? -1 : rest.read(dst);
+		int n = Math.min(prefix.remaining(), dst.remaining());
+		ByteBuffer chunk = prefix.duplicate();
+		chunk.limit(chunk.position() + n);
+		dst.put(chunk);
+		prefix.position(prefix.position() + n);
+		return n;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return prefix.hasRemaining() || (rest != null && rest.isOpen());
+	}
+
+	/** Skips the rest of the prefix; the channel is left open for its owner. */
+	@Override
+	public void close() throws IOException {
+		prefix.position(prefix.limit());
+	}
+}
@@ -0,0 +1,285 @@
+/*
+ *
+ * Copyright (c) 2011, Xiufeng Liu (xiliu@cs.aau.dk) and the eGovMon Consortium
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ *
+ *
+ */
+
+package dk.aau.cs.rite.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Field;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A single-producer, single-consumer ring buffer in a memory-mapped file,
+ * shared by a producer and the catalyst on the same host. The producer writes
+ * the payload of a data flush into the ring, and the catalyst reads it
+ * straight into its segments, so the rows are not copied through the kernel.
+ * <p>
+ * File format: magic (int)|capacity (int)|closed (int) ... write position
+ * (long, at 64) ... read position (long, at 128) ... data (capacity bytes, at
+ * HEADER_SIZE). The positions only grow; the positions modulo the capacity
+ * are the offsets in the data. Each position is only written by one side, and
+ * is published with an ordered store after the data, so that no lock is
+ * needed. The ordered and volatile accesses of the mapped memory are made
+ * with sun.misc.Unsafe, which is looked up reflectively as it is not part of
+ * the platform API. A side which has to wait for the other side spins shortly, and then
+ * parks for a growing time.
+ */
+public class SharedRing implements ByteChannel {
+
+	public static final int MAGIC = 0x52695445; // "RiTE"
+	public static final int HEADER_SIZE = 192;
+	public static final int DEFAULT_CAPACITY = 4 * 1024 * 1024;
+
+	private static final int CLOSED = 8;
+	private static final int WRITE_POS = 64;
+	private static final int READ_POS = 128;
+
+	private static final int SPINS = 1000;
+	private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+	private static final long TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+	private static final MethodHandle GET_LONG, GET_LONG_VOLATILE, PUT_ORDERED_LONG, GET_INT_VOLATILE, PUT_INT_VOLATILE;
+	private static final long ADDRESS_OFFSET;
+
+	static {
+		MethodHandle getLong = null, getLongVolatile = null, putOrderedLong = null, getIntVolatile = null, putIntVolatile = null;
+		long offset = -1;
+		try {
+			Class<?> c = Class.forName("sun.misc.Unsafe");
+			Field f = c.getDeclaredField("theUnsafe");
+			f.setAccessible(true);
+			Object unsafe = f.get(null);
+			offset = (Long) c.getMethod("objectFieldOffset", Field.class).invoke(unsafe, Buffer.class.getDeclaredField("address"));
+			MethodHandles.Lookup lookup = MethodHandles.lookup();
+			getLong = lookup.unreflect(c.getMethod("getLong", Object.class, long.class)).bindTo(unsafe);
+			getLongVolatile = lookup.unreflect(c.getMethod("getLongVolatile", Object.class, long.class)).bindTo(unsafe);
+			putOrderedLong = lookup.unreflect(c.getMethod("putOrderedLong", Object.class, long.class, long.class)).bindTo(unsafe);
+			getIntVolatile = lookup.unreflect(c.getMethod("getIntVolatile", Object.class, long.class)).bindTo(unsafe);
+			putIntVolatile = lookup.unreflect(c.getMethod("putIntVolatile", Object.class, long.class, int.class)).bindTo(unsafe);
+		} catch (Exception e) {
+			getLong = null;
+		}
+		GET_LONG = getLong;
+		GET_LONG_VOLATILE = getLongVolatile;
+		PUT_ORDERED_LONG = putOrderedLong;
+		GET_INT_VOLATILE = getIntVolatile;
+		PUT_INT_VOLATILE = putIntVolatile;
+		ADDRESS_OFFSET = offset;
+	}
+
+	private final File file;
+	private final MappedByteBuffer mapped;
+	private final ByteBuffer data;
+	private final long address;
+	private final int capacity;
+	private final boolean owner;
+	private long writePos, readPos; // The local copies of the own position.
+
+	private SharedRing(File file, MappedByteBuffer mapped, boolean owner) {
+		this.file = file;
+		this.mapped = mapped;
+		this.owner = owner;
+		this.address = addressOf(mapped);
+		this.capacity = mapped.capacity() - HEADER_SIZE;
+		mapped.position(HEADER_SIZE);
+		this.data = mapped.slice();
+		this.writePos = getLongVolatile(address + WRITE_POS);
+		this.readPos = getLongVolatile(address + READ_POS);
+	}
+
+	public static boolean isSupported() {
+		return GET_LONG != null;
+	}
+
+	/** Creates the ring file; the file is deleted when the ring is closed. */
+	public static SharedRing create(File file, int capacity) throws IOException {
+		if (!isSupported())
+			throw new IOException("The shared ring is not supported by this JVM!");
+		MappedByteBuffer mapped = map(file, HEADER_SIZE + capacity);
+		mapped.putInt(0, MAGIC).putInt(4, capacity).putInt(CLOSED, 0);
+		mapped.putLong(WRITE_POS, 0).putLong(READ_POS, 0);
+		mapped.force();
+		return new SharedRing(file, mapped, true);
+	}
+
+	/** Opens a ring file created by the other side. */
+	public static SharedRing open(File file) throws IOException {
+		if (!isSupported())
+			throw new IOException("The shared ring is not supported by this JVM!");
+		if (!file.isFile() || file.length() <= HEADER_SIZE || file.length() > Integer.MAX_VALUE)
+			throw new IOException("Not a shared ring: " + file);
+		MappedByteBuffer mapped = map(file, (int) file.length());
+		if (mapped.getInt(0) != MAGIC || mapped.getInt(4) != mapped.capacity() - HEADER_SIZE)
+			throw new IOException("Not a shared ring: " + file);
+		return new SharedRing(file, mapped, false);
+	}
+
+	private static MappedByteBuffer map(File file, int size) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(size);
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size); // Stays valid after the file is closed.
+		} finally {
+			raf.close();
+		}
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/** Copies all of src into the ring, waiting for the reader when the ring is full. */
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		if (!isOpen())
+			throw new IOException("The shared ring is closed!");
+		int written = 0;
+		int idle = 0;
+		long since = 0;
+		while (src.hasRemaining()) {
+			int free = capacity - (int) (writePos - getLongVolatile(address + READ_POS));
+			if (free == 0) {
+				if (idle == 0)
+					since = System.nanoTime();
+				await(++idle, since);
+				continue;
+			}
+			idle = 0;
+			int offset = (int) (writePos % capacity);
+			int n = Math.min(Math.min(free, src.remaining()), capacity - offset);
+			ByteBuffer chunk = src.duplicate();
+			chunk.limit(chunk.position() + n);
+			data.position(offset);
+			data.put(chunk);
+			src.position(src.position() + n);
+			writePos += n;
+			putOrderedLong(address + WRITE_POS, writePos);
+			written += n;
+		}
+		return written;
+	}
+
+	/**
+	 * Reads what is in the ring, waiting for the writer when the ring is
+	 * empty. Returns -1 when the ring is empty and closed.
+	 */
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		if (!dst.hasRemaining())
+			return 0;
+		int idle = 0;
+		long since = 0;
+		int available;
+		while ((available = (int) (getLongVolatile(address + WRITE_POS) - readPos)) == 0) {
+			if (getIntVolatile(address + CLOSED) != 0)
+				return -1;
+			if (idle == 0)
+				since = System.nanoTime();
+			await(++idle, since);
+		}
+		int offset = (int) (readPos % capacity);
+		int n = Math.min(Math.min(available, dst.remaining()), capacity - offset);
+		ByteBuffer chunk = data.duplicate();
+		chunk.position(offset).limit(offset + n);
+		dst.put(chunk);
+		readPos += n;
+		putOrderedLong(address + READ_POS, readPos);
+		return n;
+	}
+
+	private void await(int idle, long since) throws IOException {
+		if (getIntVolatile(address + CLOSED) != 0)
+			throw new IOException("The shared ring is closed!");
+		if (idle < SPINS) {
+			return;
+		}
+		if (System.nanoTime() - since > TIMEOUT_NANOS)
+			throw new IOException("Timed out on the shared ring!");
+		if (idle < 2 * SPINS) {
+			Thread.yield();
+		} else {
+			LockSupport.parkNanos(Math.min(MAX_PARK_NANOS, 1000L << Math.min(idle - 2 * SPINS, 20)));
+		}
+	}
+
+	@Override
+	public boolean isOpen() {
+		return getIntVolatile(address + CLOSED) == 0;
+	}
+
+	/** Marks the ring as closed for both sides, and deletes the file if this side created it. */
+	@Override
+	public void close() throws IOException {
+		putIntVolatile(address + CLOSED, 1);
+		if (owner)
+			file.delete();
+	}
+
+	private static long addressOf(ByteBuffer direct) {
+		try {
+			return (long) GET_LONG.invokeExact((Object) direct, ADDRESS_OFFSET);
+		} catch (Throwable t) {
+			throw new IllegalStateException(t);
+		}
+	}
+
+	private static long getLongVolatile(long address) {
+		try {
+			return (long) GET_LONG_VOLATILE.invokeExact((Object) null, address);
+		} catch (Throwable t) {
+			throw new IllegalStateException(t);
+		}
+	}
+
+	private static void putOrderedLong(long address, long value) {
+		try {
+			PUT_ORDERED_LONG.invokeExact((Object) null, address, value);
+		} catch (Throwable t) {
+			throw new IllegalStateException(t);
+		}
+	}
+
+	private static int getIntVolatile(long address) {
+		try {
+			return (int) GET_INT_VOLATILE.invokeExact((Object) null, address);
+		} catch (Throwable t) {
+			throw new IllegalStateException(t);
+		}
+	}
+
+	private static void putIntVolatile(long address, int value) {
+		try {
+			PUT_INT_VOLATILE.invokeExact((Object) null, address, value);
+		} catch (Throwable t) {
+			throw new IllegalStateException(t);
+		}
+	}
+}
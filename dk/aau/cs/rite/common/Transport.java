@@ -0,0 +1,128 @@
+/*
+ *
+ * Copyright (c) 2011, Xiufeng Liu (xiliu@cs.aau.dk) and the eGovMon Consortium
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ *
+ *
+ */
+
+package dk.aau.cs.rite.common;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolFamily;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * Opens the connections between the producers, the catalyst and the
+ * consumers. The catalyst is given either as a host and a port (TCP), or as
+ * "unix:/path/to/socket" when they all run on one host, which saves the
+ * loopback TCP overhead on every round trip.
+ * <p>
+ * Unix domain sockets are in the JDK from Java 16 on. They are used through
+ * reflection, so that the code still runs on older JDKs, where a unix:
+ * address gives an IOException.
+ */
+public final class Transport {
+
+	public static final String UNIX_PREFIX = "unix:";
+
+	private static final String UNIX_ADDRESS_CLASS = "java.net.UnixDomainSocketAddress";
+
+	private Transport() {
+	}
+
+	/** Returns the address of the catalyst; the port is not used for a unix: server. */
+	public static SocketAddress address(String server, int port) throws IOException {
+		if (server.startsWith(UNIX_PREFIX))
+			return unixAddress(server.substring(UNIX_PREFIX.length()));
+		return new InetSocketAddress(server, port);
+	}
+
+	public static SocketAddress unixAddress(String path) throws IOException {
+		try {
+			return (SocketAddress) Class.forName(UNIX_ADDRESS_CLASS).getMethod("of", String.class).invoke(null, path);
+		} catch (InvocationTargetException e) {
+			throw new IOException("Illegal unix socket path: " + path, e.getCause());
+		} catch (Exception e) {
+			throw new IOException("Unix domain sockets need Java 16 or later", e);
+		}
+	}
+
+	public static boolean isUnix(SocketAddress addr) {
+		return addr != null && addr.getClass().getName().equals(UNIX_ADDRESS_CLASS);
+	}
+
+	/** Opens a blocking connection to the address. */
+	public static SocketChannel connect(SocketAddress addr) throws IOException {
+		if (!isUnix(addr))
+			return SocketChannel.open(addr);
+		SocketChannel channel = (SocketChannel) openUnix(SocketChannel.class);
+		try {
+			channel.connect(addr);
+		} catch (IOException e) {
+			Utils.closeQuietly(channel);
+			throw e;
+		}
+		return channel;
+	}
+
+	/**
+	 * Listens on the address. A unix socket file which is left from an earlier
+	 * run is removed first.
+	 */
+	public static ServerSocketChannel listen(SocketAddress addr) throws IOException {
+		ServerSocketChannel channel;
+		if (isUnix(addr)) {
+			new File(pathOf(addr)).delete();
+			channel = (ServerSocketChannel) openUnix(ServerSocketChannel.class);
+		} else {
+			channel = ServerSocketChannel.open();
+		}
+		channel.bind(addr);
+		return channel;
+	}
+
+	/** Sets TCP_NODELAY, which does not apply to unix sockets. */
+	public static void setTcpNoDelay(SocketChannel channel) throws IOException {
+		if (!isUnix(channel.getLocalAddress()))
+			channel.socket().setTcpNoDelay(true);
+	}
+
+	public static String pathOf(SocketAddress addr) throws IOException {
+		try {
+			return addr.getClass().getMethod("getPath").invoke(addr).toString();
+		} catch (Exception e) {
+			throw new IOException(e);
+		}
+	}
+
+	/** Calls SocketChannel.open(UNIX) or ServerSocketChannel.open(UNIX). */
+	private static Object openUnix(Class<?> channelClass) throws IOException {
+		try {
+			ProtocolFamily unix = Enum.valueOf(StandardProtocolFamily.class, "UNIX");
+			return channelClass.getMethod("open", ProtocolFamily.class).invoke(null, unix);
+		} catch (InvocationTargetException e) {
+			if (e.getCause() instanceof IOException)
+				throw (IOException) e.getCause();
+			throw new IOException(e.getCause());
+		} catch (Exception e) {
+			throw new IOException("Unix domain sockets need Java 16 or later", e);
+		}
+	}
+}
@@ -157,6 +157,23 @@ public class Utils {
 		return res;
 	}
 
+	/**
+	 * Fills dst from the channel, starting with what is left in buf from
+	 * earlier calls of ensureForRead.
+	 */
+	public static void readFully(ReadableByteChannel channel, ByteBuffer buf, ByteBuffer dst) throws IOException {
+		if (buf.hasRemaining() && dst.hasRemaining()) {
+			ByteBuffer src = buf.duplicate();
+			src.limit(src.position() + Math.min(src.remaining(), dst.remaining()));
+			buf.position(src.limit());
+			dst.put(src);
+		}
+		while (dst.hasRemaining()) {
+			if (channel.read(dst) == -1)
+				throw new BufferUnderflowException();
+		}
+	}
+
 	public static int ensureForWrite(WritableByteChannel dest, ByteBuffer src,
 			int bytes) throws IOException {
 		int numOfBytesWritten = 0;
@@ -547,7 +564,7 @@ try {
 		return recv(channel, buffer);
 	}
 
-	public static void bye(SocketChannel channel, ByteBuffer buf) {
+	public static void bye(ByteChannel channel, ByteBuffer buf) {
 		try {
 			buf.clear();
 			buf.putInt(ServerCommand.BYE.ordinal()).flip();
@@ -572,6 +589,13 @@ try {
 		}
 	}
 
+	public static void closeQuietly(InputStream in) {
+		try {
+			in.close();
+		} catch (Exception e) {
+		}
+	}
+
 	public static void closeQuietly(Connection conn) {
 		try {
 			conn.close();
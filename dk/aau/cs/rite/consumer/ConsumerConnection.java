@@ -18,7 +18,7 @@
 
 package dk.aau.cs.rite.consumer;
 
-import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.sql.Array;
 import java.sql.Blob;
 import java.sql.CallableStatement;
@@ -41,10 +41,10 @@ import java.util.Properties;
 public class ConsumerConnection implements Connection {
 
 	Connection jdbcConn;
-	InetSocketAddress serverAddr;
+	SocketAddress serverAddr;
 	
 	
-	public ConsumerConnection(Connection jdbcConn, InetSocketAddress serverAddr) {
+	public ConsumerConnection(Connection jdbcConn, SocketAddress serverAddr) {
 		this.jdbcConn = jdbcConn;
 		this.serverAddr = serverAddr;
 	}
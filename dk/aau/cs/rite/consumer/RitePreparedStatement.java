@@ -22,7 +22,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.Reader;
 import java.math.BigDecimal;
-import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.net.URL;
 import java.nio.ByteBuffer;
 import java.nio.channels.ByteChannel;
@@ -47,6 +47,7 @@ import java.sql.Timestamp;
 import java.util.Calendar;
 import java.util.concurrent.TimeUnit;
 
+import dk.aau.cs.rite.common.Transport;
 import dk.aau.cs.rite.common.Utils;
 import dk.aau.cs.rite.server.ServerCommand;
 import dk.aau.cs.rite.sqlparser.ParseInfo;
@@ -56,7 +57,7 @@ import dk.aau.cs.rite.sqlparser.SqlParser;
 public class RitePreparedStatement implements PreparedStatement {
   
 	Connection jdbcConn;
-	InetSocketAddress serverAddr;
+	SocketAddress serverAddr;
 	PreparedStatement sqlStmt;
 	PreparedStatement startTimeStmt;
 	ParseInfo parseInfo;
@@ -64,12 +65,12 @@ public class RitePreparedStatement implements PreparedStatement {
 	ByteBuffer buffer;
 	long freshness;
 	
-	public RitePreparedStatement(Connection jdbcConn, InetSocketAddress serverAddr, String sql, int resultSetType,	int resultSetConcurrency)	throws SQLException {
+	public RitePreparedStatement(Connection jdbcConn, SocketAddress serverAddr, String sql, int resultSetType,	int resultSetConcurrency)	throws SQLException {
 		try {
 			this.jdbcConn = jdbcConn;
 			this.serverAddr = serverAddr;
 
-			this.channel = SocketChannel.open(serverAddr);
+			this.channel = Transport.connect(serverAddr);
 			this.buffer = ByteBuffer.allocate(1024);
 			
 			this.parseInfo = SqlParser.parse(sql);
@@ -80,7 +81,7 @@ public class RitePreparedStatement implements PreparedStatement {
 		}
 	}
 	
-	public RitePreparedStatement(Connection jdbcConn, InetSocketAddress serverAddr, String sql)	throws SQLException {
+	public RitePreparedStatement(Connection jdbcConn, SocketAddress serverAddr, String sql)	throws SQLException {
 		this(jdbcConn, serverAddr, sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
 	}
 	
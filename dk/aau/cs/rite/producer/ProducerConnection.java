@@ -18,8 +18,10 @@
 
 package dk.aau.cs.rite.producer;
 
+import java.io.File;
 import java.io.IOException;
-import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.ByteChannel;
 import java.sql.Array;
 import java.sql.Blob;
 import java.sql.CallableStatement;
@@ -41,18 +43,33 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
-
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import dk.aau.cs.rite.common.Compression;
+import dk.aau.cs.rite.common.Multiplexer;
 import dk.aau.cs.rite.common.RiteException;
+import dk.aau.cs.rite.common.SharedRing;
 import dk.aau.cs.rite.producer.flush.FlushTicker;
 import dk.aau.cs.rite.producer.flush.IFlush;
 import dk.aau.cs.rite.producer.flush.InstantFlush;
 import dk.aau.cs.rite.producer.flush.LazyFlush;
+import dk.aau.cs.rite.producer.staging.BatchCommit;
 import dk.aau.cs.rite.producer.staging.Catalog;
+import dk.aau.cs.rite.producer.staging.EmbeddedTransfer;
 import dk.aau.cs.rite.producer.staging.ITransfer;
 import dk.aau.cs.rite.producer.staging.InstantTransfer;
 import dk.aau.cs.rite.producer.staging.LazyTransfer;
+import dk.aau.cs.rite.producer.staging.StagedBatch;
 import dk.aau.cs.rite.producer.staging.StagingTupleStore;
 import dk.aau.cs.rite.producer.staging.TupleStore;
+import dk.aau.cs.rite.server.EmbeddedCatalyst;
 import dk.aau.cs.rite.sqlparser.ParseInfo;
 import dk.aau.cs.rite.sqlparser.SqlParser;
 
@@ -62,12 +79,26 @@ public class ProducerConnection implements Connection{
 	 List<Statement> stmts;
 	 Map<String, Catalog> catalogs;
 	 Map<String, TupleStore> tupleStores; // The staging tuple stores in the producer side.
-	 InetSocketAddress serverAddr;
-	 FlushTicker flushTicker;
+	 SocketAddress serverAddr;
+	 FlushTicker flushTicker; // Has a connection of its own, so that the pings are not held up by the flushes.
+	 Multiplexer mux; // The connection for the tables, which get a stream each.
+	 BatchCommit batchCommit; // Commits all tables in one round trip, on a stream of its own.
+	 ExecutorService commitExecutor; // Null if the tables are committed by the calling thread, see setParallelCommit.
+	 ExecutorService asyncExecutor; // Sends the commits of commitAsync in their order.
+	 Semaphore asyncPermits; // One per commit of commitAsync that may be in flight.
+	 int maxAsyncCommits = 4;
+	 Future<Void> lastAsyncCommit;
+	 volatile Throwable asyncFailure; // Of the first commit of commitAsync that failed; the later ones are not sent.
 	 boolean materializedOnCommit;
+	 int compression = Compression.NONE; // Of the rows sent to the catalyst, see Compression.
+	 int compressionThreshold = Compression.DEFAULT_THRESHOLD;
+	 File sharedRingDir; // Null if the rows are sent over the socket, see SharedRing.
+	 int sharedRingCapacity;
+	 EmbeddedCatalyst catalyst; // Null if the catalyst is in another process.
+	 boolean rowIDLeasing; // If the row IDs are leased from the catalyst, see setRowIDLeasing.
 	 protected String jdbcDriver, jdbcUrl, dbUsername, dbPassword; // Will be sent to the mem server.
 	
-	public ProducerConnection(Connection jdbcConn, InetSocketAddress serverAddr, String jdbcDriver, String jdbcUrl, String dbUsername, String dbPassword) throws IOException {
+	public ProducerConnection(Connection jdbcConn, SocketAddress serverAddr, String jdbcDriver, String jdbcUrl, String dbUsername, String dbPassword) throws IOException {
 		this.jdbcConn = jdbcConn;
 		this.jdbcDriver = jdbcDriver;
 		this.jdbcUrl = jdbcUrl;
@@ -83,6 +114,12 @@ public class ProducerConnection implements Connection{
 		this.materializedOnCommit = false;
 	}
 
+	/** Commits to a catalyst in this process, see RiteDriverManager.getEmbeddedConnection. */
+	public ProducerConnection(Connection jdbcConn, EmbeddedCatalyst catalyst, String jdbcDriver, String jdbcUrl, String dbUsername, String dbPassword) throws IOException {
+		this(jdbcConn, catalyst.getAddress(), jdbcDriver, jdbcUrl, dbUsername, dbPassword);
+		this.catalyst = catalyst;
+	}
+
 	@Override
 	synchronized public PreparedStatement prepareStatement(String sql) throws SQLException {
 		ParseInfo parseInfo = SqlParser.parse(sql);
@@ -95,22 +132,115 @@ public class ProducerConnection implements Connection{
 	}
 	
 	synchronized public void setFlusher(IFlush flusher) throws IOException {
+		if (catalyst != null) // Always instant, as nothing is sent.
+			return;
 		if ((this.flushTicker==null) && (flusher instanceof LazyFlush)) {// Default is InstantFlush, no need to set.
 			this.flushTicker = new FlushTicker(flusher, serverAddr);
 		}
 	}
 	
+	/** Sets the compression of the tables prepared after this call. */
+	synchronized public void setCompression(int compression, int threshold) {
+		if (!Compression.isSupported(compression))
+			throw new IllegalArgumentException("Unknown compression: " + compression);
+		this.compression = compression;
+		this.compressionThreshold = threshold;
+	}
+	
+	/**
+	 * Sends the rows of the tables prepared after this call through a shared
+	 * ring in the directory, when the catalyst runs on the same host and can
+	 * open it. Only used with the instant flush. Null turns it off.
+	 */
+	synchronized public void setSharedRing(File dir, int capacity) {
+		if (dir != null && !SharedRing.isSupported())
+			throw new UnsupportedOperationException("The shared ring is not supported by this JVM!");
+		this.sharedRingDir = dir;
+		this.sharedRingCapacity = capacity;
+	}
+	
+	/**
+	 * Commits the tables in parallel with at most the given number of threads,
+	 * each table on its own stream, and the catalyst ingests them on separate
+	 * cores. A commit then takes about the time of its largest table instead of
+	 * the sum of all tables. Less than 2 threads turns it off.
+	 */
+	synchronized public void setParallelCommit(int threads) {
+		if (commitExecutor != null) {
+			commitExecutor.shutdown();
+			commitExecutor = null;
+		}
+		if (threads > 1) {
+			commitExecutor = Executors.newFixedThreadPool(threads, daemonThreads("rite-commit-"));
+		}
+	}
+	
+	private static ThreadFactory daemonThreads(final String prefix) {
+		return new ThreadFactory() {
+			final AtomicInteger number = new AtomicInteger(1);
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, prefix + number.getAndIncrement());
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+	
+	/**
+	 * Leases the row IDs of the tables from the catalyst, so that other
+	 * producers, e.g., in other processes, can insert into the same tables at
+	 * the same time. Applies to the tables that are prepared afterwards.
+	 * <p>
+	 * The catalyst keeps the rows in the order of their IDs, so it holds back a
+	 * commit until the leases before it are committed or released; a producer
+	 * that stages rows without committing them holds back the others, up to a
+	 * timeout (see RowIDLeases). Commits are sent by one PROD_COMMIT_BATCH, so
+	 * leasing needs the instant transfers on the socket, i.e., no lazy flush,
+	 * shared ring or embedded catalyst; the tables are not committed in
+	 * parallel. If a commit fails, its rows are dropped, as their leases are.
+	 */
+	synchronized public void setRowIDLeasing(boolean leasing) {
+		this.rowIDLeasing = leasing;
+	}
+	
+	/** Sets how many commits of commitAsync may be in flight before it blocks. */
+	synchronized public void setMaxAsyncCommits(int max) throws SQLException {
+		if (max < 1)
+			throw new IllegalArgumentException("At least one commit must be allowed: " + max);
+		waitForAsyncCommits();
+		if (asyncExecutor != null) {
+			asyncExecutor.shutdown();
+			asyncExecutor = null;
+		}
+		this.maxAsyncCommits = max;
+	}
+	
+	/** Opens a stream on the connection to the catalyst, which is made by the first call. */
+	synchronized protected ByteChannel openStream() throws IOException {
+		if (mux == null || !mux.isOpen()) {
+			mux = Multiplexer.connect(serverAddr);
+		}
+		return mux.open();
+	}
+	
 	synchronized protected TupleStore ensureTupleStore(Catalog catalog) throws SQLException {
 		try {
 			String tableName = catalog.getTableName();
 			TupleStore tupleStore = tupleStores.get(tableName);
 			if (tupleStore == null) {
 				ITransfer transfer;
-				if (this.flushTicker != null) {
-					transfer = new LazyTransfer(serverAddr, catalog);
+				if (this.catalyst != null) {
+					transfer = new EmbeddedTransfer(catalyst, catalog);
+				} else if (this.flushTicker != null) {
+					transfer = new LazyTransfer(openStream(), catalog, compression, compressionThreshold);
 					this.flushTicker.addTransfer(tableName, transfer);
 				} else {
-					transfer = new InstantTransfer(serverAddr, catalog);
+					InstantTransfer instant = new InstantTransfer(openStream(), catalog, compression, compressionThreshold);
+					if (sharedRingDir != null)
+						instant.openSharedRing(sharedRingDir, sharedRingCapacity);
+					transfer = instant;
 				}
 				tupleStore = new StagingTupleStore(transfer, catalog); // Create a staging tuple store in the producer side.
 				tupleStores.put(tableName, tupleStore);
@@ -139,7 +269,15 @@ public class ProducerConnection implements Connection{
 							.toLowerCase());
 				}
 				catalog.setTargetJdbcInfo(jdbcDriver, jdbcUrl, dbUsername, dbPassword);
-				catalog.syncWithCatalyst(this.serverAddr); // Sync the catalog with the catalyst in the catalyst. 
+				if (rowIDLeasing && !isBatchCommitted())
+					throw new SQLException("Leasing row IDs needs the instant transfers on the socket, see setRowIDLeasing");
+				if (catalyst != null) {
+					catalog.syncWithCatalyst(catalyst);
+				} else {
+					catalog.syncWithCatalyst(openStream()); // Sync the catalog with the catalyst in the catalyst. 
+					if (rowIDLeasing)
+						catalog.leaseRowIDs(openStream());
+				}
 				catalogs.put(tableName, catalog);
 			}
 			return catalog;
@@ -155,17 +293,223 @@ public class ProducerConnection implements Connection{
 
 
 	synchronized public void commit(boolean materializedOnCommit) throws SQLException {
+		waitForAsyncCommits();
 		try {
+			if (isLeasing()) { // The leases are ended with the rows staged, see BatchCommit.commit(List, List, boolean).
+				List<TupleStore> tables = new ArrayList<TupleStore>(tupleStores.values());
+				List<StagedBatch> batches = new ArrayList<StagedBatch>(tables.size());
+				long commitTime = System.currentTimeMillis();
+				for (TupleStore tupleStore : tables) {
+					batches.add(tupleStore.detach(commitTime));
+				}
+				ensureBatchCommit();
+				try {
+					batchCommit.commit(tables, batches, materializedOnCommit);
+				} catch (IOException e) {
+					batchCommit.abort();
+					batchCommit = null;
+					throw new SQLException("Failed to commit, the rows are dropped: " + batches, e);
+				}
+				return;
+			}
+			if (commitExecutor != null && tupleStores.size() > 1) {
+				List<Callable<Void>> commits = new ArrayList<Callable<Void>>(tupleStores.size());
+				for (final TupleStore tupleStore : tupleStores.values()) {
+					commits.add(new Callable<Void>() {
+						@Override
+						public Void call() throws RiteException {
+							tupleStore.commit(materializedOnCommit);
+							return null;
+						}
+					});
+				}
+				commitInParallel(commitExecutor, commits);
+				return;
+			}
+			if (isBatchCommitted()) {
+				ensureBatchCommit();
+				try {
+					batchCommit.commit(System.currentTimeMillis(), tupleStores.values(), materializedOnCommit);
+				} catch (IOException e) {
+					batchCommit.abort(); // The catalyst closes the stream on a failure, so the next commit opens a new one.
+					batchCommit = null;
+					throw e;
+				}
+				return;
+			}
 			for (TupleStore tupleStore : tupleStores.values()) {
 				tupleStore.commit(materializedOnCommit);
 			}
 		} catch (RiteException e) {
 			throw new SQLException(e);
+		} catch (IOException e) {
+			throw new SQLException(e);
 		}
 	}
 	
+	/** Returns whether the row IDs of a table are leased, so that the tables are committed by detaching their rows. */
+	private boolean isLeasing() {
+		for (Catalog catalog : catalogs.values()) {
+			if (catalog.isLeasing())
+				return true;
+		}
+		return false;
+	}
+	
+	/** Returns whether all tables use instant transfers on the connection, so that they are committed by a BatchCommit. */
+	private boolean isBatchCommitted() {
+		return flushTicker == null && catalyst == null && sharedRingDir == null;
+	}
+	
+	private void ensureBatchCommit() throws IOException {
+		if (batchCommit == null || !batchCommit.isOpen()) { // Aborted by a failed commit of commitAsync.
+			batchCommit = new BatchCommit(openStream(), compression, compressionThreshold);
+		}
+	}
+	
+	/**
+	 * Commits the staged rows and upserts without waiting for the catalyst: the
+	 * tables get empty holders at once, and the commit is sent by a background
+	 * thread, in the same way as by commit(). The commits are sent and
+	 * completed in the order of the calls; if setMaxAsyncCommits() of them are
+	 * in flight, the call blocks until the oldest has completed. If a commit
+	 * fails, the later ones are not sent, and fail with the batches they had;
+	 * commitAsync() fails then until rollback().
+	 */
+	synchronized public Future<Void> commitAsync(final boolean materializedOnCommit) throws SQLException {
+		if (asyncFailure != null)
+			throw new SQLException("An earlier commit has failed!", asyncFailure);
+		if (asyncExecutor == null) {
+			asyncExecutor = Executors.newSingleThreadExecutor(daemonThreads("rite-async-commit-"));
+			asyncPermits = new Semaphore(maxAsyncCommits);
+		}
+		final Semaphore permits = asyncPermits;
+		permits.acquireUninterruptibly();
+		final List<TupleStore> tables = new ArrayList<TupleStore>(tupleStores.values());
+		final List<StagedBatch> batches = new ArrayList<StagedBatch>(tables.size());
+		final ExecutorService parallel = tables.size() > 1 && !isLeasing() ? commitExecutor : null;
+		final BatchCommit batchCommit;
+		try {
+			long commitTime = System.currentTimeMillis();
+			for (TupleStore tupleStore : tables) {
+				batches.add(tupleStore.detach(commitTime));
+			}
+			boolean batched = parallel == null && isBatchCommitted();
+			if (batched)
+				ensureBatchCommit();
+			batchCommit = batched ? this.batchCommit : null;
+		} catch (Exception e) {
+			permits.release();
+			throw new SQLException(e);
+		}
+		lastAsyncCommit = asyncExecutor.submit(new Callable<Void>() {
+			@Override
+			public Void call() throws Exception {
+				try {
+					if (asyncFailure != null) {
+						for (int i = 0; i < tables.size(); ++i) { // Not to hold back the other producers.
+							if (batches.get(i).getLeases() != null)
+								tables.get(i).getCatalog().releaseLeases(batches.get(i).getLeases());
+						}
+						throw new SQLException("An earlier commit has failed, not sent: " + batches, asyncFailure);
+					}
+					if (parallel != null) {
+						List<Callable<Void>> commits = new ArrayList<Callable<Void>>(tables.size());
+						for (int i = 0; i < tables.size(); ++i) {
+							final TupleStore table = tables.get(i);
+							final StagedBatch batch = batches.get(i);
+							commits.add(new Callable<Void>() {
+								@Override
+								public Void call() throws RiteException {
+									table.commit(batch, materializedOnCommit);
+									return null;
+								}
+							});
+						}
+						commitInParallel(parallel, commits);
+					} else if (batchCommit != null) {
+						try {
+							batchCommit.commit(tables, batches, materializedOnCommit);
+						} catch (IOException e) {
+							batchCommit.abort(); // The next commit opens a new stream.
+							throw e;
+						}
+					} else {
+						for (int i = 0; i < tables.size(); ++i) {
+							tables.get(i).commit(batches.get(i), materializedOnCommit);
+						}
+					}
+					return null;
+				} catch (Exception e) {
+					if (asyncFailure == null)
+						asyncFailure = e;
+					throw e;
+				} finally {
+					permits.release();
+				}
+			}
+		});
+		return lastAsyncCommit;
+	}
+	
+	/** Waits until the commits of commitAsync have completed. */
+	private void waitForAsyncCommits() throws SQLException {
+		if (lastAsyncCommit == null)
+			return;
+		boolean interrupted = false;
+		try {
+			while (true) {
+				try {
+					lastAsyncCommit.get(); // The commits complete in order.
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					throw new SQLException(e.getCause());
+				}
+			}
+		} finally {
+			lastAsyncCommit = null;
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+	
+	/** Runs the commits of the tables by the threads of the executor, and waits for all of them. */
+	private static void commitInParallel(ExecutorService executor, List<Callable<Void>> commits) throws SQLException {
+		List<Future<Void>> futures = new ArrayList<Future<Void>>(commits.size());
+		for (Callable<Void> commit : commits) {
+			futures.add(executor.submit(commit));
+		}
+		Throwable failure = null;
+		boolean interrupted = false;
+		for (Future<Void> future : futures) { // Waits for all tables, even when one has failed.
+			while (true) {
+				try {
+					future.get();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					if (failure == null)
+						failure = e.getCause();
+					break;
+				}
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		if (failure != null)
+			throw new SQLException(failure);
+	}
+	
 	@Override
 	synchronized public void rollback() throws SQLException {
+		try {
+			waitForAsyncCommits();
+		} catch (SQLException e) { // Was reported by the future of the commit.
+		}
+		asyncFailure = null; // The commits after the failed one were not sent.
 		try {
 			for (TupleStore tupleStore : tupleStores.values()) {
 				tupleStore.rollback();
@@ -179,13 +523,40 @@ public class ProducerConnection implements Connection{
 	@Override
 	synchronized public void close() throws SQLException {
 		try {
+			try {
+				waitForAsyncCommits();
+			} catch (SQLException e) { // Was reported by the future of the commit.
+			}
+			if (asyncExecutor != null) {
+				asyncExecutor.shutdown();
+				asyncExecutor = null;
+			}
 			if (flushTicker != null) {// Lazy Commit.
 				this.flushTicker.close();
 			}
+			if (commitExecutor != null) {
+				commitExecutor.shutdown();
+				commitExecutor = null;
+			}
 			for (TupleStore tupleStore : tupleStores.values()) {
 				tupleStore.close();
 			}
+			for (Catalog catalog : catalogs.values()) {
+				catalog.endLease();
+			}
 			jdbcConn.close();
+			if (batchCommit != null) {
+				batchCommit.done();
+				batchCommit = null;
+			}
+			if (mux != null) {
+				mux.close();
+				mux = null;
+			}
+			if (catalyst != null) {
+				catalyst.release();
+				catalyst = null;
+			}
 		} catch (Exception e) {
 			throw new SQLException(e);
 		}
@@ -18,18 +18,30 @@
 
 package dk.aau.cs.rite.producer;
 
-import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.sql.BatchUpdateException;
 import java.sql.Date;
 import java.sql.SQLException;
 import java.sql.Types;
+import java.util.Arrays;
 
+import dk.aau.cs.rite.producer.staging.PreparedBatch;
+import dk.aau.cs.rite.producer.staging.PreparedRow;
 import dk.aau.cs.rite.producer.staging.TupleStore;
 import dk.aau.cs.rite.sqlparser.ParseInfo;
 
 public class RiteInsertPreparedStatement extends RitePreparedStatement {
 
-	public RiteInsertPreparedStatement(ProducerConnection riteConn, InetSocketAddress serverAddr, ParseInfo parseInfo, TupleStore tupleStore) throws SQLException {
+	PreparedRow row; // The parameters by their columns, so that execute() encodes them without boxing.
+	PreparedBatch batch; // The rows of addBatch(), created by the first call.
+	
+	public RiteInsertPreparedStatement(ProducerConnection riteConn, SocketAddress serverAddr, ParseInfo parseInfo, TupleStore tupleStore) throws SQLException {
 		super(riteConn,serverAddr, parseInfo, tupleStore);
+		try {
+			this.row = new PreparedRow(catalog, parseInfo.getParameters());
+		} catch (IllegalArgumentException e) {
+			throw new SQLException(e);
+		}
 	}
 
 		
@@ -37,7 +49,7 @@ public class RiteInsertPreparedStatement extends RitePreparedStatement {
 	public void setInt(int paramIndex, int value) throws SQLException {
 		if(paramTypes[paramIndex] != Types.INTEGER)
 	            throw new SQLException("The types are not compatible");
-	        paramValues[paramIndex] = value;
+	        row.setLong(paramIndex, value);
 	}
 
     @Override
@@ -46,14 +58,14 @@ public class RiteInsertPreparedStatement extends RitePreparedStatement {
           && paramTypes[paramIndex] != Types.FLOAT 
           && paramTypes[paramIndex] != Types.NUMERIC)
             throw new SQLException("The types are not compatible");
-        paramValues[paramIndex] = x;
+        row.setDouble(paramIndex, x);
     }
 
     @Override
     public void setDate(int paramIndex, Date x) throws SQLException {
         if(paramTypes[paramIndex] != Types.DATE)
             throw new SQLException("The types are not compatible");
-        paramValues[paramIndex] = x;
+        row.setObject(paramIndex, x);
 
     }
 
@@ -61,14 +73,14 @@ public class RiteInsertPreparedStatement extends RitePreparedStatement {
     public void setLong(int paramIndex, long x) throws SQLException {
         if(paramTypes[paramIndex] != Types.BIGINT)
             throw new SQLException("The types are not compatible");
-        paramValues[paramIndex] = x;
+        row.setLong(paramIndex, x);
     }
 
     @Override
     public void setFloat(int paramIndex, float x) throws SQLException {
         if(paramTypes[paramIndex] != Types.REAL)
             throw new SQLException("The types are not compatible");
-        paramValues[paramIndex] = x;
+        row.setDouble(paramIndex, x);
     }
 
     @Override
@@ -76,25 +88,61 @@ public class RiteInsertPreparedStatement extends RitePreparedStatement {
         if(paramTypes[paramIndex] != Types.VARCHAR 
         && paramTypes[paramIndex] != Types.LONGVARCHAR) // TODO: Add the remaining "string types"
             throw new SQLException("The types are not compatible");
-        paramValues[paramIndex] = x;
+        row.setObject(paramIndex, x);
     }
 	
 	@Override
 	public void setNull(int paramIndex, int sqlType) throws SQLException {
-		paramValues[paramIndex] = null;
-		
+		row.setNull(paramIndex);
+	}
+	
+	@Override
+	public void clearParameters() throws SQLException {
+		super.clearParameters();
+		row.clear();
 	}
 	
 	
 
 
+    /** Adds the parameters as a row of the batch; they are kept for the next row. */
+    @Override
+    public void addBatch() throws SQLException {
+        if (batch == null)
+            batch = new PreparedBatch(catalog);
+        batch.add(row);
+    }
+
+    @Override
+    public void clearBatch() throws SQLException {
+        if (batch != null)
+            batch.clear();
+    }
+
+    /** Inserts the rows of the batch in one go, with one lock of the table. */
+    @Override
+    public int[] executeBatch() throws SQLException {
+        int size = batch == null ? 0 : batch.size();
+        int[] updateCounts = new int[size];
+        if (size == 0)
+            return updateCounts;
+        try {
+            tupleStore.insert(batch);
+        } catch (Exception e) {
+            throw new BatchUpdateException(e.getMessage(), new int[0], e);
+        } finally {
+            batch.clear();
+        }
+        Arrays.fill(updateCounts, 1);
+        return updateCounts;
+    }
+
     @Override
     public boolean execute() throws SQLException {
         // Write to the temp file
         try {
-        	parseInfo.setParamValues(paramValues);
-			tupleStore.insert(parseInfo);
-			clearParameters();
+			tupleStore.insert(row);
+			row.clear();
 			return true;
 		} catch (Exception e) {
 			throw new SQLException(e);
@@ -21,7 +21,7 @@ package dk.aau.cs.rite.producer;
 import java.io.InputStream;
 import java.io.Reader;
 import java.math.BigDecimal;
-import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.net.URL;
 import java.sql.Array;
 import java.sql.Blob;
@@ -50,7 +50,7 @@ import dk.aau.cs.rite.sqlparser.ParseInfo;
 public abstract class RitePreparedStatement implements PreparedStatement {
 
 	protected ProducerConnection riteConn;
-	protected InetSocketAddress serverAddr;
+	protected SocketAddress serverAddr;
 	protected TupleStore tupleStore;
 	protected Catalog catalog;
 	
@@ -60,7 +60,7 @@ public abstract class RitePreparedStatement implements PreparedStatement {
 	protected int[] paramTypes;
 
 	
-	public RitePreparedStatement(ProducerConnection riteConn, InetSocketAddress serverAddr, ParseInfo parseInfo, TupleStore tupleStore) throws SQLException {
+	public RitePreparedStatement(ProducerConnection riteConn, SocketAddress serverAddr, ParseInfo parseInfo, TupleStore tupleStore) throws SQLException {
 		this.serverAddr = serverAddr;
 		this.riteConn = riteConn;
 		this.tupleStore = tupleStore;
@@ -18,7 +18,7 @@
 
 package dk.aau.cs.rite.producer;
 
-import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.sql.Date;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -36,7 +36,7 @@ public class RiteSelectPreparedStatement extends RitePreparedStatement {
 	TupleStore stagingTupleStore;
 	
 	
-	public  RiteSelectPreparedStatement(ProducerConnection riteConn, InetSocketAddress serverAddr, ParseInfo parseInfo, TupleStore tupleStore) throws SQLException{ 
+	public  RiteSelectPreparedStatement(ProducerConnection riteConn, SocketAddress serverAddr, ParseInfo parseInfo, TupleStore tupleStore) throws SQLException{ 
 		super(riteConn,serverAddr, parseInfo, tupleStore);
 		this.jdbcPstmt = riteConn.jdbcConn.prepareStatement(parseInfo.getSql());
 		this.stagingTupleStore = tupleStore;
@@ -18,7 +18,7 @@
 
 package dk.aau.cs.rite.producer;
 
-import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.sql.Date;
 import java.sql.SQLException;
 import java.sql.Types;
@@ -30,7 +30,7 @@ public class RiteUpdateAndDeletePreparedStatement extends RitePreparedStatement
 
 
 	public RiteUpdateAndDeletePreparedStatement(ProducerConnection riteConn, 
-			InetSocketAddress serverAddr, ParseInfo parseInfo,
+			SocketAddress serverAddr, ParseInfo parseInfo,
 			TupleStore tupleStore) throws SQLException {
 		super(riteConn, serverAddr, parseInfo, tupleStore);
 
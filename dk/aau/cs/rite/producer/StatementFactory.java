@@ -18,7 +18,7 @@
 
 package dk.aau.cs.rite.producer;
 
-import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.sql.SQLException;
 
 import dk.aau.cs.rite.producer.staging.TupleStore;
@@ -26,7 +26,7 @@ import dk.aau.cs.rite.sqlparser.ParseInfo;
 
 public class StatementFactory {
 
-	public static RitePreparedStatement getPreparedStatement(ProducerConnection riteConn, InetSocketAddress serverAddr, ParseInfo parseInfo, TupleStore tupleStore) throws SQLException {
+	public static RitePreparedStatement getPreparedStatement(ProducerConnection riteConn, SocketAddress serverAddr, ParseInfo parseInfo, TupleStore tupleStore) throws SQLException {
 	
 		switch (parseInfo.getStatementType()) {
 		case INSERT:
@@ -25,7 +25,7 @@ import java.nio.channels.WritableByteChannel;
 
 import dk.aau.cs.rite.common.Utils;
 import dk.aau.cs.rite.producer.staging.Catalog;
-import dk.aau.cs.rite.producer.staging.IHolder;
+import dk.aau.cs.rite.producer.staging.IReadableHolder;
 import dk.aau.cs.rite.producer.staging.RowsHolder;
 import dk.aau.cs.rite.producer.staging.UDsHolder;
 import dk.aau.cs.rite.tuplestore.MemBasedTupleStore;
@@ -54,7 +54,7 @@ public class UnCommitDataProcessor {
 		}
 	}
 
-	protected void writeRows(long commitTime, IHolder rowsHolder) throws IOException {
+	protected void writeRows(long commitTime, IReadableHolder rowsHolder) throws IOException {
 		// Stream format: command (int)|length of tableName(int)|tableName|commitTime (long)|numberofrows(int)|data of rows in rowsHolder
 		if (rowsHolder.size()>0){
 			buf.clear();
@@ -80,7 +80,7 @@ public class UnCommitDataProcessor {
 		}
 	}
 	
-	public void process(IHolder rowsHolder, UDsHolder udsHolder) throws IOException{
+	public void process(IReadableHolder rowsHolder, UDsHolder udsHolder) throws IOException{
 		processTime = System.currentTimeMillis();
 		this.writeRows(processTime, rowsHolder);
 		this.writeUDs(processTime, udsHolder);
@@ -19,7 +19,7 @@
 package dk.aau.cs.rite.producer.flush;
 
 import java.io.IOException;
-import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 import java.util.Collections;
@@ -28,6 +28,7 @@ import java.util.Map;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.logging.Logger;
 
+import dk.aau.cs.rite.common.Transport;
 import dk.aau.cs.rite.common.Utils;
 import dk.aau.cs.rite.producer.staging.ITransfer;
 import dk.aau.cs.rite.server.ServerCommand;
@@ -38,16 +39,16 @@ public class FlushTicker {
 	Map<String, ITransfer> transfers;
 	AtomicBoolean running;
 	IFlush flusher;
-	InetSocketAddress serverAddr;
+	SocketAddress serverAddr;
 	SocketChannel channel;
 	
-	public FlushTicker(IFlush flusher, InetSocketAddress serverAddr)
+	public FlushTicker(IFlush flusher, SocketAddress serverAddr)
 			throws IOException {
 		this.flusher = flusher;
 		this.running = new AtomicBoolean(true);
 		this.serverAddr = serverAddr;
 		this.transfers = Collections.synchronizedMap(new HashMap<String, ITransfer>());
-		this. channel = SocketChannel.open(serverAddr);
+		this. channel = Transport.connect(serverAddr);
 		Thread flushThread = new Thread(new Exportor());
 		flushThread.start();
 	}
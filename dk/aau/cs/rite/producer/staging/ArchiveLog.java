@@ -18,17 +18,21 @@
 
 package dk.aau.cs.rite.producer.staging;
 
+import dk.aau.cs.rite.common.BatchHeader;
+
 public class ArchiveLog {
 	long commitTime;
 	long position;
 	long length;
 	int rowsCount;
+	BatchHeader batch;
 
-	public ArchiveLog(long commitTime, long position, long length, int rowsCount) {
+	public ArchiveLog(long commitTime, long position, long length, int rowsCount, BatchHeader batch) {
 		this.commitTime = commitTime;
 		this.position = position;
 		this.length = length;
 		this.rowsCount = rowsCount;
+		this.batch = batch;
 	}
 
 	public long getCommitTime() {
@@ -46,6 +50,10 @@ public class ArchiveLog {
 	public int getRowsCount() {
 		return this.rowsCount;
 	}
+
+	public BatchHeader getBatchHeader() {
+		return batch;
+	}
 	
 	public String toString() {
 		StringBuilder strBld = new StringBuilder();
@@ -0,0 +1,257 @@
+/*
+ *
+ * Copyright (c) 2011, Xiufeng Liu (xiliu@cs.aau.dk) and the eGovMon Consortium
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ *
+ *
+ */
+
+package dk.aau.cs.rite.producer.staging;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import dk.aau.cs.rite.common.BatchHeader;
+import dk.aau.cs.rite.common.BlockOutputChannel;
+import dk.aau.cs.rite.common.Compression;
+import dk.aau.cs.rite.common.Utils;
+import dk.aau.cs.rite.server.ServerCommand;
+
+/**
+ * Commits the tables of a producer connection with one PROD_COMMIT_BATCH:
+ * the rows and upserts of all tables are sent in one stream, under one commit
+ * time, and the catalyst replies once. So the commit takes one round trip
+ * however many tables it touches, where committing the tables one by one
+ * takes two or more round trips per table.
+ */
+public class BatchCommit {
+
+	ByteChannel channel;
+	ByteBuffer buf;
+	BlockOutputChannel out; // Null if the connection is not compressed.
+
+	public BatchCommit(ByteChannel channel, int compression, int threshold) throws IOException {
+		this.channel = channel;
+		this.buf = ByteBuffer.allocate(32);
+		compression = Compression.negotiate(channel, buf, compression, threshold);
+		if (compression != Compression.NONE)
+			this.out = new BlockOutputChannel(channel, compression, threshold);
+	}
+
+	/**
+	 * Sends the staged rows and upserts of the tables, and clears them when the
+	 * catalyst has applied them. The tables are locked while they are sent. If
+	 * the catalyst fails to apply a part, the parts before it are committed
+	 * and cleared, and the rest are kept; the connection is closed then.
+	 */
+	public void commit(long commitTime, Collection<TupleStore> tupleStores, boolean materialize) throws IOException {
+		List<TupleStore> tables = new ArrayList<TupleStore>(tupleStores);
+		commitLocked(commitTime, tables, 0, materialize);
+	}
+
+	private void commitLocked(long commitTime, List<TupleStore> tables, int i, boolean materialize) throws IOException {
+		if (i < tables.size()) {
+			synchronized (tables.get(i)) {
+				commitLocked(commitTime, tables, i + 1, materialize);
+			}
+			return;
+		}
+
+		List<IReadableHolder> rows = new ArrayList<IReadableHolder>(tables.size()); // Taken once, as more rows may be sealed by each call.
+		List<UDsHolder> udsHolders = new ArrayList<UDsHolder>(tables.size());
+		for (TupleStore table : tables) {
+			rows.add(table.getRowsHolder());
+			udsHolders.add(table.getUDsHolder());
+		}
+		send(commitTime, tables, rows, udsHolders, null, materialize);
+	}
+
+	/**
+	 * Sends the batches that were detached from the tables under one commit
+	 * time (see <code>TupleStore.detach</code>). The tables are not locked, as
+	 * they stage into other holders meanwhile.
+	 * <p>
+	 * If the row IDs are leased, the rows and upserts of each lease are sent
+	 * after a PART_LEASE, and the tables in the order of their handles, as the
+	 * catalyst holds a lease back until the leases before it are committed.
+	 * If the commit fails, the batches are not kept, and their leases are
+	 * released.
+	 */
+	public void commit(List<TupleStore> tables, List<StagedBatch> batches, boolean materialize) throws IOException {
+		List<Integer> order = new ArrayList<Integer>(batches.size());
+		for (int j = 0; j < batches.size(); ++j) {
+			order.add(j);
+		}
+		final List<TupleStore> unordered = tables;
+		Collections.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer j1, Integer j2) {
+				int h1 = unordered.get(j1).getCatalog().getHandle(), h2 = unordered.get(j2).getCatalog().getHandle();
+				return h1 < h2 ? -1 : (h1 == h2 ? 0 : 1);
+			}
+		});
+		tables = new ArrayList<TupleStore>(batches.size());
+		List<IReadableHolder> rows = new ArrayList<IReadableHolder>(batches.size());
+		List<UDsHolder> udsHolders = new ArrayList<UDsHolder>(batches.size());
+		List<int[]> leases = new ArrayList<int[]>(batches.size());
+		boolean leased = false;
+		for (int j : order) {
+			StagedBatch batch = batches.get(j);
+			tables.add(unordered.get(j));
+			rows.add(batch.rowsHolder);
+			udsHolders.add(batch.udsHolder);
+			leases.add(batch.leases);
+			leased |= batch.leases != null;
+		}
+		send(batches.isEmpty() ? 0 : batches.get(0).commitTime, tables, rows, udsHolders, leased ? leases : null, materialize);
+	}
+
+	/** A part of PROD_COMMIT_BATCH: rows, or encoded upserts or lease, or none for PART_MATERIALIZE. */
+	private static class Part {
+		final int kind;
+		final int table; // The index of the table.
+		final IReadableHolder rows;
+		final byte[] bytes;
+
+		Part(int kind, int table, IReadableHolder rows, byte[] bytes) {
+			this.kind = kind;
+			this.table = table;
+			this.rows = rows;
+			this.bytes = bytes;
+		}
+	}
+
+	private void send(long commitTime, List<TupleStore> tables, List<IReadableHolder> rows, List<UDsHolder> udsHolders, List<int[]> leases, boolean materialize) throws IOException {
+		List<Part> parts = new ArrayList<Part>();
+		for (int j = 0; j < tables.size(); ++j) {
+			int[] ranges = leases == null ? null : leases.get(j);
+			if (ranges == null) {
+				addParts(parts, j, rows.get(j), udsHolders.get(j));
+			} else {
+				long owner = tables.get(j).getCatalog().getLeaseOwner();
+				for (int k = 0; k < ranges.length; k += 2) {
+					ByteBuffer lease = ByteBuffer.allocate(16);
+					lease.putLong(owner).putInt(ranges[k]).putInt(ranges[k + 1] - 1);
+					parts.add(new Part(ServerCommand.PART_LEASE, j, null, lease.array()));
+					addParts(parts, j, ((MergedRowsHolder) rows.get(j)).range(ranges[k], ranges[k + 1]), udsHolders.get(j).range(ranges[k], ranges[k + 1]));
+				}
+			}
+			if (materialize)
+				parts.add(new Part(ServerCommand.PART_MATERIALIZE, j, null, null));
+		}
+		if (parts.isEmpty())
+			return;
+
+		boolean committed = false;
+		try {
+			buf.clear();
+			buf.putInt(ServerCommand.PROD_COMMIT_BATCH.ordinal()).putLong(commitTime).putInt(parts.size()).flip();
+			while (buf.hasRemaining()) {
+				channel.write(buf);
+			}
+			WritableByteChannel dest = out == null ? channel : out;
+			for (Part part : parts) {
+				int handle = tables.get(part.table).getCatalog().getHandle();
+				if (part.rows != null) {
+					BatchHeader batch = part.rows.getBatchHeader();
+					writePart(dest, part.kind, handle, (long) batch.getEncodedSize() + batch.getLength());
+					batch.writeTo(dest);
+					part.rows.transferTo(dest);
+				} else if (part.bytes != null) {
+					writePart(dest, part.kind, handle, part.bytes.length);
+					ByteBuffer encoded = ByteBuffer.wrap(part.bytes);
+					while (encoded.hasRemaining()) {
+						dest.write(encoded);
+					}
+				} else {
+					writePart(dest, part.kind, handle, 0);
+				}
+			}
+			if (out != null)
+				out.finish();
+			int applied = Utils.readInt(channel);
+			if (Utils.readInt(channel) != ServerCommand.ERR.ordinal()) {
+				for (int j = 0; j < tables.size(); ++j) {
+					rows.get(j).clear();
+					udsHolders.get(j).clear();
+				}
+				committed = true;
+				return;
+			}
+
+			// The parts before the failed one are committed, so they are cleared,
+			// and the rest are kept for the retry. The parts of leases are not
+			// retried, see commit(List, List, boolean).
+			for (int i = 0; i < applied && leases == null; ++i) {
+				Part part = parts.get(i);
+				if (part.kind == ServerCommand.PART_ROWS)
+					rows.get(part.table).clear();
+				else if (part.kind == ServerCommand.PART_UDS)
+					udsHolders.get(part.table).clear();
+			}
+			throw new IOException("Failed to commit the tables to server!");
+		} finally {
+			for (int j = 0; !committed && leases != null && j < tables.size(); ++j) {
+				if (leases.get(j) != null)
+					tables.get(j).getCatalog().releaseLeases(leases.get(j));
+			}
+		}
+	}
+
+	/** Adds the parts of the rows and upserts, if there are any. */
+	private static void addParts(List<Part> parts, int table, IReadableHolder rows, UDsHolder udsHolder) throws IOException {
+		if (rows.size() > 0)
+			parts.add(new Part(ServerCommand.PART_ROWS, table, rows, null));
+		if (udsHolder.size() > 0) { // The upserts must be encoded to know their length.
+			ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+			udsHolder.transferTo(Channels.newChannel(encoded));
+			parts.add(new Part(ServerCommand.PART_UDS, table, null, encoded.toByteArray()));
+		}
+	}
+
+	private void writePart(WritableByteChannel dest, int kind, int handle, long length) throws IOException {
+		buf.clear();
+		buf.putInt(kind).putInt(handle).putLong(length).flip();
+		while (buf.hasRemaining()) {
+			dest.write(buf);
+		}
+	}
+
+	/** Closes the stream after a failure, without the goodbye. */
+	public void abort() {
+		Utils.closeQuietly(channel);
+	}
+
+	/** Returns false if the stream was closed by abort(). */
+	public boolean isOpen() {
+		return channel.isOpen();
+	}
+
+	public void done() throws IOException {
+		if (out != null) {
+			out.close();
+		}
+		if (channel != null && channel.isOpen()) {
+			Utils.bye(channel, buf);
+		}
+	}
+}
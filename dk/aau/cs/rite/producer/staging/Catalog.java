@@ -24,21 +24,23 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
 import java.io.Writer;
-import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.ByteChannel;
-import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import dk.aau.cs.rite.common.RiteException;
 import dk.aau.cs.rite.common.StringUtils;
+import dk.aau.cs.rite.common.Transport;
 import dk.aau.cs.rite.common.Utils;
+import dk.aau.cs.rite.server.EmbeddedCatalyst;
 import dk.aau.cs.rite.server.ServerCommand;
-import dk.aau.cs.rite.tuplestore.Persistence;
+import dk.aau.cs.rite.server.SharedDataArea;
 
 public class Catalog  {
 
@@ -52,7 +54,18 @@ public class Catalog  {
 	private String dbPassword;
 
 	private int indexCol = -1;
-	private int seq = 0; //The sequence used for rows, updates and deletes.  
+	private final AtomicInteger seq = new AtomicInteger(0); //The sequence used for rows, updates and deletes, by any thread.
+	private int handle = -1; // The handle of the table in the catalyst, -1 if it is not synced.
+	
+	public static final int LEASE_SIZE = 65536; // The row IDs leased at a time, see leaseRowIDs.
+	private volatile boolean leasing; // If the row IDs are leased from the catalyst instead of taken from seq.
+	private ByteChannel leaseChannel; // The stream the IDs are leased on.
+	private final Object leaseIO = new Object(); // Held while a request is on the stream.
+	private long leaseOwner; // The owner of the leases in the catalyst, i.e., the stream.
+	private int leaseFirst, leaseNext, leaseEnd; // The current lease, and its unused IDs from leaseNext.
+	private int aheadFirst, aheadEnd; // A lease taken ahead of need, if aheadFirst < aheadEnd.
+	private final List<int[]> usedLeases = new ArrayList<int[]>(); // The leases before the current one, see cutLeases.
+	private boolean requesting; // Whether a thread is leasing, without the monitor.
 	
 	private String dataDir;
 	
@@ -66,6 +79,20 @@ public class Catalog  {
 		this(tableName, null);
 	}
 
+	/** Copies the catalog of a producer, for a catalyst in the same process. */
+	public Catalog(Catalog catalog, String dataDir) {
+		this(catalog.tableName, dataDir);
+		for (String col : catalog.cols) {
+			this.addColType(col, catalog.colTypes.get(col));
+		}
+		for (String primKey : catalog.primaryKeys) {
+			if (primaryKeys.isEmpty()) // Only support the first column of the primary keys with index.
+				indexCol = cols.indexOf(primKey);
+			primaryKeys.add(primKey);
+		}
+		this.setTargetJdbcInfo(catalog.jdbcDriver, catalog.jdbcUrl, catalog.dbUsername, catalog.dbPassword);
+	}
+
 
 	public String getTableName() {
 		return tableName;
@@ -84,44 +111,61 @@ public class Catalog  {
 		return cols.indexOf(col);
 	}
 	
-	public void syncWithCatalyst(InetSocketAddress serverAddr) throws IOException {
-		SocketChannel channel = SocketChannel.open(serverAddr);
+	public void syncWithCatalyst(SocketAddress serverAddr) throws IOException {
+		syncWithCatalyst(Transport.connect(serverAddr));
+	}
+
+	/** Syncs on the channel, e.g., a stream of the connection of the producer, and closes it. */
+	public void syncWithCatalyst(ByteChannel channel) throws IOException {
+		List<byte[]> strings = new ArrayList<byte[]>();
+		strings.add(Utils.getBytesUtf8(tableName));
+		for (String col : cols) {
+			strings.add(Utils.getBytesUtf8(col));
+		}
+		for (String prmKey : primaryKeys) {
+			strings.add(Utils.getBytesUtf8(prmKey));
+		}
+		strings.add(Utils.getBytesUtf8(jdbcDriver));
+		strings.add(Utils.getBytesUtf8(jdbcUrl));
+		strings.add(Utils.getBytesUtf8(dbUsername));
+		strings.add(Utils.getBytesUtf8(dbPassword));
+		int size = 4 + 4 + 4 + 4 * cols.size(); // Command, number of columns and keys, column types
+		for (byte[] ascii : strings) {
+			size += 4 + ascii.length;
+		}
 		
-		ByteBuffer buf = ByteBuffer.allocate(1024 * 1024);
-		byte[] ascii = Utils.getBytesUtf8(tableName);// Set the tablename
-		buf.putInt(ServerCommand.PROD_SYNC_CATALOG.ordinal()).putInt(ascii.length).put(ascii);
+		ByteBuffer buf = ByteBuffer.allocate(Math.max(size, 12));
+		int next = 0;
+		byte[] ascii = strings.get(next++);// Set the tablename
+		buf.putInt(ServerCommand.PROD_SYNC_CATALOG_HANDLE.ordinal()).putInt(ascii.length).put(ascii);
 
 		buf.putInt(colTypes.size()); // Set number of columns
 		for (String col : cols) {
-			ascii = Utils.getBytesUtf8(col);// Set the column name
+			ascii = strings.get(next++);// Set the column name
 			int colType = colTypes.get(col);// Set the column type
 			buf.putInt(ascii.length).put(ascii).putInt(colType);
 		}
 
 		buf.putInt(primaryKeys.size()); // Set the number of primary keys
-		for (String prmKey : primaryKeys) {
-			ascii = Utils.getBytesUtf8(prmKey);// Set the primary key
+		for (int i = 0; i < primaryKeys.size(); ++i) {
+			ascii = strings.get(next++);// Set the primary key
 			buf.putInt(ascii.length).put(ascii);
 		}
 
-		ascii = Utils.getBytesUtf8(jdbcDriver);
-		buf.putInt(ascii.length).put(ascii);
-
-		ascii = Utils.getBytesUtf8(jdbcUrl);
-		buf.putInt(ascii.length).put(ascii);
-
-		ascii = Utils.getBytesUtf8(dbUsername);
-		buf.putInt(ascii.length).put(ascii);
-
-		ascii = Utils.getBytesUtf8(dbPassword);
-		buf.putInt(ascii.length).put(ascii);
+		while (next < strings.size()) { // Set the JDBC driver, url, user name and password
+			ascii = strings.get(next++);
+			buf.putInt(ascii.length).put(ascii);
+		}
 		buf.flip();
-		channel.write(buf);
+		while (buf.hasRemaining()) {
+			channel.write(buf);
+		}
 		
 		buf.clear();
-		Utils.read(channel, 8, buf);
+		Utils.read(channel, 12, buf);
 		buf.flip();
-		this.seq = buf.getInt(); // Get the current seq in the catalyst tuplestore.
+		this.seq.set(buf.getInt()); // Get the current seq in the catalyst tuplestore.
+		this.handle = buf.getInt();
 		int succeed = buf.getInt();
 		
 		if (succeed!=ServerCommand.OK.ordinal()) {
@@ -130,8 +174,250 @@ public class Catalog  {
 		Utils.bye(channel, buf);
 	}
 	
-	public int getNextSeq(){
-		return ++seq;
+	/** As above, with the catalyst in the same process; nothing is sent. */
+	public void syncWithCatalyst(EmbeddedCatalyst catalyst) throws IOException {
+		try {
+			SharedDataArea.Table table = catalyst.getSharedDataArea().ensureTupleStore(this);
+			this.seq.set(table.get().getID());
+			this.handle = table.getHandle();
+		} catch (RiteException e) {
+			throw new IOException("Failed to sync catalog to server!", e);
+		} catch (RuntimeException e) {
+			throw new IOException("Failed to sync catalog to server!", e);
+		}
+	}
+	
+	public int getHandle() {
+		return handle;
+	}
+
+	/**
+	 * Puts the command for this table, with the handle of the table if it is
+	 * synced, or else with its name.
+	 */
+	public ByteBuffer putCommand(ByteBuffer buf, ServerCommand cmd) throws IOException {
+		ServerCommand byHandle = cmd.byHandle();
+		if (handle >= 0 && byHandle != null) {
+			return buf.putInt(byHandle.ordinal()).putInt(handle);
+		}
+		byte[] ascii = Utils.getBytesUtf8(tableName);
+		return buf.putInt(cmd.ordinal()).putInt(ascii.length).put(ascii);
+	}
+
+	/**
+	 * Takes the row IDs from ranges that the catalyst leases on the channel, a
+	 * stream that is kept open for it, instead of from the sequence synced
+	 * with the catalyst. Then other producers can insert into the table at the
+	 * same time, see RowIDLeases. Called after the catalog is synced.
+	 */
+	public synchronized void leaseRowIDs(ByteChannel channel) {
+		this.leaseChannel = channel;
+		this.leasing = true;
+	}
+
+	/** Releases the leases of the row IDs, if any, e.g., when the producer is closed. */
+	public synchronized void endLease() {
+		if (leaseChannel != null)
+			Utils.closeQuietly(leaseChannel); // The catalyst closes the leases of the stream.
+		leaseChannel = null;
+		leasing = false;
+		leaseFirst = leaseNext = leaseEnd = aheadFirst = aheadEnd = 0;
+		usedLeases.clear();
+	}
+
+	public boolean isLeasing() {
+		return leasing;
+	}
+
+	/** Returns the owner of the leases in the catalyst, to commit their rows by, see BatchCommit. */
+	public synchronized long getLeaseOwner() {
+		return leaseOwner;
+	}
+
+	public int getNextSeq() throws RiteException {
+		return leasing ? leaseSeqs(1) : seq.incrementAndGet();
+	}
+	
+	/** Reserves the next n row IDs, and returns the first of them. */
+	public int getNextSeqs(int n) throws RiteException {
+		return leasing ? leaseSeqs(n) : seq.getAndAdd(n) + 1;
+	}
+	
+	/**
+	 * Gives back the unused IDs from next to end (exclusive) of getNextSeqs(),
+	 * if no later ID has been taken; otherwise they are skipped.
+	 */
+	public void releaseSeqs(int next, int end){
+		if (next >= end)
+			return;
+		if (leasing) {
+			synchronized (this) {
+				if (leaseNext == end && next >= leaseFirst)
+					leaseNext = next;
+			}
+		} else {
+			seq.compareAndSet(end - 1, next - 1);
+		}
+	}
+
+	/**
+	 * Takes n consecutive IDs of the current lease. When a quarter of it is
+	 * left, the calling thread leases more ahead of need; a thread that finds
+	 * too few IDs left waits for it. The catalyst is asked without the
+	 * monitor, so that the other threads go on taking IDs meanwhile.
+	 */
+	private int leaseSeqs(int n) throws RiteException {
+		for (;;) {
+			int first = 0, count, extend;
+			synchronized (this) {
+				if (!leasing)
+					throw new RiteException("The row IDs of " + tableName + " are not leased any more");
+				if (leaseEnd - leaseNext < n && aheadEnd - aheadFirst >= n)
+					this.switchToAhead(); // The rest of the lease is skipped.
+				if (leaseEnd - leaseNext >= n) {
+					first = leaseNext;
+					leaseNext += n;
+					if (requesting || aheadFirst < aheadEnd || leaseEnd - leaseNext >= LEASE_SIZE / 4)
+						return first;
+					count = LEASE_SIZE;
+				} else if (requesting) {
+					try {
+						this.wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new RiteException("Interrupted while leasing row IDs of " + tableName, e);
+					}
+					continue;
+				} else {
+					if (aheadFirst < aheadEnd)
+						this.switchToAhead(); // Too small; it is extended instead.
+					count = Math.max(n, LEASE_SIZE);
+				}
+				extend = leaseFirst;
+				requesting = true;
+			}
+			int leased;
+			try {
+				leased = this.requestLease(count, extend);
+			} catch (IOException e) {
+				synchronized (this) {
+					requesting = false;
+					this.notifyAll();
+				}
+				if (first != 0) { // Leased again when the IDs are needed.
+					e.printStackTrace();
+					return first;
+				}
+				throw new RiteException("Failed to lease row IDs of " + tableName, e);
+			}
+			synchronized (this) {
+				requesting = false;
+				this.notifyAll();
+				if (extend != 0 && extend == leaseFirst && leased == leaseEnd) { // The catalyst extended the lease.
+					leaseEnd += count;
+				} else {
+					aheadFirst = leased;
+					aheadEnd = leased + count;
+				}
+			}
+			if (first != 0)
+				return first;
+		}
+	}
+
+	/** Makes the lease taken ahead the current one. */
+	private void switchToAhead() {
+		if (leaseFirst != 0)
+			usedLeases.add(new int[] { leaseFirst, leaseEnd });
+		leaseFirst = leaseNext = aheadFirst;
+		leaseEnd = aheadEnd;
+		aheadFirst = aheadEnd = 0;
+	}
+
+	/**
+	 * Ends the leases that the IDs were taken from so far, e.g., when the
+	 * staged rows are detached to be committed, as the catalyst closes a lease
+	 * when its rows are committed. Returns them in order as the pairs of their
+	 * first and end (exclusive) IDs, and the IDs taken afterwards are from new
+	 * leases. Returns null if the IDs are not leased.
+	 */
+	public synchronized int[] cutLeases() {
+		if (!leasing)
+			return null;
+		boolean interrupted = false;
+		while (requesting) { // The lease requested may extend the current one.
+			try {
+				this.wait();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		if (leaseFirst != 0)
+			usedLeases.add(new int[] { leaseFirst, leaseEnd });
+		if (aheadFirst < aheadEnd)
+			usedLeases.add(new int[] { aheadFirst, aheadEnd });
+		int[] leases = new int[2 * usedLeases.size()];
+		for (int i = 0; i < usedLeases.size(); ++i) {
+			leases[2 * i] = usedLeases.get(i)[0];
+			leases[2 * i + 1] = usedLeases.get(i)[1];
+		}
+		usedLeases.clear();
+		leaseFirst = leaseNext = leaseEnd = aheadFirst = aheadEnd = 0;
+		return leases;
+	}
+
+	/**
+	 * Closes the leases of cutLeases() that a failed commit may have left
+	 * open, so that they do not hold back the commits of other producers. If
+	 * it fails, the stream is closed, which closes all of them.
+	 */
+	public void releaseLeases(int[] leases) {
+		ByteChannel channel = leaseChannel;
+		if (channel == null)
+			return;
+		synchronized (leaseIO) {
+			try {
+				ByteBuffer buf = ByteBuffer.allocate(12);
+				for (int i = 0; i < leases.length; i += 2) {
+					buf.clear();
+					buf.putInt(ServerCommand.PROD_RELEASE_ROW_IDS.ordinal()).putInt(handle).putInt(leases[i]).flip();
+					while (buf.hasRemaining()) {
+						channel.write(buf);
+					}
+					buf.clear();
+					Utils.read(channel, 4, buf);
+					if (buf.getInt(0) != ServerCommand.OK.ordinal())
+						throw new IOException("The catalyst did not release the row IDs from " + leases[i]);
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+				Utils.closeQuietly(channel);
+			}
+		}
+	}
+
+	/** Leases count IDs, extending the lease from extendFirst if the catalyst can. Returns the first ID. */
+	private int requestLease(int count, int extendFirst) throws IOException {
+		ByteChannel channel = leaseChannel;
+		if (channel == null)
+			throw new IOException("The row IDs of " + tableName + " are not leased any more");
+		ByteBuffer buf = ByteBuffer.allocate(16);
+		synchronized (leaseIO) {
+			buf.putInt(ServerCommand.PROD_LEASE_ROW_IDS.ordinal()).putInt(handle).putInt(count).putInt(extendFirst).flip();
+			while (buf.hasRemaining()) {
+				channel.write(buf);
+			}
+			buf.clear();
+			Utils.read(channel, 16, buf); // The first ID, the owner, and OK
+		}
+		if (buf.getInt(12) != ServerCommand.OK.ordinal())
+			throw new IOException("The catalyst did not lease row IDs of " + tableName);
+		synchronized (this) {
+			leaseOwner = buf.getLong(4);
+		}
+		return buf.getInt(0);
 	}
 	
 
@@ -0,0 +1,94 @@
+/*
+ *
+ * Copyright (c) 2011, Xiufeng Liu (xiliu@cs.aau.dk) and the eGovMon Consortium
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ *
+ *
+ */
+
+package dk.aau.cs.rite.producer.staging;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+
+import dk.aau.cs.rite.common.PrefixedChannel;
+import dk.aau.cs.rite.common.RiteException;
+import dk.aau.cs.rite.server.EmbeddedCatalyst;
+
+/**
+ * Commits to a catalyst in the same process (see
+ * <code>EmbeddedCatalyst</code>): the batch header and the staged rows are
+ * handed over to the tuple store of the table, which reads the rows from the
+ * rows holder into its segments. There is no connection, so the commit is
+ * always instant.
+ */
+public class EmbeddedTransfer implements ITransfer {
+
+	Catalog catalog;
+	dk.aau.cs.rite.tuplestore.TupleStore tupleStore;
+
+	public EmbeddedTransfer(EmbeddedCatalyst catalyst, Catalog catalog) throws IOException {
+		this.catalog = catalog;
+		this.tupleStore = catalyst.getSharedDataArea().getTupleStore(catalog.getHandle());
+		if (tupleStore == null) {
+			throw new IOException("The table " + catalog.getTableName() + " is not synced!");
+		}
+	}
+
+	@Override
+	public void transfer(long commitTime, IReadableHolder rowsHolder, UDsHolder udsHolder) throws IOException {
+		try {
+			if (rowsHolder.size() > 0) {
+				tupleStore.addBatch(commitTime, rowsHolder.getBatchHeader(), rowsHolder.getRows());
+			}
+			if (udsHolder.size() > 0) { // Seldom, so they are encoded as for the socket.
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				udsHolder.transferTo(Channels.newChannel(out));
+				ByteBuffer buf = ByteBuffer.allocate(8 + out.size());
+				buf.putLong(commitTime).put(out.toByteArray()).flip();
+				tupleStore.readUDsIn(new PrefixedChannel(buf, null));
+			}
+		} catch (RiteException e) {
+			throw new IOException("Failed to transfer data to server!", e);
+		}
+	}
+
+	@Override
+	public void ensureAccuracy(long reqCommitTime) throws IOException {
+		// no need in the instant flush
+	}
+
+	@Override
+	public void materialize() throws IOException {
+		try {
+			tupleStore.materialize();
+		} catch (RiteException e) {
+			throw new IOException("Failed to materialize!", e);
+		}
+	}
+
+	@Override
+	public void rollback() throws IOException {
+	}
+
+	@Override
+	public void done() throws IOException {
+	}
+
+	@Override
+	public boolean isConnected() throws IOException {
+		return true;
+	}
+}
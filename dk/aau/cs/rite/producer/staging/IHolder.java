@@ -20,17 +20,14 @@ package dk.aau.cs.rite.producer.staging;
 
 import java.io.IOException;
 import java.nio.channels.ReadableByteChannel;
-import java.nio.channels.WritableByteChannel;
 
-public interface IHolder {
+public interface IHolder extends IReadableHolder {
 
 	 void putRow(Object[] values) throws IOException;
-	
-	void read(ReadableByteChannel dest) throws IOException;
 
-	long transferTo(WritableByteChannel dest) throws IOException;
-	
-	void clear()  throws IOException;
+	void putRow(PreparedRow row, int rowID) throws IOException; // The same as putRow(row.toValues(rowID)).
+
+	void putRows(PreparedBatch rows, int firstRowID) throws IOException; // The rows get the IDs from firstRowID on.
 	
-	int size();
+	void read(ReadableByteChannel dest) throws IOException;
 }
@@ -0,0 +1,41 @@
+/*
+ *
+ * Copyright (c) 2011, Xiufeng Liu (xiliu@cs.aau.dk) and the eGovMon Consortium
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ *
+ *
+ */
+package dk.aau.cs.rite.producer.staging;
+
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+import dk.aau.cs.rite.common.BatchHeader;
+
+/**
+ * The rows of a holder as they are committed: the transfers only read them,
+ * and clear the holder when they are sent. Rows are put by IHolder.
+ */
+public interface IReadableHolder {
+
+	long transferTo(WritableByteChannel dest) throws IOException;
+	
+	void clear()  throws IOException;
+	
+	int size();
+	
+	BatchHeader getBatchHeader(); // Frames the rows for the bulk flush format.
+	
+	ReadableByteChannel getRows() throws IOException; // Reads the rows where they are staged, for a catalyst in the same process.
+}
@@ -23,7 +23,7 @@ import java.io.IOException;
 public interface ITransfer {
 
 		
-		void transfer(long transferTime, IHolder rowsHolder, UDsHolder upsertsHolder) throws IOException; // Commit rowsHolder.
+		void transfer(long transferTime, IReadableHolder rowsHolder, UDsHolder upsertsHolder) throws IOException; // Commit rowsHolder.
 				
 		
 		void ensureAccuracy(long reqCommitTime) throws IOException; // MemServer request data accuracy
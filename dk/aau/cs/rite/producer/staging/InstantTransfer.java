@@ -18,12 +18,17 @@
 
 package dk.aau.cs.rite.producer.staging;
 
+import java.io.File;
 import java.io.IOException;
-import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.nio.ByteBuffer;
-import java.nio.channels.SocketChannel;
+import java.nio.channels.ByteChannel;
 import java.util.logging.Logger;
 
+import dk.aau.cs.rite.common.BlockOutputChannel;
+import dk.aau.cs.rite.common.Compression;
+import dk.aau.cs.rite.common.SharedRing;
+import dk.aau.cs.rite.common.Transport;
 import dk.aau.cs.rite.common.Utils;
 import dk.aau.cs.rite.server.ServerCommand;
 
@@ -31,23 +36,67 @@ public class InstantTransfer implements ITransfer {
 
 	Logger log = Logger.getLogger(InstantTransfer.class.getName());
 	
-	InetSocketAddress serverAddr;
+	SocketAddress serverAddr;
 	Catalog catalog;
-	SocketChannel channel;
+	ByteChannel channel; // A socket, or a stream of the connection of the producer.
 	ByteBuffer buf;
+	BlockOutputChannel out; // Null if the connection is not compressed.
+	SharedRing ring; // Null if the rows are sent over the socket.
 	
 	
 	
-	public InstantTransfer(InetSocketAddress serverAddr, Catalog catalog)
+	public InstantTransfer(SocketAddress serverAddr, Catalog catalog)
 			throws IOException {
+		this(serverAddr, catalog, Compression.NONE, Compression.DEFAULT_THRESHOLD);
+	}
+	
+	public InstantTransfer(SocketAddress serverAddr, Catalog catalog, int compression, int threshold)
+			throws IOException {
+		this(Transport.connect(serverAddr), catalog, compression, threshold);
 		this.serverAddr = serverAddr;
+	}
+	
+	public InstantTransfer(ByteChannel channel, Catalog catalog, int compression, int threshold)
+			throws IOException {
 		this.catalog = catalog;
-		this.channel = SocketChannel.open(serverAddr);
+		this.channel = channel;
 		this.buf = ByteBuffer.allocate(512);
+		compression = Compression.negotiate(channel, buf, compression, threshold);
+		if (compression != Compression.NONE)
+			this.out = new BlockOutputChannel(channel, compression, threshold);
+	}
+
+	/**
+	 * Creates a shared ring in the directory and asks the catalyst to read the
+	 * flushed rows from it. Format: command (int)|length of path (int)|path;
+	 * the reply is 1 if the catalyst opened the ring, otherwise 0 (int)|OK (int).
+	 * 
+	 * @return false if the rows are still sent over the socket.
+	 */
+	public boolean openSharedRing(File dir, int capacity) throws IOException {
+		SharedRing created = SharedRing.create(File.createTempFile("rite-", ".ring", dir), capacity);
+		byte[] path = Utils.getBytesUtf8(created.getFile().getAbsolutePath());
+		if (4 + 4 + path.length > 512) {
+			created.close();
+			return false;
+		}
+		buf.clear();
+		buf.putInt(ServerCommand.OPEN_SHARED_RING.ordinal()).putInt(path.length).put(path).flip();
+		while (buf.hasRemaining()) {
+			channel.write(buf);
+		}
+		buf.clear();
+		Utils.read(channel, 8, buf);
+		if (buf.getInt(4) != ServerCommand.OK.ordinal() || buf.getInt(0) != 1) {
+			created.close();
+			return false;
+		}
+		this.ring = created;
+		return true;
 	}
 
 	@Override
-	public void transfer(long commitTime, IHolder rowsHolder, UDsHolder upsertsHolder) throws IOException {
+	public void transfer(long commitTime, IReadableHolder rowsHolder, UDsHolder upsertsHolder) throws IOException {
 		if (rowsHolder.size()>0){
 			flushRows(commitTime, rowsHolder);
 		} 
@@ -56,19 +105,39 @@ public class InstantTransfer implements ITransfer {
 		}
 	}
 	
-	protected void flushRows(long commitTime, IHolder rowsHolder) throws IOException {
-		// Stream format: command (int)|length of tableName(int)|tableName|commitTime (long)|numberofrows(int)|data of rows in rowsHolder
+	protected void flushRows(long commitTime, IReadableHolder rowsHolder) throws IOException {
+		// Stream format: command (int)|length of tableName(int)|tableName|commitTime (long)|batch header|data of rows in rowsHolder
+		// On a compressed connection, all after the tableName is a compressed stream.
+		// With a shared ring, all after the tableName is written into the ring.
 		byte[] tblBytes = Utils.getBytesUtf8(catalog.getTableName());
-		if (4 + 4 + tblBytes.length + 8 + 4 > 512) {
+		if (4 + 4 + tblBytes.length + 8 > 512) {
 			throw new IOException("Failed to export!");
 		}
 		buf.clear();
-		buf.putInt(ServerCommand.PROD_COMMIT_FLUSH_DATA.ordinal())
-				.putInt(tblBytes.length).put(tblBytes).putLong(commitTime)
-				.putInt(rowsHolder.size()) // The number of rows
-				.flip();
-		channel.write(buf);
-		rowsHolder.transferTo(channel);
+		catalog.putCommand(buf, ServerCommand.PROD_COMMIT_FLUSH_DATA_V2);
+		if (ring != null) {
+			buf.flip();
+			channel.write(buf);
+			buf.clear();
+			buf.putLong(commitTime).flip();
+			ring.write(buf);
+			rowsHolder.getBatchHeader().writeTo(ring);
+			rowsHolder.transferTo(ring);
+		} else if (out == null) {
+			buf.putLong(commitTime).flip();
+			channel.write(buf);
+			rowsHolder.getBatchHeader().writeTo(channel);
+			rowsHolder.transferTo(channel);
+		} else {
+			buf.flip();
+			channel.write(buf);
+			buf.clear();
+			buf.putLong(commitTime).flip();
+			out.write(buf);
+			rowsHolder.getBatchHeader().writeTo(out);
+			rowsHolder.transferTo(out);
+			out.finish();
+		}
 		Utils.checkFailure(channel, "Failed to transfer data to server!");
 	}
 	
@@ -80,8 +149,7 @@ public class InstantTransfer implements ITransfer {
 			throw new IOException("Failed to export!");
 		}
 		buf.clear();
-		buf.putInt(ServerCommand.PROD_COMMIT_FLUSH_UD.ordinal())
-				.putInt(tblBytes.length).put(tblBytes).putLong(commitTime).flip();
+		catalog.putCommand(buf, ServerCommand.PROD_COMMIT_FLUSH_UD).putLong(commitTime).flip();
 		channel.write(buf);
 		udsHolder.transferTo(channel);
 		Utils.checkFailure(channel, "Failed to transfer the upserts to server!");
@@ -95,7 +163,7 @@ public class InstantTransfer implements ITransfer {
 		}
 		
 		buf.clear();
-		buf.putInt(ServerCommand.PROD_COMMIT_MATERIALIZE.ordinal()).putInt(tblBytes.length).put(tblBytes);
+		catalog.putCommand(buf, ServerCommand.PROD_COMMIT_MATERIALIZE);
 		buf.flip();
 		channel.write(buf);
 		
@@ -120,6 +188,12 @@ public class InstantTransfer implements ITransfer {
 
 	@Override
 	public void done() throws IOException {
+		if (out != null) {
+			out.close();
+		}
+		if (ring != null) {
+			ring.close();
+		}
 		if (channel!=null && channel.isOpen()){
 			Utils.bye(channel, buf);
 		}
@@ -132,7 +206,7 @@ public class InstantTransfer implements ITransfer {
 
 	@Override
 	public boolean isConnected() throws IOException {
-		return channel!=null && channel.isConnected();
+		return channel!=null && channel.isOpen();
 		
 	}
 }
@@ -19,13 +19,16 @@
 package dk.aau.cs.rite.producer.staging;
 
 import java.io.IOException;
-import java.net.InetSocketAddress;
+import java.net.SocketAddress;
 import java.nio.ByteBuffer;
 import java.nio.channels.ByteChannel;
-import java.nio.channels.SocketChannel;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 
+import dk.aau.cs.rite.common.BatchHeader;
+import dk.aau.cs.rite.common.BlockOutputChannel;
+import dk.aau.cs.rite.common.Compression;
+import dk.aau.cs.rite.common.Transport;
 import dk.aau.cs.rite.common.Utils;
 import dk.aau.cs.rite.server.ServerCommand;
 
@@ -35,22 +38,35 @@ public class LazyTransfer implements ITransfer {
 	RowsArchive archive;
 	ConcurrentLinkedQueue<ArchiveLog> archiveLogs;
 	ExecutorService executor;
-	InetSocketAddress serverAddr;
+	SocketAddress serverAddr;
 	ByteBuffer buf;
-	SocketChannel channel;
+	ByteChannel channel; // A socket, or a stream of the connection of the producer.
+	BlockOutputChannel out; // Null if the connection is not compressed.
 	final int BUF_SIZE = 1024;
 
-	public LazyTransfer(InetSocketAddress serverAddr, Catalog catalog) throws IOException {
+	public LazyTransfer(SocketAddress serverAddr, Catalog catalog) throws IOException {
+		this(serverAddr, catalog, Compression.NONE, Compression.DEFAULT_THRESHOLD);
+	}
+
+	/** The rows are compressed both in the archive and on the connection, unless compression is NONE. */
+	public LazyTransfer(SocketAddress serverAddr, Catalog catalog, int compression, int threshold) throws IOException {
+		this(Transport.connect(serverAddr), catalog, compression, threshold);
 		this.serverAddr = serverAddr;
+	}
+
+	public LazyTransfer(ByteChannel channel, Catalog catalog, int compression, int threshold) throws IOException {
 		this.catalog = catalog;
-		this.archive = new RowsArchive();
+		this.archive = new RowsArchive(compression, threshold);
 		this.archiveLogs = new ConcurrentLinkedQueue<ArchiveLog>();
 		this.buf = ByteBuffer.allocate(BUF_SIZE);
-		this.channel = SocketChannel.open(serverAddr);
+		this.channel = channel;
+		compression = Compression.negotiate(channel, buf, compression, threshold);
+		if (compression != Compression.NONE)
+			this.out = new BlockOutputChannel(channel, compression, threshold);
 	}
 
 	@Override
-	synchronized public void transfer(long commitTime, IHolder rowsHolder, UDsHolder udsHolder) throws IOException {
+	synchronized public void transfer(long commitTime, IReadableHolder rowsHolder, UDsHolder udsHolder) throws IOException {
 		if (rowsHolder.size() > 0) {
 			ArchiveLog archiveLog = this.archive.archiveRows(commitTime, rowsHolder);
 			archiveLogs.add(archiveLog);
@@ -69,8 +85,7 @@ public class LazyTransfer implements ITransfer {
 			throw new IOException("Failed to export!");
 		}
 		buf.clear();
-		buf.putInt(ServerCommand.PROD_COMMIT_FLUSH_UD.ordinal())
-				.putInt(tblBytes.length).put(tblBytes).putLong(commitTime).flip();
+		catalog.putCommand(buf, ServerCommand.PROD_COMMIT_FLUSH_UD).putLong(commitTime).flip();
 		channel.write(buf);
 		udsHolder.transferTo(channel);
 		Utils.checkFailure(channel, "Failed to transfer the upserts to server!");
@@ -90,22 +105,34 @@ public class LazyTransfer implements ITransfer {
 		int length = 0;
 		int rowCount = 0;
 		long commitTime = 0; 
+		BatchHeader batch = new BatchHeader();
 		while ((archiveLog = archiveLogs.peek()) != null
 				&& archiveLog.getCommitTime() <= reqCommitTime) {
 			length += archiveLog.getLength();
 			rowCount += archiveLog.getRowsCount();
 			commitTime = archiveLog.getCommitTime();
+			batch.append(archiveLog.getBatchHeader()); // The archived rows are consecutive.
 			archiveLog = archiveLogs.poll();
 		}
 		
 		if (rowCount>0){
 			buf.clear();
-			buf.putInt(ServerCommand.PROD_COMMIT_FLUSH_DATA.ordinal())
-					.putInt(tblBytes.length).put(tblBytes)
-					.putLong(commitTime)
-					.putInt(rowCount).flip();
-			channel.write(buf);
-			archive.readTo(channel, length);
+			catalog.putCommand(buf, ServerCommand.PROD_COMMIT_FLUSH_DATA_V2);
+			if (out == null) {
+				buf.putLong(commitTime).flip();
+				channel.write(buf);
+				batch.writeTo(channel);
+				archive.readTo(channel, length);
+			} else { // All after the tableName is a compressed stream.
+				buf.flip();
+				channel.write(buf);
+				buf.clear();
+				buf.putLong(commitTime).flip();
+				out.write(buf);
+				batch.writeTo(out);
+				archive.readTo(out, length);
+				out.finish();
+			}
 			Utils.checkFailure(channel, "Failed to transfer data to server!");
 		}
 		this.doEmptyUpdate(channel, buf, tblBytes, reqCommitTime);
@@ -114,8 +141,7 @@ public class LazyTransfer implements ITransfer {
 	private final int doEmptyUpdate(ByteChannel channel, ByteBuffer buf, byte[]tblBytes, long reqCommitTime) throws IOException{
 		// To unclock the waiting commitLock in the server.
 		buf.clear();
-		buf.putInt(ServerCommand.PROD_COMMIT_FLUSH_DATA.ordinal())
-				.putInt(tblBytes.length).put(tblBytes).putLong(reqCommitTime)
+		catalog.putCommand(buf, ServerCommand.PROD_COMMIT_FLUSH_DATA).putLong(reqCommitTime)
 				.putInt(0) // number of rows
 				.flip();
 		int written = this.channel.write(buf);
@@ -134,8 +160,7 @@ public class LazyTransfer implements ITransfer {
 			throw new IOException("The length of file name cannot exceed 256" );
 		}
 		buf.clear();
-		buf.putInt(ServerCommand.PROD_COMMIT_MATERIALIZE.ordinal())
-				.putInt(tblBytes.length).put(tblBytes);
+		catalog.putCommand(buf, ServerCommand.PROD_COMMIT_MATERIALIZE);
 		buf.flip();
 		channel.write(buf);
 		Utils.checkFailure(channel, "Failed to materialize!");
@@ -149,6 +174,9 @@ public class LazyTransfer implements ITransfer {
 
 	@Override
 	synchronized public void done() throws IOException {
+		if (out != null) {
+			out.close();
+		}
 		if (channel!=null && channel.isOpen()){
 			Utils.bye(channel, buf);
 		}
@@ -156,6 +184,6 @@ public class LazyTransfer implements ITransfer {
 
 	@Override
 	public boolean isConnected() throws IOException {
-		return channel!=null && channel.isConnected();
+		return channel!=null && channel.isOpen();
 	}
 }
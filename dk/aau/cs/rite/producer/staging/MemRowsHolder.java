@@ -21,28 +21,28 @@ package dk.aau.cs.rite.producer.staging;
 import static dk.aau.cs.rite.tuplestore.FlagValues.IS_NOT_NULL;
 import static dk.aau.cs.rite.tuplestore.FlagValues.IS_NULL;
 
-import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
-import java.nio.channels.Channels;
+import java.nio.channels.GatheringByteChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
 import java.nio.charset.Charset;
 import java.sql.Date;
 import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
 
-import dk.aau.cs.rite.common.CircularByteBuffer;
+import dk.aau.cs.rite.common.BatchHeader;
+import dk.aau.cs.rite.common.ChunkPool;
 
 
  
 /**
- * A RowHandler holds rows in a a buffer in the virtual memory until
- * the buffer gets full. Then the buffer's content is automatically written to 
- * a file. When rows are fetched, they appear are returned in the insertion
- * order, and both data from the file and memory buffer are returned.
+ * A RowHandler holds rows in a list of direct chunks from a
+ * <code>ChunkPool</code>; when a chunk gets full, the rows go on in the next
+ * one, and clear() gives the chunks back to the pool. The rows are sent with
+ * one gathering write of all chunks, in the insertion order, so a staged byte
+ * is only copied when it is encoded and when it is written.
  */
 public class MemRowsHolder implements  IHolder {
 
@@ -50,28 +50,24 @@ public class MemRowsHolder implements  IHolder {
      * invoked. @see #getRow()
      */
     public boolean reuseArray = true;
-    private final static int DEFAULT_BUFFER_SIZE = 1024*32;
-    private final int bSize;
+    private final static int DEFAULT_BUFFER_SIZE = ChunkPool.DEFAULT_CHUNK_SIZE;
+    private final ChunkPool pool;
+    private final List<ByteBuffer> chunks = new ArrayList<ByteBuffer>(); // The last one is buff.
     private ByteBuffer buff;
-    private CircularByteBuffer cbb;
-
-    WritableByteChannel outChn;
-    ReadableByteChannel inChn;
     
     private int[] types;
     private Charset coder = Charset.forName("UTF-8");
     private int rowCount = 0;
+    private long written = 0; // The bytes in the chunks before buff.
+    private BatchHeader batch = new BatchHeader(); // The offsets and IDs of the rows.
    
     
     /** Creates a new instance of RowHandler */
     public MemRowsHolder(int bufferSize, int[] types) throws IOException {
-        bSize = bufferSize;
-        buff = ByteBuffer.allocateDirect(bSize);  // Check also with .allocate(bSize)
+        pool = ChunkPool.get(bufferSize);
+        buff = pool.take();
+        chunks.add(buff);
         this.types = types;
-        cbb = new CircularByteBuffer(CircularByteBuffer.INFINITE_SIZE, false);
-        outChn = Channels.newChannel(cbb.getOutputStream());
-        inChn = Channels.newChannel(cbb.getInputStream());
-        
     }
     
     public MemRowsHolder(int[] types) throws IOException {
@@ -90,6 +86,7 @@ public class MemRowsHolder implements  IHolder {
      * type information given when the RowHandler was constructed.
     */
     public void putRow(Object[] values) throws IOException {
+        long start = written + buff.position();
         for(int i = 0; i < types.length; i++) {
             ensureForWrite(1); // For null flag
             if(values[i] == null) {
@@ -114,10 +111,7 @@ public class MemRowsHolder implements  IHolder {
                     // NB: For a normal string, we would check the length
                     // But here we know that we use UTF-8 and only write numbers
                     // and dashes which all take one byte in UTF-8.
-                    ensureForWrite(10);
-                    String dateString = ((Date)values[i]).toString();
-                    byte[] dateBytes = dateString.getBytes(coder);
-                    buff.put(dateBytes, 0, 10);
+                    putDate((Date)values[i]);
                     break;
                 case Types.DOUBLE:
                 case Types.FLOAT:
@@ -137,15 +131,133 @@ public class MemRowsHolder implements  IHolder {
                 case Types.VARCHAR:
                     // Write the length of the bytes encoded as UTF-8.
                     // Then write the bytes
-                    byte[] ascii = ((String)values[i]).getBytes(coder);
-                    ensureForWrite(4 + ascii.length); // Length + the bytes
-                    buff.putInt(ascii.length).put(ascii, 0, ascii.length);
+                    putString((String)values[i]);
                     break;
                 default:
                     throw new RuntimeException("Unexpected type found");
             }
         }
         rowCount++;
+        batch.addRow((int) (written + buff.position() - start), (Integer) values[types.length - 1]); // The last column is the row ID.
+    }
+
+    /** Puts a row of a prepared insert, without boxing its values. */
+    @Override
+    public void putRow(PreparedRow row, int rowID) throws IOException {
+        long start = written + buff.position();
+        int numOfCols = row.getNumOfColumns();
+        for(int i = 0; i < numOfCols; i++) {
+            ensureForWrite(1); // For null flag
+            if(row.isNull(i)) {
+                buff.put(IS_NULL);
+                continue;
+            }
+            else buff.put(IS_NOT_NULL);
+            
+            switch(row.getType(i)) {
+                case Types.BIGINT:
+                    ensureForWrite(8);
+                    buff.putLong(row.getLong(i));
+                    break;
+                case Types.DATE:
+                    putDate((Date)row.getObject(i));
+                    break;
+                case Types.DOUBLE:
+                case Types.FLOAT:
+                case Types.NUMERIC:
+                    ensureForWrite(8);
+                    buff.putDouble(row.getDouble(i));
+                    break;
+                case Types.REAL:
+                    ensureForWrite(4);
+                    buff.putFloat((float)row.getDouble(i));
+                    break;
+                case Types.INTEGER:
+                    ensureForWrite(4);
+                    buff.putInt((int)row.getLong(i));
+                    break;
+                case Types.LONGVARCHAR:
+                case Types.VARCHAR:
+                    putString((String)row.getObject(i));
+                    break;
+                default:
+                    throw new RuntimeException("Unexpected type found");
+            }
+        }
+        ensureForWrite(5); // The row ID.
+        buff.put(IS_NOT_NULL).putInt(rowID);
+        rowCount++;
+        batch.addRow((int) (written + buff.position() - start), rowID);
+    }
+
+    /** Puts the rows of a batch of a prepared insert in one loop. */
+    @Override
+    public void putRows(PreparedBatch rows, int firstRowID) throws IOException {
+        int numOfCols = rows.getNumOfColumns();
+        for (int r = 0; r < rows.size(); r++) {
+            long start = written + buff.position();
+            for(int i = 0; i < numOfCols; i++) {
+                ensureForWrite(1); // For null flag
+                if(rows.isNull(r, i)) {
+                    buff.put(IS_NULL);
+                    continue;
+                }
+                else buff.put(IS_NOT_NULL);
+                
+                switch(rows.getType(i)) {
+                    case Types.BIGINT:
+                        ensureForWrite(8);
+                        buff.putLong(rows.getLong(r, i));
+                        break;
+                    case Types.DATE:
+                        putDate((Date)rows.getObject(r, i));
+                        break;
+                    case Types.DOUBLE:
+                    case Types.FLOAT:
+                    case Types.NUMERIC:
+                        ensureForWrite(8);
+                        buff.putDouble(rows.getDouble(r, i));
+                        break;
+                    case Types.REAL:
+                        ensureForWrite(4);
+                        buff.putFloat((float)rows.getDouble(r, i));
+                        break;
+                    case Types.INTEGER:
+                        ensureForWrite(4);
+                        buff.putInt((int)rows.getLong(r, i));
+                        break;
+                    case Types.LONGVARCHAR:
+                    case Types.VARCHAR:
+                        putString((String)rows.getObject(r, i));
+                        break;
+                    default:
+                        throw new RuntimeException("Unexpected type found");
+                }
+            }
+            int rowID = firstRowID + r;
+            ensureForWrite(5); // The row ID.
+            buff.put(IS_NOT_NULL).putInt(rowID);
+            rowCount++;
+            batch.addRow((int) (written + buff.position() - start), rowID);
+        }
+    }
+
+    private void putDate(Date date) {
+        ensureForWrite(10);
+        byte[] dateBytes = date.toString().getBytes(coder);
+        buff.put(dateBytes, 0, 10);
+    }
+
+    private void putString(String value) {
+        byte[] ascii = value.getBytes(coder);
+        ensureForWrite(4);
+        buff.putInt(ascii.length);
+        put(ascii); // May go on in the next chunks.
+    }
+
+    @Override
+    public BatchHeader getBatchHeader() {
+        return batch;
     }
 
     /** Returns the next row as an Object array or <code>null</code> 
@@ -156,48 +268,123 @@ public class MemRowsHolder implements  IHolder {
      */
    
 
-    /** Ensures that there us space in the buffer to read the given number of
-     * bytes. */
-    private final void ensureForWrite(int bytes) throws IOException {
+    /** Ensures that there is space in the buffer to write the given number of
+     * bytes, which must fit into a chunk. */
+    private final void ensureForWrite(int bytes) {
         if(buff.remaining() < bytes) {
-            // Write out to file
-            buff.flip();
-            outChn.write(buff);
-            buff.clear();
+            nextChunk();
+        }
+    }
+    
+    private void nextChunk() {
+        written += buff.position();
+        buff = pool.take();
+        chunks.add(buff);
+    }
+    
+    private void put(byte[] bytes) {
+        int offset = 0;
+        while (offset < bytes.length) {
+            if (!buff.hasRemaining())
+                nextChunk();
+            int n = Math.min(buff.remaining(), bytes.length - offset);
+            buff.put(bytes, offset, n);
+            offset += n;
         }
-        
-        if(buff.remaining() < bytes)
-            throw new BufferOverflowException();
     }
     
 
 
-    /** Drops all rows held by the RowHandler */
+    /** Drops all rows held by the RowHandler, and gives all chunks but the first back to the pool. */
     public void clear() throws IOException {
-      cbb.clear();
+      for (int i = 1; i < chunks.size(); ++i) {
+          pool.give(chunks.get(i));
+      }
+      buff = chunks.get(0);
+      chunks.clear();
+      chunks.add(buff);
+      buff.clear();
       rowCount = 0;
+      written = 0;
+      batch.clear();
     }
     
-    /** Writes all rows held by the RowHanlder to its underlying file. */
-    public void force() throws IOException {
-        buff.flip();
-        outChn.write(buff);
+    /** Returns the rows as buffers, which are views of the chunks. */
+    private ByteBuffer[] views() {
+        ByteBuffer[] views = new ByteBuffer[chunks.size()];
+        for (int i = 0; i < views.length; ++i) {
+            views[i] = chunks.get(i).duplicate();
+            views[i].flip();
+        }
+        return views;
     }
     
 
-    /** Transfers all this RowHandler's byte data to the given ByteChannel.*/
+    /** Returns a channel that reads the rows, which are left where they are.*/
+	@Override
+	public ReadableByteChannel getRows() throws IOException {
+		final ByteBuffer[] views = views();
+		return new ReadableByteChannel() {
+			int next = 0;
+
+			@Override
+			public int read(ByteBuffer dst) {
+				while (next < views.length && !views[next].hasRemaining())
+					++next;
+				if (next == views.length)
+					return -1;
+				int read = 0;
+				while (next < views.length && dst.hasRemaining()) {
+					ByteBuffer view = views[next];
+					if (view.remaining() <= dst.remaining()) {
+						read += view.remaining();
+						dst.put(view);
+						++next;
+					} else {
+						int limit = view.limit();
+						view.limit(view.position() + dst.remaining());
+						read += view.remaining();
+						dst.put(view);
+						view.limit(limit);
+					}
+				}
+				return read;
+			}
+
+			@Override
+			public boolean isOpen() {
+				return true;
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+	}
+
+    /** Transfers all this RowHandler's byte data to the given ByteChannel, with
+     * one gathering write if the channel supports it. The rows are left where they are.*/
 	@Override
 	public long transferTo(WritableByteChannel dest) throws IOException {
-		force();
-		buff.clear();
-		long length = 0;
-		while ((inChn.read(buff) != -1) || buff.position() > 0) {
-			buff.flip();
-			length+=dest.write(buff);
-			buff.compact();
+		ByteBuffer[] views = views();
+		long length = written + buff.position();
+		if (dest instanceof GatheringByteChannel) {
+			GatheringByteChannel gathering = (GatheringByteChannel) dest;
+			long left = length;
+			int first = 0;
+			while (left > 0) {
+				left -= gathering.write(views, first, views.length - first);
+				while (first < views.length && !views[first].hasRemaining())
+					++first;
+			}
+		} else {
+			for (ByteBuffer view : views) {
+				while (view.hasRemaining()) {
+					dest.write(view);
+				}
+			}
 		}
 		return length;
-		//return cbb.getAvailable();
 	}
     
     
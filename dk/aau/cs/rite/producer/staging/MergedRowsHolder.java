@@ -0,0 +1,140 @@
+/*
+ *
+ * Copyright (c) 2011, Xiufeng Liu (xiliu@cs.aau.dk) and the eGovMon Consortium
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ *
+ *
+ */
+
+package dk.aau.cs.rite.producer.staging;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+
+import dk.aau.cs.rite.common.BatchHeader;
+
+/**
+ * The rows of several holders as one, in the order the holders were added:
+ * the rows are sent from the holders where they are, without being copied.
+ * Used for the holders that the loader threads of a table fill in parallel
+ * (see <code>StagingTupleStore</code>), which are added in the order of their
+ * row IDs.
+ */
+public class MergedRowsHolder implements IReadableHolder {
+
+	private final List<IHolder> holders = new ArrayList<IHolder>();
+	private final Queue<IHolder> free; // Gets the holders when they are cleared, if not null.
+	private BatchHeader batch; // Of all holders, made when it is asked for.
+
+	public MergedRowsHolder(Queue<IHolder> free) {
+		this.free = free;
+	}
+
+	/** Adds a holder whose rows have larger IDs than the rows added before. */
+	public void add(IHolder holder) {
+		holders.add(holder);
+		batch = null;
+	}
+
+	/**
+	 * Returns the rows of the holders whose rows have IDs from first to end
+	 * (exclusive), e.g., in a lease of row IDs; a holder has the rows of one
+	 * block of IDs. The holders stay in this one, which clears them.
+	 */
+	public MergedRowsHolder range(int first, int end) {
+		MergedRowsHolder range = new MergedRowsHolder(null);
+		for (IHolder holder : holders) {
+			int id = holder.getBatchHeader().getFirstRowID();
+			if (holder.size() > 0 && id >= first && id < end)
+				range.add(holder);
+		}
+		return range;
+	}
+
+	@Override
+	public long transferTo(WritableByteChannel dest) throws IOException {
+		long length = 0;
+		for (IHolder holder : holders) {
+			length += holder.transferTo(dest);
+		}
+		return length;
+	}
+
+	/** Clears the holders, and gives them to the free queue. */
+	@Override
+	public void clear() throws IOException {
+		for (IHolder holder : holders) {
+			holder.clear();
+			if (free != null)
+				free.offer(holder);
+		}
+		holders.clear();
+		batch = null;
+	}
+
+	@Override
+	public int size() {
+		int size = 0;
+		for (IHolder holder : holders) {
+			size += holder.size();
+		}
+		return size;
+	}
+
+	@Override
+	public BatchHeader getBatchHeader() {
+		if (batch == null) {
+			batch = new BatchHeader(size());
+			for (IHolder holder : holders) {
+				batch.append(holder.getBatchHeader());
+			}
+		}
+		return batch;
+	}
+
+	@Override
+	public ReadableByteChannel getRows() throws IOException {
+		final List<ReadableByteChannel> channels = new ArrayList<ReadableByteChannel>(holders.size());
+		for (IHolder holder : holders) {
+			channels.add(holder.getRows());
+		}
+		return new ReadableByteChannel() {
+			int next = 0;
+
+			@Override
+			public int read(ByteBuffer dst) throws IOException {
+				while (next < channels.size()) {
+					int read = channels.get(next).read(dst);
+					if (read != -1)
+						return read;
+					++next;
+				}
+				return -1;
+			}
+
+			@Override
+			public boolean isOpen() {
+				return true;
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+	}
+}
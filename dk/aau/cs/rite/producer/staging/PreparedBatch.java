@@ -0,0 +1,169 @@
+/*
+ *
+ * Copyright (c) 2011, Xiufeng Liu (xiliu@cs.aau.dk) and the eGovMon Consortium
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ *
+ *
+ */
+
+package dk.aau.cs.rite.producer.staging;
+
+import java.sql.Types;
+import java.util.Arrays;
+
+/**
+ * The rows added to the batch of a prepared insert (addBatch), kept by
+ * column: an array of unboxed values and an array of null flags per column.
+ * The rows are encoded by <code>IHolder.putRows</code> in one loop when the
+ * batch is executed, and get their row IDs as one range.
+ */
+public class PreparedBatch {
+
+	private final int[] types; // Of the columns, without the row ID.
+	private final boolean[][] isSet;
+	private final long[][] longs; // Only for the BIGINT and INTEGER columns.
+	private final double[][] doubles; // Only for the DOUBLE, FLOAT, NUMERIC and REAL columns.
+	private final Object[][] objects; // Only for the other columns.
+	private int size = 0;
+	private int capacity;
+
+	public PreparedBatch(Catalog catalog) {
+		this(catalog, 256);
+	}
+
+	public PreparedBatch(Catalog catalog, int capacity) {
+		int[] typeArray = catalog.getTypeArray();
+		int numOfCols = typeArray.length - 1; // The last one is the row ID.
+		this.types = Arrays.copyOf(typeArray, numOfCols);
+		this.capacity = Math.max(1, capacity);
+		this.isSet = new boolean[numOfCols][];
+		this.longs = new long[numOfCols][];
+		this.doubles = new double[numOfCols][];
+		this.objects = new Object[numOfCols][];
+		for (int col = 0; col < numOfCols; ++col) {
+			isSet[col] = new boolean[this.capacity];
+			switch (types[col]) {
+			case Types.BIGINT:
+			case Types.INTEGER:
+				longs[col] = new long[this.capacity];
+				break;
+			case Types.DOUBLE:
+			case Types.FLOAT:
+			case Types.NUMERIC:
+			case Types.REAL:
+				doubles[col] = new double[this.capacity];
+				break;
+			default:
+				objects[col] = new Object[this.capacity];
+			}
+		}
+	}
+
+	/** Adds the current parameters of the row, which keeps them. */
+	public void add(PreparedRow row) {
+		if (size == capacity)
+			grow();
+		for (int col = 0; col < types.length; ++col) {
+			boolean set = !row.isNull(col);
+			isSet[col][size] = set;
+			if (longs[col] != null) {
+				longs[col][size] = row.getLong(col);
+			} else if (doubles[col] != null) {
+				doubles[col][size] = row.getDouble(col);
+			} else {
+				objects[col][size] = set ? row.getObject(col) : null;
+			}
+		}
+		++size;
+	}
+
+	private void grow() {
+		capacity *= 2;
+		for (int col = 0; col < types.length; ++col) {
+			isSet[col] = Arrays.copyOf(isSet[col], capacity);
+			if (longs[col] != null) {
+				longs[col] = Arrays.copyOf(longs[col], capacity);
+			} else if (doubles[col] != null) {
+				doubles[col] = Arrays.copyOf(doubles[col], capacity);
+			} else {
+				objects[col] = Arrays.copyOf(objects[col], capacity);
+			}
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public int getNumOfColumns() {
+		return types.length;
+	}
+
+	public int getType(int col) {
+		return types[col];
+	}
+
+	public boolean isNull(int row, int col) {
+		return !isSet[col][row];
+	}
+
+	public long getLong(int row, int col) {
+		return longs[col][row];
+	}
+
+	public double getDouble(int row, int col) {
+		return doubles[col][row];
+	}
+
+	public Object getObject(int row, int col) {
+		return objects[col][row];
+	}
+
+	/** Returns a row as values for <code>IHolder.putRow(Object[])</code>, with the row ID last. */
+	public Object[] toValues(int row, int rowID) {
+		Object[] values = new Object[types.length + 1];
+		for (int col = 0; col < types.length; ++col) {
+			if (!isSet[col][row])
+				continue;
+			switch (types[col]) {
+			case Types.BIGINT:
+				values[col] = longs[col][row];
+				break;
+			case Types.INTEGER:
+				values[col] = (int) longs[col][row];
+				break;
+			case Types.REAL:
+				values[col] = (float) doubles[col][row];
+				break;
+			case Types.DOUBLE:
+			case Types.FLOAT:
+			case Types.NUMERIC:
+				values[col] = doubles[col][row];
+				break;
+			default:
+				values[col] = objects[col][row];
+			}
+		}
+		values[types.length] = rowID;
+		return values;
+	}
+
+	/** Drops the rows, and the references to their strings and dates. */
+	public void clear() {
+		for (int col = 0; col < types.length; ++col) {
+			if (objects[col] != null)
+				Arrays.fill(objects[col], 0, size, null);
+		}
+		size = 0;
+	}
+}
@@ -0,0 +1,141 @@
+/*
+ *
+ * Copyright (c) 2011, Xiufeng Liu (xiliu@cs.aau.dk) and the eGovMon Consortium
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ *
+ *
+ */
+
+package dk.aau.cs.rite.producer.staging;
+
+import java.sql.Types;
+
+/**
+ * The parameters of a prepared insert, kept by the column they go to. The
+ * mapping from the parameters to the columns is made once, when the
+ * statement is prepared, and the values are kept unboxed, so that a row is
+ * encoded by <code>IHolder.putRow(PreparedRow, int)</code> without any map or
+ * Object array. A column that is not given by a parameter is null.
+ */
+public class PreparedRow {
+
+	private final int[] types; // Of the columns, without the row ID.
+	private final int[] columnOfParam; // Indexed by the parameter index (from 1).
+	private final boolean[] isSet;
+	private final long[] longs; // BIGINT and INTEGER.
+	private final double[] doubles; // DOUBLE, FLOAT, NUMERIC and REAL.
+	private final Object[] objects; // VARCHAR, LONGVARCHAR and DATE.
+
+	public PreparedRow(Catalog catalog, String[] params) {
+		int[] typeArray = catalog.getTypeArray();
+		int numOfCols = typeArray.length - 1; // The last one is the row ID.
+		this.types = new int[numOfCols];
+		System.arraycopy(typeArray, 0, types, 0, numOfCols);
+		this.columnOfParam = new int[params == null ? 1 : params.length];
+		for (int i = 1; i < columnOfParam.length; ++i) {
+			columnOfParam[i] = catalog.indexOf(params[i]);
+			if (columnOfParam[i] < 0)
+				throw new IllegalArgumentException("Unknown column: " + params[i]);
+		}
+		this.isSet = new boolean[numOfCols];
+		this.longs = new long[numOfCols];
+		this.doubles = new double[numOfCols];
+		this.objects = new Object[numOfCols];
+	}
+
+	public int getNumOfColumns() {
+		return types.length;
+	}
+
+	public int getType(int col) {
+		return types[col];
+	}
+
+	public boolean isNull(int col) {
+		return !isSet[col];
+	}
+
+	public long getLong(int col) {
+		return longs[col];
+	}
+
+	public double getDouble(int col) {
+		return doubles[col];
+	}
+
+	public Object getObject(int col) {
+		return objects[col];
+	}
+
+	public void setLong(int paramIndex, long value) {
+		int col = columnOfParam[paramIndex];
+		longs[col] = value;
+		isSet[col] = true;
+	}
+
+	public void setDouble(int paramIndex, double value) {
+		int col = columnOfParam[paramIndex];
+		doubles[col] = value;
+		isSet[col] = true;
+	}
+
+	/** Sets a string or a date; null sets the column to null. */
+	public void setObject(int paramIndex, Object value) {
+		int col = columnOfParam[paramIndex];
+		objects[col] = value;
+		isSet[col] = value != null;
+	}
+
+	public void setNull(int paramIndex) {
+		int col = columnOfParam[paramIndex];
+		objects[col] = null;
+		isSet[col] = false;
+	}
+
+	/** Sets all columns to null. */
+	public void clear() {
+		for (int col = 0; col < types.length; ++col) {
+			isSet[col] = false;
+			objects[col] = null;
+		}
+	}
+
+	/** Returns the row as values for <code>IHolder.putRow(Object[])</code>, with the row ID last. */
+	public Object[] toValues(int rowID) {
+		Object[] values = new Object[types.length + 1];
+		for (int col = 0; col < types.length; ++col) {
+			if (!isSet[col])
+				continue;
+			switch (types[col]) {
+			case Types.BIGINT:
+				values[col] = longs[col];
+				break;
+			case Types.INTEGER:
+				values[col] = (int) longs[col];
+				break;
+			case Types.REAL:
+				values[col] = (float) doubles[col];
+				break;
+			case Types.DOUBLE:
+			case Types.FLOAT:
+			case Types.NUMERIC:
+				values[col] = doubles[col];
+				break;
+			default:
+				values[col] = objects[col];
+			}
+		}
+		values[types.length] = rowID;
+		return values;
+	}
+}
@@ -21,10 +21,16 @@ package dk.aau.cs.rite.producer.staging;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
 
+import dk.aau.cs.rite.common.BatchHeader;
+import dk.aau.cs.rite.common.BlockInputChannel;
+import dk.aau.cs.rite.common.BlockOutputChannel;
+import dk.aau.cs.rite.common.Compression;
+
 
 
 /**
@@ -45,40 +51,136 @@ public class RowsArchive  {
 	protected long lastTransferedPosition = 0;
 	public long time = -1;
 	public String name;
+	protected BlockOutputChannel blocks; // Null if the rows are not compressed in the file.
 	
 
 	/** Creates a new instance of RowArchive */
 	public RowsArchive() {
+		this(Compression.NONE, Compression.DEFAULT_THRESHOLD);
+	}
+
+	/** The archived rows are kept as compressed blocks in the file, unless compression is NONE. */
+	public RowsArchive(int compression, int threshold) {
 		try {
 			file = File.createTempFile("rite-a", null);
 			file.deleteOnExit();
 			RandomAccessFile data = new RandomAccessFile(file, "rw");
 			fc = data.getChannel();
+			if (compression != Compression.NONE)
+				blocks = new BlockOutputChannel(fc, compression, threshold);
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
 	}
 
+	public boolean isCompressed() {
+		return blocks != null;
+	}
+
 	/**
 	 * Adds the rows from <code>rh</code> to this archive. <code>rh</code> may
 	 * not be modified while this is done. This method does NOT clear
 	 * <code>rh</code> afterwards.
 	 */
-	public ArchiveLog archiveRows(long archiveTime, IHolder rowsHolder) throws IOException {
+	public ArchiveLog archiveRows(long archiveTime, IReadableHolder rowsHolder) throws IOException {
 		long position = fc.position();
 		int rowCountOfRowsHolder = rowsHolder.size(); // The number of rows 
 		rowCount += rowCountOfRowsHolder;
-		long length = rowsHolder.transferTo(fc);
-		return new ArchiveLog(archiveTime, position, length, rowCountOfRowsHolder);
+		BatchHeader batch = rowsHolder.getBatchHeader().copy(); // The holder is reused.
+		if (blocks != null) {
+			rowsHolder.transferTo(blocks);
+			blocks.flush(); // The blocks of a log do not span into the next.
+		} else {
+			rowsHolder.transferTo(fc);
+		}
+		long length = fc.position() - position; // The length in the file.
+		return new ArchiveLog(archiveTime, position, length, rowCountOfRowsHolder, batch);
 	}
 	
 	
 	
 	
+	/** Transfers the next count bytes of the file to the server as rows, i.e., decompressed. */
 	public void readTo(WritableByteChannel dest, long count) throws IOException{// Transfer data from archive file to the server.
-		fc.transferTo(lastTransferedPosition, count, dest);
+		if (blocks != null) {
+			BlockInputChannel in = new BlockInputChannel(new RegionChannel(lastTransferedPosition, count));
+			try {
+				ByteBuffer buf = ByteBuffer.allocate(Compression.BLOCK_SIZE);
+				while (in.read(buf) != -1) {
+					buf.flip();
+					while (buf.hasRemaining()) {
+						dest.write(buf);
+					}
+					buf.clear();
+				}
+			} finally {
+				in.close();
+			}
+		} else {
+			transferFully(dest, lastTransferedPosition, count);
+		}
+		this.lastTransferedPosition += count;
+	}
+
+	/**
+	 * Transfers the next count bytes of the file into a compressed stream. The
+	 * compressed blocks in the file are sent as they are.
+	 */
+	public void readTo(BlockOutputChannel dest, long count) throws IOException {
+		if (blocks != null) {
+			dest.flush();
+			transferFully(dest.getChannel(), lastTransferedPosition, count);
+		} else {
+			transferFully(dest, lastTransferedPosition, count);
+		}
 		this.lastTransferedPosition += count;
 	}
+
+	private void transferFully(WritableByteChannel dest, long position, long count) throws IOException {
+		while (count > 0) {
+			long n = fc.transferTo(position, count, dest);
+			position += n;
+			count -= n;
+		}
+	}
+
+	/** Reads a part of the file. */
+	private class RegionChannel implements ReadableByteChannel {
+		private long position;
+		private final long end;
+
+		RegionChannel(long position, long count) {
+			this.position = position;
+			this.end = position + count;
+		}
+
+		@Override
+		public int read(ByteBuffer dst) throws IOException {
+			if (position >= end)
+				return -1;
+			ByteBuffer part = dst;
+			if (dst.remaining() > end - position) {
+				part = dst.duplicate();
+				part.limit(part.position() + (int) (end - position));
+			}
+			int n = fc.read(part, position);
+			if (n > 0) {
+				position += n;
+				if (part != dst)
+					dst.position(part.position());
+			}
+			return n;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return fc.isOpen();
+		}
+
+		@Override
+		public void close() {
+		}
+	}
 	
 	
 	public int size() {
@@ -92,6 +194,8 @@ public class RowsArchive  {
 	 */
 	public void delete() {
 		try {
+			if (blocks != null)
+				blocks.close();
 			fc.close();
 			file.delete();
 		} catch (IOException e) {
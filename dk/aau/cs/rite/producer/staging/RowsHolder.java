@@ -35,6 +35,8 @@ import java.sql.Date;
 import java.sql.Types;
 import java.util.Iterator;
 
+import dk.aau.cs.rite.common.BatchHeader;
+
 
  
 /**
@@ -59,6 +61,7 @@ public class RowsHolder implements Iterator<Object[]>, Iterable<Object[]>, IHold
     private Object[] retVals;
     private Charset coder = Charset.forName("UTF-8");
     private int rowCount = 0;
+    private BatchHeader batch = new BatchHeader(); // The offsets and IDs of the rows.
     public static final int READ = 1;
     public static final int WRITE = 2;
     
@@ -100,7 +103,7 @@ public class RowsHolder implements Iterator<Object[]>, Iterable<Object[]>, IHold
     public void putRow(Object[] values) throws IOException {
         if(mode != WRITE)
             prepareWrite();
-        
+        long start = fc.position() + buff.position();
         for(int i = 0; i < types.length; i++) {
             ensureForWrite(1); // For null flag
             if(values[i] == null) {
@@ -157,6 +160,24 @@ public class RowsHolder implements Iterator<Object[]>, Iterable<Object[]>, IHold
             }
         }
         rowCount++;
+        batch.addRow((int) (fc.position() + buff.position() - start), (Integer) values[types.length - 1]); // The last column is the row ID.
+    }
+
+    @Override
+    public void putRow(PreparedRow row, int rowID) throws IOException {
+        putRow(row.toValues(rowID));
+    }
+
+    @Override
+    public void putRows(PreparedBatch rows, int firstRowID) throws IOException {
+        for (int r = 0; r < rows.size(); ++r) {
+            putRow(rows.toValues(r, firstRowID + r));
+        }
+    }
+
+    @Override
+    public BatchHeader getBatchHeader() {
+        return batch;
     }
 
     /** Returns the next row as an Object array or <code>null</code> 
@@ -320,6 +341,7 @@ public class RowsHolder implements Iterator<Object[]>, Iterable<Object[]>, IHold
         fc.truncate(0);
         fc.position(0); // Needed because of Java bug 6191269
         rowCount = 0;
+        batch.clear();
         lastCnt = -1; // Indicate that we have not read anything
     }
     
@@ -366,6 +388,15 @@ public class RowsHolder implements Iterator<Object[]>, Iterable<Object[]>, IHold
         return;
     }
         
+    /** Returns the file of the rows, positioned at the first row.*/
+    @Override
+    public ReadableByteChannel getRows() throws IOException {
+        if(mode == WRITE)
+            force(); // Write all data to fc
+        fc.position(0);
+        return fc;
+    }
+    
     /** Transfers all this RowHandler's byte data to the given ByteChannel.*/
     @Override
     public long transferTo(WritableByteChannel dest) throws IOException {        
@@ -0,0 +1,60 @@
+/*
+ *
+ * Copyright (c) 2011, Xiufeng Liu (xiliu@cs.aau.dk) and the eGovMon Consortium
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ *
+ *
+ */
+
+package dk.aau.cs.rite.producer.staging;
+
+/**
+ * The rows and upserts that a table had staged when it was committed
+ * asynchronously (see <code>TupleStore.detach</code>). The table stages
+ * new rows in other holders while the batch is sent.
+ */
+public class StagedBatch {
+
+	final String tableName;
+	final long commitTime;
+	final IReadableHolder rowsHolder;
+	final UDsHolder udsHolder;
+	final int[] leases; // The leases of the row IDs, see Catalog.cutLeases; null if the IDs are not leased.
+
+	StagedBatch(String tableName, long commitTime, IReadableHolder rowsHolder, UDsHolder udsHolder, int[] leases) {
+		this.tableName = tableName;
+		this.commitTime = commitTime;
+		this.rowsHolder = rowsHolder;
+		this.udsHolder = udsHolder;
+		this.leases = leases;
+	}
+
+	public long getCommitTime() {
+		return commitTime;
+	}
+
+	/** Returns the leases of the row IDs as pairs of first and end (exclusive) IDs, or null if they are not leased. */
+	public int[] getLeases() {
+		return leases;
+	}
+
+	/** Returns whether there is nothing to commit, i.e., no rows, upserts or leases to close. */
+	public boolean isEmpty() {
+		return rowsHolder.size() == 0 && udsHolder.size() == 0 && (leases == null || leases.length == 0);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s at %d (%d rows, %d upserts)", tableName, commitTime, rowsHolder.size(), udsHolder.size());
+	}
+}
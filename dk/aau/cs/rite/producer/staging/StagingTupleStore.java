@@ -19,10 +19,18 @@
 package dk.aau.cs.rite.producer.staging;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Queue;
 import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import dk.aau.cs.rite.common.RiteException;
 import dk.aau.cs.rite.sqlparser.ParseInfo;
@@ -31,24 +39,147 @@ import dk.aau.cs.rite.tuplestore.ud.Execution;
 import dk.aau.cs.rite.tuplestore.ud.Expression;
 
 
+/**
+ * Stages the rows and upserts of a table until they are committed. Each
+ * loader thread inserts into a lane of its own: a holder and a block of row
+ * IDs taken from the catalog, so the threads only share the read lock of
+ * <code>staging</code>. The other methods are synchronized; when they need
+ * the rows, they take the write lock and seal the lanes: the holders of the
+ * lanes are added to rowsHolder in the order of their IDs, and the rest of
+ * each block is given back, so that the rows inserted afterwards get larger
+ * IDs than the rows and upserts before them.
+ */
 public class StagingTupleStore implements TupleStore {
+	static final int BLOCK_SIZE = 4096; // The row IDs taken by a lane at a time.
+	
 	Catalog catalog;
 	ITransfer transfer;
-	IHolder rowsHolder;
+	MergedRowsHolder rowsHolder; // The sealed rows.
 	UDsHolder udsHolder;
+	MergedRowsHolder spareRowsHolder; // The holders of the last batch sent by commit(StagedBatch), for the next detach().
+	UDsHolder spareUDsHolder;
 	
-	Map<String, Object> tmpMap = new HashMap<String, Object>();
+	final ReentrantReadWriteLock staging = new ReentrantReadWriteLock();
+	final List<Lane> lanes = new CopyOnWriteArrayList<Lane>(); // The lanes used since the last seal().
+	final ThreadLocal<Lane> lane = new ThreadLocal<Lane>() {
+		@Override
+		protected Lane initialValue() {
+			return new Lane();
+		}
+	};
+	final Queue<IHolder> full = new ConcurrentLinkedQueue<IHolder>(); // The holders of the used up blocks.
+	final Queue<IHolder> free = new ConcurrentLinkedQueue<IHolder>(); // Cleared holders for the lanes.
 
 	public StagingTupleStore(ITransfer transfer, Catalog catalog) throws IOException {
 		this.catalog = catalog;
 		this.transfer = transfer;
-		this.rowsHolder = new MemRowsHolder(catalog.getTypeArray()); // Create re-usable rowsHolder.
+		this.rowsHolder = new MergedRowsHolder(free);
 		this.udsHolder = new UDsHolder(catalog);
 	}
 
+	/** The holder and the block of row IDs of a loader thread; only used by the thread under the read lock, or under the write lock. */
+	class Lane {
+		IHolder holder; // Holds the rows with IDs of the current block only.
+		int next, end; // The IDs left in the current block.
+		boolean listed; // If it is in lanes.
+		Map<String, Object> tmpMap = new HashMap<String, Object>();
+
+		/** Returns the first of n consecutive row IDs, for rows that go into holder(). */
+		int reserve(int n) throws RiteException {
+			if (end - next < n) {
+				if (holder != null && holder.size() > 0) {
+					full.offer(holder);
+					holder = null;
+				}
+				catalog.releaseSeqs(next, end);
+				next = catalog.getNextSeqs(Math.max(n, BLOCK_SIZE));
+				end = next + Math.max(n, BLOCK_SIZE);
+			}
+			int first = next;
+			next += n;
+			return first;
+		}
+
+		IHolder holder() throws IOException {
+			if (holder == null) {
+				holder = free.poll();
+				if (holder == null)
+					holder = new MemRowsHolder(catalog.getTypeArray());
+			}
+			return holder;
+		}
+
+		/** Adds the rows of the lane to sealed, and ends the block. */
+		void seal(List<IHolder> sealed) {
+			if (holder != null && holder.size() > 0) {
+				sealed.add(holder);
+				holder = null;
+			}
+			catalog.releaseSeqs(next, end);
+			next = end = 0;
+		}
+	}
+
+	/**
+	 * Returns the lane of the calling thread, called under the read lock. A
+	 * lane is listed again when it is used after seal(), so the lanes of the
+	 * threads that have stopped loading are not kept.
+	 */
+	private Lane lane() {
+		Lane lane = this.lane.get();
+		if (!lane.listed) {
+			lanes.add(lane);
+			lane.listed = true;
+		}
+		return lane;
+	}
+
+	/** Adds the rows of all lanes to rowsHolder, and unlists the lanes, which are empty then. Called with the monitor held. */
+	private void seal() {
+		seal(false);
+	}
+
+	/**
+	 * As above; if cut, also ends the leases of the row IDs used so far, see
+	 * Catalog.cutLeases, and returns them.
+	 */
+	private int[] seal(boolean cut) {
+		Lock lock = staging.writeLock();
+		lock.lock();
+		try {
+			List<IHolder> sealed = new ArrayList<IHolder>();
+			IHolder holder;
+			while ((holder = full.poll()) != null) {
+				sealed.add(holder);
+			}
+			for (Lane lane : lanes) {
+				lane.seal(sealed);
+				lane.listed = false;
+			}
+			lanes.clear();
+			Collections.sort(sealed, new Comparator<IHolder>() { // The blocks do not overlap.
+				@Override
+				public int compare(IHolder h1, IHolder h2) {
+					int id1 = h1.getBatchHeader().getFirstRowID(), id2 = h2.getBatchHeader().getFirstRowID();
+					return id1 < id2 ? -1 : (id1 == id2 ? 0 : 1);
+				}
+			});
+			for (IHolder h : sealed) {
+				rowsHolder.add(h);
+			}
+			return cut ? catalog.cutLeases() : null; // No ID is taken meanwhile.
+		} finally {
+			lock.unlock();
+		}
+	}
+
 	@Override
-	synchronized public void insert(ParseInfo row) throws RiteException {
+	public void insert(ParseInfo row) throws RiteException {
+		Lock lock = staging.readLock();
+		lock.lock();
 		try {
+			Lane lane = this.lane();
+			Map<String, Object> tmpMap = lane.tmpMap;
 			tmpMap.clear();
 			String[]paramCols = row.getParameters();
 			Object[]paramVals = row.getParamValues();
@@ -60,16 +191,51 @@ public class StagingTupleStore implements TupleStore {
 			for (int i = 0; i < cols.size(); ++i) {
 				vals[i] = tmpMap.get(cols.get(i));
 			}
-			vals[cols.size()] = catalog.getNextSeq(); // The row ID.
-			rowsHolder.putRow(vals);
+			vals[cols.size()] = lane.reserve(1); // The row ID.
+			lane.holder().putRow(vals);
 		} catch (IOException e) {
 			throw new RiteException(e);
+		} finally {
+			lock.unlock();
 		}
 	}
 	
 
+	@Override
+	public void insert(PreparedRow row) throws RiteException {
+		Lock lock = staging.readLock();
+		lock.lock();
+		try {
+			Lane lane = this.lane();
+			int rowID = lane.reserve(1);
+			lane.holder().putRow(row, rowID);
+		} catch (IOException e) {
+			throw new RiteException(e);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void insert(PreparedBatch rows) throws RiteException {
+		if (rows.size() == 0)
+			return;
+		Lock lock = staging.readLock();
+		lock.lock();
+		try {
+			Lane lane = this.lane();
+			int firstRowID = lane.reserve(rows.size());
+			lane.holder().putRows(rows, firstRowID);
+		} catch (IOException e) {
+			throw new RiteException(e);
+		} finally {
+			lock.unlock();
+		}
+	}
+
 	@Override
 	synchronized public void updateAndDelete(ParseInfo paramInfo) throws RiteException {
+		seal(); // The rows inserted after it get larger IDs.
 		String[] paramCols = paramInfo.getParameters();
 		Object[] paramVals = paramInfo.getParamValues();
 		List<Expression> exps = paramInfo.getExps();
@@ -136,13 +302,16 @@ public class StagingTupleStore implements TupleStore {
 
 	@Override
 	synchronized public void commit(boolean materialize) throws RiteException {
+		seal();
 		try {
-			if (this.transfer.isConnected()){
-				transfer.transfer(System.currentTimeMillis(), rowsHolder, udsHolder);
-				rowsHolder.clear();
-				udsHolder.clear();
-				if (materialize) {
-					this.transfer.materialize();
+			synchronized (transfer) { // Batches of detach() may be in flight.
+				if (this.transfer.isConnected()){
+					transfer.transfer(System.currentTimeMillis(), rowsHolder, udsHolder);
+					rowsHolder.clear();
+					udsHolder.clear();
+					if (materialize) {
+						this.transfer.materialize();
+					}
 				}
 			}
 		} catch (IOException e) {
@@ -150,6 +319,40 @@ public class StagingTupleStore implements TupleStore {
 		}
 	}
 
+	@Override
+	synchronized public StagedBatch detach(long commitTime) throws RiteException {
+		int[] leases = seal(true);
+		StagedBatch batch = new StagedBatch(catalog.getTableName(), commitTime, rowsHolder, udsHolder, leases);
+		rowsHolder = spareRowsHolder != null ? spareRowsHolder : new MergedRowsHolder(free);
+		udsHolder = spareUDsHolder != null ? spareUDsHolder : new UDsHolder(catalog);
+		spareRowsHolder = null;
+		spareUDsHolder = null;
+		return batch;
+	}
+
+	/** Sends the batch without locking this table, so that rows can be staged meanwhile. */
+	@Override
+	public void commit(StagedBatch batch, boolean materialize) throws RiteException {
+		try {
+			synchronized (transfer) {
+				if (this.transfer.isConnected()){
+					transfer.transfer(batch.commitTime, batch.rowsHolder, batch.udsHolder);
+					if (materialize) {
+						this.transfer.materialize();
+					}
+				}
+			}
+			batch.rowsHolder.clear();
+			batch.udsHolder.clear();
+			synchronized (this) {
+				spareRowsHolder = (MergedRowsHolder) batch.rowsHolder;
+				spareUDsHolder = batch.udsHolder;
+			}
+		} catch (IOException e) {
+			throw new RiteException(e);
+		}
+	}
+
 	@Override
 	public Catalog getCatalog() {
 		return catalog;
@@ -162,8 +365,10 @@ public class StagingTupleStore implements TupleStore {
 		return false;
 	}
 
+	/** Returns the rows inserted so far; the rows inserted afterwards are added by the next call, or by a commit. */
 	@Override
-	public IHolder getRowsHolder() {
+	synchronized public IReadableHolder getRowsHolder() {
+		seal();
 		return this.rowsHolder;
 	}
 
@@ -30,6 +30,10 @@ public interface TupleStore {
 
 	void insert(ParseInfo row) throws RiteException;
 
+	void insert(PreparedRow row) throws RiteException; // Gives the row the next row ID.
+
+	void insert(PreparedBatch rows) throws RiteException; // Gives the rows the next row IDs.
+
 	void updateAndDelete(ParseInfo paramInfo)	throws RiteException;
 
 	void rollback() throws RiteException;
@@ -40,9 +44,15 @@ public interface TupleStore {
 
 	void commit(boolean materialize) throws RiteException;
 
+	/** Swaps the staged rows and upserts for empty holders, and returns them to be committed at the given time. */
+	StagedBatch detach(long commitTime) throws RiteException;
+
+	/** Sends a batch of detach(); the batches must be sent in the order they were detached. */
+	void commit(StagedBatch batch, boolean materialize) throws RiteException;
+
 	void close() throws RiteException;
 	
-	IHolder getRowsHolder();
+	IReadableHolder getRowsHolder();
 	UDsHolder getUDsHolder();
 
 	Catalog getCatalog();
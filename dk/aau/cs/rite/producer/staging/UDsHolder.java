@@ -54,6 +54,17 @@ public class UDsHolder implements  Visitor{
 		ops.add(op);
 	}
 	
+	/** Returns the upserts with IDs from first to end (exclusive), e.g., in a lease of row IDs. */
+	public UDsHolder range(int first, int end) {
+		UDsHolder range = new UDsHolder(catalog);
+		for (Execute op : ops) {
+			int id = ((Execution) op).getID();
+			if (id >= first && id < end)
+				range.add(op);
+		}
+		return range;
+	}
+	
 
 	
 
@@ -0,0 +1,49 @@
+/*
+ *
+ * Copyright (c) 2011, Xiufeng Liu (xiliu@cs.aau.dk) and the eGovMon Consortium
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ *
+ *
+ */
+
+package dk.aau.cs.rite.server;
+
+import java.io.IOException;
+import java.nio.channels.ServerSocketChannel;
+
+/**
+ * Accepts the connections on a server socket, and hands them to a reactor.
+ * It stops when the server socket is closed.
+ */
+class Acceptor implements Runnable {
+	private final ServerSocketChannel server;
+	private final ServerReactor reactor;
+
+	Acceptor(ServerSocketChannel server, ServerReactor reactor) {
+		this.server = server;
+		this.reactor = reactor;
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (server.isOpen()) {
+				reactor.register(server.accept());
+			}
+		} catch (IOException e) {
+			if (server.isOpen()) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
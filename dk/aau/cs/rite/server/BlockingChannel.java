@@ -0,0 +1,117 @@
+/*
+ *
+ * Copyright (c) 2011, Xiufeng Liu (xiliu@cs.aau.dk) and the eGovMon Consortium
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ *
+ *
+ */
+
+package dk.aau.cs.rite.server;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Gives a worker thread blocking semantics on top of a non-blocking
+ * <code>SocketChannel</code> that is owned by a <code>ServerReactor</code>.
+ * The command handlers in <code>ServerThread</code> read and write their
+ * payloads with the usual loops of <code>Utils</code>; when the socket has no
+ * data (or no room) yet, the calling thread parks on a temporary selector
+ * borrowed from a small pool instead of spinning.
+ * <p>
+ * A client that sends (or takes) nothing for STALL_TIMEOUT in the middle of a
+ * command fails it, so that a stalled client does not hold a worker.
+ */
+public class BlockingChannel implements ByteChannel {
+
+	private static final ConcurrentLinkedQueue<Selector> selectors = new ConcurrentLinkedQueue<Selector>();
+
+	public static final long STALL_TIMEOUT = 30000; // ms
+
+	private final SocketChannel channel;
+	private volatile long timeout = STALL_TIMEOUT;
+
+	public BlockingChannel(SocketChannel channel) {
+		this.channel = channel;
+	}
+
+	/** Sets how long a read or write may wait, in ms; 0 waits forever, e.g., between the commands of a session. */
+	public void setTimeout(long timeout) {
+		this.timeout = timeout;
+	}
+
+	public SocketChannel getChannel() {
+		return channel;
+	}
+
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		int read = channel.read(dst);
+		while (read == 0 && dst.hasRemaining()) {
+			await(channel, SelectionKey.OP_READ, timeout);
+			read = channel.read(dst);
+		}
+		return read;
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		int written = 0;
+		while (src.hasRemaining()) {
+			int n = channel.write(src);
+			if (n == 0) {
+				await(channel, SelectionKey.OP_WRITE, timeout);
+			}
+			written += n;
+		}
+		return written;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return channel.isOpen();
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	private static void await(SelectableChannel channel, int ops, long timeout) throws IOException {
+		Selector selector = selectors.poll();
+		if (selector == null) {
+			selector = Selector.open();
+		}
+		try {
+			SelectionKey key = channel.register(selector, ops);
+			long deadline = System.currentTimeMillis() + timeout;
+			boolean ready = selector.select(timeout) > 0;
+			while (!ready && timeout > 0 && System.currentTimeMillis() < deadline) { // Woken up early
+				ready = selector.select(Math.max(1, deadline - System.currentTimeMillis())) > 0;
+			}
+			key.cancel();
+			selector.selectNow(); // Flush the cancelled key so that the selector can be reused.
+			if (!ready && timeout > 0)
+				throw new SocketTimeoutException("The client stalled for " + timeout + " ms");
+		} finally {
+			selectors.offer(selector);
+		}
+	}
+}
@@ -0,0 +1,125 @@
+/*
+ *
+ * Copyright (c) 2011, Xiufeng Liu (xiliu@cs.aau.dk) and the eGovMon Consortium
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ *
+ *
+ */
+
+package dk.aau.cs.rite.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.logging.Logger;
+
+import dk.aau.cs.rite.common.Transport;
+
+/**
+ * A catalyst that runs in the process of the producer, e.g., for an ETL job in
+ * a single JVM. The producer adds its rows to the tuple stores of the
+ * <code>SharedDataArea</code> directly; the consumers may still connect from
+ * other processes on the port, which are served by a reactor as in
+ * <code>RiTEServer</code>. The producers in a process share the catalyst of a
+ * port until the last of them releases it.
+ */
+public class EmbeddedCatalyst {
+
+	static Logger log = Logger.getLogger(EmbeddedCatalyst.class.getName());
+
+	private static final Map<Integer, EmbeddedCatalyst> catalysts = new HashMap<Integer, EmbeddedCatalyst>();
+
+	private final SharedDataArea sda;
+	private final int port;
+	private ServerSocketChannel channel; // Null if no consumer can connect.
+	private ServerReactor reactor;
+	private int users;
+
+	private EmbeddedCatalyst(String dir, int segmentSize, int port) throws IOException {
+		this.sda = new SharedDataArea(dir, segmentSize * 1024 * 1024);
+		this.port = port;
+		if (port > 0) {
+			try {
+				channel = Transport.listen(new InetSocketAddress(port));
+				reactor = new ServerReactor(PriorityExecutor.getNumberOfCpus() / 2, PriorityExecutor.getWorkerExecutor(), sda);
+			} catch (IOException e) {
+				close();
+				throw e;
+			}
+			Thread t = new Thread(new Acceptor(channel, reactor), "embedded-acceptor-" + port);
+			t.setDaemon(true);
+			t.start();
+		}
+		log.info(String.format("%s: running in process, port=%d%s,segmentSize=%dM",
+				dir == null ? "Mem-based" : "File-based", port, dir == null ? "" : ",dataDir=" + dir, segmentSize));
+	}
+
+	/**
+	 * Starts the catalyst of the port, or returns it if it is running already.
+	 * 
+	 * @param dir
+	 *            The data directory, or null for a memory-based catalyst
+	 * @param segmentSize
+	 *            The segment size in MB
+	 * @param port
+	 *            The port for the consumers, or 0 if they are in the process
+	 */
+	public static synchronized EmbeddedCatalyst start(String dir, int segmentSize, int port) throws IOException {
+		EmbeddedCatalyst catalyst = catalysts.get(port);
+		if (catalyst == null) {
+			catalyst = new EmbeddedCatalyst(dir, segmentSize, port);
+			catalysts.put(port, catalyst);
+		}
+		catalyst.users++;
+		return catalyst;
+	}
+
+	/** Stops the catalyst when the last producer has released it. */
+	public void release() {
+		synchronized (EmbeddedCatalyst.class) {
+			if (--users > 0)
+				return;
+			catalysts.remove(port);
+		}
+		close();
+	}
+
+	private void close() {
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+			}
+		}
+		if (reactor != null) {
+			reactor.shutdown();
+		}
+		sda.clear();
+	}
+
+	public SharedDataArea getSharedDataArea() {
+		return sda;
+	}
+
+	/** Returns the address for the consumers, or null if they cannot connect. */
+	public SocketAddress getAddress() {
+		return channel == null ? null : new InetSocketAddress("localhost", port);
+	}
+
+	public String toString() {
+		return sda.toString();
+	}
+}
@@ -0,0 +1,128 @@
+/*
+ *
+ * Copyright (c) 2011, Xiufeng Liu (xiliu@cs.aau.dk) and the eGovMon Consortium
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ *
+ *
+ */
+
+package dk.aau.cs.rite.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+
+import dk.aau.cs.rite.common.Multiplexer;
+import dk.aau.cs.rite.common.Utils;
+
+/**
+ * Serves a connection which is multiplexed by a producer (PROD_MULTIPLEX).
+ * The thread that runs the session reads the frames; each stream has a
+ * <code>ServerThread</code> of its own, and once a whole command has arrived
+ * on a stream, it is executed by a worker thread, as the
+ * <code>ServerReactor</code> does for a connection. So the commands of
+ * different tables run in parallel, and an idle stream does not occupy any
+ * worker thread. A command whose payload stalls for
+ * BlockingChannel.STALL_TIMEOUT fails, as on a connection.
+ * <p>
+ * The thread that reads the frames is not counted among the workers (see
+ * PriorityExecutor.beginBlocking), i.e., each multiplexed connection has a
+ * thread of its own.
+ */
+class MuxSession implements Multiplexer.Listener {
+
+	private final Multiplexer mux;
+	private final SharedDataArea sda;
+	private final ExecutorService workers;
+	private final ConcurrentHashMap<Integer, StreamTask> tasks = new ConcurrentHashMap<Integer, StreamTask>();
+
+	MuxSession(ByteChannel channel, SharedDataArea sda, ExecutorService workers) {
+		this.mux = new Multiplexer(channel, this);
+		this.sda = sda;
+		this.workers = workers;
+	}
+
+	/** Serves the streams until the connection is closed. */
+	void run() throws IOException {
+		mux.readLoop();
+	}
+
+	@Override
+	public void opened(Multiplexer.Stream stream) {
+		tasks.put(stream.getID(), new StreamTask(stream));
+	}
+
+	@Override
+	public void received(Multiplexer.Stream stream) {
+		StreamTask task = tasks.get(stream.getID());
+		if (task != null)
+			task.poll();
+	}
+
+	class StreamTask implements Runnable {
+		final Multiplexer.Stream stream;
+		final ServerThread handler;
+		final ByteBuffer header = ByteBuffer.allocate(4);
+		boolean running = false;
+		ServerCommand cmd;
+
+		StreamTask(Multiplexer.Stream stream) {
+			this.stream = stream;
+			this.handler = new ServerThread(stream, sda);
+			stream.setReadTimeout(BlockingChannel.STALL_TIMEOUT); // Between the commands, it is not read.
+		}
+
+		/** Starts the next command if it has arrived, or ends the stream if it was closed. */
+		synchronized void poll() {
+			if (running)
+				return;
+			try {
+				if (stream.available() >= 4) {
+					header.clear();
+					Utils.read(stream, 4, header);
+					cmd = ServerThread.toCommand(header.getInt(0));
+					running = true;
+					workers.execute(this);
+				} else if (!stream.isOpen() && stream.available() == 0) {
+					close();
+				}
+			} catch (IOException e) {
+				close();
+			}
+		}
+
+		@Override
+		public void run() { // Executed by a worker thread.
+			boolean keepOpen = false;
+			try {
+				keepOpen = cmd != ServerCommand.PROD_MULTIPLEX && handler.execute(cmd);
+			} finally {
+				synchronized (this) {
+					running = false;
+				}
+				if (keepOpen) {
+					poll();
+				} else {
+					close();
+				}
+			}
+		}
+
+		void close() {
+			tasks.remove(stream.getID(), this);
+			handler.close();
+		}
+	}
+}
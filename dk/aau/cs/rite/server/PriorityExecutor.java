@@ -19,7 +19,9 @@ package dk.aau.cs.rite.server;
 
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
@@ -37,6 +39,14 @@ public class PriorityExecutor {
 
 	private static volatile ExecutorService lowExecutor;
 
+	private static volatile ThreadPoolExecutor workerExecutor;
+
+	private static int maxWorkers = 4 * cpuNb;
+
+	private static int blockedWorkers = 0; // Not counted in maxWorkers, see beginBlocking.
+
+	private static final ThreadLocal<Boolean> isWorker = new ThreadLocal<Boolean>();
+
 
 
 	private PriorityExecutor() {
@@ -72,6 +82,69 @@ public class PriorityExecutor {
 	}
 
 
+	/**
+	 * The workers that execute the commands of the client connections. At most
+	 * maxWorkers commands run at the same time; the others wait in the queue of
+	 * the pool. Meanwhile their connections are not read (the reactor re-arms a
+	 * connection only when its command is done), so a client that sends faster
+	 * than the workers keep up is held back by TCP flow control.
+	 * <p>
+	 * A worker that waits for another client, e.g., a query waiting for the
+	 * flush of a producer, or the thread of a multiplexed connection, is not
+	 * counted while it waits (see beginBlocking), so that the flush still gets
+	 * a thread. A client that stalls in the middle of a command gives its
+	 * worker back after BlockingChannel.STALL_TIMEOUT.
+	 */
+	public static ExecutorService getWorkerExecutor() {
+		if (workerExecutor == null) {
+			synchronized (PriorityExecutor.class) {
+				if (workerExecutor == null) {
+					ThreadPoolExecutor pool = new ThreadPoolExecutor(maxWorkers, maxWorkers, 60L, TimeUnit.SECONDS,
+							new LinkedBlockingQueue<Runnable>(), new WorkerFactory());
+					pool.allowCoreThreadTimeOut(true);
+					workerExecutor = pool;
+				}
+			}
+		}
+
+		return workerExecutor;
+	}
+
+	/** Sets the number of commands that run at the same time; only before the workers are started. */
+	public static synchronized void setMaxWorkers(int max) {
+		if (max < 1)
+			throw new IllegalArgumentException("At least one worker is needed: " + max);
+		if (workerExecutor != null)
+			throw new IllegalStateException("The workers are already started");
+		maxWorkers = max;
+	}
+
+	/**
+	 * Tells that the calling worker is about to wait for another client; a
+	 * worker is added for the time being. Must be followed by endBlocking().
+	 * Does nothing on other threads.
+	 */
+	public static void beginBlocking() {
+		if (isWorker.get() == null)
+			return;
+		synchronized (PriorityExecutor.class) {
+			++blockedWorkers;
+			workerExecutor.setMaximumPoolSize(maxWorkers + blockedWorkers);
+			workerExecutor.setCorePoolSize(maxWorkers + blockedWorkers);
+		}
+	}
+
+	public static void endBlocking() {
+		if (isWorker.get() == null)
+			return;
+		synchronized (PriorityExecutor.class) {
+			--blockedWorkers;
+			workerExecutor.setCorePoolSize(maxWorkers + blockedWorkers);
+			workerExecutor.setMaximumPoolSize(maxWorkers + blockedWorkers);
+		}
+	}
+
+
 	public static int getNumberOfCpus() {
 		return cpuNb;
 	}
@@ -86,6 +159,11 @@ public class PriorityExecutor {
 			logger.info("Shutting down high executors");
 			shutdownAndAwaitTermination(highExecutor);
 		}
+
+		if (workerExecutor != null) {
+			logger.info("Shutting down worker executors");
+			shutdownAndAwaitTermination(workerExecutor);
+		}
 	}
 
 
@@ -181,4 +259,25 @@ public class PriorityExecutor {
 			return "low-thread-" + lowThreadNumber.getAndIncrement();
 		}
 	}
+
+
+	private static class WorkerFactory extends Factory {
+		private final AtomicInteger workerThreadNumber = new AtomicInteger(1);
+
+		@Override
+		public Thread newThread(final Runnable r) {
+			return super.newThread(new Runnable() {
+				@Override
+				public void run() {
+					isWorker.set(Boolean.TRUE);
+					r.run();
+				}
+			});
+		}
+
+		@Override
+		protected String getThreadName() {
+			return "worker-thread-" + workerThreadNumber.getAndIncrement();
+		}
+	}
 }
@@ -21,23 +21,27 @@
 
 package dk.aau.cs.rite.server;
 
+import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.nio.channels.ServerSocketChannel;
-import java.util.concurrent.ExecutorService;
 
 import dk.aau.cs.rite.common.CmdLineParser;
+import dk.aau.cs.rite.common.Transport;
 
 /**
  * The main class for the RiTE memory server. Sets up a server with "memory
  * tables" that hold rows of given types. The server listens on a specified port
- * for a producer (only one producer may be connected at any time) that can
- * insert data, consumers (many consumers can be connected at the same time)
- * that can fetch data, and a ping listener (again, only one can exist at any
- * time) that can be told when data is needed by a consumer.
+ * for producers that can insert data, consumers (many consumers can be
+ * connected at the same time) that can fetch data, and a ping listener (only
+ * one can exist at any time) that can be told when data is needed by a
+ * consumer. Any number of producers can insert into the same table at the
+ * same time: each leases ranges of row IDs from the table, and the rows of a
+ * lease are committed in the order of the leases (see RowIDLeases).
  */
 public class RiTEServer {
 
 	private ServerSocketChannel channel;
+	private ServerSocketChannel unixChannel;
 	private SharedDataArea dsa;
 	public boolean keepRunning;
 
@@ -53,24 +57,58 @@ public class RiTEServer {
 	 *            The port number for the server to listen on
 	 */
 	public RiTEServer(int port, String dir, int segmentSize) {
-		ExecutorService highExecutor = null;
-		ExecutorService lowExecutor = null;
-		this.dsa = new SharedDataArea(dir, segmentSize*1024*1024);
+		this(port, dir, segmentSize, PriorityExecutor.getNumberOfCpus() / 2, 0, 0);
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param port
+	 *            The port number for the server to listen on
+	 * @param ioThreads
+	 *            The number of threads that wait for commands on the client
+	 *            connections
+	 * @param cacheSize
+	 *            The MB of segments cached in the server (file-based only), 0 for unbounded
+	 * @param tableCacheSize
+	 *            The MB of segments cached for each table, 0 for unbounded
+	 */
+	public RiTEServer(int port, String dir, int segmentSize, int ioThreads, int cacheSize, int tableCacheSize) {
+		this(port, null, dir, segmentSize, ioThreads, cacheSize, tableCacheSize);
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param port
+	 *            The port number for the server to listen on
+	 * @param unixPath
+	 *            The path of a unix domain socket to listen on as well, for
+	 *            the clients on the same host, or null
+	 */
+	public RiTEServer(int port, String unixPath, String dir, int segmentSize, int ioThreads, int cacheSize, int tableCacheSize) {
+		ServerReactor reactor = null;
+		this.dsa = new SharedDataArea(dir, segmentSize*1024*1024, cacheSize*1024L*1024L, tableCacheSize*1024L*1024L);
 
 		this.keepRunning = true;
 
-		System.out.printf("%s: running on port=%d%s,segmentSize=%dM\n",
+		System.out.printf("%s: running on port=%d%s%s,segmentSize=%dM,ioThreads=%d\n",
 				dir == null ? "Mem-based" : "File-based", port,
-				dir == null ? "" : ",dataDir=" + dir, segmentSize);
+				unixPath == null ? "" : ",socket=" + unixPath,
+				dir == null ? "" : ",dataDir=" + dir, segmentSize, ioThreads);
 		try {
 			new Thread(new ServerInterface(this)).start();
 			channel = ServerSocketChannel.open();
 			channel.socket().bind(new InetSocketAddress(port));
-			highExecutor = PriorityExecutor.getHighExecutor(); // Executors.newCachedThreadPool();
-			highExecutor = PriorityExecutor.getLowExecutor(); // Executors.newCachedThreadPool();
+			reactor = new ServerReactor(ioThreads, PriorityExecutor.getWorkerExecutor(), dsa);
+			if (unixPath != null) {
+				unixChannel = Transport.listen(Transport.unixAddress(unixPath));
+				Thread t = new Thread(new Acceptor(unixChannel, reactor), "unix-acceptor");
+				t.setDaemon(true);
+				t.start();
+			}
 			while (keepRunning) {
-				highExecutor.execute(new ServerThread(channel.accept(), dsa));
-
+				reactor.register(channel.accept());
 			}
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -78,6 +116,15 @@ public class RiTEServer {
 			/*
 			 * if (executorService != null) { executorService.shutdown(); }
 			 */
+			if (unixChannel != null) {
+				try {
+					unixChannel.close();
+				} catch (IOException e) {
+				}
+			}
+			if (reactor != null) {
+				reactor.shutdown();
+			}
 			PriorityExecutor.shutdown();
 			this.dsa.clear();
 		}
@@ -97,25 +144,45 @@ public class RiTEServer {
 
 	private static void printUsage() {
 		System.err
-				.println("Usage: RiTEServer [-p port] [-d /path/to/backup] [-s segmentSize]\ndefault: port=5433, dataDir=null, segmentSize=3M");
+				.println("Usage: RiTEServer [-p port] [-u /path/to/socket] [-d /path/to/backup] [-s segmentSize] [-r ioThreads] [-w workers] [-c cacheSize] [-t tableCacheSize]\ndefault: port=5433, socket=null, dataDir=null, segmentSize=3M, ioThreads=#cpus/2, workers=4*#cpus, cacheSize=0 (unbounded), tableCacheSize=0 (unbounded)");
 	}
 
 	public static void main(String[] args) {
 		try {
 			CmdLineParser parser = new CmdLineParser();
 			CmdLineParser.Option portArg = parser.addIntegerOption('p', "port");
+			CmdLineParser.Option unixArg = parser.addStringOption('u', "socket");
 			CmdLineParser.Option dirArg = parser
 					.addStringOption('d', "dataDir");
 			CmdLineParser.Option segSizeArg = parser.addIntegerOption('s',
 					"segmentSize");
+			CmdLineParser.Option ioThreadsArg = parser.addIntegerOption('r',
+					"ioThreads");
+			CmdLineParser.Option workersArg = parser.addIntegerOption('w',
+					"workers");
+			CmdLineParser.Option cacheSizeArg = parser.addIntegerOption('c',
+					"cacheSize");
+			CmdLineParser.Option tableCacheSizeArg = parser.addIntegerOption('t',
+					"tableCacheSize");
 			parser.parse(args);
 
 			Integer port = (Integer) parser.getOptionValue(portArg,
 					new Integer(5433));
+			String unixPath = (String) parser.getOptionValue(unixArg, null);
 			String dir = (String) parser.getOptionValue(dirArg, null);
 			Integer segSize = (Integer) parser.getOptionValue(segSizeArg,3);
+			Integer ioThreads = (Integer) parser.getOptionValue(ioThreadsArg,
+					Integer.valueOf(PriorityExecutor.getNumberOfCpus() / 2));
+
+			Integer workers = (Integer) parser.getOptionValue(workersArg, null);
+			if (workers != null)
+				PriorityExecutor.setMaxWorkers(workers.intValue()); // The commands that run at the same time.
+
+			Integer cacheSize = (Integer) parser.getOptionValue(cacheSizeArg, 0);
+			Integer tableCacheSize = (Integer) parser.getOptionValue(tableCacheSizeArg, 0);
 
-			new RiTEServer(port.intValue(), dir, segSize.intValue());
+			new RiTEServer(port.intValue(), unixPath, dir, segSize.intValue(), ioThreads.intValue(),
+					cacheSize.intValue(), tableCacheSize.intValue());
 		} catch (CmdLineParser.OptionException e) {
 			printUsage();
 			System.exit(2);
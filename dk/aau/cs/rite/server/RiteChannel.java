@@ -70,4 +70,9 @@ public class RiteChannel implements WritableByteChannel {
 		//return udStore.process(src, delim, nullSubst, queryStartTime, channel);
 		return udStore.process(src, delim, nullSubst, queryStartTime, writer);
 	}
+	
+	/** Writes the rows of a segment whose IDs are in [firstRowID, lastRowID].*/
+	public int write(ByteBuffer src, int firstRowID, int lastRowID, String delim, String nullSubst) throws IOException {
+		return udStore.process(src, firstRowID, lastRowID, delim, nullSubst, queryStartTime, writer);
+	}
 }
@@ -0,0 +1,152 @@
+/*
+ *
+ * Copyright (c) 2011, Xiufeng Liu (xiliu@cs.aau.dk) and the eGovMon Consortium
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ *
+ *
+ */
+
+package dk.aau.cs.rite.server;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Hands out disjoint ranges of row IDs of a table, so that several producers
+ * can insert into it at the same time. A range starts after every range
+ * leased before and after the largest ID committed to the table, so the
+ * leases need not be persisted: they are open until their rows are committed
+ * (see close) or their owner, i.e., a lease stream of a producer, is closed.
+ * 
+ * The tuple store keeps its rows in the order of their IDs. The rows of a
+ * lease are therefore checked to be in it (see check), and they are held back
+ * until the leases of the other owners that start before it are closed (see
+ * awaitTurn). A lease is extended, rather than a new one started, as long as
+ * no other lease has started after it, so that a producer that does not
+ * commit its rows in time only holds back the leases after its own.
+ */
+public class RowIDLeases {
+
+	public static final long TIMEOUT = 60000; // How long (ms) a commit waits for the leases before it.
+
+	private int next = 1; // The first ID of the next range.
+	private final TreeMap<Integer, Lease> open = new TreeMap<Integer, Lease>(); // (first ID -> lease)
+
+	private static class Lease {
+		final long owner;
+		final int first;
+		int end; // Exclusive
+
+		Lease(long owner, int first, int end) {
+			this.owner = owner;
+			this.first = first;
+			this.end = end;
+		}
+	}
+
+	/**
+	 * Leases count IDs to the owner, after committedID, the largest ID in the
+	 * tuple store. If extendFirst is the first ID of an open lease of the owner
+	 * that no other lease has started after, the IDs extend it. Returns the
+	 * first ID of the leased IDs.
+	 */
+	public synchronized int lease(long owner, int count, int committedID, int extendFirst) throws IOException {
+		if (count < 1)
+			throw new IOException("Cannot lease " + count + " row IDs");
+		Lease lease = open.get(extendFirst);
+		boolean extend = lease != null && lease.owner == owner && lease.end == next && extendFirst == open.lastKey();
+		int first = extend ? next : Math.max(next, committedID + 1);
+		if (first > Integer.MAX_VALUE - count)
+			throw new IOException("The row IDs are used up");
+		next = first + count;
+		if (extend) {
+			lease.end = next;
+		} else {
+			open.put(first, new Lease(owner, first, next));
+		}
+		return first;
+	}
+
+	/**
+	 * Checks that the IDs from first to last (inclusive) are in the open lease
+	 * that starts at leaseFirst, and that it is the owner's.
+	 */
+	public synchronized void check(long owner, int leaseFirst, int first, int last) throws IOException {
+		Lease lease = open.get(leaseFirst);
+		if (lease == null || lease.owner != owner)
+			throw new IOException("No open lease of row IDs starts at " + leaseFirst);
+		if (first > last || first < lease.first || last >= lease.end)
+			throw new IOException(String.format("The row IDs %d-%d are not in the lease %d-%d", first, last, lease.first, lease.end - 1));
+	}
+
+	/**
+	 * Waits until the open leases of the other owners that start before the
+	 * lease at leaseFirst are closed, i.e., until its rows are next in the
+	 * order of the IDs.
+	 */
+	public synchronized void awaitTurn(long owner, int leaseFirst) throws IOException {
+		long deadline = System.currentTimeMillis() + TIMEOUT;
+		while (this.isHeldBack(owner, leaseFirst)) {
+			long timeout = deadline - System.currentTimeMillis();
+			if (timeout <= 0)
+				throw new IOException(String.format("Timed out waiting for the leases before %d of %s", leaseFirst, this));
+			try {
+				this.wait(timeout);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted waiting for the leases before " + leaseFirst);
+			}
+		}
+	}
+
+	private boolean isHeldBack(long owner, int leaseFirst) {
+		for (Lease lease : open.headMap(leaseFirst).values()) {
+			if (lease.owner != owner)
+				return true;
+		}
+		return false;
+	}
+
+	/** Closes the lease of the owner at leaseFirst; its unused IDs are not leased again. */
+	public synchronized void close(long owner, int leaseFirst) {
+		Lease lease = open.get(leaseFirst);
+		if (lease != null && lease.owner == owner) {
+			open.remove(leaseFirst);
+			this.notifyAll();
+		}
+	}
+
+	/** Closes the leases of the owner, e.g., when its lease stream is closed. */
+	public synchronized void release(long owner) {
+		for (Iterator<Lease> it = open.values().iterator(); it.hasNext();) {
+			if (it.next().owner == owner)
+				it.remove();
+		}
+		this.notifyAll();
+	}
+
+	/** Returns whether any lease is open, i.e., whether the rows must be committed in leases. */
+	public synchronized boolean isOpen() {
+		return !open.isEmpty();
+	}
+
+	public synchronized String toString() {
+		StringBuilder sb = new StringBuilder("RowIDLeases[next=").append(next);
+		for (Map.Entry<Integer, Lease> e : open.entrySet()) {
+			sb.append(", ").append(e.getKey()).append('-').append(e.getValue().end - 1).append(':').append(e.getValue().owner);
+		}
+		return sb.append(']').toString();
+	}
+}
@@ -46,4 +46,78 @@ public enum ServerCommand {
 	CUST_REGISTER_QUERY,
 	CUST_UNREGISTER_QUERY,
 	CUST_ENSURE_ACCURACY,  
+	
+	// As above, but the table is given by its handle (int) instead of its name.
+	PROD_SYNC_CATALOG_HANDLE, // Also replies the handle of the table.
+	PROD_COMMIT_MATERIALIZE_HANDLE,
+	PROD_COMMIT_FLUSH_DATA_HANDLE,
+	PROD_COMMIT_FLUSH_UD_HANDLE,
+	
+	// Version 2 of the data flush: the rows are framed by a BatchHeader.
+	PROD_COMMIT_FLUSH_DATA_V2,
+	PROD_COMMIT_FLUSH_DATA_V2_HANDLE,
+	
+	// Sets the compression of the connection (see Compression). When it is on, the
+	// payload of PROD_COMMIT_FLUSH_DATA_V2 after the table, and the rows sent for
+	// TABLE_FUNC_GET_DATA, are compressed streams.
+	NEGOTIATE_COMPRESSION,
+	
+	// Attaches a SharedRing created by a producer on the same host. Afterwards, the
+	// payload of PROD_COMMIT_FLUSH_DATA_V2 after the table is read from the ring.
+	OPEN_SHARED_RING,
+	
+	// Turns the connection into streams (see Multiplexer); each stream runs these
+	// commands as a connection of its own.
+	PROD_MULTIPLEX,
+	
+	// Commits several tables under one commit time with one reply. Format: command (int)|
+	// commit time (long)|number of parts (int)|parts, where a part is kind (int)|handle of
+	// the table (int)|length (long)|payload. The payload of PART_ROWS is a batch header and
+	// the rows, of PART_UDS the upserts, and PART_MATERIALIZE has none. On a compressed
+	// connection, the parts are a compressed stream. Replies the number of parts applied
+	// (int) and OK, or ERR if a part failed, where the parts before it stay committed.
+	PROD_COMMIT_BATCH,
+	
+	// Leases a range of row IDs of a table to the producer, see RowIDLeases. Format:
+	// command (int)|handle of the table (int)|number of IDs (int)|first ID of the lease
+	// to extend (int), or 0 for a new lease. Replies the first leased ID (int), the owner
+	// of the lease (long), i.e., the stream, and OK. The rows of the lease are committed
+	// by PROD_COMMIT_BATCH after a PART_LEASE; the leases are closed when the stream is.
+	PROD_LEASE_ROW_IDS,
+	
+	// Closes a lease of row IDs that no commit will close, e.g., after a failed commit.
+	// Format: command (int)|handle of the table (int)|first ID of the lease (int). Replies OK.
+	PROD_RELEASE_ROW_IDS;
+	
+	public static final int PART_ROWS = 1;
+	public static final int PART_UDS = 2;
+	public static final int PART_MATERIALIZE = 3;
+	// Owner (long)|first ID (int)|last ID (int) of a lease. The parts of its table right
+	// after it are in the lease: they are applied when the leases of the other owners
+	// before it are closed, and the lease is closed after them.
+	public static final int PART_LEASE = 4;
+	
+	public boolean isByHandle() {
+		return this == PROD_SYNC_CATALOG_HANDLE || this == PROD_COMMIT_MATERIALIZE_HANDLE
+				|| this == PROD_COMMIT_FLUSH_DATA_HANDLE || this == PROD_COMMIT_FLUSH_UD_HANDLE
+				|| this == PROD_COMMIT_FLUSH_DATA_V2_HANDLE;
+	}
+
+	/** Returns the command that gives the table by its handle, or null if there is none. */
+	public ServerCommand byHandle() {
+		switch (this) {
+		case PROD_SYNC_CATALOG:
+			return PROD_SYNC_CATALOG_HANDLE;
+		case PROD_COMMIT_MATERIALIZE:
+			return PROD_COMMIT_MATERIALIZE_HANDLE;
+		case PROD_COMMIT_FLUSH_DATA:
+			return PROD_COMMIT_FLUSH_DATA_HANDLE;
+		case PROD_COMMIT_FLUSH_UD:
+			return PROD_COMMIT_FLUSH_UD_HANDLE;
+		case PROD_COMMIT_FLUSH_DATA_V2:
+			return PROD_COMMIT_FLUSH_DATA_V2_HANDLE;
+		default:
+			return null;
+		}
+	}
 }
@@ -0,0 +1,204 @@
+/*
+ *
+ * Copyright (c) 2011, Xiufeng Liu (xiliu@cs.aau.dk) and the eGovMon Consortium
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ *
+ *
+ */
+
+package dk.aau.cs.rite.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import dk.aau.cs.rite.common.Transport;
+
+/**
+ * Multiplexes the client connections of the RiTE server over a few I/O
+ * threads. An I/O thread only waits for the 4-byte command of a connection;
+ * once a whole command has arrived, the connection is taken out of the
+ * selector and the command is executed by a worker thread. When the worker is
+ * done, the connection is handed back to its I/O thread. Idle producers,
+ * consumers and ping listeners therefore do not occupy any worker thread.
+ * <p>
+ * The payload of a command is read by its worker, as its format depends on
+ * the command. The workers are bounded, and a stalled client gives its worker
+ * back after a timeout; see PriorityExecutor.getWorkerExecutor for how the
+ * clients are held back when all workers are busy.
+ */
+public class ServerReactor {
+
+	static Logger log = Logger.getLogger(ServerReactor.class.getName());
+
+	private final IOThread[] ioThreads;
+	private final ExecutorService workers;
+	private final SharedDataArea sda;
+	private final AtomicInteger next = new AtomicInteger(0);
+
+	public ServerReactor(int numOfIOThreads, ExecutorService workers, SharedDataArea sda) throws IOException {
+		this.workers = workers;
+		this.sda = sda;
+		this.ioThreads = new IOThread[Math.max(1, numOfIOThreads)];
+		for (int i = 0; i < ioThreads.length; ++i) {
+			ioThreads[i] = new IOThread();
+			Thread t = new Thread(ioThreads[i], "io-thread-" + (i + 1));
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	/** Hands a newly accepted connection to one of the I/O threads (round-robin).*/
+	public void register(SocketChannel channel) throws IOException {
+		channel.configureBlocking(false);
+		Transport.setTcpNoDelay(channel);
+		int i = (next.getAndIncrement() & Integer.MAX_VALUE) % ioThreads.length;
+		ioThreads[i].enqueue(new Connection(channel, ioThreads[i]));
+	}
+
+	public void shutdown() {
+		for (IOThread ioThread : ioThreads) {
+			ioThread.stop();
+		}
+	}
+
+	/**
+	 * The state of one client connection. The handler keeps the per-connection
+	 * state of the protocol (e.g., the freshness of a registered query).
+	 */
+	class Connection implements Runnable {
+		final SocketChannel channel;
+		final IOThread owner;
+		final ByteBuffer header = ByteBuffer.allocate(4);
+		final ServerThread handler;
+		SelectionKey key;
+		ServerCommand cmd;
+
+		Connection(SocketChannel channel, IOThread owner) {
+			this.channel = channel;
+			this.owner = owner;
+			this.handler = new ServerThread(new BlockingChannel(channel), sda);
+		}
+
+		/** Reads what is available of the command. Returns false on EOF.*/
+		boolean readHeader() throws IOException {
+			if (channel.read(header) == -1) {
+				return false;
+			}
+			if (!header.hasRemaining()) {
+				cmd = ServerThread.toCommand(header.getInt(0));
+				header.clear();
+				key.interestOps(0); // The worker owns the connection until the command is done.
+				workers.execute(this);
+			}
+			return true;
+		}
+
+		@Override
+		public void run() { // Executed by a worker thread.
+			boolean keepOpen = false;
+			try {
+				keepOpen = handler.execute(cmd);
+			} finally {
+				if (keepOpen) {
+					owner.enqueue(this);
+				} else {
+					close();
+				}
+			}
+		}
+
+		/** Releases the state of the handler (e.g., its row-ID leases) and closes the channel.*/
+		void close() {
+			if (key != null) {
+				key.cancel();
+			}
+			handler.close();
+		}
+	}
+
+	class IOThread implements Runnable {
+		final Selector selector;
+		final ConcurrentLinkedQueue<Connection> pending = new ConcurrentLinkedQueue<Connection>();
+		volatile boolean running = true;
+
+		IOThread() throws IOException {
+			this.selector = Selector.open();
+		}
+
+		/** Registers a new connection, or re-arms one returned by a worker.*/
+		void enqueue(Connection conn) {
+			pending.add(conn);
+			selector.wakeup();
+		}
+
+		void stop() {
+			running = false;
+			selector.wakeup();
+		}
+
+		private void processPending() {
+			Connection conn;
+			while ((conn = pending.poll()) != null) {
+				try {
+					if (conn.key == null) {
+						conn.key = conn.channel.register(selector, SelectionKey.OP_READ, conn);
+					} else if (conn.key.isValid()) {
+						conn.key.interestOps(SelectionKey.OP_READ);
+					} else {
+						conn.close();
+					}
+				} catch (IOException e) {
+					conn.close();
+				}
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (running) {
+					selector.select();
+					processPending();
+					Iterator<SelectionKey> itr = selector.selectedKeys().iterator();
+					while (itr.hasNext()) {
+						SelectionKey key = itr.next();
+						itr.remove();
+						Connection conn = (Connection) key.attachment();
+						try {
+							if (key.isValid() && key.isReadable() && !conn.readHeader()) {
+								conn.close();
+							}
+						} catch (IOException e) {
+							conn.close();
+						}
+					}
+				}
+			} catch (Exception e) {
+				e.printStackTrace();
+			} finally {
+				try {
+					selector.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+	}
+}
@@ -20,12 +20,24 @@
  */
 package dk.aau.cs.rite.server;
 
+import java.io.File;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ByteChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
+import dk.aau.cs.rite.common.BatchHeader;
+import dk.aau.cs.rite.common.BlockInputChannel;
+import dk.aau.cs.rite.common.BlockOutputChannel;
+import dk.aau.cs.rite.common.Compression;
+import dk.aau.cs.rite.common.PrefixedChannel;
 import dk.aau.cs.rite.common.RiteException;
+import dk.aau.cs.rite.common.SharedRing;
 import dk.aau.cs.rite.common.TimeTracer;
 import dk.aau.cs.rite.common.Utils;
 import dk.aau.cs.rite.tuplestore.FlagValues;
@@ -39,6 +51,13 @@ public class ServerThread implements Runnable {
 	private ByteBuffer buffer, dblBuffer;
 	private SharedDataArea sda;
 	private long reqFreshness;
+	private int compression = Compression.NONE; // As negotiated by the client.
+	private int threshold = Compression.DEFAULT_THRESHOLD;
+	private SharedRing ring; // Null if the producer does not share a ring.
+	private List<SharedDataArea.Table> leased = new ArrayList<SharedDataArea.Table>(); // The tables with row IDs leased to this connection.
+	private long owner; // Of the leases of this connection, see RowIDLeases; 0 until it leases.
+
+	private static final AtomicLong owners = new AtomicLong();
 
 	private static ServerCommand[] commands = ServerCommand.values();
 
@@ -56,83 +75,129 @@ public class ServerThread implements Runnable {
 		int read = Utils.read(channel, 4, buffer); // If no data is available in the channel, it will be blocked here.
 		if (read == -1)
 			return null;
-		int val = buffer.getInt(0);
-		ServerCommand cmd;
+		return toCommand(buffer.getInt(0));
+	}
 
+	static ServerCommand toCommand(int val) {
 		if (val >= 0 && val < commands.length)
-			cmd = commands[val];
-		else
-			cmd = ServerCommand.BYE;
-		return cmd;
+			return commands[val];
+		return ServerCommand.BYE;
 	}
 
 	@Override
-	public void run() {
+	public void run() { // Serves the connection on the calling thread, used when the channel is blocking.
 		try {
-			while (!Thread.interrupted()) {
-				ServerCommand cmd = getCommand();
-				
+			ServerCommand cmd;
+			while (!Thread.interrupted() && (cmd = getCommand()) != null && execute(cmd))
+				;
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			close();
+		}
+	}
+
+	/**
+	 * Executes one command whose code has already been read from the channel.
+	 * 
+	 * @return true if the connection should be kept open for the next
+	 *         command, false if it should be closed.
+	 */
+	public boolean execute(ServerCommand cmd) {
+		try {
+			//System.out.println("cmd=" + cmd);
+			switch (cmd) {
+			case BYE:
+				return false;
+			case TABLE_FUNC_CONNECT:
+				break;
+			case TABLE_FUNC_GET_DATA:
+				readRows();
+				return true;
+			case PROD_SYNC_CATALOG:
+			case PROD_SYNC_CATALOG_HANDLE:
 				//System.out.println("cmd=" + cmd);
-				switch (cmd) {
-				case BYE:
-					return;
-				case TABLE_FUNC_CONNECT:
-					break;
-				case TABLE_FUNC_GET_DATA:
-					System.out.println("cmd=" + cmd);
-					readRows();
-					continue;
-				case PROD_SYNC_CATALOG:
-					//System.out.println("cmd=" + cmd);
-					ensureTupleStore();
-					break;
-				case PROD_COMMIT_MATERIALIZE:
-					System.out.println("cmd=" + cmd);
-					materialize();
-					break;
-				case PROD_COMMIT_FLUSH_DATA:
-					System.out.println("cmd=" + cmd);
-					flushRows();
-					break;
-				case PROD_COMMIT_FLUSH_UD:
-					//System.out.println("cmd=" + cmd);
-					flushUDs();
-					break;
-				case PROD_ROLLBACK:
-					rollback();
-					break;
-				case CUST_CONNECT:
-					break;
-				case PING_CONNECT:
-					pingConnect();
-					break;
-				case PING_ENSURE_ACCURACY:
-					pingAccuracy();
-					continue; // Does not need to send OK.
-				case CUST_REGISTER_QUERY:
-					if (!registeRows()){// If fails to register, just continue and doesn't need to send back anything.
-						Utils.send(channel, buffer, ServerCommand.ERR);
-						continue;
-					}
-					break;
-				case CUST_UNREGISTER_QUERY:
-					unregisterRows();
-					return;
-				default:
-					throw new RuntimeException("Unknown command: " + cmd);
+				ensureTupleStore(cmd == ServerCommand.PROD_SYNC_CATALOG_HANDLE);
+				break;
+			case PROD_COMMIT_MATERIALIZE:
+			case PROD_COMMIT_MATERIALIZE_HANDLE:
+				materialize(readTable(cmd));
+				break;
+			case PROD_COMMIT_FLUSH_DATA:
+			case PROD_COMMIT_FLUSH_DATA_HANDLE:
+				flushRows(checkUnleased(readTable(cmd)));
+				break;
+			case PROD_COMMIT_FLUSH_DATA_V2:
+			case PROD_COMMIT_FLUSH_DATA_V2_HANDLE:
+				flushBatch(checkUnleased(readTable(cmd)));
+				break;
+			case PROD_COMMIT_FLUSH_UD:
+			case PROD_COMMIT_FLUSH_UD_HANDLE:
+				//System.out.println("cmd=" + cmd);
+				flushUDs(checkUnleased(readTable(cmd)));
+				break;
+			case PROD_ROLLBACK:
+				rollback();
+				break;
+			case CUST_CONNECT:
+				break;
+			case PING_CONNECT:
+				pingConnect();
+				break;
+			case PING_ENSURE_ACCURACY:
+				pingAccuracy();
+				return true; // Does not need to send OK.
+			case CUST_REGISTER_QUERY:
+				if (!registeRows()){// If fails to register, just continue and doesn't need to send back anything.
+					Utils.send(channel, buffer, ServerCommand.ERR);
+					return true;
 				}
-				Utils.send(channel, buffer, ServerCommand.OK);
+				break;
+			case CUST_UNREGISTER_QUERY:
+				unregisterRows();
+				return false;
+			case NEGOTIATE_COMPRESSION:
+				negotiateCompression();
+				break;
+			case OPEN_SHARED_RING:
+				openSharedRing();
+				break;
+			case PROD_COMMIT_BATCH:
+				commitBatch();
+				break;
+			case PROD_LEASE_ROW_IDS:
+				leaseRowIDs();
+				break;
+			case PROD_RELEASE_ROW_IDS:
+				releaseRowIDs();
+				break;
+			case PROD_MULTIPLEX:
+				multiplex();
+				return false; // The producer has closed the connection.
+			default:
+				throw new RuntimeException("Unknown command: " + cmd);
 			}
+			Utils.send(channel, buffer, ServerCommand.OK);
+			return true;
 		} catch (Exception e) {
 			e.printStackTrace();
 			try {
 				Utils.send(channel, buffer, ServerCommand.ERR);
 			} catch (IOException e1) {
 			}
-		} finally {
-			Utils.closeQuietly(channel);
-			log.info("I was closed!");
+			return false;
+		}
+	}
+
+	public void close() {
+		for (SharedDataArea.Table table : leased) {
+			table.getLeases().release(owner);
 		}
+		leased.clear();
+		if (ring != null)
+			Utils.closeQuietly(ring);
+		Utils.closeQuietly(channel);
+		log.info("I was closed!");
 	}
 	
 	private boolean registeRows() throws IOException {
@@ -171,16 +236,105 @@ public class ServerThread implements Runnable {
         long queryStartTime = Utils.readLong(channel, dblBuffer); //read rite.timehandle
         
         TupleStore tupleStore = this.sda.getTupleStore(tableName);
-        if(tupleStore == null) {
-            buffer.clear();
-            buffer.put(FlagValues.END_OF_STREAM);
-            buffer.flip();
-            channel.write(buffer);
-        } else {
-        	tupleStore.query(channel, minRowID, maxRowID, queryStartTime, reqFreshness);
+        BlockOutputChannel out = compression == Compression.NONE ? null : new BlockOutputChannel(channel, compression, threshold);
+        WritableByteChannel dest = out == null ? channel : out;
+        try {
+            if(tupleStore == null) {
+                buffer.clear();
+                buffer.put(FlagValues.END_OF_STREAM);
+                buffer.flip();
+                dest.write(buffer);
+            } else {
+                tupleStore.query(dest, minRowID, maxRowID, queryStartTime, reqFreshness);
+            }
+            if (out != null)
+                out.finish();
+        } finally {
+            if (out != null)
+                out.close();
         }
     }
 
+	private void negotiateCompression() throws IOException {
+		dblBuffer.clear();
+		Utils.read(channel, 8, dblBuffer);
+		int codec = dblBuffer.getInt(0);
+		this.compression = Compression.isSupported(codec) ? codec : Compression.NONE;
+		this.threshold = dblBuffer.getInt(4);
+		buffer.clear();
+		buffer.putInt(compression).flip();
+		channel.write(buffer);
+	}
+
+	private void openSharedRing() throws IOException {
+		String path = Utils.readString(channel, buffer);
+		boolean accepted = false;
+		try {
+			SharedRing opened = SharedRing.open(new File(path));
+			if (ring != null)
+				Utils.closeQuietly(ring);
+			ring = opened;
+			accepted = true;
+		} catch (IOException e) { // E.g., the producer is on another host; it falls back to the socket.
+			log.info("Cannot open the shared ring " + path + ": " + e.getMessage());
+		}
+		buffer.clear();
+		buffer.putInt(accepted ? 1 : 0).flip();
+		channel.write(buffer);
+	}
+
+	private void leaseRowIDs() throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(16);
+		Utils.read(channel, 12, buf);
+		SharedDataArea.Table table = this.getTable(buf.getInt(0));
+		if (owner == 0)
+			owner = owners.incrementAndGet();
+		int first = table.getLeases().lease(owner, buf.getInt(4), table.get().getID(), buf.getInt(8));
+		if (!leased.contains(table))
+			leased.add(table);
+		buf.clear();
+		buf.putInt(first).putLong(owner).flip();
+		while (buf.hasRemaining()) {
+			channel.write(buf);
+		}
+	}
+
+	private void releaseRowIDs() throws IOException {
+		dblBuffer.clear();
+		Utils.read(channel, 8, dblBuffer);
+		this.getTable(dblBuffer.getInt(0)).getLeases().close(owner, dblBuffer.getInt(4));
+	}
+
+	private SharedDataArea.Table getTable(int handle) throws IOException {
+		SharedDataArea.Table table = this.sda.getTable(handle);
+		if (table == null)
+			throw new IOException("No table has the handle " + handle);
+		return table;
+	}
+
+	/** Rejects a flush outside the leases to a table with open leases, see RowIDLeases. */
+	private TupleStore checkUnleased(TupleStore tupleStore) throws IOException {
+		if (tupleStore != null) {
+			SharedDataArea.Table table = this.sda.getTable(tupleStore.getCatalog().getTableName());
+			if (table != null && table.getLeases().isOpen())
+				throw new IOException("The row IDs of " + table.name + " are leased; the rows must be committed in their leases");
+		}
+		return tupleStore;
+	}
+
+	/** Serves the streams of the connection on the calling thread, until it is closed. */
+	private void multiplex() throws IOException {
+		Utils.send(channel, buffer, ServerCommand.OK);
+		if (channel instanceof BlockingChannel)
+			((BlockingChannel) channel).setTimeout(0); // The producer may be idle between the frames.
+		PriorityExecutor.beginBlocking();
+		try {
+			new MuxSession(channel, sda, PriorityExecutor.getWorkerExecutor()).run();
+		} finally {
+			PriorityExecutor.endBlocking();
+		}
+	}
+
 	private void pingConnect() throws IOException { // Only used when the producer is using lazy commit.
 		String tableName = Utils.readString(channel, buffer);
 		TupleStore tupleStore = this.sda.getTupleStore(tableName);
@@ -202,34 +356,197 @@ public class ServerThread implements Runnable {
 	}
 
 
-	private void flushRows() throws IOException, RiteException {
-		String tableName = Utils.readString(channel, buffer);
-		TupleStore tupleStore = this.sda.getTupleStore(tableName);
+	/** Reads the table of the command, by its handle or by its name. Returns null if it does not exist. */
+	private TupleStore readTable(ServerCommand cmd) throws IOException {
+		if (cmd.isByHandle()) {
+			return this.sda.getTupleStore(Utils.readInt(channel, buffer));
+		}
+		return this.sda.getTupleStore(Utils.readString(channel, buffer));
+	}
+
+	private void flushRows(TupleStore tupleStore) throws IOException, RiteException {
+		if (tupleStore == null)
+			throw new IOException("The table does not exist!");
 		tupleStore.readRowsIn(channel); // Write the data from the channel into the tupleStore.
 	}
 	
 	
-	private void flushUDs() throws RiteException, IOException {
-		String tableName = Utils.readString(channel, buffer);
-		TupleStore tupleStore = this.sda.getTupleStore(tableName);
+	private void flushBatch(TupleStore tupleStore) throws IOException, RiteException {
+		if (tupleStore == null)
+			throw new IOException("The table does not exist!");
+		if (ring != null) {
+			tupleStore.readBatchIn(ring);
+		} else if (compression == Compression.NONE) {
+			tupleStore.readBatchIn(channel);
+		} else {
+			BlockInputChannel in = new BlockInputChannel(channel);
+			try {
+				tupleStore.readBatchIn(in);
+				in.finish();
+			} finally {
+				in.close();
+			}
+		}
+	}
+	
+	/**
+	 * Applies the parts of a PROD_COMMIT_BATCH in their order, all with the
+	 * commit time of the batch. All the parts are read and checked before the
+	 * first is applied, so a batch that is cut off or names a missing table
+	 * changes nothing. The number of parts applied is replied in any case: if
+	 * a part fails, the producer keeps it and the ones after for the retry.
+	 */
+	private void commitBatch() throws IOException, RiteException {
+		dblBuffer.clear();
+		Utils.read(channel, 8, dblBuffer);
+		long commitTime = dblBuffer.getLong(0);
+		int numOfParts = Utils.readInt(channel, buffer);
+		int applied = 0;
+		int[] kinds = new int[numOfParts];
+		SharedDataArea.Table[] tables = new SharedDataArea.Table[numOfParts];
+		ByteBuffer[] payloads = new ByteBuffer[numOfParts];
+		int[] leases = new int[numOfParts]; // The PART_LEASE that each part is in, or -1.
+		try {
+			this.readParts(commitTime, kinds, tables, payloads, leases);
+			for (int i = 0; i < numOfParts; ++i) {
+				TupleStore tupleStore = tables[i].get();
+				ByteBuffer lease = leases[i] < 0 ? null : payloads[leases[i]];
+				switch (kinds[i]) {
+				case ServerCommand.PART_ROWS:
+					tupleStore.readBatchIn(new PrefixedChannel(payloads[i], null));
+					break;
+				case ServerCommand.PART_UDS:
+					if (lease == null)
+						tupleStore.readUDsIn(new PrefixedChannel(payloads[i], null));
+					else
+						tupleStore.readUDsIn(new PrefixedChannel(payloads[i], null), lease.getInt(16), lease.getInt(20));
+					break;
+				case ServerCommand.PART_LEASE:
+					this.awaitTurn(tables[i], lease);
+					break;
+				default:
+					tupleStore.materialize();
+				}
+				if (kinds[i] != ServerCommand.PART_LEASE)
+					payloads[i] = null;
+				++applied;
+				if (lease != null && (i + 1 == numOfParts || leases[i + 1] != leases[i])) // The lease is applied.
+					tables[i].getLeases().close(lease.getLong(8), lease.getInt(16));
+			}
+		} finally {
+			for (int i = 0; i < numOfParts; ++i) { // Also the leases that a failed commit did not get to.
+				if (kinds[i] == ServerCommand.PART_LEASE && payloads[i] != null)
+					tables[i].getLeases().close(payloads[i].getLong(8), payloads[i].getInt(16));
+			}
+			buffer.clear();
+			buffer.putInt(applied).flip();
+			while (buffer.hasRemaining()) {
+				channel.write(buffer);
+			}
+		}
+	}
+
+	/** Waits for the leases before the lease of a PART_LEASE to be closed, see RowIDLeases. */
+	private void awaitTurn(SharedDataArea.Table table, ByteBuffer lease) throws IOException {
+		PriorityExecutor.beginBlocking(); // The commits of the leases before it need a worker.
+		try {
+			table.getLeases().awaitTurn(lease.getLong(8), lease.getInt(16));
+		} finally {
+			PriorityExecutor.endBlocking();
+		}
+	}
+	
+	/**
+	 * Reads the parts of a batch, each with the commit time in front, and checks
+	 * their tables and headers, and that the rows and upserts of the tables with
+	 * open leases are in a lease of the producer.
+	 */
+	private void readParts(long commitTime, int[] kinds, SharedDataArea.Table[] tables, ByteBuffer[] payloads, int[] leases) throws IOException {
+		BlockInputChannel block = compression == Compression.NONE ? null : new BlockInputChannel(channel);
+		ReadableByteChannel in = block == null ? channel : block;
+		try {
+			ByteBuffer head = ByteBuffer.allocate(16);
+			for (int i = 0; i < kinds.length; ++i) {
+				head.clear();
+				if (Utils.read(in, 16, head) < 16)
+					throw new IOException("The batch ended after " + i + " parts");
+				kinds[i] = head.getInt(0);
+				tables[i] = this.getTable(head.getInt(4));
+				long length = head.getLong(8);
+				if (kinds[i] < ServerCommand.PART_ROWS || kinds[i] > ServerCommand.PART_LEASE)
+					throw new IOException("Unknown part: " + kinds[i]);
+				if (length < 0 || length > Integer.MAX_VALUE - 8)
+					throw new IOException("Illegal length of a part: " + length);
+				ByteBuffer payload = ByteBuffer.allocate(8 + (int) length);
+				payload.putLong(commitTime);
+				if (Utils.read(in, (int) length, payload) < length)
+					throw new IOException("The part of " + tables[i].name + " was cut off");
+				payload.flip();
+				payloads[i] = payload;
+				// A lease goes on over the parts of its table that follow it.
+				leases[i] = kinds[i] == ServerCommand.PART_LEASE ? i : (i > 0 && tables[i - 1] == tables[i] ? leases[i - 1] : -1);
+				ByteBuffer lease = leases[i] < 0 ? null : payloads[leases[i]];
+				switch (kinds[i]) {
+				case ServerCommand.PART_ROWS:
+					ByteBuffer buf = ByteBuffer.allocate(16384);
+					buf.flip();
+					ByteBuffer rows = payload.duplicate();
+					rows.position(8);
+					BatchHeader batch = BatchHeader.readFrom(new PrefixedChannel(rows, null), buf);
+					if ((long) batch.getEncodedSize() + batch.getLength() != length)
+						throw new IOException("The rows of " + tables[i].name + " do not match their header");
+					if (lease != null && batch.size() > 0)
+						this.checkLeased(tables[i], lease, batch.getFirstRowID(), batch.getLastRowID());
+					else if (lease == null)
+						this.checkUnleased(tables[i].get());
+					break;
+				case ServerCommand.PART_UDS:
+					if (lease == null)
+						this.checkUnleased(tables[i].get());
+					break;
+				case ServerCommand.PART_LEASE:
+					if (length != 16)
+						throw new IOException("Illegal length of a lease: " + length);
+					this.checkLeased(tables[i], lease, lease.getInt(16), lease.getInt(20));
+					break;
+				}
+			}
+			if (block != null)
+				block.finish();
+		} finally {
+			if (block != null)
+				block.close();
+		}
+	}
+
+	/** Checks that the IDs from first to last are in the lease of a PART_LEASE, as far as it is used. */
+	private void checkLeased(SharedDataArea.Table table, ByteBuffer lease, int first, int last) throws IOException {
+		if (first < lease.getInt(16) || last > lease.getInt(20))
+			throw new IOException(String.format("The row IDs %d-%d of %s are not in the lease %d-%d", first, last, table.name, lease.getInt(16), lease.getInt(20)));
+		table.getLeases().check(lease.getLong(8), lease.getInt(16), first, last);
+	}
+	
+	private void flushUDs(TupleStore tupleStore) throws RiteException, IOException {
+		if (tupleStore == null)
+			throw new IOException("The table does not exist!");
 		tupleStore.readUDsIn(channel); 
 	}
 	
-	private void materialize() throws RiteException, IOException  {
-		String tableName = Utils.readString(channel, buffer);
-		TupleStore tupleStore = this.sda.getTupleStore(tableName);
+	private void materialize(TupleStore tupleStore) throws RiteException, IOException  {
 		if (tupleStore != null) {
 			 tupleStore.materialize();
 		}
 	}
 	
 	
-	private void ensureTupleStore() throws RiteException, IOException {		
-			TupleStore tupleStore = this.sda.ensureCatalogAndTupleStore(channel);// Create tupleStore with catalog if not exist, otherwise not create.
-			buffer.clear();
-            buffer.putInt(tupleStore.getID());
-            buffer.flip();
-            channel.write(buffer);
+	private void ensureTupleStore(boolean withHandle) throws RiteException, IOException {		
+			SharedDataArea.Table table = this.sda.ensureCatalogAndTupleStore(channel);// Create tupleStore with catalog if not exist, otherwise not create.
+			dblBuffer.clear();
+            dblBuffer.putInt(table.get().getID());
+            if (withHandle)
+            	dblBuffer.putInt(table.getHandle());
+            dblBuffer.flip();
+            channel.write(dblBuffer);
 	}
 
 
@@ -21,77 +21,180 @@ package dk.aau.cs.rite.server;
 import java.io.File;
 import java.io.IOException;
 import java.nio.channels.ByteChannel;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
 
 import dk.aau.cs.rite.common.RiteException;
 import dk.aau.cs.rite.common.Utils;
 import dk.aau.cs.rite.producer.staging.Catalog;
 import dk.aau.cs.rite.tuplestore.FileBasedTupleStore;
 import dk.aau.cs.rite.tuplestore.MemBasedTupleStore;
-import dk.aau.cs.rite.tuplestore.Persistence;
+import dk.aau.cs.rite.tuplestore.SegmentArena;
+import dk.aau.cs.rite.tuplestore.SegmentCache;
 import dk.aau.cs.rite.tuplestore.TupleStore;
 
+/**
+ * The tables of the server. A table is registered once with a future of its
+ * tuple store, which is created (or recovered) by the first that needs it;
+ * the others wait for the future of that table only. The lookups, by name or
+ * by handle, do not lock.
+ */
 public class SharedDataArea {
 
-	protected Map<String, TupleStore> tupleStores = new HashMap<String, TupleStore>();
+	static Logger log = Logger.getLogger(SharedDataArea.class.getName());
+
+	protected final ConcurrentHashMap<String, Table> tables = new ConcurrentHashMap<String, Table>();
+	private volatile Table[] handles = new Table[16]; // Written under the lock, read without.
+	private final AtomicInteger nextHandle = new AtomicInteger(0);
 
 	protected String dirctory; // TODO:fix me!! hardcode here!!!
-	protected PingServer pingServer;
+	protected volatile PingServer pingServer;
 	protected final int segmentSize;
+	protected final SegmentCache segCache;
+	protected final SegmentArena arena; // Off-heap memory of the segments
 
 	public SharedDataArea(String dir, int segmentSize) {
+		this(dir, segmentSize, 0, 0);
+	}
+
+	/**
+	 * @param cacheSize
+	 *            The bytes of segments cached for the file-based tables, <=0 for unbounded
+	 * @param tableCacheSize
+	 *            The bytes of segments cached for each table, <=0 for unbounded
+	 */
+	public SharedDataArea(String dir, int segmentSize, long cacheSize, long tableCacheSize) {
 		this.dirctory = dir;
 		this.segmentSize = segmentSize;
+		this.segCache = new SegmentCache(cacheSize, tableCacheSize);
+		this.arena = new SegmentArena(16L * segmentSize); // Keeps up to 16 freed segments for reuse
 		this.initialize();
 	}
 
-	synchronized public TupleStore ensureCatalogAndTupleStore(
-			ByteChannel channel) throws RiteException {
+	/**
+	 * Reads the catalog of a table from the producer, and creates the table if
+	 * it does not exist. The catalog is read before the registry is touched,
+	 * and dropped if the table exists.
+	 */
+	public Table ensureCatalogAndTupleStore(ByteChannel channel) throws RiteException {
 		try {
-			String tableName = Utils.readString(channel);
-			TupleStore tupleStore = tupleStores.get(tableName);
-			Catalog catalog = null;
-			if (tupleStore == null) {
-				catalog = new Catalog(tableName, this.dirctory);
-				catalog.readIn(channel);
-				if (this.dirctory != null) {
-					String tupleStoreDir = String.format("%s%s%s", this.dirctory, File.separator, tableName);
-					Utils.mkdir(new File(tupleStoreDir)); // e.g., /data/rite/lineitem
-					catalog.backup();
-					tupleStore = new FileBasedTupleStore(tupleStoreDir,	catalog, segmentSize);
-				} else {
-					tupleStore = new MemBasedTupleStore(catalog, segmentSize);
+			final String tableName = Utils.readString(channel);
+			final Catalog catalog = new Catalog(tableName, this.dirctory);
+			catalog.readIn(channel);
+			return this.ensureTable(tableName, new Callable<TupleStore>() {
+				@Override
+				public TupleStore call() throws Exception {
+					return create(catalog);
 				}
-				tupleStores.put(tableName, tupleStore);
-			} else {
-				catalog = tupleStore.getCatalog();
-				catalog.readButNotSave(channel);// We have to re-read it if the
-												// tuplestore already exists
-			}
-			return tupleStore;
+			});
 		} catch (IOException e) {
 			throw new RiteException(e);
 		}
 	}
 
+	/** As above, with the catalog of a producer in the same process. */
+	public Table ensureTupleStore(final Catalog producerCatalog) throws RiteException {
+		return this.ensureTable(producerCatalog.getTableName(), new Callable<TupleStore>() {
+			@Override
+			public TupleStore call() throws Exception {
+				return create(new Catalog(producerCatalog, dirctory));
+			}
+		});
+	}
+
+	private Table ensureTable(String tableName, Callable<TupleStore> init) {
+		Table table = tables.get(tableName);
+		if (table == null) {
+			table = this.register(tableName, init);
+		}
+		table.get();
+		return table;
+	}
+
+	protected TupleStore create(Catalog catalog) throws RiteException, IOException {
+		if (this.dirctory != null) {
+			String tupleStoreDir = String.format("%s%s%s", this.dirctory, File.separator, catalog.getTableName());
+			Utils.mkdir(new File(tupleStoreDir)); // e.g., /data/rite/lineitem
+			catalog.backup();
+			return new FileBasedTupleStore(tupleStoreDir, catalog, segmentSize, segCache, arena);
+		} else {
+			return new MemBasedTupleStore(catalog, segmentSize, arena);
+		}
+	}
+
+	/** Registers the table, unless it is registered already. Returns the registered one. */
+	protected Table register(String tableName, Callable<TupleStore> init) {
+		Table table = new Table(tableName, nextHandle.getAndIncrement(), new FutureTask<TupleStore>(init));
+		Table existing = tables.putIfAbsent(tableName, table);
+		if (existing != null) {
+			return existing; // The handle is not used.
+		}
+		synchronized (this) {
+			Table[] h = handles;
+			if (table.handle >= h.length) {
+				Table[] copy = new Table[Math.max(h.length * 2, table.handle + 1)];
+				System.arraycopy(h, 0, copy, 0, h.length);
+				h = copy;
+			}
+			h[table.handle] = table; // Published to the lookups by the volatile write below.
+			handles = h;
+		}
+		return table;
+	}
+
+	/** Blocks until the table is created or recovered, if it is not yet. */
 	public TupleStore getTupleStore(String tableName) {
-		return tupleStores.get(tableName);
+		Table table = tables.get(tableName);
+		return table == null ? null : table.get();
+	}
+
+	public TupleStore getTupleStore(int handle) {
+		Table table = getTable(handle);
+		return table == null ? null : table.get();
+	}
+
+	/** Returns the registered table, or null if there is none. */
+	public Table getTable(String tableName) {
+		return tables.get(tableName);
+	}
+
+	/** Returns the table of the handle, or null if there is none. */
+	public Table getTable(int handle) {
+		Table[] h = handles;
+		return (handle >= 0 && handle < h.length) ? h[handle] : null;
 	}
 
 	public PingServer ensurePingServer() {
 		if (pingServer == null) {
-			pingServer = new PingServer();
+			synchronized (this) {
+				if (pingServer == null) {
+					pingServer = new PingServer();
+				}
+			}
 		}
 		return pingServer;
 	}
 
 	public void clear() {
-		for (TupleStore tupleStore : tupleStores.values()) {
-			tupleStore.close();
+		for (Table table : tables.values()) {
+			try {
+				table.get().close();
+			} catch (RuntimeException e) {
+			}
 		}
 	}
 
+	/**
+	 * Recovers the tables in the data directory, in parallel on the high
+	 * priority executor, and returns without waiting for them. A command on a
+	 * table waits for its recovery (or does it, if it has not started), while
+	 * the other tables are served. When a table is recovered, its segment
+	 * files are verified against their checksums on the low priority executor.
+	 */
 	protected void initialize() {
 		try {
 			if (this.dirctory != null) {
@@ -101,15 +204,14 @@ public class SharedDataArea {
 				for (int i = 0; i < listOfFiles.length; ++i) {
 					File f = listOfFiles[i];
 					if (f.isDirectory()) {
-						String tableName = f.getName();
-						Catalog catalog = new Catalog(tableName, this.dirctory);
-						catalog.rollback();
-						String tupleStoreDir = String.format("%s%s%s",
-								this.dirctory, File.separator, tableName);
-						TupleStore tupleStore = new FileBasedTupleStore(
-								tupleStoreDir, catalog, segmentSize);
-						tupleStore.rollback();
-						tupleStores.put(tableName, tupleStore);
+						final String tableName = f.getName();
+						Table table = this.register(tableName, new Callable<TupleStore>() {
+							@Override
+							public TupleStore call() throws Exception {
+								return recover(tableName);
+							}
+						});
+						PriorityExecutor.getHighExecutor().execute(table.future);
 					}
 				}
 			}
@@ -118,12 +220,87 @@ public class SharedDataArea {
 		}
 	}
 
+	protected TupleStore recover(final String tableName) throws Exception {
+		Catalog catalog = new Catalog(tableName, this.dirctory);
+		catalog.rollback();
+		String tupleStoreDir = String.format("%s%s%s",
+				this.dirctory, File.separator, tableName);
+		final FileBasedTupleStore tupleStore = new FileBasedTupleStore(
+				tupleStoreDir, catalog, segmentSize, segCache, arena);
+		tupleStore.rollback();
+		log.info(String.format("Recovered %s", tableName));
+		PriorityExecutor.getLowExecutor().execute(new Runnable() {
+			@Override
+			public void run() {
+				int corrupted = tupleStore.verifySegments();
+				log.info(String.format("Verified the segments of %s, %d corrupted", tableName, corrupted));
+			}
+		});
+		return tupleStore;
+	}
+
 	public String toString() {
 		StringBuilder strBuilder = new StringBuilder();
-		for (TupleStore tupleStore : tupleStores.values()) {
-			strBuilder.append(tupleStore).append("\n");
+		for (Table table : tables.values()) {
+			if (table.future.isDone()) {
+				try {
+					strBuilder.append(table.get()).append("\n");
+				} catch (RuntimeException e) {
+					strBuilder.append(table.name).append(": failed\n");
+				}
+			} else {
+				strBuilder.append(table.name).append(": recovering\n");
+			}
+		}
+		if (this.dirctory != null) {
+			strBuilder.append(segCache).append("\n");
 		}
+		strBuilder.append(arena).append("\n");
 		return strBuilder.toString();
 	}
 
+	/** A registered table, and the handle to give it by in the commands. */
+	public class Table {
+		final String name;
+		final int handle;
+		final FutureTask<TupleStore> future;
+		final RowIDLeases leases = new RowIDLeases();
+
+		Table(String name, int handle, FutureTask<TupleStore> future) {
+			this.name = name;
+			this.handle = handle;
+			this.future = future;
+		}
+
+		public int getHandle() {
+			return handle;
+		}
+
+		/** Returns the ranges of row IDs leased to the producers of the table. */
+		public RowIDLeases getLeases() {
+			return leases;
+		}
+
+		/**
+		 * Returns the tuple store; it is created (or recovered) by the caller if
+		 * nobody has started it yet.
+		 */
+		public TupleStore get() {
+			future.run();
+			try {
+				return future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new RuntimeException(e);
+			} catch (ExecutionException e) {
+				if (tables.remove(name, this)) { // So that it can be created again.
+					synchronized (SharedDataArea.this) {
+						handles[handle] = null;
+						handles = handles;
+					}
+				}
+				throw new RuntimeException(String.format("Failed to initialize %s", name), e.getCause());
+			}
+		}
+	}
 }
@@ -46,6 +46,10 @@ public 	class Counter {
 		return this.materialized;
 	}
 
+	synchronized public boolean isRegistered() {
+		return register > 0;
+	}
+
 	synchronized public boolean canBeDeleted() {
 		return materialized && register == 0;
 	}
@@ -26,7 +26,6 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.lang.ref.SoftReference;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
@@ -44,16 +43,18 @@ import java.util.List;
 import java.util.Map;
 import java.util.Observable;
 import java.util.Observer;
-import java.util.Map.Entry;
-import java.util.NavigableMap;
 import java.util.SortedMap;
 import java.util.TreeMap;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.logging.Logger;
 
+import dk.aau.cs.rite.common.BatchHeader;
+import dk.aau.cs.rite.common.PrefixedChannel;
 import dk.aau.cs.rite.common.RiteException;
 import dk.aau.cs.rite.common.Utils;
 import dk.aau.cs.rite.producer.staging.Catalog;
 import dk.aau.cs.rite.server.PingServer;
+import dk.aau.cs.rite.server.PriorityExecutor;
 import dk.aau.cs.rite.server.RiteChannel;
 import dk.aau.cs.rite.sqlparser.SQLType;
 import dk.aau.cs.rite.tuplestore.ud.AlgRel;
@@ -77,45 +78,64 @@ public class FileBasedTupleStore implements TupleStore, Observer {
 	private  int ID; 
 	private Segment curSegment;
 	private int []types;
-	private byte[] tmpRow;
 	private int lastMatRowID; // last materialized rowID which is used for updating the min value in the minMax table.
+	private int lastRowID; // The ID of the last row added; the rows are added in the order of IDs.
+	private int lastUDID; // The ID of the last upsert added; they are added in the order of IDs too.
 	
 	
 	LocalMaterializer localMaterializer;
 	
+	private WriteAheadLog wal; // The flushes since the last backup, replayed in rollback().
+	private boolean replaying;
+	private boolean checkpointPending; // Segment files were deleted, so the backup has to follow.
+	private boolean checkpointing; // A checkpoint is written outside the lock.
+	private List<Integer> sealed = new ArrayList<Integer>(); // The segments dumped since the last checkpoint, synced by the next.
+	private int sealedRowID; // The last row of the sealed segments; the log keeps the rows after it.
+	
+	// The flushes applied to the pending versions, and waiting for the log to be synced.
+	private long unsynced; // The log position of the last of them, 0 if none.
+	private long unsyncedCommit = Long.MIN_VALUE; // The latest commit time of them.
+	private boolean unsyncedRows; // Whether rows are among them, i.e., the min/max has changed.
+	
 	private SortedMap<Long, Locker> reqLockers =  Collections.synchronizedSortedMap(new TreeMap<Long, Locker>());
 	
 	// (commitTime -> maxRowID in a commit (include))
-	private ReadWriteMap<Long, Integer> timeIndex = new ReadWriteMap<Long, Integer>();
+	private VersionedIndex<Integer> timeIndex = new VersionedIndex<Integer>();
 
 	// (minRowID(in a segment) -> counter)
-	private ReadWriteMap<Integer, Counter> registerCounter = new ReadWriteMap<Integer, Counter>();
+	private VersionedIndex<Counter> registerCounter = new VersionedIndex<Counter>();
 
 	// (minRowID(in a segment) -> segmentID)
-	private ReadWriteMap<Integer, Integer> rowIndex = new ReadWriteMap<Integer, Integer>();
+	private VersionedIndex<Integer> rowIndex = new VersionedIndex<Integer>();
+	
+	// (segmentID -> counter). The segment might be not in the cache, then mapped from the backed file.
+	private VersionedIndex<Counter> segIndex = new VersionedIndex<Counter>();
 	
-	// (segmentID -> a segment). The segment might be not in the mem, then read in from the backed file.
-	private ReadWriteMap<Integer, SoftReference<Segment>> segCache = new ReadWriteMap<Integer, SoftReference<Segment>>();
+	private SegmentCache segCache; // Shared by all the tables in the server.
 
-	 public FileBasedTupleStore(String tupleStoreDir, Catalog catalog, int segmentSize) throws RiteException  {
+	private SegmentArena arena; // The segment being written is off-heap.
+
+	 public FileBasedTupleStore(String tupleStoreDir, Catalog catalog, int segmentSize, SegmentCache segCache, SegmentArena arena) throws RiteException  {
 		this.catalog = catalog;
+		this.segCache = segCache;
+		this.arena = arena;
 		this.udStore = new UDStore(catalog, flushEvent);
 		this.types = catalog.getTypeArray();
 		
 		this.localMaterializer = new LocalMaterializer(tupleStoreDir);
+		this.wal = new WriteAheadLog(tupleStoreDir);
 		
 		this.segFilePattern = new StringBuilder(tupleStoreDir).append(File.separator).append("seg%d.dat").toString();
 		this.ID = 0;
 		this.segmentID = 0;
 		this.segmentSize = segmentSize;
-		this.tmpRow = new byte[4096];
 		this.lastMatRowID = -1;
 		
 		this.flushEvent.addObserver(this);
 		this.flushEvent.addObserver(timeIndex);
 		this.flushEvent.addObserver(registerCounter);
 		this.flushEvent.addObserver(rowIndex);
-		this.flushEvent.addObserver(segCache);
+		this.flushEvent.addObserver(segIndex);
 	}
 
 	@Override
@@ -123,44 +143,220 @@ public class FileBasedTupleStore implements TupleStore, Observer {
 		this.pingServer = pingServer;
 	}
 
+	/** Returns the segment acquired, i.e., it must be released after use. */
 	protected Segment getSegment(int segmentID) throws IOException {
-		SoftReference<Segment> sr = segCache.getFromRMap(segmentID);
-		Segment seg = sr.get();
-		if (seg == null) {
-			String fileName = String.format(segFilePattern, segmentID);
-			File dest = new File(fileName);
-			RandomAccessFile raf = new RandomAccessFile(dest, "r");
-			FileChannel channel = raf.getChannel();
-			seg = Segment.readIn(channel);
-			raf.close();
-			sr = new SoftReference<Segment>(seg);
-			segCache.putInRMap(segmentID, sr);
+		for (;;) {
+			Segment seg = segCache.get(this, segmentID);
+			if (seg == null) {
+				String fileName = String.format(segFilePattern, segmentID);
+				seg = Segment.open(new File(fileName)); // Mapped read-only, nothing is read into the heap.
+				seg.acquire();
+				segCache.put(this, segmentID, seg, segIndex.snapshot().get(segmentID), false);
+				return seg;
+			}
+			if (seg.acquire()) // Else it was evicted and freed in between.
+				return seg;
 		}
-		return seg;
 	}
 	
+	/*
+	 * The header of a flush is read from the producer before the lock is
+	 * taken. Under the lock, the order of the rows is checked, and the rows are
+	 * read straight into the current segment, and the record is appended from
+	 * there. The lock is released for the fsync, so that the flushes meanwhile
+	 * share it, and the flushes are published when the log is durable up to
+	 * them, see syncAndPublish().
+	 */
 	@Override
 	public int readRowsIn(ReadableByteChannel channel) throws RiteException{
+		long commitTime;
+		BatchHeader batch = new BatchHeader();
+		ByteBuffer rows;
+		ByteBuffer buf = ByteBuffer.allocate(16384);
+		buf.flip();
 		try {
-			ByteBuffer buf = ByteBuffer.allocate(16384);
-			buf.flip();
-			int read = Utils.ensureForRead(channel, buf, 8);
-			long commitTime = buf.getLong();
-			int numOfRows = this.readRows(channel, buf);
-			if (numOfRows > 0) {
-				timeIndex.put(commitTime, ID);
-				flushEvent.end();
-				updateMinMax();
+			Utils.ensureForRead(channel, buf, 12);
+			commitTime = buf.getLong();
+			rows = batch.readRows(channel, buf, types, buf.getInt()); // Applied and logged as a batch.
+			if (buf.remaining() != 0)
+				throw new IOException("The data does not give the expected number of rows");
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new RiteException(e);
+		}
+		return this.commitRows(commitTime, batch, new PrefixedChannel(rows, null), buf);
+	}
+	
+	@Override
+	public int readBatchIn(ReadableByteChannel channel) throws RiteException {
+		long commitTime;
+		BatchHeader batch;
+		ByteBuffer buf = ByteBuffer.allocate(16384);
+		buf.flip();
+		try {
+			Utils.ensureForRead(channel, buf, 8);
+			commitTime = buf.getLong();
+			batch = BatchHeader.readFrom(channel, buf);
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new RiteException(e);
+		}
+		return this.commitRows(commitTime, batch, channel, buf);
+	}
+	
+	@Override
+	public int addBatch(long commitTime, BatchHeader batch, ReadableByteChannel rows) throws RiteException {
+		ByteBuffer buf = ByteBuffer.allocate(0);
+		return this.commitRows(commitTime, batch, rows, buf);
+	}
+	
+	/**
+	 * Checks the order of the rows of a flush, and adds them from the channel
+	 * (after what is left in buf) under the lock. The record has the same
+	 * bytes as a flush in the bulk flush format: the commit time and the
+	 * header, followed by the rows as they are in the segments. It is
+	 * published when it is durable.
+	 */
+	private int commitRows(long commitTime, BatchHeader batch, ReadableByteChannel rows, ByteBuffer buf) throws RiteException {
+		long pos = 0;
+		int numOfRows;
+		synchronized (this) {
+			WriteAheadLog.Recorder recorder;
+			try {
+				this.checkOrder(batch);
+				recorder = wal.record(WriteAheadLog.BATCH);
+			} catch (IOException e) { // Nothing is read or applied, so nothing is rolled back.
+				throw new RiteException(e);
+			}
+			try {
+				ByteBuffer frame = ByteBuffer.allocate(8 + batch.getEncodedSize());
+				batch.putTo(frame.putLong(commitTime)).flip();
+				recorder.put(frame);
+				numOfRows = this.addRows(batch, rows, buf, recorder);
+				if (numOfRows > 0) {
+					timeIndex.putAtLeast(commitTime, ID); // Another producer may have committed later rows with an earlier time.
+					pos = this.append(recorder, commitTime, true);
+				} else {
+					recorder.discard();
+					this.resumeAfterSync(commitTime);
+				}
+			} catch (Exception e) {
+				e.printStackTrace();
+				recorder.discard();
+				this.fail();
+				throw new RiteException(e);
 			}
+		}
+		this.syncAndPublish(pos);
+		return numOfRows;
+	}
+	
+	/** Appends the log record of the flush just applied. Returns its position in the log. */
+	private long append(WriteAheadLog.Recorder recorder, long commitTime, boolean rows) throws IOException {
+		unsynced = recorder.commit(ID);
+		unsyncedCommit = Math.max(unsyncedCommit, commitTime);
+		unsyncedRows |= rows;
+		return unsynced;
+	}
+	
+	/** Starts a flush on the pending versions, unless flushes wait there for the sync. */
+	private void startFlush() {
+		if (unsynced == 0)
+			flushEvent.start();
+	}
+	
+	/** Resumes the readers waiting for a commit, after the flushes waiting for the sync. */
+	private void resumeAfterSync(long commitTime) {
+		if (unsynced == 0)
 			this.resumeTheWaitingReadThreads(commitTime);
-			return numOfRows;
+		else
+			unsyncedCommit = Math.max(unsyncedCommit, commitTime);
+	}
+	
+	/**
+	 * Waits until the log is durable up to pos, and publishes the flushes
+	 * waiting for it, unless a later flush has been appended meanwhile: the
+	 * one that appended it is syncing and publishes them all, as the pending
+	 * versions are published as a whole.
+	 */
+	private void syncAndPublish(long pos) throws RiteException {
+		if (pos == 0)
+			return;
+		try {
+			wal.sync(pos);
+			synchronized (this) {
+				if (unsynced == 0 || !wal.isSynced(unsynced))
+					return;
+				long commitTime = unsyncedCommit;
+				boolean rows = unsyncedRows;
+				unsynced = 0;
+				unsyncedCommit = Long.MIN_VALUE;
+				unsyncedRows = false;
+				flushEvent.end();
+				if (rows)
+					updateMinMax();
+				this.resumeTheWaitingReadThreads(commitTime);
+			}
 		} catch (Exception e) {
 			e.printStackTrace();
-			flushEvent.fail();
+			this.fail();
 			throw new RiteException(e);
 		}
 	}
 	
+	/** Discards the pending versions, i.e., restores the checkpoint and replays the log. */
+	private synchronized void fail() {
+		flushEvent.fail();
+	}
+	
+	private void replayBatch(ReadableByteChannel channel) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(16384);
+		buf.flip();
+		Utils.ensureForRead(channel, buf, 8);
+		long commitTime = buf.getLong();
+		if (this.addReplayedRows(BatchHeader.readFrom(channel, buf), channel, buf) > 0) {
+			timeIndex.putAtLeast(commitTime, ID);
+			flushEvent.end();
+		}
+	}
+	
+	private void replayRows(ReadableByteChannel channel) throws IOException {
+		ByteBuffer buf = ByteBuffer.allocate(16384);
+		buf.flip();
+		Utils.ensureForRead(channel, buf, 12);
+		long commitTime = buf.getLong();
+		BatchHeader batch = new BatchHeader();
+		ByteBuffer rows = batch.readRows(channel, buf, types, buf.getInt());
+		if (buf.remaining() != 0)
+			throw new IOException("The data does not give the expected number of rows");
+		if (this.addReplayedRows(batch, new PrefixedChannel(rows, null), buf) > 0) {
+			timeIndex.putAtLeast(commitTime, ID);
+			flushEvent.end();
+		}
+	}
+	
+	/**
+	 * Adds the rows of a replayed flush. A flush carried with the rows of the
+	 * segment being filled may begin with rows of the last sealed segment,
+	 * which are in the checkpoint already, and are skipped.
+	 */
+	private int addReplayedRows(BatchHeader batch, ReadableByteChannel channel, ByteBuffer buf) throws IOException {
+		if (batch.size() == 0 || batch.getFirstRowID() > lastRowID)
+			return this.addRows(batch, channel, buf);
+		ByteBuffer rows = ByteBuffer.allocate(batch.getLength());
+		Utils.readFully(channel, buf, rows);
+		BatchHeader rest = new BatchHeader();
+		int from = batch.size();
+		for (int i = batch.size() - 1; i >= 0 && rows.getInt(batch.getEnd(i) - 4) > lastRowID; --i) {
+			from = i;
+		}
+		for (int i = from; i < batch.size(); ++i) {
+			rest.addRow(batch.getEnd(i) - batch.getOffset(i), rows.getInt(batch.getEnd(i) - 4));
+		}
+		rows.position(from < batch.size() ? batch.getOffset(from) : rows.limit());
+		return this.addRows(rest, new PrefixedChannel(rows, null), buf);
+	}
+	
 	final protected void resumeTheWaitingReadThreads(long commitTime) {
 		if (pingServer != null) {
 			long reqCommitTime = 0;
@@ -176,134 +372,173 @@ public class FileBasedTupleStore implements TupleStore, Observer {
 	
 	@Override
 	public int readUDsIn(ReadableByteChannel channel) throws RiteException {
+		return this.readUDsIn(channel, Integer.MIN_VALUE, Integer.MAX_VALUE);
+	}
+	
+	@Override
+	public int readUDsIn(ReadableByteChannel channel, int firstID, int lastID) throws RiteException {
+		WriteAheadLog.Recorder recorder = null;
+		long commitTime;
+		List<ReadUD> uds;
 		try {
+			recorder = wal.record(channel, WriteAheadLog.UD);
 			ByteBuffer buf = ByteBuffer.allocate(16384);
 			buf.flip();
-			int read = Utils.ensureForRead(channel, buf, 8);
-			long commitTime = buf.getLong();
-			int numOfUDs = this.readUDs(commitTime, channel, buf, true);
-			if (numOfUDs>0){
-				flushEvent.end();
-			}
-			return numOfUDs;
+			Utils.ensureForRead(recorder, buf, 8);
+			commitTime = buf.getLong();
+			uds = this.parseUDs(recorder, buf, firstID, lastID);
 		} catch (Exception e) {
 			e.printStackTrace();
-			flushEvent.fail();
+			if (recorder != null)
+				recorder.discard();
 			throw new RiteException(e);
 		}
+		long pos = 0;
+		synchronized (this) {
+			try {
+				this.checkOrder(uds);
+			} catch (IOException e) { // Nothing is applied, so nothing is rolled back.
+				recorder.discard();
+				throw new RiteException(e);
+			}
+			try {
+				this.applyUDs(commitTime, uds, true);
+				if (!uds.isEmpty()) {
+					pos = this.append(recorder, Long.MIN_VALUE, false);
+				} else {
+					recorder.discard();
+				}
+			} catch (Exception e) {
+				e.printStackTrace();
+				recorder.discard();
+				this.fail();
+				throw new RiteException(e);
+			}
+		}
+		this.syncAndPublish(pos);
+		return uds.size();
+	}
+	
+	private void replayUDs(ReadableByteChannel channel) throws IOException {
+		int maxID = ID; // The taken-over records are older than the rows.
+		ByteBuffer buf = ByteBuffer.allocate(16384);
+		buf.flip();
+		Utils.ensureForRead(channel, buf, 8);
+		long commitTime = buf.getLong();
+		if (this.readUDs(commitTime, channel, buf, false) > 0) { // The DW was updated when they were flushed.
+			flushEvent.end();
+		}
+		ID = Math.max(ID, maxID);
 	}
 	
+	/** Reads rows in the format of the old flush, and adds them as a batch. */
 	@Override
 	public int readRows(ReadableByteChannel channel, ByteBuffer buf) throws IOException{
-		int read = Utils.ensureForRead(channel, buf, 4);
-		int numOfRows = buf.getInt();
-		if (numOfRows>0){
-			flushEvent.start();
-			shrink();   //For persistence, 2012.04.24
-		}
-		
-		int n = numOfRows;
-		int rowLength = 0;
-		while (n-- > 0) {
-			rowLength = 0;
-			for (int i = 0; i < types.length; i++) {
-				read = Utils.ensureForRead(channel, buf, 1);
-				Utils.copyBytes(buf, tmpRow, rowLength, 1);
-				rowLength += 1;
-				// Check if the last written byte (the flag) indicated NULL
-				if (tmpRow[rowLength - 1] == IS_NULL)
-					continue;
-				if (tmpRow[rowLength - 1] != IS_NOT_NULL)
-					throw new IOException("Illegal flag value");
-
-				switch (types[i]) {
-				case Types.BIGINT: // i.e. long
-					read = Utils.ensureForRead(channel, buf, 8);
-					Utils.copyBytes(buf, tmpRow, rowLength, 8);
-					rowLength += 8;
-					break;
-				case Types.DATE:
-					// Read it as a string - without any length flag
-					// The length is fixed to 10: YYYY-MM-DD
-					read = Utils.ensureForRead(channel, buf, 10);
-					Utils.copyBytes(buf, tmpRow, rowLength, 10);
-					rowLength += 10;
-					break;
-				case Types.DOUBLE:
-				case Types.FLOAT:
-				case Types.NUMERIC:
-					read = Utils.ensureForRead(channel, buf, 8);
-					Utils.copyBytes(buf, tmpRow, rowLength, 8);
-					rowLength += 8;
-					break;
-				case Types.REAL:
-					read = Utils.ensureForRead(channel, buf, 4);
-					Utils.copyBytes(buf, tmpRow, rowLength, 4);
-					rowLength += 4;
-					break;
-				case Types.INTEGER:
-					read = Utils.ensureForRead(channel, buf, 4);
-					Utils.copyBytes(buf, tmpRow, rowLength, 4);
-					rowLength += 4;
-					break;
-				case Types.LONGVARCHAR:
-				case Types.VARCHAR:
-					/*
-					 * // Code to use if all strings have a length //
-					 * smaller than the SIZE of the input buffer. lastCnt =
-					 * ensureForRead(input, channel, 4); int length =
-					 * input.getInt(); input.position(input.position() - 4);
-					 * // Read length lastCnt = ensureForRead(input,
-					 * channel, length + 4); copyBytesToBuff(input, length +
-					 * 4);
-					 */
-					read = Utils.ensureForRead(channel, buf, 4);
-					int length = buf.getInt();
-					// Also read the length field when
-					// reading again:
-					buf.position(buf.position() - 4);
-					length += 4;
-					int toRead;
-					toRead = Math.min(buf.capacity(), length);
-					while (length > 0) {
-						read = Utils.ensureForRead(channel, buf, toRead);
-						Utils.copyBytes(buf, tmpRow, rowLength, toRead);
-						rowLength += toRead;
-						length -= toRead;
-						toRead = Math.min(buf.capacity(), length);
-					}
-					break;
-				} /* switch */
-			} /* for */
-			
-			ID = Utils.byteArrayToInt(tmpRow, rowLength-4); // The last colvalue is the row ID.
-			addRowToSegment(tmpRow, rowLength);
-		}/* while */
-		
-		if (buf.remaining() != 0 || n>0) {
+		Utils.ensureForRead(channel, buf, 4);
+		BatchHeader batch = new BatchHeader();
+		ByteBuffer rows = batch.readRows(channel, buf, types, buf.getInt());
+		if (buf.remaining() != 0)
 			throw new IOException("The data does not give the expected number of rows");
+		return this.addRows(batch, new PrefixedChannel(rows, null), buf);
+	}
+
+	/** Reads rows in the bulk flush format, see addRows. */
+	@Override
+	public int readBatch(ReadableByteChannel channel, ByteBuffer buf) throws IOException {
+		return this.addRows(BatchHeader.readFrom(channel, buf), channel, buf);
+	}
+
+	/**
+	 * Adds the rows of a batch: the rows that fit in the current segment are
+	 * read from the channel straight into its free space, and are added after
+	 * their IDs are checked. They must be after the rows added before.
+	 */
+	private int addRows(BatchHeader batch, ReadableByteChannel channel, ByteBuffer buf) throws IOException {
+		return this.addRows(batch, channel, buf, null);
+	}
+
+	/** As addRows(), and adds the rows to the log record as they are in the segments. */
+	private int addRows(BatchHeader batch, ReadableByteChannel channel, ByteBuffer buf, WriteAheadLog.Recorder recorder) throws IOException {
+		int numOfRows = batch.size();
+		if (numOfRows == 0)
+			return 0;
+		this.checkOrder(batch);
+		this.startFlush();
+		shrink();
+		int rowID = Integer.MIN_VALUE;
+		for (int i = 0; i < numOfRows;) {
+			this.ensureSegmentFor(batch.getEnd(i) - batch.getOffset(i), 0);
+			int limit = batch.getOffset(i) + curSegment.remaining(); // The rows ending before it fit.
+			int j = i + 1;
+			while (j < numOfRows && batch.getEnd(j) <= limit)
+				++j;
+			int length = batch.getEnd(j - 1) - batch.getOffset(i);
+			Utils.readFully(channel, buf, curSegment.pending(0, length));
+			if (recorder != null)
+				recorder.putRows(curSegment, curSegment.pending(0, length));
+			boolean isFirst = curSegment.getRowCount() == 0;
+			rowID = curSegment.commitRows(batch, i, j, rowID);
+			if (isFirst)
+				this.indexCurrentSegment(curSegment.getFirstRowID());
+			i = j;
 		}
+		if (buf.remaining() != 0)
+			throw new IOException("The data does not give the expected number of rows");
+		ID = lastRowID = rowID;
 		return numOfRows;
 	}
-		
-	protected void addRowToSegment(byte[] rowBytes, int rowLength) throws IOException {
-		boolean isSegDumped = false; 
-		if (curSegment != null && curSegment.remaining() < rowLength) {
-			this.dumpCurrentSegment();
-			isSegDumped = true;
-		}
 
-		if (curSegment == null || isSegDumped) {
-			curSegment = new Segment(segmentSize);
-			segCache.put(segmentID, new SoftReference<Segment>(curSegment));
-			rowIndex.put(ID, segmentID);
-			registerCounter.put(ID, new Counter());
+	/**
+	 * Checks that the rows of a batch are after the rows added before, e.g.,
+	 * that producers with leased IDs commit them in the order of the leases.
+	 */
+	private void checkOrder(BatchHeader batch) throws IOException {
+		if (batch.size() > 0 && batch.getFirstRowID() <= lastRowID)
+			throw new IOException(String.format("The rows %d-%d are not after the row %d", batch.getFirstRowID(), batch.getLastRowID(), lastRowID));
+	}
+
+	/**
+	 * Makes sure that the current segment has room for a row of the given
+	 * length, of which the first pending bytes are already in its free space.
+	 * Otherwise, the row is moved to a new segment, which is larger than the
+	 * segment size if the row is wider.
+	 */
+	private void ensureSegmentFor(int rowLength, int pending) throws IOException {
+		if (curSegment != null && curSegment.remaining() >= rowLength)
+			return;
+		int size = rowLength <= segmentSize ? segmentSize : (pending == 0 ? rowLength : 2 * rowLength);
+		Segment segment = new Segment(arena, size);
+		if (curSegment != null) {
+			if (pending > 0)
+				curSegment.movePending(segment, pending);
+			if (curSegment.getRowCount() > 0)
+				this.dumpCurrentSegment();
+			else
+				curSegment.free(); // Not in the indexes, e.g., a row outgrew it.
 		}
-		curSegment.addRow(tmpRow, rowLength, ID);
+		curSegment = segment;
+	}
+
+	/** Frees the current segment if no rows were added to it, and forgets it. */
+	private void dropCurrentSegment() {
+		if (curSegment != null && curSegment.getRowCount() == 0)
+			curSegment.free();
+		curSegment = null;
+	}
+	
+	/** Adds the current segment to the indexes when its first row is added. */
+	private void indexCurrentSegment(int firstRowID) {
+		Counter counter = new Counter();
+		segCache.put(this, segmentID, curSegment, counter, true); // Pinned until it is dumped.
+		segIndex.put(segmentID, counter);
+		rowIndex.put(firstRowID, segmentID);
+		registerCounter.put(firstRowID, counter);
 	}
 	
 	protected void dumpCurrentSegment() throws IOException { // will increase the segmentID for the next flush
-		if (curSegment != null) {
+		if (curSegment != null && curSegment.getRowCount() == 0) {
+			this.dropCurrentSegment(); // Not in the indexes, so there is nothing to seal.
+		} else if (curSegment != null) {
 			String fileName = String.format(segFilePattern, segmentID);
 			File dest = new File(fileName);
 			RandomAccessFile raf = new RandomAccessFile(dest, "rw");
@@ -312,21 +547,46 @@ public class FileBasedTupleStore implements TupleStore, Observer {
 			curSegment.writeOut(channel);
 			raf.close();
 			//dest.deleteOnExit();
+			segCache.unpinWriting(this, segmentID);
+			sealed.add(segmentID);
+			sealedRowID = curSegment.getLastRowID();
 			++segmentID;
 			curSegment = null;
 		}
 	}
 	
 	public int readUDs(long commitTime, ReadableByteChannel channel, ByteBuffer buf, boolean delRowsInDw) throws IOException { // Save the UDATE/DELETE operations in the UDStore.
+		List<ReadUD> uds = this.parseUDs(channel, buf, Integer.MIN_VALUE, Integer.MAX_VALUE);
+		if (!replaying) // The log also has upserts older than the restored rows.
+			this.checkOrder(uds);
+		return this.applyUDs(commitTime, uds, delRowsInDw);
+	}
+
+	/** An upsert as read from the producer, to be added by applyUDs. */
+	private static class ReadUD {
+		final Operation ud;
+		final String sql;
+		final Map<Integer, Expression> exps;
+		final List<Integer> params;
+
+		ReadUD(Operation ud, String sql, Map<Integer, Expression> exps, List<Integer> params) {
+			this.ud = ud;
+			this.sql = sql;
+			this.exps = exps;
+			this.params = params;
+		}
+	}
+
+	/**
+	 * Reads upserts, whose IDs must be increasing and from firstID to lastID,
+	 * e.g., in the lease of the producer.
+	 */
+	private List<ReadUD> parseUDs(ReadableByteChannel channel, ByteBuffer buf, int firstID, int lastID) throws IOException {
 		//1.Read the number of UD
 		Utils.ensureForRead(channel, buf, 4);
 		int numOfUDs = buf.getInt();
-		if (numOfUDs>0){
-			flushEvent.start();
-			if (!rowIndex.isEmpty())
-				udStore.shrink(this.rowIndex.firstKey());
-		}
-		
+		List<ReadUD> uds = new ArrayList<ReadUD>(Math.max(0, Math.min(numOfUDs, 1024)));
+		long prevID = firstID - 1L;
 		for (int i = 0; i < numOfUDs; ++i) {
 
 			//2.Read type: UPDATE or DELETE
@@ -335,7 +595,10 @@ public class FileBasedTupleStore implements TupleStore, Observer {
 			
 			//3. Read the ID
 			Utils.ensureForRead(channel, buf, 4);
-			this.ID = buf.getInt();
+			int id = buf.getInt();
+			if (id <= prevID || id > lastID)
+				throw new IOException(String.format("The upsert %d is not in %d-%d after %d", id, firstID, lastID, prevID));
+			prevID = id;
 			
 			//4.Read SQL statement
 			Utils.ensureForRead(channel, buf, 4);
@@ -352,16 +615,16 @@ public class FileBasedTupleStore implements TupleStore, Observer {
 			
 			List<Expression> wheres = new ArrayList<Expression>();
 			for (int j=0; j<conds.size(); ++j){
-				int id = conds.get(j);
-				wheres.add(exps.get(id));
+				int cond = conds.get(j);
+				wheres.add(exps.get(cond));
 			}
 			
 			Operation ud = null;
 			if (opType == SQLType.UPDATE.ordinal()) {
 				List<Expression> updates = new ArrayList<Expression>();
-				for (int id: exps.keySet()){
-					if (!conds.contains(id)){
-						updates.add(exps.get(id));
+				for (int exp: exps.keySet()){
+					if (!conds.contains(exp)){
+						updates.add(exps.get(exp));
 					}
 				}
 				ud = new Update(updates, wheres.size() == 0 ? null : wheres.get(0));
@@ -370,20 +633,37 @@ public class FileBasedTupleStore implements TupleStore, Observer {
 			} else {
 				throw new IOException(String.format("Unknown operation type, %d\n", opType));
 			}
-			if (delRowsInDw)
-				this.executeUDForDW(sql, exps, params); // Delete or Update the table in DW.
-			ud.setID(this.ID); // Set the unique ID.
-			udStore.add(ud);
-		}
-		
-		if (numOfUDs>0){// Add the timeIndex for udStore.
-			udStore.put(commitTime, this.ID);
+			ud.setID(id); // Set the unique ID.
+			uds.add(new ReadUD(ud, sql, exps, params));
 		}
 		
 		if (buf.remaining() != 0) {
 			throw new IOException("The data for upserts was corrupted!");
 		}
-		return numOfUDs;
+		return uds;
+	}
+
+	/** Checks that the upserts are after the upserts added before. */
+	private void checkOrder(List<ReadUD> uds) throws IOException {
+		if (!uds.isEmpty() && uds.get(0).ud.getID() <= lastUDID)
+			throw new IOException(String.format("The upsert %d is not after the upsert %d", uds.get(0).ud.getID(), lastUDID));
+	}
+
+	private int applyUDs(long commitTime, List<ReadUD> uds, boolean delRowsInDw) throws IOException {
+		if (uds.isEmpty())
+			return 0;
+		this.startFlush();
+		if (!rowIndex.isPendingEmpty())
+			udStore.shrink((int) this.rowIndex.pendingFirstKey());
+		for (ReadUD read : uds) {
+			if (delRowsInDw)
+				this.executeUDForDW(read.sql, read.exps, read.params); // Delete or Update the table in DW.
+			this.ID = read.ud.getID();
+			udStore.add(read.ud);
+		}
+		lastUDID = this.ID;
+		udStore.put(commitTime, this.ID); // Add the timeIndex for udStore.
+		return uds.size();
 	}
 
 	final protected List<Integer> readIntArr(ReadableByteChannel channel, ByteBuffer buf)throws IOException {
@@ -460,10 +740,9 @@ public class FileBasedTupleStore implements TupleStore, Observer {
 	public boolean register(int minRowID, int maxRowID) {
 	if (pingServer == null) {
 		try {
-			NavigableMap<Integer, Counter> registers = registerCounter.subMap(minRowID, false, maxRowID, false);
+			VersionedIndex.View<Counter> registers = registerCounter.snapshot().subView(minRowID, false, maxRowID, false);
 			log.info(String.format(	"Register %s: min=%d, max=%d, match=%d\n",catalog.getTableName(), minRowID, maxRowID, registers.size()));
-			for (Integer rowID : registers.keySet()) {
-				Counter counter = registers.get(rowID);
+			for (Counter counter : registers) {
 				counter.inc();
 			}
 		}catch(Exception e){
@@ -476,10 +755,9 @@ public class FileBasedTupleStore implements TupleStore, Observer {
 	@Override
 	public void unregister(int minRowID, int maxRowID) {
 		if (pingServer==null){
-			NavigableMap<Integer, Counter> registers = registerCounter.subMap(minRowID, false, maxRowID, false);
+			VersionedIndex.View<Counter> registers = registerCounter.snapshot().subView(minRowID, false, maxRowID, false);
 			log.info(String.format("UNREGISTER %s: min=%d, max=%d, match=%d\n", catalog.getTableName(), minRowID, maxRowID, registers.size()));
-			for (Integer rowID : registers.keySet()) {
-				Counter counter = registers.get(rowID);
+			for (Counter counter : registers) {
 				counter.dec();
 			}
 		}
@@ -488,21 +766,24 @@ public class FileBasedTupleStore implements TupleStore, Observer {
 	protected void ensureAccuracy(WritableByteChannel dest, long queryStartTime, long freshness) throws IOException {
 		long reqCommitTime = queryStartTime - freshness;
 		log.info(String.format("%s requests rows committed before %d\n", catalog.getTableName(), reqCommitTime));
-		if (timeIndex.isEmpty() || timeIndex.lastKey() < reqCommitTime) {
+		if (timeIndex.snapshot().isEmpty() || timeIndex.snapshot().lastKey() < reqCommitTime) {
 			pingServer.setTimeAccuracy(catalog.getTableName(), reqCommitTime);
 			Locker cond = new Locker();
 			reqLockers.put(reqCommitTime, cond);
 			cond.awaitFlush();
 		}
 		
-		Entry<Long, Integer> entry = timeIndex.floorEntry(reqCommitTime);
+		Integer maxRowID = timeIndex.snapshot().floorValue(reqCommitTime);
 		log.info(String.format("Righttime: sending rows %s  reqCommitTime=%d\n", catalog.getTableName(), reqCommitTime));
-		if (entry!=null) {
-			int maxRowID = entry.getValue();
-			NavigableMap<Integer, Integer> toBeExported = rowIndex.headMap(maxRowID, true);
-			for (int segmentID : toBeExported.values()) {
+		if (maxRowID!=null) {
+			VersionedIndex.View<Integer> toBeExported = rowIndex.snapshot().headView(maxRowID, true);
+			for (int segmentID : toBeExported) {
 				Segment segment = this.getSegment(segmentID);
-				segment.transferData(new RiteChannel(dest, queryStartTime, udStore));
+				try {
+					segment.transferData(new RiteChannel(dest, queryStartTime, udStore));
+				} finally {
+					segment.release();
+				}
 			}
 		}
 		
@@ -512,29 +793,38 @@ public class FileBasedTupleStore implements TupleStore, Observer {
 	
 	protected void materialize(BufferedWriter dest, String delim, String nullSubst) throws IOException {
 		this.dumpCurrentSegment();
-		NavigableMap<Integer, Integer> toBeMatted = rowIndex.tailMap(lastMatRowID, false);
-		for (Entry<Integer, Integer> entry : toBeMatted.entrySet()) {
-			int rowID = entry.getKey();
-			Counter counter = this.registerCounter.get(rowID);
+		VersionedIndex.View<Integer> toBeMatted = rowIndex.snapshot().tailView(lastMatRowID, false);
+		VersionedIndex.View<Counter> counters = registerCounter.snapshot();
+		for (int i = 0; i < toBeMatted.size(); ++i) {
+			long rowID = toBeMatted.keyAt(i);
+			Counter counter = counters.get(rowID);
 			if (!counter.isMaterialized()) {
-				int segmentID = entry.getValue();
+				int segmentID = toBeMatted.valueAt(i);
 				Segment segment = this.getSegment(segmentID);
-				segment.materialize(new RiteChannel(dest, System.currentTimeMillis(), udStore), delim, nullSubst);
+				try {
+					segment.materialize(new RiteChannel(dest, System.currentTimeMillis(), udStore), delim, nullSubst);
+				} finally {
+					segment.release();
+				}
 				counter.markMaterialized();
 				lastMatRowID = segment.getLastRowID();
 			}
 		}
-		this.curSegment = null;
+		this.dropCurrentSegment();
 	}
 
 
 	@Override
 	public void writeRowsTo(WritableByteChannel dest, int minRowID, int maxRowID, long queryStartTime) throws IOException {
-		NavigableMap<Integer, Integer> toBeExported = this.rowIndex.subMap(minRowID, false, maxRowID, false);
+		VersionedIndex.View<Integer> toBeExported = this.rowIndex.snapshot().subView(minRowID, false, maxRowID, false);
 		log.info(String.format("Realtime: sending rows %s: min=%d, max=%d, matches=%d\n", catalog.getTableName(), minRowID, maxRowID, toBeExported.size()));
-		for (int segmentID : toBeExported.values()) {
+		for (int segmentID : toBeExported) {
 			Segment segment = this.getSegment(segmentID);
-			segment.transferData(new RiteChannel(dest, queryStartTime, udStore), minRowID, maxRowID);
+			try {
+				segment.transferData(new RiteChannel(dest, queryStartTime, udStore), minRowID, maxRowID);
+			} finally {
+				segment.release();
+			}
 		}
 		
 	}	
@@ -558,20 +848,22 @@ public class FileBasedTupleStore implements TupleStore, Observer {
 	    }
 		
 		protected void shrink() {
-			Entry<Integer, Counter> entry;
-			NavigableMap<Integer, Counter> regs = registerCounter.getWritableMap();
-			while ((entry = regs.firstEntry()) != null && entry.getValue().canBeDeleted()) {
-				int rowID = entry.getKey();
-				regs.pollFirstEntry();
-				int segmentID = rowIndex.getWritableMap().get(rowID);
+			while (!registerCounter.isPendingEmpty() && registerCounter.pendingFirstValue().canBeDeleted()) {
+				long rowID = registerCounter.pendingFirstKey();
+				registerCounter.pollFirst();
+				rowIndex.truncateHead(rowID);
+				if (rowIndex.isPendingEmpty() || rowIndex.pendingFirstKey() != rowID)
+					continue;
+				int segmentID = rowIndex.pendingFirstValue();
+				rowIndex.pollFirst();
 				String fileName = String.format(segFilePattern, segmentID);
 				File segFile = new File(fileName);
 				segFile.delete();
-				segCache.getWritableMap().remove(segmentID);
-				rowIndex.getWritableMap().remove(rowID);
-				NavigableMap<Long, Integer> tIdx = timeIndex.getWritableMap();
-				while (tIdx.size() > 0 && tIdx.firstEntry().getValue() < rowID) {
-					tIdx.pollFirstEntry();
+				checkpointPending = true;
+				segIndex.truncateHead(segmentID + 1);
+				segCache.remove(this, segmentID);
+				while (!timeIndex.isPendingEmpty() && timeIndex.pendingFirstValue() < rowID) {
+					timeIndex.pollFirst();
 				}
 			}
 		}
@@ -645,6 +937,7 @@ public class FileBasedTupleStore implements TupleStore, Observer {
 			pstmtForMinmax.close();
 
 			file.delete();
+			this.backup(); // Saves that the segments are materialized.
 		} catch (IOException ioe){
 			throw new RiteException(ioe);
 		} catch (SQLException e) {
@@ -691,7 +984,17 @@ public class FileBasedTupleStore implements TupleStore, Observer {
 	
 	@Override
 	public void close(){
+		synchronized (this) {
+			try {
+				while (checkpointing)
+					this.wait(); // It uses the log.
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
 		Utils.closeQuietly(jdbcConnection);
+		segCache.removeAll(this);
+		wal.close();
 	}
 
 	@Override
@@ -700,46 +1003,244 @@ public class FileBasedTupleStore implements TupleStore, Observer {
 	}
 	
 
-	protected void backup(){
+	/**
+	 * The checkpoint: backs up the indexes of the sealed segments, and
+	 * truncates the log. Done when the log has grown to a segment, instead of
+	 * on every flush. The state is taken under the lock, when the flushes
+	 * applied are published, and it is written by the low-priority executor,
+	 * so that the flushes go on meanwhile. The segment being filled is not
+	 * sealed for it; its rows are carried in the log.
+	 */
+	private void startCheckpoint() {
+		final Checkpoint cp;
+		try {
+			cp = this.takeCheckpoint();
+		} catch (IOException e) {
+			e.printStackTrace();
+			return;
+		}
 		try {
-			localMaterializer.materializeOthers(segmentSize, segmentID, ID, lastMatRowID);
-			this.dumpCurrentSegment();
-			localMaterializer.materializeRegCounter(registerCounter);
-			localMaterializer.materializeSegCache(segCache);
-			localMaterializer.materializeTimeIndex(timeIndex);
-			localMaterializer.materializeRowIndex(rowIndex);
-			localMaterializer.materializeUDStore(udStore);
-			localMaterializer.finalize();
+			PriorityExecutor.getLowExecutor().execute(new Runnable() {
+				@Override
+				public void run() {
+					writeCheckpoint(cp);
+				}
+			});
+		} catch (RejectedExecutionException e) { // Shutting down
+			this.writeCheckpoint(cp);
+		}
+	}
+
+	/** Takes a checkpoint and waits until it is written, e.g., to save that the segments are materialized. */
+	protected void backup() {
+		Checkpoint cp;
+		synchronized (this) {
+			try {
+				while (checkpointing)
+					this.wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				checkpointPending = true;
+				return;
+			}
+			if (unsynced != 0) { // Taken when they are published.
+				checkpointPending = true;
+				return;
+			}
+			try {
+				cp = this.takeCheckpoint();
+			} catch (IOException e) {
+				e.printStackTrace();
+				return;
+			}
+		}
+		this.writeCheckpoint(cp);
+	}
+
+	/** Takes the state of the sealed segments, and rotates the log. Called under the lock. */
+	private Checkpoint takeCheckpoint() throws IOException {
+		Checkpoint cp = new Checkpoint();
+		cp.firstRowID = curSegment != null && curSegment.getRowCount() > 0 ? curSegment.getFirstRowID() : Integer.MAX_VALUE;
+		VersionedIndex.View<Integer> rows = rowIndex.snapshot();
+		cp.minID = rows.isEmpty() ? Integer.MIN_VALUE : (int) rows.firstKey();
+		cp.rows = rows.headView(cp.firstRowID, false);
+		cp.counters = registerCounter.snapshot().headView(cp.firstRowID, false);
+		cp.commits = commitsBefore(timeIndex.snapshot(), cp.firstRowID);
+		cp.generation = wal.rotate();
+		int lastRowID = cp.firstRowID == Integer.MAX_VALUE ? this.lastRowID : sealedRowID;
+		cp.others = new int[] { segmentSize, segmentID, ID, lastMatRowID, cp.generation, lastRowID };
+		cp.sealed = sealed;
+		sealed = new ArrayList<Integer>();
+		checkpointPending = false;
+		checkpointing = true;
+		return cp;
+	}
+
+	// The commits whose rows are all before the given row; their last row IDs are in order.
+	private static VersionedIndex.View<Integer> commitsBefore(VersionedIndex.View<Integer> commits, int rowID) {
+		int n = commits.size();
+		while (n > 0 && commits.valueAt(n - 1) >= rowID)
+			--n;
+		if (n == commits.size())
+			return commits;
+		return n == 0 ? commits.headView(commits.firstKey(), false) : commits.headView(commits.keyAt(n - 1), true);
+	}
+
+	/** Writes a checkpoint outside the lock. */
+	private void writeCheckpoint(Checkpoint cp) {
+		boolean done = false;
+		try {
+			for (int id : cp.sealed) {
+				File file = new File(String.format(segFilePattern, id));
+				if (file.exists()) { // Else deleted by shrink() meanwhile
+					RandomAccessFile raf = new RandomAccessFile(file, "rw");
+					try {
+						raf.getChannel().force(false);
+					} finally {
+						raf.close();
+					}
+				}
+			}
+			wal.carry(cp.generation, cp.minID, cp.firstRowID);
+			localMaterializer.materializeOthers(cp.others);
+			localMaterializer.materializeRegCounter(cp.counters);
+			localMaterializer.materializeTimeIndex(cp.commits);
+			localMaterializer.materializeRowIndex(cp.rows);
+			localMaterializer.writeCheckpoint();
+			wal.dropBefore(cp.generation);
+			done = true;
 		} catch (Exception e) {
 			e.printStackTrace();
+		} finally {
+			synchronized (this) {
+				if (!done) {
+					sealed.addAll(0, cp.sealed);
+					checkpointPending = true; // Tried again after the next flush.
+				}
+				checkpointing = false;
+				this.notifyAll();
+			}
 		}
 	}
+
+	/** The state of a checkpoint, taken under the lock. */
+	private static class Checkpoint {
+		int firstRowID; // Of the segment being filled, whose rows stay in the log.
+		int minID; // Of the rows in the store, i.e., of the upserts in use.
+		int generation;
+		int[] others;
+		VersionedIndex.View<Integer> rows, commits;
+		VersionedIndex.View<Counter> counters;
+		List<Integer> sealed;
+	}
 	
+	/** Restores the last checkpoint, and replays the log on top of it. */
 	@Override
-	public void rollback(){
+	public synchronized void rollback(){
 		try {
-			localMaterializer.rollbackRegCounter(registerCounter);
-			if (!registerCounter.isEmpty()){
-				localMaterializer.rollbackSegCache(segCache);
+			while (checkpointing)
+				this.wait(); // It uses the log.
+			int generation = 0;
+			this.dropCurrentSegment();
+			segCache.removeAll(this);
+			if (localMaterializer.load()){
+				localMaterializer.rollbackRegCounter(registerCounter);
 				localMaterializer.rollbackTimeIndex(timeIndex);
 				localMaterializer.rollbackRowIndex(rowIndex);
-				localMaterializer.rollbackUDStore(udStore);
+				this.rollbackSegIndex();
 				int []others = localMaterializer.rollbackOthers();
 				this.segmentSize = others[0];
 				this.segmentID = others[1];
 				this.ID = others[2];
 				this.lastMatRowID = others[3];
+				generation = others[4];
+				VersionedIndex.View<Integer> commits = timeIndex.snapshot(); // Its values are the last row IDs.
+				this.lastRowID = others.length > 5 ? others[5] : (commits.isEmpty() ? 0 : commits.valueAt(commits.size() - 1));
+			} else {
+				for (VersionedIndex<?> index : new VersionedIndex<?>[] { timeIndex, registerCounter, rowIndex, segIndex }) {
+					index.clear();
+					index.publish();
+				}
+				this.segmentID = 0;
+				this.ID = 0;
+				this.lastMatRowID = -1;
+				this.lastRowID = 0;
+			}
+			this.lastUDID = 0;
+			this.sealedRowID = this.lastRowID;
+			this.sealed.clear();
+			this.unsynced = 0; // Replayed and published, if they made it to the log.
+			this.unsyncedCommit = Long.MIN_VALUE;
+			this.unsyncedRows = false;
+			udStore.clear(); // Not in the backup; the log keeps the ones in use.
+			wal.open(generation);
+			replaying = true;
+			try {
+				int n = wal.replay(new WriteAheadLog.Handler() {
+					@Override
+					public void apply(byte type, ReadableByteChannel payload) throws IOException {
+						if (type == WriteAheadLog.DATA) {
+							replayRows(payload);
+						} else if (type == WriteAheadLog.BATCH) {
+							replayBatch(payload);
+						} else {
+							replayUDs(payload);
+						}
+					}
+				});
+				log.info(String.format("%s: replayed %d flushes from the log\n", catalog.getTableName(), n));
+			} finally {
+				replaying = false;
 			}
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
 	}
 	
+	// The segments are those in the rowIndex, and share the counters with the registerCounter.
+	private void rollbackSegIndex() {
+		VersionedIndex.View<Integer> rows = rowIndex.snapshot();
+		VersionedIndex.View<Counter> counters = registerCounter.snapshot();
+		segIndex.clear();
+		for (int i = 0; i < rows.size(); ++i) {
+			Counter counter = counters.get(rows.keyAt(i));
+			segIndex.put(rows.valueAt(i), counter == null ? new Counter(0, true) : counter);
+		}
+		segIndex.publish();
+	}
+	
+	/**
+	 * Checks the segment files against their checksums. Run in the background
+	 * after the recovery, as it reads all the files.
+	 * 
+	 * @return the number of corrupted segment files
+	 */
+	public int verifySegments() {
+		int corrupted = 0;
+		VersionedIndex.View<Counter> segs = segIndex.snapshot();
+		for (int i = 0; i < segs.size(); ++i) {
+			File file = new File(String.format(segFilePattern, segs.keyAt(i)));
+			try {
+				if (file.exists() && !Segment.verify(file)) {
+					log.severe(String.format("%s: the checksum of %s does not match", catalog.getTableName(), file));
+					++corrupted;
+				}
+			} catch (IOException e) {
+				if (file.exists()) { // Else deleted by shrink() meanwhile
+					log.severe(String.format("%s: failed to verify %s, %s", catalog.getTableName(), file, e));
+					++corrupted;
+				}
+			}
+		}
+		return corrupted;
+	}
+	
 	@Override
 	public void update(Observable o, Object arg) {
 		switch ((FlushEvent.event) arg) {
 		case FLUSH_SUCCESS:
-			this.backup();
+			if (!replaying && !checkpointing && (checkpointPending || wal.getLogged() >= segmentSize))
+				this.startCheckpoint();
 			break;
 		case FLUSH_FAIL:
 			rollback();
@@ -1,300 +1,434 @@
 package dk.aau.cs.rite.tuplestore;
 
-import java.io.BufferedOutputStream;
-import java.io.BufferedWriter;
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.RandomAccessFile;
-import java.io.Writer;
-import java.lang.ref.SoftReference;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
-import java.util.Iterator;
-import java.util.Map.Entry;
-import java.util.NavigableMap;
-import java.util.Set;
+import java.util.zip.CRC32;
 
 import dk.aau.cs.rite.common.RiteException;
 import dk.aau.cs.rite.common.Utils;
-import dk.aau.cs.rite.tuplestore.ud.UDStore;
 
+/**
+ * Backs up the indexes of a file-based tuple store incrementally. A checkpoint
+ * appends one record to the delta file with only what changed since the
+ * previous one: the new head of each index (the entries before it have been
+ * dropped) and the entries added since. Once the deltas have grown larger than
+ * the base, the next checkpoint is written as a new base instead. A record is
+ * built in one buffer, and written and synced by one call.
+ * <p>
+ * Record: length (int)|CRC32 (int)|sequence (long)|misc|register
+ * counters|time index|row index, where misc is: count (int)|count * int, and
+ * an index is: head key (long)|count (int)|count * (key (long)|value (int)).
+ * The register counters are preceded by the first key that is not
+ * materialized (long).
+ */
 public class LocalMaterializer {
 
-	private String tmpDir, finalizedDir;
+	private static final int MIN_COMPACT_SIZE = 64 * 1024;
 
-	// tmp=/path/to/backup/order/tmp/
-	// finalized = /path/to/backup/order/finalized
+	private String checkpointDir;
+	private String tmpDir, finalizedDir; // The full backups of older versions, only read once.
+	private File baseFile, deltaFile;
 
-	public LocalMaterializer(String tupleStoreDir) throws RiteException {
-		this.tmpDir = String.format("%s%s%s%s", tupleStoreDir, File.separator,
-				"tmp", File.separator);
-		this.finalizedDir = String.format("%s%s%s%s", tupleStoreDir,
-				File.separator, "finalized", File.separator);
+	private long seq;
+	private boolean compactNext;
+
+	// The last keys in the checkpoint. The entries from these on go into the next delta.
+	private long lastRegKey, lastTimeKey, lastRowKey;
+
+	// The next checkpoint
+	private int[] others = new int[0];
+	private VersionedIndex.View<Counter> regView;
+	private VersionedIndex.View<Integer> timeView, rowView;
 
+	private Checkpoint loaded; // Read by load(), for the rollback loaders.
+
+	// checkpoint = /path/to/backup/order/checkpoint/{base,delta}
+
+	public LocalMaterializer(String tupleStoreDir) throws RiteException {
+		this.checkpointDir = String.format("%s%s%s%s", tupleStoreDir, File.separator, "checkpoint", File.separator);
+		this.tmpDir = String.format("%s%s%s%s", tupleStoreDir, File.separator, "tmp", File.separator);
+		this.finalizedDir = String.format("%s%s%s%s", tupleStoreDir, File.separator, "finalized", File.separator);
+		this.baseFile = new File(checkpointDir, "base");
+		this.deltaFile = new File(checkpointDir, "delta");
+		this.resetKeys();
 		try {
-			Utils.mkdir(new File(this.tmpDir));
-			Utils.mkdir(new File(this.finalizedDir));
+			Utils.mkdir(new File(this.checkpointDir));
 		} catch (IOException e) {
 			throw new RiteException(e);
 		}
 	}
 
-	public void materializeTimeIndex(ReadWriteMap<Long, Integer> timeIndex)
-			throws RiteException {
+	private void resetKeys() {
+		this.lastRegKey = Long.MIN_VALUE;
+		this.lastTimeKey = Long.MIN_VALUE;
+		this.lastRowKey = Long.MIN_VALUE;
+	}
+
+	public void materializeTimeIndex(VersionedIndex.View<Integer> timeIndex) throws RiteException {
+		this.timeView = timeIndex;
+	}
+
+	public void materializeRegCounter(VersionedIndex.View<Counter> registerCounter) throws RiteException {
+		this.regView = registerCounter;
+	}
+
+	public void materializeRowIndex(VersionedIndex.View<Integer> rowIndex) throws RiteException {
+		this.rowView = rowIndex;
+	}
+
+	public void materializeOthers(int... args) throws RiteException {
+		this.others = args;
+	}
+
+	/** Writes the checkpoint, as a delta or, when it is time to compact, as a new base. */
+	public void writeCheckpoint() throws RiteException {
 		try {
-			String filePath = String.format("%s%s", this.tmpDir, "timeindex");
-			NavigableMap<Long, Integer> wMap = timeIndex.getWritableMap();
-			if (!wMap.isEmpty()) {
-				File f = new File(filePath);
-				RandomAccessFile raf = new RandomAccessFile(f, "rw");
-				Set<Entry<Long, Integer>> entries = wMap.entrySet();
-				Iterator<Entry<Long, Integer>> itr = entries.iterator();
-				while (itr.hasNext()) {
-					Entry<Long, Integer> entry = itr.next();
-					long key = entry.getKey().longValue();
-					int value = entry.getValue().intValue();
-					raf.writeLong(key);
-					raf.writeInt(value);
+			++seq;
+			boolean compact = compactNext || (deltaFile.length() > Math.max(MIN_COMPACT_SIZE, baseFile.length()));
+			ByteBuffer record = this.encode(compact);
+			if (compact) {
+				File tmp = new File(checkpointDir, "base.tmp");
+				write(tmp, record, false);
+				if (!tmp.renameTo(baseFile)) {
+					baseFile.delete();
+					if (!tmp.renameTo(baseFile))
+						throw new IOException("Failed to replace " + baseFile);
+				}
+				new FileOutputStream(deltaFile).close(); // Truncated, its records are in the base.
+				if (compactNext) {
+					Utils.deleteDirectory(new File(this.finalizedDir));
+					Utils.deleteDirectory(new File(this.tmpDir));
+					compactNext = false;
 				}
-				raf.close();
+			} else {
+				write(deltaFile, record, true);
 			}
-		} catch (Exception e) {
+			if (regView != null && !regView.isEmpty())
+				lastRegKey = regView.lastKey();
+			if (timeView != null && !timeView.isEmpty())
+				lastTimeKey = timeView.lastKey();
+			if (rowView != null && !rowView.isEmpty())
+				lastRowKey = rowView.lastKey();
+		} catch (IOException e) {
+			--seq;
 			throw new RiteException(e);
+		} finally {
+			regView = null;
+			timeView = null;
+			rowView = null;
 		}
 	}
 
-	public void rollbackTimeIndex(ReadWriteMap<Long, Integer> timeIndex)
-			throws RiteException {
-		try {
-			String filePath = String.format("%s%s", this.finalizedDir,
-					"timeindex");
-
-			NavigableMap<Long, Integer> rMap = timeIndex.getReadableMap();
-			RandomAccessFile raf = new RandomAccessFile(new File(filePath), "r");
-
-			long len = raf.length();
-			int cnt = 0;
-			while (cnt < len) {
-				long time = raf.readLong();
-				int rowID = raf.readInt();
-				rMap.put(time, rowID);
-				cnt += 8+4;
-			}
-			raf.close();
-		} catch (Exception e) {
-			throw new RiteException(e);
+	private ByteBuffer encode(boolean full) {
+		VersionedIndex.View<Counter> regs = full || regView == null ? regView : regView.tailView(lastRegKey, true);
+		VersionedIndex.View<Integer> times = full || timeView == null ? timeView : timeView.tailView(lastTimeKey, true);
+		VersionedIndex.View<Integer> rows = full || rowView == null ? rowView : rowView.tailView(lastRowKey, true);
+		int size = 4 + 4 + 8 + 4 + 4 * others.length + 8 + 3 * (8 + 4)
+				+ 12 * (sizeOf(regs) + sizeOf(times) + sizeOf(rows));
+		ByteBuffer buf = ByteBuffer.allocate(size);
+		buf.position(8);
+		buf.putLong(seq);
+		buf.putInt(others.length);
+		for (int arg : others) {
+			buf.putInt(arg);
 		}
-		
+		buf.putLong(firstNotMaterialized(regView));
+		putIndex(buf, regView, regs);
+		putIndex(buf, timeView, times);
+		putIndex(buf, rowView, rows);
+		CRC32 checksum = new CRC32();
+		checksum.update(buf.array(), 8, size - 8);
+		buf.putInt(0, size - 8);
+		buf.putInt(4, (int) checksum.getValue());
+		buf.flip();
+		return buf;
 	}
 
-	public void materializeRegCounter(
-			ReadWriteMap<Integer, Counter> registerCounter)
-			throws RiteException {
-		try {
-			String filePath = String.format("%s%s", this.tmpDir, "registerCounter");
-			NavigableMap<Integer, Counter> wMap = registerCounter.getWritableMap();
-			if (!wMap.isEmpty()) {
-				File f = new File(filePath);
-				RandomAccessFile raf = new RandomAccessFile(f, "rw");
-				//BufferedWriter fa = new BufferedWriter(new FileWriter(raf));
-				
-				//FileOutputStream fos = new FileOutputStream(raf);
-
-				Set<Entry<Integer, Counter>> entries = wMap.entrySet();
-				Iterator<Entry<Integer, Counter>> itr = entries.iterator();
-				while (itr.hasNext()) {
-					Entry<Integer, Counter> entry = itr.next();
-					int key = entry.getKey().intValue();
-					Counter counter = entry.getValue();
-					if (!counter.canBeDeleted()) {
-						int value = counter.isMaterialized() ? 1 : 0;
-						//raf.write(Utils.intToByteArray(key));
-						//raf.write(Utils.intToByteArray(value));
-						raf.writeInt(key);
-						raf.writeInt(value);
-					}
-				}
-				//raf.flush();
-				raf.close();
-				//fos.close();
-			}
-		} catch (Exception e) {
-			throw new RiteException(e);
+	private static int sizeOf(VersionedIndex.View<?> view) {
+		return view == null ? 0 : view.size();
+	}
+
+	// The counters are materialized in the order of their keys.
+	private static long firstNotMaterialized(VersionedIndex.View<Counter> view) {
+		if (view == null)
+			return Long.MIN_VALUE;
+		for (int i = 0; i < view.size(); ++i) {
+			if (!view.valueAt(i).isMaterialized())
+				return view.keyAt(i);
+		}
+		return Long.MAX_VALUE;
+	}
+
+	private static void putIndex(ByteBuffer buf, VersionedIndex.View<?> view, VersionedIndex.View<?> added) {
+		if (view == null) { // Not changed
+			buf.putLong(Long.MIN_VALUE).putInt(0);
+			return;
+		}
+		buf.putLong(view.isEmpty() ? Long.MAX_VALUE : view.firstKey());
+		buf.putInt(added.size());
+		for (int i = 0; i < added.size(); ++i) {
+			Object value = added.valueAt(i);
+			buf.putLong(added.keyAt(i));
+			buf.putInt(value instanceof Counter ? (((Counter) value).isMaterialized() ? 1 : 0) : ((Integer) value).intValue());
 		}
 	}
 
-	public void rollbackRegCounter(
-			ReadWriteMap<Integer, Counter> registerCounter)
-			throws RiteException {
+	private static void write(File file, ByteBuffer record, boolean append) throws IOException {
+		FileOutputStream out = new FileOutputStream(file, append);
 		try {
-			String filePath = String.format("%s%s", this.finalizedDir,"registerCounter");
-			File file = new File(filePath);
-			if (file.exists()){
-				NavigableMap<Integer, Counter> rMap = registerCounter.getReadableMap();
-				RandomAccessFile raf = new RandomAccessFile(file, "r");
-				long len = raf.length();
-				int cnt = 0;
-				while (cnt < len) {
-					int rowID = raf.readInt();
-					int flag = raf.readInt();
-					rMap.put(rowID, new Counter(0, flag == 1));
-					cnt += 4 * 2;
-				}
-				raf.close();
+			FileChannel channel = out.getChannel();
+			while (record.hasRemaining()) {
+				channel.write(record);
 			}
-		} catch (Exception e) {
-			throw new RiteException(e);
+			channel.force(false);
+		} finally {
+			out.close();
 		}
-
 	}
 
-	public void materializeRowIndex(ReadWriteMap<Integer, Integer> rowIndex)
-			throws RiteException {
+	/**
+	 * Reads the last checkpoint for the rollback loaders: the base, and then
+	 * the deltas after it. A record that was not completely written ends the
+	 * deltas.
+	 *
+	 * @return false if there is no checkpoint
+	 */
+	public boolean load() throws RiteException {
 		try {
-			String filePath = String.format("%s%s", this.tmpDir, "rowIndex");
-			NavigableMap<Integer, Integer> wMap = rowIndex.getWritableMap();
-			if (!wMap.isEmpty()) {
-				File f = new File(filePath);
-				RandomAccessFile raf = new RandomAccessFile(f, "rw");
-				Set<Entry<Integer, Integer>> entries = wMap.entrySet();
-				Iterator<Entry<Integer, Integer>> itr = entries.iterator();
-				while (itr.hasNext()) {
-					Entry<Integer, Integer> entry = itr.next();
-					int key = entry.getKey().intValue();
-					int value = entry.getValue().intValue();
-					raf.writeInt(key);
-					raf.writeInt(value);
+			Checkpoint cp = new Checkpoint();
+			boolean found = false;
+			long baseSeq = 0;
+			if (baseFile.exists()) {
+				ByteBuffer buf = readAll(baseFile);
+				if (cp.apply(buf)) {
+					found = true;
+					baseSeq = cp.seq;
 				}
-				raf.close();
 			}
-		} catch (Exception e) {
+			if (deltaFile.exists()) {
+				ByteBuffer buf = readAll(deltaFile);
+				while (buf.remaining() >= 16) {
+					int mark = buf.position();
+					if (!cp.apply(buf)) { // Torn tail, cut off so that new deltas follow the valid ones.
+						RandomAccessFile raf = new RandomAccessFile(deltaFile, "rw");
+						raf.setLength(mark);
+						raf.close();
+						break;
+					}
+					found |= cp.seq > baseSeq;
+				}
+			}
+			if (!found && new File(finalizedDir, "misc").exists()) {
+				cp = loadFinalized();
+				found = true;
+				compactNext = true; // Rewritten in the new format by the next checkpoint.
+			}
+			this.resetKeys();
+			this.seq = found ? cp.seq : 0;
+			this.loaded = found ? cp : null;
+			if (found) {
+				lastRegKey = cp.reg.lastKey(lastRegKey);
+				lastTimeKey = cp.time.lastKey(lastTimeKey);
+				lastRowKey = cp.row.lastKey(lastRowKey);
+			}
+			return found;
+		} catch (IOException e) {
 			throw new RiteException(e);
 		}
 	}
 
-	public void rollbackRowIndex(ReadWriteMap<Integer, Integer> rowIndex)
-			throws RiteException {
+	private static ByteBuffer readAll(File file) throws IOException {
+		FileInputStream in = new FileInputStream(file);
 		try {
-			String filePath = String.format("%s%s", this.finalizedDir,"rowIndex");
-
-			NavigableMap<Integer, Integer> rMap = rowIndex.getReadableMap();
-			RandomAccessFile raf = new RandomAccessFile(new File(filePath), "r");
-
-			long len = raf.length();
-			int cnt = 0;
-			while (cnt < len) {
-				int rowID = raf.readInt();
-				int segID = raf.readInt();
-				rMap.put(rowID, segID);
-				cnt += 4 * 2;
-			}
-			raf.close();
-		} catch (Exception e) {
-			throw new RiteException(e);
+			FileChannel channel = in.getChannel();
+			ByteBuffer buf = ByteBuffer.allocate((int) channel.size());
+			while (buf.hasRemaining() && channel.read(buf) != -1)
+				;
+			buf.flip();
+			return buf;
+		} finally {
+			in.close();
 		}
 	}
 
-	public void materializeSegCache(
-			ReadWriteMap<Integer, SoftReference<Segment>> segCache)
-			throws RiteException {
-		try {
-			String filePath = String.format("%s%s", this.tmpDir, "segCache");
-			NavigableMap<Integer, SoftReference<Segment>> wMap = segCache
-					.getWritableMap();
-			if (!wMap.isEmpty()) {
-				File f = new File(filePath);
-				RandomAccessFile raf = new RandomAccessFile(f, "rw");
-				Set<Entry<Integer, SoftReference<Segment>>> entries = wMap
-						.entrySet();
-				Iterator<Entry<Integer, SoftReference<Segment>>> itr = entries
-						.iterator();
-				while (itr.hasNext()) {
-					Entry<Integer, SoftReference<Segment>> entry = itr.next();
-					int key = entry.getKey().intValue();
-					raf.writeInt(key);
-				}
-				raf.close();
+	public void rollbackRegCounter(VersionedIndex<Counter> registerCounter) throws RiteException {
+		registerCounter.clear();
+		if (loaded != null) {
+			Entries e = loaded.reg;
+			for (int i = e.head; i < e.tail; ++i) {
+				boolean materialized = e.values[i] == 1 || e.keys[i] < loaded.materializedTo;
+				registerCounter.put(e.keys[i], new Counter(0, materialized));
 			}
-		} catch (Exception e) {
-			throw new RiteException(e);
 		}
+		registerCounter.publish();
 	}
 
-	public void rollbackSegCache(
-			ReadWriteMap<Integer, SoftReference<Segment>> segCache)
-			throws RiteException {
-		try {
-			String filePath = String.format("%s%s", this.finalizedDir,"segCache");
+	public void rollbackTimeIndex(VersionedIndex<Integer> timeIndex) throws RiteException {
+		rollbackIndex(loaded == null ? null : loaded.time, timeIndex);
+	}
 
-			NavigableMap<Integer, SoftReference<Segment>> rMap = segCache.getReadableMap();
-			RandomAccessFile raf = new RandomAccessFile(new File(filePath), "r");
+	public void rollbackRowIndex(VersionedIndex<Integer> rowIndex) throws RiteException {
+		rollbackIndex(loaded == null ? null : loaded.row, rowIndex);
+	}
 
-			long len = raf.length();
-			int cnt = 0;
-			while (cnt < len) {
-				int segID = raf.readInt();
-				rMap.put(segID, new SoftReference<Segment>(null));
-				cnt += 4;
+	private static void rollbackIndex(Entries e, VersionedIndex<Integer> index) {
+		index.clear();
+		if (e != null) {
+			for (int i = e.head; i < e.tail; ++i) {
+				index.put(e.keys[i], e.values[i]);
 			}
-			raf.close();
-		} catch (Exception e) {
-			throw new RiteException(e);
 		}
+		index.publish();
+	}
 
+	/** Returns the values saved by materializeOthers(), at least five (zero if not saved). */
+	public int[] rollbackOthers() throws RiteException {
+		int[] others = new int[Math.max(5, loaded == null ? 0 : loaded.others.length)];
+		if (loaded != null) {
+			System.arraycopy(loaded.others, 0, others, 0, Math.min(others.length, loaded.others.length));
+		}
+		return others;
 	}
 
-	public void materializeOthers(int... args) throws RiteException {
+	// Reads the full backup of the older versions.
+	private Checkpoint loadFinalized() throws IOException {
+		Checkpoint cp = new Checkpoint();
+		DataInputStream in = openFinalized("registerCounter");
 		try {
-			String filePath = String.format("%s%s", this.tmpDir, "misc");
-			if (args.length > 0) {
-				File f = new File(filePath);
-				RandomAccessFile raf = new RandomAccessFile(f, "rw");
-				for (int arg : args) {
-					raf.writeInt(arg);
-				}
-				raf.close();
+			while (in != null) {
+				long key = in.readInt();
+				cp.reg.append(key, in.readInt());
 			}
-		} catch (Exception e) {
-			throw new RiteException(e);
+		} catch (EOFException e) {
+		} finally {
+			Utils.closeQuietly(in);
 		}
-	}
-	
-	public int []rollbackOthers() throws RiteException {
+		in = openFinalized("timeindex");
 		try {
-			int [] others = new int[4];
-			String filePath = String.format("%s%s", this.finalizedDir,"misc");
-			
-			RandomAccessFile raf = new RandomAccessFile(new File(filePath), "r");
-			for (int i=0; i<others.length; ++i){
-				others[i] = raf.readInt();
+			while (in != null) {
+				long key = in.readLong();
+				cp.time.append(key, in.readInt());
 			}
-			raf.close();
-			return others;
-		} catch (Exception e) {
-			throw new RiteException(e);
+		} catch (EOFException e) {
+		} finally {
+			Utils.closeQuietly(in);
 		}
-	}
-
-	public void finalize() throws RiteException {
+		in = openFinalized("rowIndex");
 		try {
-			Utils.deleteDirectory(new File(this.finalizedDir));
-			new File(this.tmpDir).renameTo(new File(this.finalizedDir));
-			Utils.mkdir(new File(this.tmpDir));
-		} catch (IOException e) {
-			throw new RiteException(e);
+			while (in != null) {
+				long key = in.readInt();
+				cp.row.append(key, in.readInt());
+			}
+		} catch (EOFException e) {
+		} finally {
+			Utils.closeQuietly(in);
+		}
+		File misc = new File(finalizedDir, "misc");
+		cp.others = new int[(int) (misc.length() / 4)];
+		in = openFinalized("misc");
+		try {
+			for (int i = 0; i < cp.others.length; ++i) {
+				cp.others[i] = in.readInt();
+			}
+		} finally {
+			Utils.closeQuietly(in);
 		}
+		cp.materializedTo = Long.MIN_VALUE; // The flags are in the entries.
+		return cp;
 	}
 
-	public void materializeUDStore(UDStore udStore) throws RiteException {
-		String filePath = String.format("%s%s%s", this.tmpDir, "udStore",
-				File.separator);
+	private DataInputStream openFinalized(String name) throws IOException {
+		File file = new File(finalizedDir, name);
+		return file.exists() ? new DataInputStream(new BufferedInputStream(new FileInputStream(file), 65536)) : null;
 	}
 
-	public void rollbackUDStore(UDStore udStore) {
-		// TODO Auto-generated method stub
+	/** The state of the indexes, built up from the records. */
+	static class Checkpoint {
+		long seq;
+		int[] others = new int[0];
+		long materializedTo = Long.MIN_VALUE;
+		final Entries reg = new Entries(), time = new Entries(), row = new Entries();
 
+		/** Applies the next record, or returns false if it is not valid. */
+		boolean apply(ByteBuffer buf) {
+			if (buf.remaining() < 8)
+				return false;
+			int start = buf.position();
+			int length = buf.getInt();
+			int crc = buf.getInt();
+			if (length < 8 || length > buf.remaining())
+				return false;
+			CRC32 checksum = new CRC32();
+			checksum.update(buf.array(), buf.arrayOffset() + buf.position(), length);
+			if ((int) checksum.getValue() != crc) {
+				buf.position(start);
+				return false;
+			}
+			ByteBuffer rec = buf.slice();
+			rec.limit(length);
+			buf.position(buf.position() + length);
+
+			seq = rec.getLong();
+			others = new int[rec.getInt()];
+			for (int i = 0; i < others.length; ++i) {
+				others[i] = rec.getInt();
+			}
+			materializedTo = rec.getLong();
+			reg.apply(rec);
+			time.apply(rec);
+			row.apply(rec);
+			return true;
+		}
 	}
 
+	static class Entries {
+		long[] keys = new long[16];
+		int[] values = new int[16];
+		int head, tail;
+
+		void apply(ByteBuffer rec) {
+			long headKey = rec.getLong();
+			while (head < tail && keys[head] < headKey) {
+				++head;
+			}
+			int n = rec.getInt();
+			for (int i = 0; i < n; ++i) {
+				append(rec.getLong(), rec.getInt());
+			}
+		}
+
+		void append(long key, int value) {
+			if (head < tail && key <= keys[tail - 1]) {
+				if (key == keys[tail - 1]) // The last entry of the previous record
+					values[tail - 1] = value;
+				return;
+			}
+			if (tail == keys.length) {
+				int size = tail - head;
+				long[] newKeys = new long[Math.max(16, size * 2)];
+				int[] newValues = new int[newKeys.length];
+				System.arraycopy(keys, head, newKeys, 0, size);
+				System.arraycopy(values, head, newValues, 0, size);
+				keys = newKeys;
+				values = newValues;
+				head = 0;
+				tail = size;
+			}
+			keys[tail] = key;
+			values[tail] = value;
+			++tail;
+		}
+
+		long lastKey(long defaultKey) {
+			return head < tail ? keys[tail - 1] : defaultKey;
+		}
+	}
 }
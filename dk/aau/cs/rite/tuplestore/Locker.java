@@ -20,6 +20,8 @@ package dk.aau.cs.rite.tuplestore;
 
 import java.util.logging.Logger;
 
+import dk.aau.cs.rite.server.PriorityExecutor;
+
 public class Locker {
 	Logger log = Logger.getLogger(Locker.class.getName());
 
@@ -32,10 +34,13 @@ public class Locker {
 	}
 
 	synchronized public void awaitFlush() {
+		PriorityExecutor.beginBlocking(); // The flush needs a worker too.
 		try {
 			this.wait();
 		} catch (InterruptedException e) {
 			e.printStackTrace();
+		} finally {
+			PriorityExecutor.endBlocking();
 		}
 	}
 
@@ -40,12 +40,14 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.NavigableMap;
+import java.util.Observable;
+import java.util.Observer;
 import java.util.SortedMap;
 import java.util.TreeMap;
 import java.util.logging.Logger;
 
+import dk.aau.cs.rite.common.BatchHeader;
+import dk.aau.cs.rite.common.PrefixedChannel;
 import dk.aau.cs.rite.common.RiteException;
 import dk.aau.cs.rite.common.Utils;
 import dk.aau.cs.rite.producer.staging.Catalog;
@@ -59,7 +61,7 @@ import dk.aau.cs.rite.tuplestore.ud.Operation;
 import dk.aau.cs.rite.tuplestore.ud.UDStore;
 import dk.aau.cs.rite.tuplestore.ud.Update;
 
-public class MemBasedTupleStore implements TupleStore {
+public class MemBasedTupleStore implements TupleStore, Observer {
 	Logger log = Logger.getLogger(FileBasedTupleStore.class.getName());
 	FlushEvent flushEvent = new FlushEvent();
 	
@@ -72,35 +74,52 @@ public class MemBasedTupleStore implements TupleStore {
 	private int ID;
 	private Segment curSegment;
 	private int []types;
-	private byte[] tmpRow;
 	private int lastMatRowID; // last materialized rowID which is used for updating the min value in the minMax table.
+	private int lastRowID; // The ID of the last row added; the rows are added in the order of IDs.
+	private int lastUDID; // The ID of the last upsert added; they are added in the order of IDs too.
+	
+	// The state after the last published flush, which rollback() goes back to.
+	private Segment publishedSegment;
+	private int publishedSegmentID;
+	private int publishedID;
+	private int publishedRowID;
+	private int publishedUDID;
+	private List<Segment> unpublished = new ArrayList<Segment>(); // The segments indexed by the flush in progress.
+	private List<Segment> released = new ArrayList<Segment>(); // The segments shrunk by it, freed when it is published.
 	
 	
 	private SortedMap<Long, Locker> reqLockers =  Collections.synchronizedSortedMap(new TreeMap<Long, Locker>());
 	
 	// (commitTime -> maxRowID in a commit (include))
-	private ReadWriteMap<Long, Integer> timeIndex = new ReadWriteMap<Long, Integer>();
+	private VersionedIndex<Integer> timeIndex = new VersionedIndex<Integer>();
 
 	// (minRowID(in a segment) -> counter)
-	private ReadWriteMap<Integer, Counter> registerCounter = new ReadWriteMap<Integer, Counter>();
+	private VersionedIndex<Counter> registerCounter = new VersionedIndex<Counter>();
 
 	// (minRowID(in a segment) -> segmentID)
-	private ReadWriteMap<Integer, Integer> rowIndex = new ReadWriteMap<Integer, Integer>();
+	private VersionedIndex<Integer> rowIndex = new VersionedIndex<Integer>();
 	
 	// (segmentID -> a segment). The segment might be not in the mem, then read in from the backed file.
-	private ReadWriteMap<Integer, Segment> segCache = new ReadWriteMap<Integer, Segment>();
+	private VersionedIndex<Segment> segCache = new VersionedIndex<Segment>();
+
+	private SegmentArena arena; // The segments are off-heap, unless it is null.
 
 	public MemBasedTupleStore(Catalog catalog, int segmentSize) {
+		this(catalog, segmentSize, null);
+	}
+
+	public MemBasedTupleStore(Catalog catalog, int segmentSize, SegmentArena arena) {
 		this.catalog = catalog;
+		this.arena = arena;
 		this.udStore = new UDStore(catalog, flushEvent);
 		this.types = catalog.getTypeArray();
 		this.ID = 0;
 		this.segmentID = 0;
 		this.segmentSize = segmentSize;
-		this.tmpRow = new byte[4096];
 		this.lastMatRowID = -1;
 		
 
+		this.flushEvent.addObserver(this);
 		this.flushEvent.addObserver(timeIndex);
 		this.flushEvent.addObserver(registerCounter);
 		this.flushEvent.addObserver(rowIndex);
@@ -113,26 +132,77 @@ public class MemBasedTupleStore implements TupleStore {
 	}
 	
 
+	/*
+	 * The header of a flush is read from the producer before the lock is
+	 * taken. Under the lock, the order of the rows is checked, and the rows are
+	 * read straight into the current segment, see addRows().
+	 */
 	@Override
 	public int readRowsIn(ReadableByteChannel channel) throws RiteException {
+		long commitTime;
+		BatchHeader batch = new BatchHeader();
+		ByteBuffer rows;
+		ByteBuffer buf = ByteBuffer.allocate(16384);
+		buf.flip();
 		try {
-			ByteBuffer buf = ByteBuffer.allocate(16384);
-			buf.flip();
-			int read = Utils.ensureForRead(channel, buf, 8);
-			long commitTime = buf.getLong();
-			int numOfRows = this.readRows(channel, buf);
-			if (numOfRows > 0) {
-				timeIndex.put(commitTime, ID);
-				flushEvent.end();
-				updateMinMax();
-			}
-			this.resumeTheWaitingReadThreads(commitTime);
-			return numOfRows;
+			Utils.ensureForRead(channel, buf, 12);
+			commitTime = buf.getLong();
+			rows = batch.readRows(channel, buf, types, buf.getInt()); // Applied as a batch.
+			if (buf.remaining() != 0)
+				throw new IOException("The data does not give the expected number of rows");
+		} catch (Exception e) {
+			e.printStackTrace();
+			throw new RiteException(e);
+		}
+		return this.commitBatch(commitTime, batch, new PrefixedChannel(rows, null), buf);
+	}
+	
+	@Override
+	public int readBatchIn(ReadableByteChannel channel) throws RiteException {
+		long commitTime;
+		BatchHeader batch;
+		ByteBuffer buf = ByteBuffer.allocate(16384);
+		buf.flip();
+		try {
+			Utils.ensureForRead(channel, buf, 8);
+			commitTime = buf.getLong();
+			batch = BatchHeader.readFrom(channel, buf);
 		} catch (Exception e) {
 			e.printStackTrace();
-			flushEvent.fail();
 			throw new RiteException(e);
 		}
+		return this.commitBatch(commitTime, batch, channel, buf);
+	}
+
+	@Override
+	public int addBatch(long commitTime, BatchHeader batch, ReadableByteChannel rows) throws RiteException {
+		ByteBuffer buf = ByteBuffer.allocate(0);
+		return this.commitBatch(commitTime, batch, rows, buf);
+	}
+
+	/** Checks the order of the rows of a flush, and adds them from the channel (after what is left in buf) under the lock. */
+	private int commitBatch(long commitTime, BatchHeader batch, ReadableByteChannel rows, ByteBuffer buf) throws RiteException {
+		synchronized (this) {
+			try {
+				this.checkOrder(batch);
+			} catch (IOException e) { // Nothing is read or applied, so nothing is rolled back.
+				throw new RiteException(e);
+			}
+			try {
+				int numOfRows = this.addRows(batch, rows, buf);
+				if (numOfRows > 0) {
+					timeIndex.putAtLeast(commitTime, ID); // Another producer may have committed later rows with an earlier time.
+					updateMinMax(); // Before the rows are published, so that a failure rolls them back.
+					flushEvent.end();
+				}
+				this.resumeTheWaitingReadThreads(commitTime);
+				return numOfRows;
+			} catch (Exception e) {
+				e.printStackTrace();
+				flushEvent.fail();
+				throw new RiteException(e);
+			}
+		}
 	}
 	
 	final protected void resumeTheWaitingReadThreads(long commitTime) {
@@ -150,141 +220,174 @@ public class MemBasedTupleStore implements TupleStore {
 	
 	@Override
 	public int readUDsIn(ReadableByteChannel channel) throws RiteException {
+		return this.readUDsIn(channel, Integer.MIN_VALUE, Integer.MAX_VALUE);
+	}
+	
+	@Override
+	public int readUDsIn(ReadableByteChannel channel, int firstID, int lastID) throws RiteException {
+		long commitTime;
+		List<ReadUD> uds;
 		try {
 			ByteBuffer buf = ByteBuffer.allocate(16384);
 			buf.flip();
-			int read = Utils.ensureForRead(channel, buf, 8);
-			long commitTime = buf.getLong();
-			int numOfUDs = this.readUDs(commitTime, channel, buf, true);
-			if (numOfUDs>0){
-				flushEvent.end();
-			}
-			return numOfUDs;
+			Utils.ensureForRead(channel, buf, 8);
+			commitTime = buf.getLong();
+			uds = this.parseUDs(channel, buf, firstID, lastID);
 		} catch (Exception e) {
 			e.printStackTrace();
-			flushEvent.fail();
 			throw new RiteException(e);
 		}
+		synchronized (this) {
+			try {
+				this.checkOrder(uds);
+			} catch (IOException e) { // Nothing is applied, so nothing is rolled back.
+				throw new RiteException(e);
+			}
+			try {
+				int numOfUDs = this.applyUDs(commitTime, uds, true);
+				if (numOfUDs>0){
+					flushEvent.end();
+				}
+				return numOfUDs;
+			} catch (Exception e) {
+				e.printStackTrace();
+				flushEvent.fail();
+				throw new RiteException(e);
+			}
+		}
 	}
 	
+	/** Reads rows in the format of the old flush, and adds them as a batch. */
 	@Override
 	public int readRows(ReadableByteChannel channel, ByteBuffer buf) throws IOException{
-		int read = Utils.ensureForRead(channel, buf, 4);
-		int numOfRows = buf.getInt();
-		if (numOfRows>0){
-			flushEvent.start();
-			shrink();
-		}
-		
-		int n = numOfRows;
-		int rowLength = 0;
-		while (n-- > 0) {
-			rowLength = 0;
-			for (int i = 0; i < types.length; i++) {
-				read = Utils.ensureForRead(channel, buf, 1);
-				Utils.copyBytes(buf, tmpRow, rowLength, 1);
-				rowLength += 1;
-				// Check if the last written byte (the flag) indicated NULL
-				if (tmpRow[rowLength - 1] == IS_NULL)
-					continue;
-				if (tmpRow[rowLength - 1] != IS_NOT_NULL)
-					throw new IOException("Illegal flag value");
-
-				switch (types[i]) {
-				case Types.BIGINT: // i.e. long
-					read = Utils.ensureForRead(channel, buf, 8);
-					Utils.copyBytes(buf, tmpRow, rowLength, 8);
-					rowLength += 8;
-					break;
-				case Types.DATE:
-					// Read it as a string - without any length flag
-					// The length is fixed to 10: YYYY-MM-DD
-					read = Utils.ensureForRead(channel, buf, 10);
-					Utils.copyBytes(buf, tmpRow, rowLength, 10);
-					rowLength += 10;
-					break;
-				case Types.DOUBLE:
-				case Types.FLOAT:
-				case Types.NUMERIC:
-					read = Utils.ensureForRead(channel, buf, 8);
-					Utils.copyBytes(buf, tmpRow, rowLength, 8);
-					rowLength += 8;
-					break;
-				case Types.REAL:
-					read = Utils.ensureForRead(channel, buf, 4);
-					Utils.copyBytes(buf, tmpRow, rowLength, 4);
-					rowLength += 4;
-					break;
-				case Types.INTEGER:
-					read = Utils.ensureForRead(channel, buf, 4);
-					Utils.copyBytes(buf, tmpRow, rowLength, 4);
-					rowLength += 4;
-					break;
-				case Types.LONGVARCHAR:
-				case Types.VARCHAR:
-					/*
-					 * // Code to use if all strings have a length //
-					 * smaller than the SIZE of the input buffer. lastCnt =
-					 * ensureForRead(input, channel, 4); int length =
-					 * input.getInt(); input.position(input.position() - 4);
-					 * // Read length lastCnt = ensureForRead(input,
-					 * channel, length + 4); copyBytesToBuff(input, length +
-					 * 4);
-					 */
-					read = Utils.ensureForRead(channel, buf, 4);
-					int length = buf.getInt();
-					// Also read the length field when
-					// reading again:
-					buf.position(buf.position() - 4);
-					length += 4;
-					int toRead;
-					toRead = Math.min(buf.capacity(), length);
-					while (length > 0) {
-						read = Utils.ensureForRead(channel, buf, toRead);
-						Utils.copyBytes(buf, tmpRow, rowLength, toRead);
-						rowLength += toRead;
-						length -= toRead;
-						toRead = Math.min(buf.capacity(), length);
-					}
-					break;
-				} /* switch */
-			} /* for */
-			
-			ID = Utils.byteArrayToInt(tmpRow, rowLength-4); // The last colvalue is the row ID.
-			addRowToSegment(tmpRow, rowLength);
-		}/* while */
-		
-		if (buf.remaining() != 0 || n>0) {
+		Utils.ensureForRead(channel, buf, 4);
+		BatchHeader batch = new BatchHeader();
+		ByteBuffer rows = batch.readRows(channel, buf, types, buf.getInt());
+		if (buf.remaining() != 0)
 			throw new IOException("The data does not give the expected number of rows");
+		return this.addRows(batch, new PrefixedChannel(rows, null), buf);
+	}
+
+	/** Reads rows in the bulk flush format, see addRows. */
+	@Override
+	public int readBatch(ReadableByteChannel channel, ByteBuffer buf) throws IOException {
+		return this.addRows(BatchHeader.readFrom(channel, buf), channel, buf);
+	}
+
+	/**
+	 * Adds the rows of a batch: the rows that fit in the current segment are
+	 * read from the channel straight into its free space, and are added after
+	 * their IDs are checked. They must be after the rows added before.
+	 */
+	private int addRows(BatchHeader batch, ReadableByteChannel channel, ByteBuffer buf) throws IOException {
+		int numOfRows = batch.size();
+		if (numOfRows == 0)
+			return 0;
+		this.checkOrder(batch);
+		flushEvent.start();
+		shrink();
+		int rowID = Integer.MIN_VALUE;
+		for (int i = 0; i < numOfRows;) {
+			this.ensureSegmentFor(batch.getEnd(i) - batch.getOffset(i), 0);
+			int limit = batch.getOffset(i) + curSegment.remaining(); // The rows ending before it fit.
+			int j = i + 1;
+			while (j < numOfRows && batch.getEnd(j) <= limit)
+				++j;
+			Utils.readFully(channel, buf, curSegment.pending(0, batch.getEnd(j - 1) - batch.getOffset(i)));
+			boolean isFirst = curSegment.getRowCount() == 0;
+			rowID = curSegment.commitRows(batch, i, j, rowID);
+			if (isFirst)
+				this.indexCurrentSegment(curSegment.getFirstRowID());
+			i = j;
 		}
+		if (buf.remaining() != 0)
+			throw new IOException("The data does not give the expected number of rows");
+		ID = lastRowID = rowID;
 		return numOfRows;
 	}
-		
-	protected void addRowToSegment(byte[] rowBytes, int rowLength) throws IOException {
-		if (curSegment==null || curSegment.remaining() < rowLength){
-			curSegment = new Segment(segmentSize);
-			segCache.put(segmentID, curSegment);
-			rowIndex.put(ID, segmentID);
-			registerCounter.put(ID, new Counter());
-			++segmentID;
+
+	/**
+	 * Checks that the rows of a batch are after the rows added before, e.g.,
+	 * that producers with leased IDs commit them in the order of the leases.
+	 */
+	private void checkOrder(BatchHeader batch) throws IOException {
+		if (batch.size() > 0 && batch.getFirstRowID() <= lastRowID)
+			throw new IOException(String.format("The rows %d-%d are not after the row %d", batch.getFirstRowID(), batch.getLastRowID(), lastRowID));
+	}
+
+	/**
+	 * Makes sure that the current segment has room for a row of the given
+	 * length, of which the first pending bytes are already in its free space.
+	 * Otherwise, the row is moved to a new segment, which is larger than the
+	 * segment size if the row is wider.
+	 */
+	private void ensureSegmentFor(int rowLength, int pending) {
+		if (curSegment != null && curSegment.remaining() >= rowLength)
+			return;
+		int size = rowLength <= segmentSize ? segmentSize : (pending == 0 ? rowLength : 2 * rowLength);
+		Segment segment = arena == null ? new Segment(size) : new Segment(arena, size);
+		if (curSegment != null) {
+			if (pending > 0)
+				curSegment.movePending(segment, pending);
+			if (curSegment.getRowCount() == 0) {
+				curSegment.free(); // Not in the indexes, e.g., a row outgrew it.
+				if (curSegment == publishedSegment)
+					publishedSegment = null;
+			}
 		}
-		curSegment.addRow(tmpRow, rowLength, ID);
+		curSegment = segment;
 	}
-	
 
+	/** Frees the current segment if no rows were added to it, and forgets it. */
+	private void dropCurrentSegment() {
+		if (curSegment != null && curSegment.getRowCount() == 0)
+			curSegment.free();
+		curSegment = publishedSegment = null;
+	}
 	
+	/** Adds the current segment to the indexes when its first row is added. */
+	private void indexCurrentSegment(int firstRowID) {
+		unpublished.add(curSegment);
+		segCache.put(segmentID, curSegment);
+		rowIndex.put(firstRowID, segmentID);
+		registerCounter.put(firstRowID, new Counter());
+		++segmentID;
+	}
+	
+
 	@Override
 	public int readUDs(long commitTime, ReadableByteChannel channel, ByteBuffer buf,  boolean delRowsInDw) throws IOException 
 	 { // Save the UDATE/DELETE operations in the UDStore.
+		List<ReadUD> uds = this.parseUDs(channel, buf, Integer.MIN_VALUE, Integer.MAX_VALUE);
+		this.checkOrder(uds);
+		return this.applyUDs(commitTime, uds, delRowsInDw);
+	}
+
+	/** An upsert as read from the producer, to be added by applyUDs. */
+	private static class ReadUD {
+		final Operation ud;
+		final String sql;
+		final Map<Integer, Expression> exps;
+		final List<Integer> params;
+
+		ReadUD(Operation ud, String sql, Map<Integer, Expression> exps, List<Integer> params) {
+			this.ud = ud;
+			this.sql = sql;
+			this.exps = exps;
+			this.params = params;
+		}
+	}
+
+	/**
+	 * Reads upserts, whose IDs must be increasing and from firstID to lastID,
+	 * e.g., in the lease of the producer.
+	 */
+	private List<ReadUD> parseUDs(ReadableByteChannel channel, ByteBuffer buf, int firstID, int lastID) throws IOException {
 		//1.Read the number of UD
 		Utils.ensureForRead(channel, buf, 4);
 		int numOfUDs = buf.getInt();
-		if (numOfUDs>0){
-			flushEvent.start();
-			if (!rowIndex.isEmpty())
-				udStore.shrink(this.rowIndex.firstKey());
-		}
-		
+		List<ReadUD> uds = new ArrayList<ReadUD>(Math.max(0, Math.min(numOfUDs, 1024)));
+		long prevID = firstID - 1L;
 		for (int i = 0; i < numOfUDs; ++i) {
 
 			//2.Read type: UPDATE or DELETE
@@ -293,7 +396,10 @@ public class MemBasedTupleStore implements TupleStore {
 			
 			//3. Read the ID
 			Utils.ensureForRead(channel, buf, 4);
-			this.ID = buf.getInt();
+			int id = buf.getInt();
+			if (id <= prevID || id > lastID)
+				throw new IOException(String.format("The upsert %d is not in %d-%d after %d", id, firstID, lastID, prevID));
+			prevID = id;
 			
 			//4.Read SQL statement
 			Utils.ensureForRead(channel, buf, 4);
@@ -310,16 +416,16 @@ public class MemBasedTupleStore implements TupleStore {
 			
 			List<Expression> wheres = new ArrayList<Expression>();
 			for (int j=0; j<conds.size(); ++j){
-				int id = conds.get(j);
-				wheres.add(exps.get(id));
+				int cond = conds.get(j);
+				wheres.add(exps.get(cond));
 			}
 			
 			Operation ud = null;
 			if (opType == SQLType.UPDATE.ordinal()) {
 				List<Expression> updates = new ArrayList<Expression>();
-				for (int id: exps.keySet()){
-					if (!conds.contains(id)){
-						updates.add(exps.get(id));
+				for (int exp: exps.keySet()){
+					if (!conds.contains(exp)){
+						updates.add(exps.get(exp));
 					}
 				}
 				ud = new Update(updates, wheres.size() == 0 ? null : wheres.get(0));
@@ -328,22 +434,37 @@ public class MemBasedTupleStore implements TupleStore {
 			} else {
 				throw new IOException(String.format("Unknown operation type, %d\n", opType));
 			}
-			
-			if (delRowsInDw)
-				this.executeUDForDW(sql, exps, params); // Delete or Update the table in DW.
-			
-			ud.setID(this.ID); // Set the unique ID.
-			udStore.add(ud);
-		}
-		
-		if (numOfUDs>0){// Add the timeIndex for udStore.
-			udStore.put(commitTime, this.ID);
+			ud.setID(id); // Set the unique ID.
+			uds.add(new ReadUD(ud, sql, exps, params));
 		}
 		
 		if (buf.remaining() != 0) {
 			throw new IOException("The data for upserts was corrupted!");
 		}
-		return numOfUDs;
+		return uds;
+	}
+
+	/** Checks that the upserts are after the upserts added before. */
+	private void checkOrder(List<ReadUD> uds) throws IOException {
+		if (!uds.isEmpty() && uds.get(0).ud.getID() <= lastUDID)
+			throw new IOException(String.format("The upsert %d is not after the upsert %d", uds.get(0).ud.getID(), lastUDID));
+	}
+
+	private int applyUDs(long commitTime, List<ReadUD> uds, boolean delRowsInDw) throws IOException {
+		if (uds.isEmpty())
+			return 0;
+		flushEvent.start();
+		if (!rowIndex.isPendingEmpty())
+			udStore.shrink((int) this.rowIndex.pendingFirstKey());
+		for (ReadUD read : uds) {
+			if (delRowsInDw)
+				this.executeUDForDW(read.sql, read.exps, read.params); // Delete or Update the table in DW.
+			this.ID = read.ud.getID();
+			udStore.add(read.ud);
+		}
+		lastUDID = this.ID;
+		udStore.put(commitTime, this.ID); // Add the timeIndex for udStore.
+		return uds.size();
 	}
 
 	final protected List<Integer> readIntArr(ReadableByteChannel channel, ByteBuffer buf)throws IOException {
@@ -420,10 +541,9 @@ public class MemBasedTupleStore implements TupleStore {
 	public boolean register(int minRowID, int maxRowID) {
 	if (pingServer == null) {
 		try {
-			NavigableMap<Integer, Counter> registers = registerCounter.subMap(minRowID, false, maxRowID, false);
+			VersionedIndex.View<Counter> registers = registerCounter.snapshot().subView(minRowID, false, maxRowID, false);
 			log.info(String.format(	"Register %s: min=%d, max=%d, match=%d\n",catalog.getTableName(), minRowID, maxRowID, registers.size()));
-			for (Integer rowID : registers.keySet()) {
-				Counter counter = registers.get(rowID);
+			for (Counter counter : registers) {
 				counter.inc();
 			}
 		}catch(Exception e){
@@ -436,10 +556,9 @@ public class MemBasedTupleStore implements TupleStore {
 	@Override
 	public void unregister(int minRowID, int maxRowID) {
 		if (pingServer==null){
-			NavigableMap<Integer, Counter> registers = registerCounter.subMap(minRowID, false, maxRowID, false);
+			VersionedIndex.View<Counter> registers = registerCounter.snapshot().subView(minRowID, false, maxRowID, false);
 			log.info(String.format("UNREGISTER %s: min=%d, max=%d, match=%d\n", catalog.getTableName(), minRowID, maxRowID, registers.size()));
-			for (Integer rowID : registers.keySet()) {
-				Counter counter = registers.get(rowID);
+			for (Counter counter : registers) {
 				counter.dec();
 			}
 		}
@@ -448,20 +567,19 @@ public class MemBasedTupleStore implements TupleStore {
 	protected void ensureAccuracy(WritableByteChannel dest, long queryStartTime, long freshness) throws IOException {
 		long reqCommitTime = queryStartTime - freshness;
 		log.info(String.format("%s requests rows committed before %d\n", catalog.getTableName(), reqCommitTime));
-		if (timeIndex.isEmpty() || timeIndex.lastKey() < reqCommitTime) {
+		if (timeIndex.snapshot().isEmpty() || timeIndex.snapshot().lastKey() < reqCommitTime) {
 			pingServer.setTimeAccuracy(catalog.getTableName(), reqCommitTime);
 			Locker cond = new Locker();
 			reqLockers.put(reqCommitTime, cond);
 			cond.awaitFlush();
 		}
 		
-		Entry<Long, Integer> entry = timeIndex.floorEntry(reqCommitTime);
+		Integer maxRowID = timeIndex.snapshot().floorValue(reqCommitTime);
 		log.info(String.format("Righttime: sending rows %s  reqCommitTime=%d\n", catalog.getTableName(), reqCommitTime));
-		if (entry!=null) {
-			int maxRowID = entry.getValue();
-			NavigableMap<Integer, Integer> toBeExported = rowIndex.headMap(maxRowID, true);
-			for (int segmentID : toBeExported.values()) {
-				Segment segment = segCache.getFromRMap(segmentID);
+		if (maxRowID!=null) {
+			VersionedIndex.View<Integer> toBeExported = rowIndex.snapshot().headView(maxRowID, true);
+			for (int segmentID : toBeExported) {
+				Segment segment = segCache.snapshot().get(segmentID);
 				segment.transferData(new RiteChannel(dest, queryStartTime, udStore));
 			}
 		}
@@ -469,27 +587,28 @@ public class MemBasedTupleStore implements TupleStore {
 	
 	
 	protected void materialize(BufferedWriter dest, String delim, String nullSubst) throws IOException {
-		NavigableMap<Integer, Integer> toBeMatted = rowIndex.tailMap(lastMatRowID, false);
-		for (Entry<Integer, Integer> entry : toBeMatted.entrySet()) {
-			int rowID = entry.getKey();
-			Counter counter = this.registerCounter.get(rowID);
+		VersionedIndex.View<Integer> toBeMatted = rowIndex.snapshot().tailView(lastMatRowID, false);
+		VersionedIndex.View<Counter> counters = registerCounter.snapshot();
+		for (int i = 0; i < toBeMatted.size(); ++i) {
+			long rowID = toBeMatted.keyAt(i);
+			Counter counter = counters.get(rowID);
 			if (!counter.isMaterialized()) {
-				int segmentID = entry.getValue();
-				Segment segment = segCache.getFromRMap(segmentID);
+				int segmentID = toBeMatted.valueAt(i);
+				Segment segment = segCache.snapshot().get(segmentID);
 				segment.materialize(new RiteChannel(dest, System.currentTimeMillis(), udStore), delim, nullSubst);
 				counter.markMaterialized();
 				lastMatRowID = segment.getLastRowID();
 			}
 		}
-		this.curSegment = null;
+		this.dropCurrentSegment();
 	}
 
 	@Override
 	public void writeRowsTo(WritableByteChannel dest, int minRowID, int maxRowID, long queryStartTime) throws IOException {
-		NavigableMap<Integer, Integer> toBeExported = this.rowIndex.subMap(minRowID, false, maxRowID, false);
+		VersionedIndex.View<Integer> toBeExported = this.rowIndex.snapshot().subView(minRowID, false, maxRowID, false);
 		log.info(String.format("Realtime: sending rows %s: min=%d, max=%d, matches=%d\n", catalog.getTableName(), minRowID, maxRowID, toBeExported.size()));
-		for (int segmentID : toBeExported.values()) {
-			Segment segment = segCache.getFromRMap(segmentID);
+		for (int segmentID : toBeExported) {
+			Segment segment = segCache.snapshot().get(segmentID);
 			segment.transferData(new RiteChannel(dest, queryStartTime, udStore), minRowID, maxRowID);
 		}
 	}
@@ -514,17 +633,20 @@ public class MemBasedTupleStore implements TupleStore {
 	    }
 		
 		protected void shrink() {
-			Entry<Integer, Counter> entry;
-			NavigableMap<Integer, Counter> regs = registerCounter.getWritableMap();
-			while ((entry = regs.firstEntry()) != null && entry.getValue().canBeDeleted()) {
-				int rowID = entry.getKey();
-				regs.pollFirstEntry();
-				int segmentID = rowIndex.getWritableMap().get(rowID);
-				segCache.getWritableMap().remove(segmentID);
-				rowIndex.getWritableMap().remove(rowID);
-				NavigableMap<Long, Integer> tIdx = timeIndex.getWritableMap();
-				while (tIdx.size() > 0 && tIdx.firstEntry().getValue() < rowID) {
-					tIdx.pollFirstEntry();
+			while (!registerCounter.isPendingEmpty() && registerCounter.pendingFirstValue().canBeDeleted()) {
+				long rowID = registerCounter.pendingFirstKey();
+				registerCounter.pollFirst();
+				rowIndex.truncateHead(rowID);
+				if (rowIndex.isPendingEmpty() || rowIndex.pendingFirstKey() != rowID)
+					continue;
+				int segmentID = rowIndex.pendingFirstValue();
+				rowIndex.pollFirst();
+				while (!segCache.isPendingEmpty() && segCache.pendingFirstKey() <= segmentID) {
+					released.add(segCache.pendingFirstValue()); // Back to the arena once published, when no query reads it.
+					segCache.pollFirst();
+				}
+				while (!timeIndex.isPendingEmpty() && timeIndex.pendingFirstValue() < rowID) {
+					timeIndex.pollFirst();
 				}
 			}
 		}
@@ -682,10 +804,53 @@ public class MemBasedTupleStore implements TupleStore {
 		return ID; 
 	}
 
+	/**
+	 * Goes back to the last published flush, when a flush fails: the indexes
+	 * go back by themselves, and the rows added to the segments, the new
+	 * segments and the IDs are dropped here. The updates and deletes already
+	 * executed in the DW are not undone.
+	 */
 	@Override
 	public void rollback() {
-		// TODO Auto-generated method stub
-		
+		synchronized (this) {
+			for (Segment segment : unpublished) {
+				if (segment != publishedSegment) // Else it had no rows yet.
+					segment.free(); // Not read, as the indexes never published them.
+			}
+			unpublished.clear();
+			released.clear(); // Still in the indexes.
+			if (curSegment != null && curSegment != publishedSegment)
+				curSegment.free();
+			if (publishedSegment != null)
+				publishedSegment.dropFrom(publishedRowID + 1);
+			curSegment = publishedSegment;
+			segmentID = publishedSegmentID;
+			ID = publishedID;
+			lastRowID = publishedRowID;
+			lastUDID = publishedUDID;
+		}
+	}
+
+	@Override
+	public void update(Observable o, Object arg) {
+		switch ((FlushEvent.event) arg) {
+		case FLUSH_SUCCESS:
+			for (Segment segment : released)
+				segment.free();
+			released.clear();
+			unpublished.clear();
+			publishedSegment = curSegment;
+			publishedSegmentID = segmentID;
+			publishedID = ID;
+			publishedRowID = lastRowID;
+			publishedUDID = lastUDID;
+			break;
+		case FLUSH_FAIL:
+			rollback();
+			break;
+		default:
+			;
+		}
 	}
 
 
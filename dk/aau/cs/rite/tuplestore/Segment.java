@@ -22,13 +22,20 @@
 
 package dk.aau.cs.rite.tuplestore;
 
+import java.io.File;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
-import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.zip.CRC32;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Logger;
 
+import dk.aau.cs.rite.common.BatchHeader;
 import dk.aau.cs.rite.server.RiteChannel;
 
 /**
@@ -39,15 +46,32 @@ public class Segment { // package access only
 	
 	Logger log = Logger.getLogger(Segment.class.getName());
 	
+	/*
+	 * The on-disk format is page aligned, so that a segment file can be mapped
+	 * read-only and queried in place:
+	 *   [0, PAGE_SIZE)          header: MAGIC, VERSION, used, firstRowID, lastRowID, rowCount, size, indexOffset, checksum
+	 *   [PAGE_SIZE, +used)      data
+	 *   [indexOffset, ...)      rowIDs[rowCount], positions[rowCount]; indexOffset is page aligned
+	 * The checksum is the CRC32 of the data and the indexes (not in VERSION 1).
+	 */
+	static final int PAGE_SIZE = 4096;
+	static final int MAGIC = 0x52534547; // "RSEG"
+	static final int VERSION = 2;
+	private static final int HEADER_SIZE = 36;
+
 	private int indexGrowthSize;
 
 	private int used = 0;
 	private int firstRowID = Integer.MIN_VALUE;
 	private int lastRowID = Integer.MIN_VALUE;
 	private int rowCount = 0;
-	private byte[] data;
-	private int[] rowIDs;
-	private int[] positions;
+	private ByteBuffer data; // Only accessed by absolute positions, or through duplicates.
+	private IntBuffer rowIDs;
+	private IntBuffer positions;
+	
+	private SegmentArena arena; // Null if the data is not from an arena.
+	private final AtomicInteger refs = new AtomicInteger(1); // The owner's reference, and one for each reader.
+	private final AtomicBoolean freed = new AtomicBoolean(false);
 
 	public Segment() {
 		this(16 * 1024 * 1024);
@@ -58,15 +82,24 @@ public class Segment { // package access only
 	}
 
 	public Segment(int size, int avgRowSize) {
-		data = new byte[size];
+		data = ByteBuffer.allocate(size);
 		indexGrowthSize = size / avgRowSize;
-		rowIDs = new int[indexGrowthSize];
-		positions = new int[indexGrowthSize];
+		rowIDs = IntBuffer.allocate(indexGrowthSize);
+		positions = IntBuffer.allocate(indexGrowthSize);
+
+	}
 
+	/** Creates an off-heap segment from the arena, which must be given back by free().*/
+	public Segment(SegmentArena arena, int size) {
+		this.arena = arena;
+		data = arena.allocate(size);
+		indexGrowthSize = size / 32;
+		rowIDs = arena.allocateInts(indexGrowthSize);
+		positions = arena.allocateInts(indexGrowthSize);
 	}
 
 	private Segment(int used, int firstRowID, int lastRowID, int rowCount,
-			byte[] data, int[] rowIDs, int[] positions) {
+			ByteBuffer data, IntBuffer rowIDs, IntBuffer positions) {
 		this.used = used;
 		this.firstRowID = firstRowID;
 		this.lastRowID = lastRowID;
@@ -77,31 +110,114 @@ public class Segment { // package access only
 	}
 
 	public int remaining() {
-		return data.length - used;
+		return data.isReadOnly() ? 0 : data.capacity() - used;
 	}
 
 
     public int addRow(byte[] row, int rowLength, int rowID) {
-        if(rowCount == rowIDs.length)
+        if(rowCount == rowIDs.capacity())
             expandIndex();
-        rowIDs[rowCount] = rowID;
-        positions[rowCount] = used;
-        System.arraycopy(row, 0, data, used, rowLength);
+        rowIDs.put(rowCount, rowID);
+        positions.put(rowCount, used);
+        data.position(used);
+        data.put(row, 0, rowLength);
         if(rowCount == 0)
             firstRowID = rowID;
         lastRowID = rowID;
         rowCount++;
         used += rowLength;
         
-        return positions[rowCount-1]; //return the position of the row just added.
+        return positions.get(rowCount-1); //return the position of the row just added.
     }
-	
+
+	/*
+	 * The ingest writes a row (or a block of rows) straight into the free
+	 * space after used, and adds it by commitRow(s) when it is complete. The
+	 * readers do not see the pending bytes.
+	 */
+
+	/** Copies length bytes from src to the pending bytes at offset. The caller has checked that they fit. */
+	public void putPending(int offset, ByteBuffer src, int length) {
+		int limit = src.limit();
+		src.limit(src.position() + length);
+		data.position(used + offset);
+		data.put(src);
+		src.limit(limit);
+	}
+
+	/** Returns the free space [offset, offset + length) after used, e.g., to read a block of rows into. */
+	public ByteBuffer pending(int offset, int length) {
+		ByteBuffer dst = data.duplicate();
+		dst.limit(used + offset + length);
+		dst.position(used + offset);
+		return dst;
+	}
+
+	public int getPendingInt(int offset) {
+		return data.getInt(used + offset);
+	}
+
+	/** Moves the first length pending bytes, i.e., a row which did not fit, to dest. */
+	public void movePending(Segment dest, int length) {
+		dest.putPending(0, pending(0, length), length);
+	}
+
+	/** Adds the pending row of the given length. */
+	public void commitRow(int rowLength, int rowID) {
+		if (rowCount == rowIDs.capacity())
+			expandIndex();
+		rowIDs.put(rowCount, rowID);
+		positions.put(rowCount, used);
+		if (rowCount == 0)
+			firstRowID = rowID;
+		lastRowID = rowID;
+		rowCount++;
+		used += rowLength;
+	}
+
+	/**
+	 * Adds the pending rows from (inclusive) to to (exclusive) of a batch,
+	 * after checking their IDs; prevRowID is the ID of the row before from.
+	 * 
+	 * @return the ID of the last row added.
+	 */
+	public int commitRows(BatchHeader batch, int from, int to, int prevRowID) throws IOException {
+		int start = batch.getOffset(from);
+		int rowID = prevRowID;
+		for (int i = from; i < to; ++i) {
+			int next = getPendingInt(batch.getEnd(i) - start - 4);
+			batch.checkRowID(i, next, rowID);
+			rowID = next;
+		}
+		while (rowCount + to - from > rowIDs.capacity())
+			expandIndex();
+		for (int i = from; i < to; ++i) {
+			rowID = getPendingInt(batch.getEnd(i) - start - 4);
+			rowIDs.put(rowCount, rowID);
+			positions.put(rowCount, used + batch.getOffset(i) - start);
+			if (rowCount == 0)
+				firstRowID = rowID;
+			lastRowID = rowID;
+			rowCount++;
+		}
+		used += batch.getEnd(to - 1) - start;
+		return rowID;
+	}
     
     
     
 	private void expandIndex() {
-		rowIDs = Arrays.copyOf(rowIDs, rowIDs.length + indexGrowthSize);
-		positions = Arrays.copyOf(positions, positions.length + indexGrowthSize);
+		rowIDs = copyOf(rowIDs, rowIDs.capacity() + indexGrowthSize);
+		positions = copyOf(positions, positions.capacity() + indexGrowthSize);
+	}
+
+	private IntBuffer copyOf(IntBuffer src, int newLength) {
+		IntBuffer dst = arena == null ? IntBuffer.allocate(newLength) : arena.allocateInts(newLength);
+		IntBuffer dup = src.duplicate();
+		dup.clear();
+		dst.put(dup);
+		dst.clear();
+		return dst;
 	}
 
 	public int[] getLimits(int from, int to) {
@@ -139,28 +255,29 @@ public class Segment { // package access only
 
 		int pos2 = doBinarySearch(pos1, rowCount, to, false);
 
-		return new int[] { positions[pos1],
-				(pos2 == rowCount - 1 ? used : positions[pos2 + 1]) - 1 };
+		return new int[] { positions.get(pos1),
+				(pos2 == rowCount - 1 ? used : positions.get(pos2 + 1)) - 1 };
 	}
 
 	/**
-	 * Uses Arrays.binarySearch(..) to search in rowIDs[]. If the result r of
-	 * binarySearch is non-negative, it is returned directly. Else if !include,
-	 * a negative result r from binarySearch is returned as: -(r+2) (i.e., the
-	 * position before the place where the key would be inserted is returned).
-	 * Else (when include == true), a negative result r from binarySearch is
-	 * returned as: -(r+1) (i.e., the position where the key would be inserted
-	 * is returned).
+	 * Does a binary search in rowIDs[fromPos, toPos). If the key is found, its
+	 * position is returned. Else if !include, the position before the place
+	 * where the key would be inserted is returned. Else (when include == true),
+	 * the position where the key would be inserted is returned.
 	 */
 	private int doBinarySearch(int fromPos, int toPos, int key, boolean include) {
-		int res = Arrays.binarySearch(rowIDs, fromPos, toPos, key);
-		if (res < 0) {
-			if (include)
-				res = -(res + 1);
+		int lo = fromPos, hi = toPos - 1;
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+			int midVal = rowIDs.get(mid);
+			if (midVal < key)
+				lo = mid + 1;
+			else if (midVal > key)
+				hi = mid - 1;
 			else
-				res = -(res + 2);
+				return mid;
 		}
-		return res;
+		return include ? lo : lo - 1;
 	}
 
 	/**
@@ -181,23 +298,65 @@ public class Segment { // package access only
 		// We set used = positions[pos].
 		// Further, we must set rowIDs[x] = 0 for x \in {pos, ..., rowCount-1}
 		// and likewise for positions.
-		used = positions[pos];
+		used = positions.get(pos);
 		for (int i = pos; i < rowCount; i++) {
-			rowIDs[i] = 0;
-			positions[i] = 0;
+			rowIDs.put(i, 0);
+			positions.put(i, 0);
 		}
 		rowCount = pos;
-		this.rowIDs = rowIDs;
-		return (pos == 0);
+		if (pos == 0)
+			firstRowID = lastRowID = Integer.MIN_VALUE;
+		else
+			lastRowID = rowIDs.get(pos - 1);
+		return pos > 0;
+	}
+
+	/**
+	 * Takes a reference to the data, so that it is not freed while it is read.
+	 * 
+	 * @return false if the segment has been freed.
+	 */
+	public boolean acquire() {
+		for (;;) {
+			int r = refs.get();
+			if (r == 0)
+				return false;
+			if (refs.compareAndSet(r, r + 1))
+				return true;
+		}
+	}
+
+	public void release() {
+		if (refs.decrementAndGet() == 0 && arena != null) {
+			arena.free(data);
+		}
+	}
+
+	/**
+	 * Drops the owner's reference. The data goes back to the arena when the
+	 * last reader has released it, and can not be read afterwards.
+	 */
+	public void free() {
+		if (freed.compareAndSet(false, true)) {
+			release();
+		}
 	}
 
 	public int transferData(WritableByteChannel dest, int fromRow, int toRow) throws IOException {
-		int[] limits = getLimits(fromRow, toRow);
-		if (limits == null)
+		if (!acquire()) // Dropped by shrink(), i.e., the rows are materialized.
 			return -1;
-		ByteBuffer bb = ByteBuffer.wrap(data, limits[0], limits[1] - limits[0] + 1);
-		dest.write(bb);
-		return limits[0]; // Return a row's starting position the data segment.
+		try {
+			int[] limits = getLimits(fromRow, toRow);
+			if (limits == null)
+				return -1;
+			ByteBuffer bb = data.duplicate(); // The segment is read by many threads.
+			bb.limit(limits[1] + 1);
+			bb.position(limits[0]);
+			dest.write(bb); // No copy to the socket if the data is direct.
+			return limits[0]; // Return a row's starting position the data segment.
+		} finally {
+			release();
+		}
 	}
 
 	public int readRow(WritableByteChannel dest, int rowID) throws IOException{
@@ -205,7 +364,9 @@ public class Segment { // package access only
 	}
 	
 	public void replaceRow(byte[]row, int rowLength, int destPos){
-		System.arraycopy(row, 0, data, destPos, rowLength);
+		ByteBuffer bb = data.duplicate();
+		bb.position(destPos);
+		bb.put(row, 0, rowLength);
 	}
 	
 	public void transferData(WritableByteChannel dest) throws IOException {
@@ -224,47 +385,153 @@ public class Segment { // package access only
 		return used;
 	}
 
+	public int getRowCount() {
+		return rowCount;
+	}
+
 	/** Returns the number of bytes needed to store this Segment. */
 	public long serializedSize() {
 		// see writeOut below
-		long res = 24; // 6 ints in the beginning
-		res += used; // data
-		res += 2 * 4 * rowCount; // rowIDs and positions
-		return res;
+		return indexOffset(used) + 2 * 4 * rowCount; // rowIDs and positions
 	}
 
 	/** Returns the segment size */
 	public int size() {
-		return data.length;
+		return data.capacity();
 	}
 
-	public void writeOut(WritableByteChannel dest) throws IOException {
-		ByteBuffer bb = ByteBuffer.allocate(24);
-		bb.putInt(used).putInt(firstRowID).putInt(lastRowID).putInt(rowCount).putInt(data.length).putInt(rowIDs.length);
-		bb.flip();
-		dest.write(bb);
-		bb = ByteBuffer.wrap(data);
-		bb.limit(used);
-		dest.write(bb);
-		// Now we have to write out the int arrays rowIDs and positions.
-		// Unfortunately, we cannot just give the int arrays to the
-		// WritableByteChannel so we have to create byte arrays that duplicate
-		// the data... :-(
-		byte[] copy = new byte[4 * rowCount];
-		bb = ByteBuffer.wrap(copy);
-		for (int i = 0; i < rowCount; i++)
-			bb.putInt(rowIDs[i]);
-		bb.flip();
-		dest.write(bb);
-		// We don't have to reset copy as rowIDs and positions have the same
-		// number of used/unused elements
-		bb.clear();
-		for (int i = 0; i < rowCount; i++)
-			bb.putInt(positions[i]);
+	/** True if the segment is mapped read-only from its file. */
+	public boolean isMapped() {
+		return data.isReadOnly();
+	}
+
+	private static long indexOffset(int used) {
+		long end = PAGE_SIZE + used;
+		return (end + PAGE_SIZE - 1) / PAGE_SIZE * PAGE_SIZE;
+	}
+
+	public void writeOut(FileChannel dest) throws IOException {
+		long indexOffset = indexOffset(used);
+		ByteBuffer content = data.duplicate();
+		content.limit(used);
+		content.position(0);
+
+		// The indexes are written as one block after the data.
+		ByteBuffer index = ByteBuffer.allocate(2 * 4 * rowCount);
+		IntBuffer ib = index.asIntBuffer();
+		IntBuffer src = rowIDs.duplicate();
+		src.limit(rowCount).position(0);
+		ib.put(src);
+		src = positions.duplicate();
+		src.limit(rowCount).position(0);
+		ib.put(src);
+
+		ByteBuffer bb = ByteBuffer.allocate(HEADER_SIZE);
+		bb.putInt(MAGIC).putInt(VERSION).putInt(used).putInt(firstRowID).putInt(lastRowID)
+			.putInt(rowCount).putInt(data.capacity()).putInt((int) indexOffset).putInt(checksum(content, index));
 		bb.flip();
-		dest.write(bb);
+		writeFully(dest, bb, 0);
+		writeFully(dest, content, PAGE_SIZE);
+		writeFully(dest, index, indexOffset);
+	}
+
+	private static int checksum(ByteBuffer data, ByteBuffer index) {
+		CRC32 crc = new CRC32();
+		byte[] chunk = new byte[64 * 1024];
+		for (ByteBuffer src : new ByteBuffer[] { data, index }) {
+			ByteBuffer bb = src.duplicate();
+			if (bb.hasArray()) {
+				crc.update(bb.array(), bb.arrayOffset() + bb.position(), bb.remaining());
+				continue;
+			}
+			while (bb.hasRemaining()) { // Direct or mapped
+				int n = Math.min(chunk.length, bb.remaining());
+				bb.get(chunk, 0, n);
+				crc.update(chunk, 0, n);
+			}
+		}
+		return (int) crc.getValue();
 	}
 
+	/**
+	 * Checks the segment file against its checksum, by reading it through a
+	 * temporary mapping. Files written without a checksum pass.
+	 */
+	public static boolean verify(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			channel.read(header, 0);
+			header.flip();
+			if (header.remaining() < HEADER_SIZE || header.getInt(0) != MAGIC || header.getInt(4) < 2)
+				return true;
+			int used = header.getInt(8);
+			int rowCount = header.getInt(20);
+			int indexOffset = header.getInt(28);
+			int expected = header.getInt(32);
+			if (PAGE_SIZE + (long) used > channel.size() || indexOffset + 2L * 4 * rowCount > channel.size())
+				return false;
+			ByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, PAGE_SIZE, used);
+			ByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, indexOffset, 2 * 4 * rowCount);
+			return checksum(data, index) == expected;
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static void writeFully(FileChannel dest, ByteBuffer src, long position) throws IOException {
+		while (src.hasRemaining()) {
+			position += dest.write(src, position);
+		}
+	}
+
+	/**
+	 * Maps a segment file read-only. The returned segment is queried in place,
+	 * i.e., nothing is read into the heap, and the pages are left to the OS
+	 * page cache. Files in the old (unaligned) format are read in instead.
+	 */
+	public static Segment open(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			ByteBuffer bb = ByteBuffer.allocate(HEADER_SIZE);
+			channel.read(bb, 0);
+			if (bb.getInt(0) != MAGIC) {
+				channel.position(0);
+				return readIn(channel);
+			}
+			return map(channel);
+		} finally {
+			raf.close(); // The mapping stays valid after the channel is closed.
+		}
+	}
+
+	public static Segment map(FileChannel src) throws IOException {
+		ByteBuffer header = src.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+		int version;
+		if (header.getInt() != MAGIC || (version = header.getInt()) < 1 || version > VERSION)
+			throw new IOException("Not a segment file");
+		int used = header.getInt();
+		int firstRowID = header.getInt();
+		int lastRowID = header.getInt();
+		int rowCount = header.getInt();
+		header.getInt(); // The size of the segment when it was written.
+		int indexOffset = header.getInt();
+
+		ByteBuffer data = src.map(FileChannel.MapMode.READ_ONLY, PAGE_SIZE, used);
+		IntBuffer rowIDs = IntBuffer.allocate(0), positions = rowIDs;
+		if (rowCount > 0) {
+			ByteBuffer index = src.map(FileChannel.MapMode.READ_ONLY, indexOffset, 2 * 4 * rowCount);
+			index.limit(4 * rowCount);
+			rowIDs = index.slice().asIntBuffer();
+			index.limit(2 * 4 * rowCount).position(4 * rowCount);
+			positions = index.slice().asIntBuffer();
+		}
+		return new Segment(used, firstRowID, lastRowID, rowCount, data, rowIDs, positions);
+	}
+
+	/** Reads in a segment file in the old format, which is not page aligned. */
 	public static Segment readIn(ReadableByteChannel src) throws IOException {
 		ByteBuffer bb = ByteBuffer.allocate(24);
 		readFromChannel(src, bb);
@@ -288,7 +555,7 @@ public class Segment { // package access only
 		readFromChannel(src, bb);
 		bb.asIntBuffer().get(positions, 0, rowCount);
 
-		return new Segment(used, firstRowID, lastRowID, rowCount, data, rowIDs, positions);
+		return new Segment(used, firstRowID, lastRowID, rowCount, ByteBuffer.wrap(data), IntBuffer.wrap(rowIDs), IntBuffer.wrap(positions));
 	}
 
 	private static void readFromChannel(ReadableByteChannel src, ByteBuffer dest)
@@ -303,8 +570,16 @@ public class Segment { // package access only
 
 	
 	public void materialize(RiteChannel dest, String delim, String nullSubst) throws IOException {
-		ByteBuffer bb = ByteBuffer.wrap(data, 0, used);
-		dest.write(bb, delim, nullSubst);
+		if (!acquire())
+			return;
+		try {
+			ByteBuffer bb = data.duplicate();
+			bb.limit(used);
+			bb.position(0);
+			dest.write(bb, firstRowID, lastRowID, delim, nullSubst);
+		} finally {
+			release();
+		}
 	}
 
 
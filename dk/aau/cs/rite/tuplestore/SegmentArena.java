@@ -0,0 +1,90 @@
+/*
+ *
+ * Copyright (c) 2011, Xiufeng Liu (xiliu@cs.aau.dk) and the eGovMon Consortium
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ *
+ *
+ */
+package dk.aau.cs.rite.tuplestore;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The server-wide source of off-heap (direct) memory for the segments. The
+ * data of a segment is allocated from here, and given back by
+ * <code>Segment.free()</code> when the segment is dropped. Freed buffers are
+ * kept for the next segments of the same size, up to maxPooledBytes, so that
+ * the direct memory is reused rather than left to the GC.
+ */
+public class SegmentArena {
+
+	private final long maxPooledBytes;
+	private final ConcurrentHashMap<Integer, Queue<ByteBuffer>> pools = new ConcurrentHashMap<Integer, Queue<ByteBuffer>>();
+	private final AtomicLong pooledBytes = new AtomicLong(0);
+	private final AtomicLong allocatedBytes = new AtomicLong(0);
+	private final AtomicLong usedBytes = new AtomicLong(0);
+
+	public SegmentArena(long maxPooledBytes) {
+		this.maxPooledBytes = maxPooledBytes;
+	}
+
+	public ByteBuffer allocate(int size) {
+		Queue<ByteBuffer> pool = pools.get(size);
+		ByteBuffer buf = pool == null ? null : pool.poll();
+		if (buf != null) {
+			pooledBytes.addAndGet(-size);
+			buf.clear();
+		} else {
+			buf = ByteBuffer.allocateDirect(size);
+			allocatedBytes.addAndGet(size);
+		}
+		usedBytes.addAndGet(size);
+		return buf;
+	}
+
+	/** The row indexes of the segments are also kept off-heap, but not pooled. */
+	public IntBuffer allocateInts(int length) {
+		return ByteBuffer.allocateDirect(4 * length).order(ByteOrder.nativeOrder()).asIntBuffer();
+	}
+
+	public void free(ByteBuffer buf) {
+		int size = buf.capacity();
+		usedBytes.addAndGet(-size);
+		if (pooledBytes.addAndGet(size) <= maxPooledBytes) {
+			Queue<ByteBuffer> pool = pools.get(size);
+			if (pool == null) {
+				pools.putIfAbsent(size, new ConcurrentLinkedQueue<ByteBuffer>());
+				pool = pools.get(size);
+			}
+			pool.offer(buf);
+		} else { // Left to the GC, which releases the direct memory.
+			pooledBytes.addAndGet(-size);
+			allocatedBytes.addAndGet(-size);
+		}
+	}
+
+	public long getUsedBytes() {
+		return usedBytes.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("SegmentArena: used=%d, pooled=%d, allocated=%d", usedBytes.get(), pooledBytes.get(), allocatedBytes.get());
+	}
+}
@@ -0,0 +1,201 @@
+/*
+ *
+ * Copyright (c) 2011, Xiufeng Liu (xiliu@cs.aau.dk) and the eGovMon Consortium
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ *
+ *
+ */
+package dk.aau.cs.rite.tuplestore;
+
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A server-wide cache of the segments of the file-based tuple stores, bounded
+ * by a byte budget for the server and one for each table. The least recently
+ * used segment is evicted first, but a segment is pinned, i.e., never evicted,
+ * while it is being written or while it is registered by a consumer. An
+ * evicted (or removed) segment is freed, and mapped again from its file when
+ * it is needed.
+ */
+public class SegmentCache {
+
+	static class Key {
+		final Object owner;
+		final int segmentID;
+
+		Key(Object owner, int segmentID) {
+			this.owner = owner;
+			this.segmentID = segmentID;
+		}
+
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(owner) * 31 + segmentID;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof Key))
+				return false;
+			Key k = (Key) o;
+			return owner == k.owner && segmentID == k.segmentID;
+		}
+	}
+
+	static class Entry {
+		final Segment segment;
+		final long bytes;
+		final Counter counter; // The register counter of the segment, may be null.
+		boolean writing;
+
+		Entry(Segment segment, Counter counter, boolean writing) {
+			this.segment = segment;
+			this.bytes = segment.size();
+			this.counter = counter;
+			this.writing = writing;
+		}
+
+		boolean isPinned() {
+			return writing || (counter != null && counter.isRegistered());
+		}
+	}
+
+	private final long capacity; // Bytes for the server, <=0 means unbounded.
+	private final long tableCapacity; // Bytes for each table, <=0 means unbounded.
+
+	private final LinkedHashMap<Key, Entry> lru = new LinkedHashMap<Key, Entry>(64, 0.75f, true);
+	private final Map<Object, long[]> tableBytes = new IdentityHashMap<Object, long[]>();
+	private long bytes;
+
+	private long hits, misses, evictions;
+
+	public SegmentCache(long capacity, long tableCapacity) {
+		this.capacity = capacity;
+		this.tableCapacity = tableCapacity;
+	}
+
+	synchronized public Segment get(Object owner, int segmentID) {
+		Entry entry = lru.get(new Key(owner, segmentID));
+		if (entry == null) {
+			++misses;
+			return null;
+		}
+		++hits;
+		return entry.segment;
+	}
+
+	/** Adds a segment; a segment being written is pinned until unpinWriting() is called.*/
+	synchronized public void put(Object owner, int segmentID, Segment segment, Counter counter, boolean writing) {
+		Entry old = lru.get(new Key(owner, segmentID));
+		if (old != null && old.segment == segment) {
+			old.writing = writing;
+			return;
+		}
+		remove(owner, segmentID);
+		Entry entry = new Entry(segment, counter, writing);
+		lru.put(new Key(owner, segmentID), entry);
+		bytes += entry.bytes;
+		tableBytes(owner)[0] += entry.bytes;
+		evict(owner);
+	}
+
+	synchronized public void unpinWriting(Object owner, int segmentID) {
+		Entry entry = lru.get(new Key(owner, segmentID));
+		if (entry != null) {
+			entry.writing = false;
+			evict(owner);
+		}
+	}
+
+	synchronized public void remove(Object owner, int segmentID) {
+		Entry entry = lru.remove(new Key(owner, segmentID));
+		if (entry != null) {
+			release(owner, entry);
+		}
+	}
+
+	synchronized public void removeAll(Object owner) {
+		Iterator<Map.Entry<Key, Entry>> itr = lru.entrySet().iterator();
+		while (itr.hasNext()) {
+			Map.Entry<Key, Entry> e = itr.next();
+			if (e.getKey().owner == owner) {
+				itr.remove();
+				release(owner, e.getValue());
+			}
+		}
+		tableBytes.remove(owner);
+	}
+
+	private long[] tableBytes(Object owner) {
+		long[] b = tableBytes.get(owner);
+		if (b == null) {
+			b = new long[1];
+			tableBytes.put(owner, b);
+		}
+		return b;
+	}
+
+	private void release(Object owner, Entry entry) {
+		bytes -= entry.bytes;
+		tableBytes(owner)[0] -= entry.bytes;
+		entry.segment.free(); // The readers holding it keep it until they release it.
+	}
+
+	// Evicts the least recently used, unpinned segments until both the table and the server are within their budgets.
+	private void evict(Object owner) {
+		if (tableCapacity > 0 && tableBytes(owner)[0] > tableCapacity) {
+			evict(owner, tableCapacity);
+		}
+		if (capacity > 0 && bytes > capacity) {
+			evict(null, capacity);
+		}
+	}
+
+	private void evict(Object owner, long limit) {
+		Iterator<Map.Entry<Key, Entry>> itr = lru.entrySet().iterator();
+		while (itr.hasNext() && (owner == null ? bytes : tableBytes(owner)[0]) > limit) {
+			Map.Entry<Key, Entry> e = itr.next();
+			Object o = e.getKey().owner;
+			if ((owner == null || o == owner) && !e.getValue().isPinned()) {
+				itr.remove();
+				release(o, e.getValue());
+				++evictions;
+			}
+		}
+	}
+
+	synchronized public long getHits() {
+		return hits;
+	}
+
+	synchronized public long getMisses() {
+		return misses;
+	}
+
+	synchronized public long getEvictions() {
+		return evictions;
+	}
+
+	synchronized public long getBytes() {
+		return bytes;
+	}
+
+	@Override
+	synchronized public String toString() {
+		return String.format("SegmentCache: segments=%d, bytes=%d/%d, hits=%d, misses=%d, evictions=%d",
+				lru.size(), bytes, capacity, hits, misses, evictions);
+	}
+}
@@ -24,6 +24,7 @@ import java.nio.channels.ByteChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.nio.channels.WritableByteChannel;
 
+import dk.aau.cs.rite.common.BatchHeader;
 import dk.aau.cs.rite.common.RiteException;
 import dk.aau.cs.rite.producer.staging.Catalog;
 import dk.aau.cs.rite.server.PingServer;
@@ -42,7 +43,17 @@ public interface TupleStore  {
 
 	public int readRows(ReadableByteChannel channel, ByteBuffer buf) throws IOException;
 
+	int readBatchIn(ReadableByteChannel channel) throws RiteException; // The rows are framed by a BatchHeader.
+
+	public int readBatch(ReadableByteChannel channel, ByteBuffer buf) throws IOException;
+
+	// As readBatchIn, but the header is handed over by a producer in the same process.
+	int addBatch(long commitTime, BatchHeader batch, ReadableByteChannel rows) throws RiteException;
+
 	int readUDsIn(ReadableByteChannel channel) throws RiteException;
+	
+	// As readUDsIn, but the IDs of the upserts must be from firstID to lastID, e.g., in a lease of row IDs.
+	int readUDsIn(ReadableByteChannel channel, int firstID, int lastID) throws RiteException;
 
 	public int readUDs(long commitTime, ReadableByteChannel channel, ByteBuffer buf, boolean delRowsInDw)
 			throws IOException;
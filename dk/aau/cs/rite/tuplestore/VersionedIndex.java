@@ -0,0 +1,325 @@
+/*
+ *
+ * Copyright (c) 2011, Xiufeng Liu (xiliu@cs.aau.dk) and the eGovMon Consortium
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ *
+ *
+ */
+package dk.aau.cs.rite.tuplestore;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Observable;
+import java.util.Observer;
+
+/**
+ * An append-only index with primitive, non-decreasing keys, e.g., row IDs,
+ * segment IDs and commit times. There is only one writer (the producer that
+ * flushes), and many readers (the consumers).
+ * 
+ * The writer appends to (and trims from the head of) a pending version, which
+ * shares the arrays with the published versions. A flush is published by
+ * swapping one volatile reference, and a failed flush is discarded by going
+ * back to the published version, i.e., nothing is copied for a flush. A reader
+ * takes a <code>View</code> by snapshot() and works on it without locks; the
+ * slots of a view are never overwritten, since the writer only writes behind
+ * the published tail, and moves to new arrays when it clears or grows.
+ * 
+ * For equal keys, the latest put wins in the lookups.
+ */
+public class VersionedIndex<V> implements Observer {
+
+	// The pending version, only accessed by the writer.
+	private long[] keys;
+	private Object[] values;
+	private int head, tail;
+
+	private volatile View<V> published;
+
+	public VersionedIndex() {
+		this(16);
+	}
+
+	public VersionedIndex(int initialCapacity) {
+		this.keys = new long[Math.max(1, initialCapacity)];
+		this.values = new Object[keys.length];
+		this.head = 0;
+		this.tail = 0;
+		this.published = new View<V>(keys, values, 0, 0);
+	}
+
+	/** Returns the latest published version. */
+	public View<V> snapshot() {
+		return published;
+	}
+
+	// --------------- Writer --------------------------
+
+	public void put(long key, V value) {
+		if (tail > head) {
+			long last = keys[tail - 1];
+			if (key < last) {
+				throw new IllegalArgumentException(String.format("Key %d is smaller than the last key %d", key, last));
+			}
+			if (key == last && !isPublished(tail - 1)) {
+				values[tail - 1] = value;
+				return;
+			}
+		}
+		if (tail == keys.length) {
+			grow();
+		}
+		keys[tail] = key;
+		values[tail] = value;
+		++tail;
+	}
+
+	/**
+	 * As put, but a key smaller than the last key is raised to it, e.g., for the
+	 * commit times of producers whose clocks differ. Returns the key used.
+	 */
+	public long putAtLeast(long key, V value) {
+		if (tail > head && key < keys[tail - 1])
+			key = keys[tail - 1];
+		put(key, value);
+		return key;
+	}
+
+	public boolean isPendingEmpty() {
+		return tail == head;
+	}
+
+	public long pendingFirstKey() {
+		if (tail == head)
+			throw new NoSuchElementException();
+		return keys[head];
+	}
+
+	@SuppressWarnings("unchecked")
+	public V pendingFirstValue() {
+		if (tail == head)
+			throw new NoSuchElementException();
+		return (V) values[head];
+	}
+
+	public void pollFirst() {
+		if (tail == head)
+			throw new NoSuchElementException();
+		++head;
+	}
+
+	/** Removes the entries whose keys are smaller than the given key. */
+	public void truncateHead(long toKey) {
+		while (head < tail && keys[head] < toKey) {
+			++head;
+		}
+	}
+
+	public void clear() {
+		this.keys = new long[keys.length];
+		this.values = new Object[keys.length];
+		this.head = 0;
+		this.tail = 0;
+	}
+
+	public void publish() {
+		this.published = new View<V>(keys, values, head, tail);
+	}
+
+	/** Discards what has been written since the last publish. */
+	public void rollback() {
+		View<V> v = this.published;
+		this.keys = v.keys;
+		this.values = v.values;
+		this.head = v.from;
+		this.tail = v.to;
+	}
+
+	/**
+	 * Replaces the value of a published entry in place. Only for values that are
+	 * interchangeable to the readers, e.g., a segment reloaded into the cache.
+	 */
+	public void replace(long key, V value) {
+		View<V> v = this.published;
+		int i = v.indexOf(key);
+		if (i >= 0) {
+			v.values[v.from + i] = value;
+		}
+	}
+
+	private boolean isPublished(int i) {
+		View<V> v = this.published;
+		return v.keys == keys && i < v.to;
+	}
+
+	private void grow() { // Also drops the trimmed head.
+		int size = tail - head;
+		int capacity = Math.max(16, size * 2);
+		long[] newKeys = new long[capacity];
+		Object[] newValues = new Object[capacity];
+		System.arraycopy(keys, head, newKeys, 0, size);
+		System.arraycopy(values, head, newValues, 0, size);
+		this.keys = newKeys;
+		this.values = newValues;
+		this.head = 0;
+		this.tail = size;
+	}
+
+	// --------------- Extension --------------------------
+
+	@Override
+	public void update(Observable o, Object arg) {
+		switch ((FlushEvent.event) arg) {
+		case FLUSH_DATE:
+		case FLUSH_FAIL:
+			rollback();
+			break;
+		case FLUSH_SUCCESS:
+			publish();
+			break;
+		default:
+			;
+		}
+	}
+
+	/**
+	 * An immutable range of a version. The range views are taken without
+	 * copying the entries.
+	 */
+	public static class View<V> implements Iterable<V> {
+		final long[] keys;
+		final Object[] values;
+		final int from, to;
+
+		View(long[] keys, Object[] values, int from, int to) {
+			this.keys = keys;
+			this.values = values;
+			this.from = from;
+			this.to = to;
+		}
+
+		public int size() {
+			return to - from;
+		}
+
+		public boolean isEmpty() {
+			return to == from;
+		}
+
+		public long keyAt(int i) {
+			return keys[from + i];
+		}
+
+		@SuppressWarnings("unchecked")
+		public V valueAt(int i) {
+			return (V) values[from + i];
+		}
+
+		public long firstKey() {
+			if (isEmpty())
+				throw new NoSuchElementException();
+			return keys[from];
+		}
+
+		public long lastKey() {
+			if (isEmpty())
+				throw new NoSuchElementException();
+			return keys[to - 1];
+		}
+
+		/** Returns the relative index of the last entry whose key <= the given key, or -1. */
+		public int floorIndex(long key) {
+			return upperBound(key) - 1 - from;
+		}
+
+		public int indexOf(long key) {
+			int i = floorIndex(key);
+			return (i >= 0 && keyAt(i) == key) ? i : -1;
+		}
+
+		public V get(long key) {
+			int i = indexOf(key);
+			return i >= 0 ? valueAt(i) : null;
+		}
+
+		public V floorValue(long key) {
+			int i = floorIndex(key);
+			return i >= 0 ? valueAt(i) : null;
+		}
+
+		public View<V> subView(long fromKey, boolean fromInclusive, long toKey, boolean toInclusive) {
+			int lo = fromInclusive ? lowerBound(fromKey) : upperBound(fromKey);
+			int hi = toInclusive ? upperBound(toKey) : lowerBound(toKey);
+			return new View<V>(keys, values, lo, Math.max(lo, hi));
+		}
+
+		public View<V> headView(long toKey, boolean inclusive) {
+			return new View<V>(keys, values, from, inclusive ? upperBound(toKey) : lowerBound(toKey));
+		}
+
+		public View<V> tailView(long fromKey, boolean inclusive) {
+			return new View<V>(keys, values, inclusive ? lowerBound(fromKey) : upperBound(fromKey), to);
+		}
+
+		// The absolute position of the first key >= the given key.
+		private int lowerBound(long key) {
+			int lo = from, hi = to;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (keys[mid] < key)
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			return lo;
+		}
+
+		// The absolute position of the first key > the given key.
+		private int upperBound(long key) {
+			int lo = from, hi = to;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (keys[mid] <= key)
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			return lo;
+		}
+
+		@Override
+		public Iterator<V> iterator() {
+			return new Iterator<V>() {
+				int i = from;
+
+				@Override
+				public boolean hasNext() {
+					return i < to;
+				}
+
+				@SuppressWarnings("unchecked")
+				@Override
+				public V next() {
+					if (i >= to)
+						throw new NoSuchElementException();
+					return (V) values[i++];
+				}
+
+				@Override
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+	}
+}
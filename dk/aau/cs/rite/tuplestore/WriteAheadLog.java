@@ -0,0 +1,574 @@
+/*
+ *
+ * Copyright (c) 2011, Xiufeng Liu (xiliu@cs.aau.dk) and the eGovMon Consortium
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ *
+ *
+ */
+package dk.aau.cs.rite.tuplestore;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * The append-only write-ahead log of a file-based tuple store. The payload of
+ * a flush is appended as one record when the flush is applied: the rows are
+ * written from the segments that they were read into, and the rest (e.g., the
+ * header of the rows, or the updates/deletes) is kept while it is read from
+ * the producer. The region
+ * of a record is reserved and written under one lock, so records never
+ * overlap, and a discarded flush leaves nothing in the log. A record is made
+ * durable by sync(), which the tuple store calls after it has released its
+ * lock: the fsync is shared, i.e., concurrent committers wait for the one in
+ * progress, and the next fsync covers all that have been appended meanwhile.
+ * <p>
+ * The positions handed out are in the sequence of all the generations, so
+ * that a committer does not have to care whether a checkpoint has switched
+ * the file meanwhile.
+ * <p>
+ * The log is truncated by a checkpoint, i.e., when the indexes of the sealed
+ * segments are backed up. The checkpoint rotates the log under the lock of the
+ * tuple store, so that the flushes after it go to a new generation (the
+ * number is saved with the checkpoint). Outside the lock, it writes the
+ * records that are still in use to the carry file of the new generation: the
+ * update/delete records, as these are not part of the backup, and the rows of
+ * the segment being filled, as it is not sealed. After a crash, the carry file
+ * of the checkpoint is replayed first, and then the generations from the one
+ * of the checkpoint on.
+ * <p>
+ * Record format: length (int)|type (byte)|max ID (int)|CRC32 of the payload
+ * (int)|payload. A record which was not completely synced does not match
+ * its length or checksum, and is cut off at replay.
+ */
+public class WriteAheadLog {
+
+	static Logger log = Logger.getLogger(WriteAheadLog.class.getName());
+
+	public static final byte DATA = 1; // Rows in the old flush format; now logged as a BATCH, but still replayed.
+	public static final byte UD = 2;
+	public static final byte BATCH = 3; // Rows in the bulk flush format.
+
+	private static final int HEADER_SIZE = 4 + 1 + 4 + 4;
+
+	public interface Handler {
+		void apply(byte type, ReadableByteChannel payload) throws IOException;
+	}
+
+	private final File dir;
+	private int generation; // The generation appended to
+	private FileChannel channel;
+	private long base; // The position of the file in the sequence of the generations
+	private List<FileChannel> older = new ArrayList<FileChannel>(); // The carry file and the generations before, in the order of the replay.
+
+	// Group commit. The positions are in the sequence, guarded by the syncLock.
+	private final Object syncLock = new Object();
+	private long written;
+	private long synced;
+	private boolean syncing;
+
+	private List<Record> records = new ArrayList<Record>(); // Since the checkpoint, guarded by the syncLock.
+	private List<Record> rotated; // Before the rotation, to be carried.
+
+	public WriteAheadLog(String tupleStoreDir) {
+		this.dir = new File(tupleStoreDir);
+	}
+
+	/**
+	 * Opens the log of the checkpoint of the given generation, i.e., its carry
+	 * file and the generations from it on. The other files (left behind by a
+	 * checkpoint, or by an interrupted one) are deleted.
+	 */
+	public void open(int generation) throws IOException {
+		close();
+		this.deleteBefore(generation);
+		int last = generation;
+		File[] files = dir.listFiles();
+		if (files != null) {
+			for (File f : files) {
+				last = Math.max(last, generationOf(f.getName(), "wal"));
+			}
+		}
+		if (carryOf(generation).exists())
+			older.add(new RandomAccessFile(carryOf(generation), "r").getChannel());
+		for (int g = generation; g < last; ++g) {
+			if (fileOf(g).exists())
+				older.add(new RandomAccessFile(fileOf(g), "r").getChannel());
+		}
+		this.generation = last;
+		FileChannel channel = new RandomAccessFile(fileOf(last), "rw").getChannel();
+		synchronized (syncLock) {
+			this.channel = channel;
+			this.base = written; // Positions handed out before stay behind the new ones.
+			this.written += channel.size();
+			this.synced = written;
+			this.records = new ArrayList<Record>();
+		}
+		this.rotated = null;
+	}
+
+	/** Deletes the generations before the given one, and the carry files of the others. */
+	private void deleteBefore(int generation) {
+		File[] files = dir.listFiles();
+		if (files == null)
+			return;
+		for (File f : files) {
+			String name = f.getName();
+			int g = generationOf(name, "wal");
+			int c = generationOf(name, "carry");
+			if ((g >= 0 && g < generation) || (c >= 0 && c != generation) || (name.startsWith("carry") && name.endsWith(".tmp")))
+				f.delete();
+		}
+	}
+
+	// Returns the generation of a file named prefix<generation>.log, or -1.
+	private static int generationOf(String name, String prefix) {
+		if (!name.startsWith(prefix) || !name.endsWith(".log"))
+			return -1;
+		try {
+			return Integer.parseInt(name.substring(prefix.length(), name.length() - 4));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private File fileOf(int generation) {
+		return new File(dir, "wal" + generation + ".log");
+	}
+
+	private File carryOf(int generation) {
+		return new File(dir, "carry" + generation + ".log");
+	}
+
+	private void ensureOpen() throws IOException {
+		if (channel == null)
+			open(generation);
+	}
+
+	public int getGeneration() {
+		return generation;
+	}
+
+	/** The bytes logged since the last checkpoint. */
+	public long getLogged() {
+		synchronized (syncLock) {
+			return written - base;
+		}
+	}
+
+	/** Logs what is read from the channel, as a record of the given type. */
+	public Recorder record(ReadableByteChannel in, byte type) throws IOException {
+		ensureOpen();
+		return new Recorder(in, type);
+	}
+
+	/** Logs a record of the given type that is put together by the caller, see Recorder.put(). */
+	public Recorder record(byte type) throws IOException {
+		return record(null, type);
+	}
+
+	/** Returns whether the log is durable up to the given position. */
+	public boolean isSynced(long pos) {
+		synchronized (syncLock) {
+			return synced >= pos;
+		}
+	}
+
+	/**
+	 * Waits until the log is durable up to the given position, as returned by
+	 * Recorder.commit(). Called without holding the lock of the tuple store.
+	 */
+	public void sync(long pos) throws IOException {
+		FileChannel channel;
+		long target;
+		synchronized (syncLock) {
+			while (synced < pos && syncing) {
+				try {
+					syncLock.wait();
+				} catch (InterruptedException e) {
+					throw new InterruptedIOException();
+				}
+			}
+			if (synced >= pos)
+				return; // Synced by another committer.
+			syncing = true;
+			channel = this.channel;
+			target = written;
+		}
+		boolean done = false;
+		try {
+			if (channel != null)
+				channel.force(false);
+			done = true;
+		} finally {
+			synchronized (syncLock) {
+				syncing = false;
+				if (done)
+					synced = Math.max(synced, target);
+				syncLock.notifyAll();
+			}
+		}
+	}
+
+	/**
+	 * Replays the valid records of the carry file and the generations in
+	 * order. The log is cut off after the last valid record.
+	 * 
+	 * @return the number of records replayed
+	 */
+	public int replay(Handler handler) throws IOException {
+		ensureOpen();
+		List<Record> replayed = new ArrayList<Record>();
+		for (FileChannel file : older) {
+			long pos = replay(file, handler, replayed);
+			if (pos < file.size()) // Synced before the rotation, so it is damaged.
+				log.severe(String.format("Skipped %d bytes of an invalid record in %s", file.size() - pos, this));
+		}
+		long pos = replay(channel, handler, replayed);
+		if (pos < channel.size()) {
+			log.warning(String.format("Cut off %d bytes of an incomplete record in %s", channel.size() - pos, fileOf(generation)));
+			channel.truncate(pos);
+		}
+		synchronized (syncLock) {
+			written = base + pos;
+			synced = Math.min(synced, written);
+			records = replayed;
+		}
+		return replayed.size();
+	}
+
+	// Returns the position after the last valid record of the file.
+	private static long replay(FileChannel file, Handler handler, List<Record> replayed) throws IOException {
+		ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		long size = file.size();
+		long pos = 0;
+		while (pos + HEADER_SIZE <= size) {
+			header.clear();
+			readFully(file, header, pos);
+			header.flip();
+			int length = header.getInt();
+			byte type = header.get();
+			int maxID = header.getInt();
+			int crc = header.getInt();
+			if (length <= 0 || (type != DATA && type != UD && type != BATCH) || pos + HEADER_SIZE + length > size)
+				break;
+			ByteBuffer payload = ByteBuffer.allocate(length);
+			readFully(file, payload, pos + HEADER_SIZE);
+			CRC32 checksum = new CRC32();
+			checksum.update(payload.array(), 0, length);
+			if ((int) checksum.getValue() != crc)
+				break;
+			payload.flip();
+			handler.apply(type, new BufferChannel(payload));
+			replayed.add(new Record(type, maxID, file, pos, HEADER_SIZE + length));
+			pos += HEADER_SIZE + length;
+		}
+		return pos;
+	}
+
+	/**
+	 * Continues the log in the next generation, and returns its number. Called
+	 * by the checkpoint under the lock of the tuple store, when the flushes
+	 * applied are synced; the records before are carried by carry().
+	 */
+	public int rotate() throws IOException {
+		ensureOpen();
+		int next = generation + 1;
+		FileChannel file = new RandomAccessFile(fileOf(next), "rw").getChannel();
+		file.truncate(0); // If it was left behind
+		synchronized (syncLock) {
+			if (synced < written)
+				channel.force(false); // Not synced by the new generation.
+			older.add(channel);
+			channel = file;
+			generation = next;
+			base = written;
+			synced = written;
+			if (rotated == null)
+				rotated = records;
+			else
+				rotated.addAll(records); // The previous checkpoint failed.
+			records = new ArrayList<Record>();
+		}
+		return next;
+	}
+
+	/**
+	 * Writes the records before the rotation that are still in use to the
+	 * carry file of the given generation: the update/delete records whose IDs
+	 * are not below minID, and the rows from firstRowID on, i.e., the rows of
+	 * the segment being filled. Called outside the lock of the tuple store; the
+	 * checkpoint is saved after it.
+	 */
+	public void carry(int generation, int minID, int firstRowID) throws IOException {
+		File tmp = new File(dir, "carry" + generation + ".tmp");
+		FileChannel file = new RandomAccessFile(tmp, "rw").getChannel();
+		List<Record> carried = new ArrayList<Record>();
+		try {
+			file.truncate(0);
+			long pos = 0;
+			for (Record rec : rotated) {
+				if (rec.maxID < (rec.type == UD ? minID : firstRowID))
+					continue;
+				long n = 0;
+				while (n < rec.length) {
+					n += rec.file.transferTo(rec.pos + n, rec.length - n, file.position(pos + n));
+				}
+				carried.add(new Record(rec.type, rec.maxID, file, pos, rec.length));
+				pos += rec.length;
+			}
+			file.force(false);
+			if (!tmp.renameTo(carryOf(generation)))
+				throw new IOException("Failed to rename " + tmp);
+		} catch (IOException e) {
+			file.close();
+			tmp.delete();
+			throw e;
+		}
+		synchronized (syncLock) {
+			records.addAll(0, carried);
+			older.add(file);
+		}
+		rotated = null;
+	}
+
+	/**
+	 * Deletes the files before the carry file of the given generation, once
+	 * its checkpoint is saved.
+	 */
+	public void dropBefore(int generation) throws IOException {
+		List<FileChannel> dropped = new ArrayList<FileChannel>(older);
+		FileChannel carry = dropped.remove(dropped.size() - 1); // Added by carry()
+		for (FileChannel file : dropped) {
+			file.close();
+		}
+		older.clear();
+		older.add(carry);
+		this.deleteBefore(generation);
+	}
+
+	public void close() {
+		try {
+			for (FileChannel file : older) {
+				file.close();
+			}
+			if (channel != null)
+				channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		older.clear();
+		synchronized (syncLock) {
+			channel = null;
+		}
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer dst, long pos) throws IOException {
+		while (dst.hasRemaining()) {
+			int n = channel.read(dst, pos);
+			if (n == -1)
+				throw new IOException("Unexpected end of the log");
+			pos += n;
+		}
+	}
+
+	@Override
+	public String toString() {
+		synchronized (syncLock) {
+			return String.format("WAL: generation=%d, size=%d, records=%d", generation, written - base, records.size());
+		}
+	}
+
+	static class Record {
+		final byte type;
+		final int maxID;
+		final FileChannel file;
+		final long pos;
+		final int length;
+
+		Record(byte type, int maxID, FileChannel file, long pos, int length) {
+			this.type = type;
+			this.maxID = maxID;
+			this.file = file;
+			this.pos = pos;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * Keeps what is read from the producer, and appends it as a record when
+	 * the flush is committed. Nothing is written to the log before, so a
+	 * discarded record costs nothing, and does not get in the way of the
+	 * records appended meanwhile. Rows that were read straight into a segment
+	 * are not copied: the record refers to them in the segment, see putRows().
+	 */
+	public class Recorder implements ReadableByteChannel {
+		private final ReadableByteChannel in; // Null if the record is put together by the caller
+		private final byte type;
+		private byte[] payload = new byte[8192];
+		private int length;
+		private List<ByteBuffer> rows = new ArrayList<ByteBuffer>(); // After the payload
+		private List<Segment> segments = new ArrayList<Segment>(); // Of the rows, referenced until the record is written
+
+		Recorder(ReadableByteChannel in, byte type) {
+			this.in = in;
+			this.type = type;
+		}
+
+		@Override
+		public int read(ByteBuffer dst) throws IOException {
+			int from = dst.position();
+			int n = in.read(dst);
+			if (n > 0) {
+				ByteBuffer src = dst.duplicate();
+				src.limit(from + n);
+				src.position(from);
+				this.put(src);
+			}
+			return n;
+		}
+
+		/** Adds the remaining bytes of src to the payload, e.g., the header of rows. */
+		public void put(ByteBuffer src) {
+			int n = src.remaining();
+			if (payload.length - length < n)
+				payload = Arrays.copyOf(payload, Math.max(length + n, 2 * payload.length));
+			src.get(payload, length, n);
+			length += n;
+		}
+
+		/**
+		 * Adds the rows in the given bytes of a segment after the payload. The
+		 * segment is referenced, so that it is not freed before the record is
+		 * written, e.g., when it is dumped and evicted by the same flush.
+		 */
+		public void putRows(Segment segment, ByteBuffer src) throws IOException {
+			if (!segment.acquire())
+				throw new IOException("The segment of the rows has been freed");
+			segments.add(segment);
+			rows.add(src.slice());
+		}
+
+		/**
+		 * Appends the record, where maxID is the last row or update/delete ID
+		 * in it. The record is durable when sync() has been called with the
+		 * returned position.
+		 */
+		public long commit(int maxID) throws IOException {
+			try {
+				CRC32 checksum = new CRC32();
+				checksum.update(payload, 0, length);
+				long size = length;
+				for (ByteBuffer src : rows) {
+					update(checksum, src.duplicate());
+					size += src.remaining();
+				}
+				if (size > Integer.MAX_VALUE - HEADER_SIZE)
+					throw new IOException("The record is too large: " + size + " bytes");
+				ByteBuffer[] record = new ByteBuffer[1 + rows.size()]; // Written by one gathering write
+				record[0] = ByteBuffer.allocate(HEADER_SIZE + length);
+				record[0].putInt((int) size).put(type).putInt(maxID).putInt((int) checksum.getValue());
+				record[0].put(payload, 0, length).flip();
+				for (int i = 0; i < rows.size(); ++i) {
+					record[i + 1] = rows.get(i).duplicate();
+				}
+				synchronized (syncLock) {
+					long start = written - base;
+					channel.position(start);
+					while (record[record.length - 1].hasRemaining()) {
+						channel.write(record);
+					}
+					written += HEADER_SIZE + size;
+					records.add(new Record(type, maxID, channel, start, HEADER_SIZE + (int) size));
+					return written;
+				}
+			} finally {
+				this.discard();
+			}
+		}
+
+		// Checksums the rows through a scratch array, as they are off-heap.
+		private void update(CRC32 checksum, ByteBuffer src) {
+			if (src.hasArray()) {
+				checksum.update(src.array(), src.arrayOffset() + src.position(), src.remaining());
+				return;
+			}
+			byte[] scratch = new byte[Math.min(8192, src.remaining())];
+			while (src.hasRemaining()) {
+				int n = Math.min(scratch.length, src.remaining());
+				src.get(scratch, 0, n);
+				checksum.update(scratch, 0, n);
+			}
+		}
+
+		/** Drops the record, unless it was committed, and the references to the segments of its rows. */
+		public void discard() {
+			payload = null;
+			rows.clear();
+			for (Segment segment : segments) {
+				segment.release();
+			}
+			segments.clear();
+		}
+
+		@Override
+		public boolean isOpen() {
+			return in == null || in.isOpen();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (in != null)
+				in.close();
+		}
+	}
+
+	/** Reads a replayed payload. */
+	static class BufferChannel implements ReadableByteChannel {
+		private final ByteBuffer src;
+
+		BufferChannel(ByteBuffer src) {
+			this.src = src;
+		}
+
+		@Override
+		public int read(ByteBuffer dst) throws IOException {
+			if (!src.hasRemaining())
+				return -1;
+			int n = Math.min(dst.remaining(), src.remaining());
+			ByteBuffer slice = src.duplicate();
+			slice.limit(slice.position() + n);
+			dst.put(slice);
+			src.position(src.position() + n);
+			return n;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
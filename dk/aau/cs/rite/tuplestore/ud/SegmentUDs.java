@@ -0,0 +1,102 @@
+/*
+ *
+ * Copyright (c) 2011, Xiufeng Liu (xiliu@cs.aau.dk) and the eGovMon Consortium
+ * Permission to use, copy, modify, and distribute this software for any
+ * purpose with or without fee is hereby granted, provided that the above
+ * copyright notice and this permission notice appear in all copies.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS" AND THE AUTHOR DISCLAIMS ALL WARRANTIES
+ * WITH REGARD TO THIS SOFTWARE INCLUDING ALL IMPLIED WARRANTIES OF
+ * MERCHANTABILITY AND FITNESS. IN NO EVENT SHALL THE AUTHOR BE LIABLE FOR
+ * ANY SPECIAL, DIRECT, INDIRECT, OR CONSEQUENTIAL DAMAGES OR ANY DAMAGES
+ * WHATSOEVER RESULTING FROM LOSS OF USE, DATA OR PROFITS, WHETHER IN AN
+ * ACTION OF CONTRACT, NEGLIGENCE OR OTHER TORTIOUS ACTION, ARISING OUT OF
+ * OR IN CONNECTION WITH THE USE OR PERFORMANCE OF THIS SOFTWARE.
+ *
+ *
+ */
+package dk.aau.cs.rite.tuplestore.ud;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import dk.aau.cs.rite.tuplestore.VersionedIndex;
+
+/**
+ * The updates/deletes that may apply to the rows of one segment, resolved once
+ * for the segment's [firstRowID, lastRowID] and the commit-time cutoff of a
+ * query. A UD applies to a row if rowID < ud.ID <= cutoff, so only the UDs in
+ * (firstRowID, cutoff] are kept. As the rows of a segment come in the order of
+ * their IDs, the UDs applying to a row is a suffix of the kept ones, and the
+ * start of the suffix only moves forward when the rows are scanned.
+ */
+class SegmentUDs {
+
+	private final VersionedIndex.View<Operation> noIdx;
+	private final Map<Object, List<Operation>> withIdx; // Value in the indexed column -> UDs in the order of IDs, or null.
+	private final int idx;
+	private int pos;
+	private int lastRowID;
+
+	SegmentUDs(VersionedIndex.View<Operation> noIdx, VersionedIndex.View<Operation> withIdx, int idx) {
+		this.noIdx = noIdx;
+		this.idx = idx;
+		this.pos = 0;
+		this.lastRowID = Integer.MIN_VALUE;
+		if (idx < 0 || withIdx.isEmpty()) {
+			this.withIdx = null;
+		} else {
+			this.withIdx = new HashMap<Object, List<Operation>>();
+			for (Operation ud : withIdx) {
+				Object val = ud.getWhereExp().getVal();
+				List<Operation> uds = this.withIdx.get(val);
+				if (uds == null) {
+					uds = new ArrayList<Operation>(2);
+					this.withIdx.put(val, uds);
+				}
+				uds.add(ud);
+			}
+		}
+	}
+
+	/** True if no UD can change any row of the segment. */
+	boolean isEmpty() {
+		return noIdx.isEmpty() && withIdx == null;
+	}
+
+	/** Applies the UDs to a row, returns null if the row is deleted. */
+	Object[] apply(Object[] row, int rowID) {
+		if (rowID < lastRowID) { // Not expected, the rows are in order.
+			pos = 0;
+		}
+		lastRowID = rowID;
+		int n = noIdx.size();
+		while (pos < n && noIdx.keyAt(pos) <= rowID) {
+			++pos;
+		}
+
+		List<Operation> idxUds = withIdx == null ? null : withIdx.get(row[idx]);
+		if (idxUds == null) {
+			for (int i = pos; i < n && row != null; ++i) {
+				row = noIdx.valueAt(i).process(row);
+			}
+			return row;
+		}
+
+		// Merge the two lists in the order of IDs.
+		int i = pos, j = 0, m = idxUds.size();
+		while (j < m && idxUds.get(j).getID() <= rowID) {
+			++j;
+		}
+		while (row != null && (i < n || j < m)) {
+			if (j == m || (i < n && noIdx.keyAt(i) < idxUds.get(j).getID())) {
+				row = noIdx.valueAt(i++).process(row);
+			} else {
+				row = idxUds.get(j++).process(row);
+			}
+		}
+		return row;
+	}
+}
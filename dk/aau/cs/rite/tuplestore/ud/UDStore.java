@@ -23,29 +23,24 @@ import java.io.PrintStream;
 import java.io.PrintWriter;
 import java.nio.ByteBuffer;
 import java.nio.channels.WritableByteChannel;
-import java.util.List;
-import java.util.Map.Entry;
-import java.util.NavigableMap;
 
 import dk.aau.cs.rite.common.Utils;
 import dk.aau.cs.rite.producer.staging.Catalog;
 import dk.aau.cs.rite.tuplestore.FlushEvent;
-import dk.aau.cs.rite.tuplestore.Persistence;
-import dk.aau.cs.rite.tuplestore.ReadWriteDeepMap;
-import dk.aau.cs.rite.tuplestore.ReadWriteMap;
+import dk.aau.cs.rite.tuplestore.VersionedIndex;
 
-public class UDStore implements Persistence{// Update/Delete operation store, U represents UPDATE, and D represents DELETE.
+public class UDStore {// Update/Delete operation store, U represents UPDATE, and D represents DELETE.
 	
 	private Catalog catalog;
 	
 	//ID - > UD object 
-	private ReadWriteMap<Integer, Operation> udNoIdxMap = new ReadWriteMap<Integer, Operation> ();
+	private VersionedIndex<Operation> udNoIdxMap = new VersionedIndex<Operation> ();
 	
-	// The value of a column with index -> List of UD objects (Currently only supports a indexed column in a table).
-	private ReadWriteDeepMap udWithIdxMap = new ReadWriteDeepMap ();
+	//ID - > UD object on the indexed column (Currently only supports a indexed column in a table).
+	private VersionedIndex<Operation> udWithIdxMap = new VersionedIndex<Operation> ();
 	
 	// (commitTime -> max ID of uds in a commit (include))
-	private ReadWriteMap<Long, Integer> timeIndex = new ReadWriteMap<Long, Integer>();
+	private VersionedIndex<Integer> timeIndex = new VersionedIndex<Integer>();
 	
 	
 	public UDStore(Catalog catalog,  FlushEvent flushEvent){
@@ -56,57 +51,51 @@ public class UDStore implements Persistence{// Update/Delete operation store, U
 	}
 	
 	public int process(ByteBuffer src, String delim, String nullSubst, long queryStartTime, BufferedWriter writer) throws java.io.IOException {
-		return this.processRows(src, delim, nullSubst, queryStartTime, null, writer);
+		return this.process(src, Integer.MIN_VALUE, Integer.MAX_VALUE, delim, nullSubst, queryStartTime, writer);
+	}
+	
+	public int process(ByteBuffer src, int firstRowID, int lastRowID, String delim, String nullSubst, long queryStartTime, BufferedWriter writer) throws java.io.IOException {
+		return this.processRows(src, firstRowID, lastRowID, delim, nullSubst, queryStartTime, null, writer);
 	}
 	
 	public int process(ByteBuffer src, long queryStartTime, WritableByteChannel dst) throws java.io.IOException {
-		//return this.processRows(src, null, null, queryStartTime, dst, null);  // Apply on-the-fly updates and deletions to the records.
+		//return this.processRows(src, Integer.MIN_VALUE, Integer.MAX_VALUE, null, null, queryStartTime, dst, null);  // Apply on-the-fly updates and deletions to the records.
 		return dst.write(src); // Query all the records directly to the consumer side without being processed.
 	}
 
 	public int process(ByteBuffer src, String delim, String nullSubst, long queryStartTime, WritableByteChannel dst) throws java.io.IOException {
-		return this.processRows(src, delim, nullSubst, queryStartTime, dst, null);
+		return this.processRows(src, Integer.MIN_VALUE, Integer.MAX_VALUE, delim, nullSubst, queryStartTime, dst, null);
 	}
 	
+	/**
+	 * Resolves the UDs for the rows in [firstRowID, lastRowID] that are visible
+	 * to a query started at queryStartTime.
+	 */
+	SegmentUDs resolve(int firstRowID, int lastRowID, long queryStartTime) {
+		Integer maxUD = timeIndex.snapshot().floorValue(queryStartTime);
+		int maxID = maxUD==null?-1:maxUD;
+		if (maxID <= firstRowID) { // Also the case when there is no UD.
+			VersionedIndex.View<Operation> none = udNoIdxMap.snapshot().subView(0, false, 0, false);
+			return new SegmentUDs(none, none, -1);
+		}
+		return new SegmentUDs(udNoIdxMap.snapshot().subView(firstRowID, false, maxID, true),
+				udWithIdxMap.snapshot().subView(firstRowID, false, maxID, true), catalog.getIndexCol());
+	}
 	
-	private int processRows(ByteBuffer src, String delim, String nullSubst, long queryStartTime, WritableByteChannel dst, BufferedWriter writer) throws java.io.IOException {
+	private int processRows(ByteBuffer src, int firstRowID, int lastRowID, String delim, String nullSubst, long queryStartTime, WritableByteChannel dst, BufferedWriter writer) throws java.io.IOException {
 			int bytesOfWritten = 0;
 			ByteBuffer buf = ByteBuffer.allocate(1024 * 50);
 			String[] cols = catalog.getColArray();
 			int[] types = catalog.getTypeArray(); // Attention!!!: Type already contains the last ID column, therefore, cols.length+1==types.length
-			int idx = catalog.getIndexCol(); // Indexed column in a table.
 			Rows rows = new Rows(src, cols, types);
 			StringBuffer strBuf = new StringBuffer();
+			SegmentUDs uds = this.resolve(firstRowID, lastRowID, queryStartTime);
+			boolean noUDs = uds.isEmpty();
 			while (rows.hasNext()) {
 				Object[] row = rows.next();
-				int rowID = (Integer) row[types.length-1]; // The last column stores the row ID
-				
-				NavigableMap<Integer, Operation> uds = udNoIdxMap.tailMap(rowID, false);
-				
-				if (idx>=0){ // Currently, only support one indexed column.
-					Object iVal = row[idx]; // The value in the indexed column.
-					List<Object> udObjs = udWithIdxMap.get(iVal);
-					if (udObjs != null) { // Add the ud objects created on the indexed column.
-						for (Object obj : udObjs) {
-							Operation ud = (Operation) obj;
-							uds.put(ud.getID(), ud);
-						}
-					}
-				}
-					
-				Entry<Long, Integer> entry = timeIndex.floorEntry(queryStartTime);
-				int maxID = entry==null?-1:entry.getValue();
-				
-				NavigableMap<Integer, Operation>  appliedUds = uds.headMap(maxID, true);
-				if (appliedUds!=null){
-					for (Entry<Integer, Operation> udEntry : appliedUds.entrySet()) {
-						int ID = udEntry.getKey();
-						Operation ud = udEntry.getValue();
-						if (ud.getID()>rowID){
-							row = ud.process(row);
-						} else
-							break;
-					}
+				if (!noUDs) {
+					int rowID = (Integer) row[types.length-1]; // The last column stores the row ID
+					row = uds.apply(row, rowID);
 				}
 	
 				if (delim != null && nullSubst != null) { // Materialize
@@ -134,41 +123,32 @@ public class UDStore implements Persistence{// Update/Delete operation store, U
 
 	
 	public void put(long commitTime, int ID){
-		this.timeIndex.put(commitTime, ID);
+		this.timeIndex.putAtLeast(commitTime, ID); // The commit times of several producers may be out of order.
 	}
 		
 	public void add(Operation ud) {
 		Expression whereExp = ud.getWhereExp();
 		// Only supports one indexed-column,\e.g., the primary key.
 		if (whereExp != null && catalog.getIndexCol() == whereExp.getCol() && whereExp.getRel()==AlgRel.EqualTo) {
-			udWithIdxMap.put(whereExp.getVal(), ud);
+			udWithIdxMap.put(ud.getID(), ud);
 			return;
 		}
 		udNoIdxMap.put(ud.getID(), ud);
 	}
 	
 	
-	public void shrink(int minRowID) { 
-		//TODO: remove the un-used objects from the udWithIdxMap.
-		udNoIdxMap.getWritableMap().headMap(minRowID, false).clear();
-		/*Map<Object, List<Object>> idxMap = udWithIdxMap.getWritableMap();
-		if (idxMap.size() > 0) {
-			for (Entry<Object, List<Object>> entry : idxMap.entrySet()) {
-				List<Object> uds = entry.getValue();
-				
-			}
-		}*/
-	}
-
-	@Override
-	public void backup(String path) {
-		// TODO Auto-generated method stub
-		
+	/** Drops all the operations, e.g., before they are replayed from the log. */
+	public void clear() {
+		udNoIdxMap.clear();
+		udNoIdxMap.publish();
+		udWithIdxMap.clear();
+		udWithIdxMap.publish();
+		timeIndex.clear();
+		timeIndex.publish();
 	}
 
-	@Override
-	public void recover() {
-		// TODO Auto-generated method stub
-		
+	public void shrink(int minRowID) { 
+		udNoIdxMap.truncateHead(minRowID);
+		udWithIdxMap.truncateHead(minRowID);
 	}
 }